@@ -0,0 +1,58 @@
+package io.github.rusyasoft.session.data.couchbase.config;
+
+import io.github.rusyasoft.session.data.couchbase.data.BulkheadSessionDao;
+import io.github.rusyasoft.session.data.couchbase.data.DelegatingSessionDao;
+import io.github.rusyasoft.session.data.couchbase.data.SessionDao;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Exposes the state of the session store bulkhead as Micrometer meters.
+ */
+public class BulkheadMetrics implements MeterBinder {
+
+    protected final SessionDao dao;
+
+    public BulkheadMetrics(SessionDao dao) {
+        this.dao = dao;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        BulkheadSessionDao bulkhead = findBulkhead(dao);
+        if (bulkhead == null) {
+            return;
+        }
+        Gauge.builder("session.couchbase.bulkhead.in-flight", bulkhead, BulkheadSessionDao::getInFlightCalls)
+                .description("Session store calls currently holding a bulkhead slot")
+                .register(registry);
+        Gauge.builder("session.couchbase.bulkhead.queued", bulkhead, BulkheadSessionDao::getQueuedCalls)
+                .description("Session store calls currently waiting for a bulkhead slot")
+                .register(registry);
+        FunctionCounter.builder("session.couchbase.bulkhead.rejected", bulkhead, BulkheadSessionDao::getRejectedCalls)
+                .description("Session store calls rejected by the bulkhead")
+                .register(registry);
+        FunctionTimer.builder("session.couchbase.bulkhead.queue-time", bulkhead,
+                BulkheadSessionDao::getTotalQueuedCalls, BulkheadSessionDao::getTotalQueueTimeInNanos, NANOSECONDS)
+                .description("Time session store calls spent waiting for a bulkhead slot")
+                .register(registry);
+        Gauge.builder("session.couchbase.bulkhead.queue-time.max", bulkhead, b -> NANOSECONDS.toMillis(b.getMaxQueueTimeInNanos()))
+                .description("Longest time in milliseconds a session store call spent waiting for a bulkhead slot")
+                .register(registry);
+    }
+
+    protected BulkheadSessionDao findBulkhead(SessionDao dao) {
+        while (dao instanceof DelegatingSessionDao) {
+            if (dao instanceof BulkheadSessionDao) {
+                return (BulkheadSessionDao) dao;
+            }
+            dao = ((DelegatingSessionDao) dao).getDelegate();
+        }
+        return null;
+    }
+}
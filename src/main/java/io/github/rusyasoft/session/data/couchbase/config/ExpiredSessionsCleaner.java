@@ -0,0 +1,63 @@
+package io.github.rusyasoft.session.data.couchbase.config;
+
+import io.github.rusyasoft.session.data.couchbase.core.CouchbaseSessionRepository;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Periodically lets the session repository publish expiration events of sessions tracked on this node. Does nothing
+ * when the application provides a session repository of its own.
+ */
+public class ExpiredSessionsCleaner implements InitializingBean, DisposableBean {
+
+    private static final Logger log = getLogger(ExpiredSessionsCleaner.class);
+
+    protected final CouchbaseSessionRepository repository;
+    protected final Duration interval;
+    protected ScheduledExecutorService executor;
+
+    /**
+     * @param repository Couchbase session repository, {@code null} when the application provides another one
+     */
+    public ExpiredSessionsCleaner(CouchbaseSessionRepository repository, Duration interval) {
+        this.repository = repository;
+        this.interval = interval;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (repository == null) {
+            log.warn("Session repository is not a Couchbase session repository, expired HTTP sessions will not be cleaned up");
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-couchbase-expiration");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::cleanUp, interval.toMillis(), interval.toMillis(), MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    protected void cleanUp() {
+        try {
+            repository.cleanUpExpiredSessions();
+        } catch (RuntimeException e) {
+            log.error("Cleaning up expired HTTP sessions has failed", e);
+        }
+    }
+}
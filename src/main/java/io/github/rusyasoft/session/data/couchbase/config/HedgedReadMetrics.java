@@ -0,0 +1,55 @@
+package io.github.rusyasoft.session.data.couchbase.config;
+
+import io.github.rusyasoft.session.data.couchbase.data.DelegatingSessionDao;
+import io.github.rusyasoft.session.data.couchbase.data.HedgedReadPolicy;
+import io.github.rusyasoft.session.data.couchbase.data.PersistentDao;
+import io.github.rusyasoft.session.data.couchbase.data.SessionDao;
+import io.github.rusyasoft.session.data.couchbase.data.ShardedSessionDao;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Exposes the hedged session reads as Micrometer meters, tagged by shard when the session store is sharded.
+ */
+public class HedgedReadMetrics implements MeterBinder {
+
+    protected final SessionDao dao;
+
+    public HedgedReadMetrics(SessionDao dao) {
+        this.dao = dao;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        SessionDao sessionDao = dao;
+        while (sessionDao instanceof DelegatingSessionDao) {
+            sessionDao = ((DelegatingSessionDao) sessionDao).getDelegate();
+        }
+        if (sessionDao instanceof ShardedSessionDao) {
+            ((ShardedSessionDao) sessionDao).getShards().forEach((name, shard) -> bindTo(registry, shard, Tags.of("shard", name)));
+        } else if (sessionDao instanceof PersistentDao) {
+            bindTo(registry, (PersistentDao) sessionDao, Tags.empty());
+        }
+    }
+
+    protected void bindTo(MeterRegistry registry, PersistentDao dao, Tags tags) {
+        HedgedReadPolicy policy = dao.getHedgedReadPolicy();
+        if (policy == null) {
+            return;
+        }
+        FunctionCounter.builder("session.couchbase.hedged-reads.reads", policy, HedgedReadPolicy::getReads)
+                .description("Session reads eligible for hedging")
+                .tags(tags)
+                .register(registry);
+        FunctionCounter.builder("session.couchbase.hedged-reads.hedged", policy, HedgedReadPolicy::getHedgedReads)
+                .description("Session reads for which a replica read has been issued")
+                .tags(tags)
+                .register(registry);
+        FunctionCounter.builder("session.couchbase.hedged-reads.replica", policy, HedgedReadPolicy::getReplicaReads)
+                .description("Session reads answered by a replica")
+                .tags(tags)
+                .register(registry);
+    }
+}
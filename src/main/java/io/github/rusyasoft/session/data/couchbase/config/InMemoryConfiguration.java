@@ -0,0 +1,41 @@
+package io.github.rusyasoft.session.data.couchbase.config;
+
+import io.github.rusyasoft.session.data.couchbase.data.OffHeapSessionDao;
+import io.github.rusyasoft.session.data.couchbase.data.OffHeapStore;
+import io.github.rusyasoft.session.data.couchbase.data.SessionDao;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+@EnableConfigurationProperties(SessionCouchbaseProperties.class)
+@ConditionalOnProperty(name = "session-couchbase.in-memory.enabled", havingValue = "true")
+public class InMemoryConfiguration {
+
+    protected SessionCouchbaseProperties sessionCouchbase;
+
+    public InMemoryConfiguration(SessionCouchbaseProperties sessionCouchbase) {
+        this.sessionCouchbase = sessionCouchbase;
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public OffHeapStore sessionOffHeapStore() {
+        SessionCouchbaseProperties.InMemory.OffHeap offHeap = sessionCouchbase.getInMemory().getOffHeap();
+        return new OffHeapStore(offHeap.getMaxMemory(), offHeap.getSlabSize(), offHeap.getSegments(), offHeap.getCompactionThreshold());
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public SessionDao sessionDao(OffHeapStore sessionOffHeapStore) {
+        return new OffHeapSessionDao(sessionOffHeapStore);
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public OffHeapStoreSweeper offHeapStoreSweeper(OffHeapStore sessionOffHeapStore) {
+        return new OffHeapStoreSweeper(sessionOffHeapStore, sessionCouchbase.getInMemory().getOffHeap().getSweepInterval());
+    }
+}
@@ -0,0 +1,57 @@
+package io.github.rusyasoft.session.data.couchbase.config;
+
+import io.github.rusyasoft.session.data.couchbase.data.OffHeapStore;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Periodically removes expired HTTP sessions from the off-heap store, so that their slab space can be compacted.
+ */
+public class OffHeapStoreSweeper implements InitializingBean, DisposableBean {
+
+    private static final Logger log = getLogger(OffHeapStoreSweeper.class);
+
+    protected final OffHeapStore store;
+    protected final Duration interval;
+    protected ScheduledExecutorService executor;
+
+    public OffHeapStoreSweeper(OffHeapStore store, Duration interval) {
+        this.store = store;
+        this.interval = interval;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-couchbase-off-heap-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::sweep, interval.toMillis(), interval.toMillis(), MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    protected void sweep() {
+        try {
+            int evicted = store.evictExpired();
+            log.debug("{} expired HTTP sessions removed from off-heap store, {} of {} allocated bytes are live",
+                    evicted, store.getLiveMemory(), store.getAllocatedMemory());
+        } catch (RuntimeException e) {
+            log.error("Removing expired HTTP sessions from off-heap store has failed", e);
+        }
+    }
+}
@@ -1,31 +1,47 @@
 package io.github.rusyasoft.session.data.couchbase.config;
 
-import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.Cluster;
+import com.couchbase.client.java.CouchbaseCluster;
+import com.couchbase.client.java.env.CouchbaseEnvironment;
+import com.couchbase.client.java.env.DefaultCouchbaseEnvironment;
+import io.github.rusyasoft.session.data.couchbase.data.AccountingSessionDao;
+import io.github.rusyasoft.session.data.couchbase.data.BulkheadSessionDao;
+import io.github.rusyasoft.session.data.couchbase.data.CouchbaseCircuitBreaker;
+import io.github.rusyasoft.session.data.couchbase.data.CouchbaseDeadline;
+import io.github.rusyasoft.session.data.couchbase.data.CouchbaseRetryTemplate;
+import io.github.rusyasoft.session.data.couchbase.data.DeadlineRetryPolicy;
 import io.github.rusyasoft.session.data.couchbase.data.PersistentDao;
 import io.github.rusyasoft.session.data.couchbase.data.RetryLoggingListener;
 import io.github.rusyasoft.session.data.couchbase.data.SessionDao;
+import io.github.rusyasoft.session.data.couchbase.data.TransientErrorClassifier;
+import io.github.rusyasoft.session.data.couchbase.data.TransientErrorRetryPolicy;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.couchbase.config.AbstractCouchbaseConfiguration;
-import org.springframework.data.couchbase.core.CouchbaseTemplate;
 import org.springframework.data.couchbase.repository.config.EnableCouchbaseRepositories;
-import org.springframework.retry.policy.SimpleRetryPolicy;
+import org.springframework.retry.RetryPolicy;
+import org.springframework.retry.backoff.ExponentialRandomBackOffPolicy;
+import org.springframework.retry.policy.CompositeRetryPolicy;
 import org.springframework.retry.support.RetryTemplate;
+import org.springframework.session.web.http.SessionRepositoryFilter;
 
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+
+import static java.util.Arrays.asList;
+import static org.springframework.util.StringUtils.tokenizeToStringArray;
 
 @Configuration
-@EnableCouchbaseRepositories
 @EnableConfigurationProperties(SessionCouchbaseProperties.class)
 @ConditionalOnProperty(name = "session-couchbase.in-memory.enabled", havingValue = "false", matchIfMissing = true)
-public class PersistentConfiguration extends AbstractCouchbaseConfiguration {
+public class PersistentConfiguration {
 
     protected SessionCouchbaseProperties sessionCouchbase;
 
@@ -48,55 +64,195 @@ public class PersistentConfiguration extends AbstractCouchbaseConfiguration {
 
     @Bean
     @ConditionalOnMissingBean
-    public RetryTemplate sessionCouchbaseRetryTemplate(RetryLoggingListener listener) {
-        Map<Class<? extends Throwable>, Boolean> retryableExceptions = new HashMap<>(1);
-        retryableExceptions.put(Exception.class, true);
-        SimpleRetryPolicy retryPolicy = new SimpleRetryPolicy(sessionCouchbase.getPersistent().getRetry().getMaxAttempts(), retryableExceptions);
-        RetryTemplate retryTemplate = new RetryTemplate();
+    public TransientErrorClassifier transientErrorClassifier() {
+        return new TransientErrorClassifier();
+    }
+
+    /**
+     * Retry template of the Couchbase operations. Asynchronous operations are retried following its retry policy, back
+     * off policy and listeners only when it is a {@link CouchbaseRetryTemplate}, replacing beans should extend it.
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    public RetryTemplate sessionCouchbaseRetryTemplate(RetryLoggingListener listener, TransientErrorClassifier errorClassifier) {
+        SessionCouchbaseProperties.Persistent.Retry retry = sessionCouchbase.getPersistent().getRetry();
+        RetryPolicy retryPolicy = new TransientErrorRetryPolicy(retry.getMaxAttempts(), errorClassifier);
+        if (retry.getDeadline() != null) {
+            CompositeRetryPolicy compositePolicy = new CompositeRetryPolicy();
+            compositePolicy.setPolicies(new RetryPolicy[]{retryPolicy, new DeadlineRetryPolicy()});
+            retryPolicy = compositePolicy;
+        }
+        ExponentialRandomBackOffPolicy backOffPolicy = new ExponentialRandomBackOffPolicy();
+        backOffPolicy.setInitialInterval(retry.getInitialInterval().toMillis());
+        backOffPolicy.setMultiplier(retry.getMultiplier());
+        backOffPolicy.setMaxInterval(retry.getMaxInterval().toMillis());
+        backOffPolicy.setSleeper(CouchbaseDeadline::sleep);
+        RetryTemplate retryTemplate = new CouchbaseRetryTemplate();
         retryTemplate.setRetryPolicy(retryPolicy);
+        retryTemplate.setBackOffPolicy(backOffPolicy);
         retryTemplate.registerListener(listener);
         return retryTemplate;
     }
 
-
     @Bean
-    public Bucket sessionBucket() throws Exception {
-        return couchbaseCluster().openBucket(this.bucketName, this.bucketPassword);
+    @ConditionalOnMissingBean
+    public CouchbaseCircuitBreaker sessionCouchbaseCircuitBreaker(TransientErrorClassifier errorClassifier) {
+        return new CouchbaseCircuitBreaker(sessionCouchbase, errorClassifier);
     }
 
+    /**
+     * Environment of the session clusters. Creating it opens no connection, buckets are opened by their bootstraps.
+     */
+    @Bean(destroyMethod = "shutdown")
+    @ConditionalOnMissingBean(name = "sessionCouchbaseEnvironment")
+    public CouchbaseEnvironment sessionCouchbaseEnvironment() {
+        return DefaultCouchbaseEnvironment.create();
+    }
 
-    public CouchbaseTemplate sessionBucketTemplate() throws Exception {
-        CouchbaseTemplate template = new CouchbaseTemplate(couchbaseClusterInfo(), sessionBucket(),
-                mappingCouchbaseConverter(), translationService()
-        );
-        template.setDefaultConsistency(getDefaultConsistency());
-        return template;
+    /**
+     * Cluster of the session bucket. Shards connect to their own clusters, so it is not created when sharding is enabled.
+     */
+    @Bean(destroyMethod = "disconnect")
+    @ConditionalOnMissingBean(name = "sessionCouchbaseCluster")
+    @ConditionalOnProperty(name = "session-couchbase.persistent.sharding.enabled", havingValue = "false", matchIfMissing = true)
+    public Cluster sessionCouchbaseCluster(@Qualifier("sessionCouchbaseEnvironment") CouchbaseEnvironment environment) {
+        return CouchbaseCluster.create(environment, asList(tokenizeToStringArray(serverNodes, ",")));
     }
 
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(name = "session-couchbase.persistent.sharding.enabled", havingValue = "false", matchIfMissing = true)
+    public SessionBucketBootstrap sessionBucketBootstrap(@Qualifier("sessionCouchbaseCluster") Cluster cluster) {
+        return new SessionBucketBootstrap(() -> cluster, bucketName, bucketPassword, sessionCouchbase);
+    }
 
     @Bean
     @ConditionalOnMissingBean
-    public SessionDao sessionDao(@Qualifier("sessionCouchbaseRetryTemplate") RetryTemplate retryTemplate) {
-        try {
-            return new PersistentDao(sessionCouchbase, sessionBucketTemplate(), retryTemplate);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
+    @ConditionalOnProperty(name = "session-couchbase.persistent.sharding.enabled", havingValue = "true")
+    public SessionShards sessionShards(@Qualifier("sessionCouchbaseEnvironment") CouchbaseEnvironment environment,
+                                       @Qualifier("sessionCouchbaseRetryTemplate") RetryTemplate retryTemplate, TransientErrorClassifier errorClassifier) {
+        return new SessionShards(sessionCouchbase, environment, retryTemplate, errorClassifier);
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public SessionDao sessionDao(@Qualifier("sessionCouchbaseRetryTemplate") RetryTemplate retryTemplate, CouchbaseCircuitBreaker circuitBreaker,
+                                 ObjectProvider<SessionBucketBootstrap> bootstraps, ObjectProvider<SessionShards> shards) {
+        SessionShards sessionShards = shards.getIfAvailable();
+        SessionDao dao;
+        if (sessionShards != null) {
+            dao = sessionShards.getDao();
+        } else {
+            SessionBucketBootstrap bootstrap = bootstraps.getObject();
+            PersistentDao persistentDao = new PersistentDao(sessionCouchbase, bucketName, bootstrap, retryTemplate, circuitBreaker);
+            bootstrap.setStatementsPreparation(persistentDao::prepareStatements);
+            dao = persistentDao;
+        }
+        if (sessionCouchbase.getPersistent().getBulkhead().isEnabled()) {
+            dao = new BulkheadSessionDao(dao, sessionCouchbase);
+        }
+        if (sessionCouchbase.getAccounting().isEnabled()) {
+            dao = new AccountingSessionDao(dao);
         }
+        return dao;
     }
 
-    @Override
-    protected List<String> getBootstrapHosts() {
-        return Arrays.asList(this.serverNodes);
+    /**
+     * Spring Data Couchbase on the session bucket, exposing the couchbaseTemplate bean and the Couchbase repositories of
+     * the application. Unlike the session store, it connects while the application context is created.
+     */
+    @Configuration
+    @EnableCouchbaseRepositories
+    @ConditionalOnProperty(name = "session-couchbase.persistent.spring-data-repositories", havingValue = "true", matchIfMissing = true)
+    protected static class SpringDataCouchbaseConfiguration extends AbstractCouchbaseConfiguration {
+
+        protected final SessionCouchbaseProperties sessionCouchbase;
+
+        public SpringDataCouchbaseConfiguration(SessionCouchbaseProperties sessionCouchbase) {
+            this.sessionCouchbase = sessionCouchbase;
+        }
+
+        @Override
+        protected List<String> getBootstrapHosts() {
+            return asList(tokenizeToStringArray(sessionCouchbase.getServerNodes(), ","));
+        }
+
+        @Override
+        protected String getBucketName() {
+            return sessionCouchbase.getBucketName();
+        }
+
+        @Override
+        protected String getBucketPassword() {
+            return sessionCouchbase.getBucketPassword();
+        }
+    }
+
+    @Configuration
+    @ConditionalOnClass(name = "org.springframework.boot.actuate.health.HealthIndicator")
+    protected static class SessionStoreHealthConfiguration {
+
+        @Bean
+        @ConditionalOnMissingBean
+        public SessionStoreHealthIndicator sessionStoreHealthIndicator(ObjectProvider<SessionBucketBootstrap> bootstrap, CouchbaseCircuitBreaker circuitBreaker,
+                                                                       ObjectProvider<SessionShards> shards) {
+            return new SessionStoreHealthIndicator(bootstrap.getIfAvailable(), circuitBreaker, shards.getIfAvailable());
+        }
+    }
+
+    @Configuration
+    @ConditionalOnClass(name = "io.micrometer.core.instrument.binder.MeterBinder")
+    @ConditionalOnProperty(name = "session-couchbase.persistent.bulkhead.enabled", havingValue = "true")
+    protected static class BulkheadMetricsConfiguration {
+
+        @Bean
+        @ConditionalOnMissingBean
+        public BulkheadMetrics sessionCouchbaseBulkheadMetrics(SessionDao dao) {
+            return new BulkheadMetrics(dao);
+        }
     }
 
-    @Override
-    protected String getBucketName() {
-        return this.bucketName;
+    @Configuration
+    @ConditionalOnClass(name = "io.micrometer.core.instrument.binder.MeterBinder")
+    @ConditionalOnProperty(name = "session-couchbase.persistent.hedged-reads.enabled", havingValue = "true")
+    protected static class HedgedReadMetricsConfiguration {
+
+        @Bean
+        @ConditionalOnMissingBean
+        public HedgedReadMetrics sessionCouchbaseHedgedReadMetrics(SessionDao dao) {
+            return new HedgedReadMetrics(dao);
+        }
     }
 
-    @Override
-    protected String getBucketPassword() {
-        return this.bucketPassword;
+    @Configuration
+    @ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+    @ConditionalOnProperty(name = "session-couchbase.accounting.enabled", havingValue = "true")
+    protected static class SessionOperationAccountingConfiguration {
+
+        @Bean
+        @ConditionalOnMissingBean
+        public SessionOperationAccountingFilter sessionOperationAccountingFilter(SessionCouchbaseProperties sessionCouchbase) {
+            return new SessionOperationAccountingFilter(sessionCouchbase);
+        }
+
+        @Bean
+        public FilterRegistrationBean<SessionOperationAccountingFilter> sessionOperationAccountingFilterRegistration(SessionOperationAccountingFilter filter) {
+            FilterRegistrationBean<SessionOperationAccountingFilter> registration = new FilterRegistrationBean<>(filter);
+            registration.setOrder(SessionRepositoryFilter.DEFAULT_ORDER - 1);
+            return registration;
+        }
+    }
+
+    @Configuration
+    @ConditionalOnClass(name = "io.micrometer.core.instrument.binder.MeterBinder")
+    @ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+    @ConditionalOnProperty(name = "session-couchbase.accounting.enabled", havingValue = "true")
+    protected static class SessionOperationMetricsConfiguration {
+
+        @Bean
+        @ConditionalOnMissingBean
+        public SessionOperationMetrics sessionOperationMetrics(SessionDao dao, SessionOperationAccountingFilter filter) {
+            return new SessionOperationMetrics(dao, filter);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,200 @@
+package io.github.rusyasoft.session.data.couchbase.config;
+
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.Cluster;
+import io.github.rusyasoft.session.data.couchbase.data.SessionStoreUnavailableException;
+import org.slf4j.Logger;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.data.couchbase.core.CouchbaseTemplate;
+import org.springframework.data.couchbase.core.query.Consistency;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Opens the session bucket of the cluster when the application context starts, either right away or in the background,
+ * and warms it up before reporting the session store as ready. Nothing is opened while beans are being created.
+ * Operations issued before the bucket is open wait for it up to the await timeout. The session store is reported as
+ * ready only after a successful warm-up, unless warm-up failures are allowed.
+ */
+public class SessionBucketBootstrap implements Supplier<CouchbaseTemplate>, SmartLifecycle {
+
+    private static final Logger log = getLogger(SessionBucketBootstrap.class);
+
+    protected final Supplier<Cluster> cluster;
+    protected final String bucketName;
+    protected final String bucketPassword;
+    protected final SessionCouchbaseProperties.Persistent.Bootstrap bootstrap;
+    protected final CompletableFuture<CouchbaseTemplate> template = new CompletableFuture<>();
+    protected Runnable statementsPreparation;
+    protected volatile boolean running = false;
+    protected volatile boolean ready = false;
+    protected volatile Throwable lastFailure;
+    protected volatile Thread thread;
+
+    public SessionBucketBootstrap(Supplier<Cluster> cluster, String bucketName, String bucketPassword, SessionCouchbaseProperties sessionCouchbase) {
+        this.cluster = cluster;
+        this.bucketName = bucketName;
+        this.bucketPassword = bucketPassword;
+        this.bootstrap = sessionCouchbase.getPersistent().getBootstrap();
+    }
+
+    /**
+     * Sets the task preparing N1QL statements during the warm-up.
+     */
+    public void setStatementsPreparation(Runnable statementsPreparation) {
+        this.statementsPreparation = statementsPreparation;
+    }
+
+    public String getBucketName() {
+        return bucketName;
+    }
+
+    /**
+     * Opens the session bucket and runs the warm-up afterwards. Fails when the bucket cannot be opened or warmed up,
+     * unless the bootstrap is asynchronous, in which case both are attempted again in the background until they succeed.
+     */
+    @Override
+    public void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        if (!bootstrap.isAsync()) {
+            try {
+                template.complete(openTemplate());
+            } catch (RuntimeException e) {
+                lastFailure = e;
+                throw new SessionStoreUnavailableException("Couchbase session bucket '" + bucketName + "' could not be opened", e);
+            }
+            try {
+                warmUp();
+            } catch (RuntimeException e) {
+                lastFailure = e;
+                throw new SessionStoreUnavailableException("Couchbase session bucket '" + bucketName + "' could not be warmed up", e);
+            }
+            return;
+        }
+        thread = new Thread(this::openInBackground, "session-couchbase-bootstrap-" + bucketName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        Thread bootstrapThread = thread;
+        if (bootstrapThread != null) {
+            bootstrapThread.interrupt();
+        }
+    }
+
+    @Override
+    public void stop(Runnable callback) {
+        stop();
+        callback.run();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public boolean isAutoStartup() {
+        return true;
+    }
+
+    @Override
+    public int getPhase() {
+        return 0;
+    }
+
+    @Override
+    public CouchbaseTemplate get() {
+        CouchbaseTemplate openedTemplate = template.getNow(null);
+        if (openedTemplate != null) {
+            return openedTemplate;
+        }
+        try {
+            return template.get(bootstrap.getAwaitTimeout().toMillis(), MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new SessionStoreUnavailableException("Couchbase session bucket has not been opened within " + bootstrap.getAwaitTimeout(), lastFailure);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SessionStoreUnavailableException("Waiting for Couchbase session bucket has been interrupted", e);
+        } catch (ExecutionException e) {
+            throw new SessionStoreUnavailableException("Couchbase session bucket could not be opened", e.getCause());
+        }
+    }
+
+    /**
+     * Tells whether the session bucket is open and warmed up, so the session store can take traffic.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    public Throwable getLastFailure() {
+        return lastFailure;
+    }
+
+    protected CouchbaseTemplate openTemplate() {
+        Cluster couchbaseCluster = cluster.get();
+        Bucket bucket = couchbaseCluster.openBucket(bucketName, bucketPassword);
+        CouchbaseTemplate couchbaseTemplate = new CouchbaseTemplate(couchbaseCluster.clusterManager(bucketName, bucketPassword).info(), bucket);
+        couchbaseTemplate.setDefaultConsistency(Consistency.DEFAULT_CONSISTENCY);
+        return couchbaseTemplate;
+    }
+
+    protected void openInBackground() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                if (!template.isDone()) {
+                    template.complete(openTemplate());
+                }
+                warmUp();
+                return;
+            } catch (RuntimeException e) {
+                lastFailure = e;
+                String step = template.isDone() ? "Warming up" : "Opening";
+                log.warn("{} Couchbase session bucket '{}' has failed, retrying in {}", step, bucketName, bootstrap.getRetryInterval(), e);
+            }
+            try {
+                Thread.sleep(bootstrap.getRetryInterval().toMillis());
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Warms up the opened bucket and reports the session store as ready afterwards. Failures are rethrown, unless they
+     * are allowed, in which case the session store is reported as ready cold.
+     */
+    protected void warmUp() {
+        if (bootstrap.isWarmUp()) {
+            long start = System.nanoTime();
+            try {
+                get().getCouchbaseBucket().ping();
+                if (bootstrap.isPrepareStatements() && statementsPreparation != null) {
+                    statementsPreparation.run();
+                }
+                log.info("Couchbase session bucket '{}' has been warmed up in {}", bucketName, Duration.ofNanos(System.nanoTime() - start));
+            } catch (RuntimeException e) {
+                if (!bootstrap.isWarmUpFailureAllowed()) {
+                    throw e;
+                }
+                lastFailure = e;
+                log.warn("Warming up Couchbase session bucket '" + bucketName + "' has failed, the session store is taking traffic cold", e);
+            }
+        }
+        ready = true;
+    }
+}
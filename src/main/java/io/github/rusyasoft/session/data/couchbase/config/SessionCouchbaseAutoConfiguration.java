@@ -2,9 +2,20 @@ package io.github.rusyasoft.session.data.couchbase.config;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.github.rusyasoft.session.data.couchbase.core.CouchbaseSessionRepository;
+import io.github.rusyasoft.session.data.couchbase.core.DeserializedValueCache;
 import io.github.rusyasoft.session.data.couchbase.core.JsonSerializer;
+import io.github.rusyasoft.session.data.couchbase.core.RoleSessionTimeoutPolicy;
+import io.github.rusyasoft.session.data.couchbase.core.SecureRandomSessionIdGenerator;
+import io.github.rusyasoft.session.data.couchbase.core.SessionExpirationIndex;
+import io.github.rusyasoft.session.data.couchbase.core.SessionIdGenerator;
+import io.github.rusyasoft.session.data.couchbase.core.SessionSizeProfiler;
+import io.github.rusyasoft.session.data.couchbase.core.SessionTimeoutPolicy;
+import io.github.rusyasoft.session.data.couchbase.core.TypeIdRegistry;
 import io.github.rusyasoft.session.data.couchbase.data.SessionDao;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.annotation.Bean;
@@ -25,13 +36,97 @@ public class SessionCouchbaseAutoConfiguration {
 
     @Bean
     @ConditionalOnMissingBean
-    public JsonSerializer serializer() {
-        return new JsonSerializer();
+    public JsonSerializer serializer(ObjectProvider<DeserializedValueCache> deserializedValueCache, ObjectProvider<SessionSizeProfiler> sizeProfiler) {
+        JsonSerializer serializer = new JsonSerializer();
+        serializer.setDeserializedValueCache(deserializedValueCache.getIfAvailable());
+        serializer.setSizeProfiler(sizeProfiler.getIfAvailable());
+        return serializer;
     }
 
     @Bean
     @ConditionalOnMissingBean
-    public SessionRepository sessionRepository(SessionDao dao, ObjectMapper mapper, JsonSerializer serializer, ApplicationEventPublisher eventPublisher) {
-        return new CouchbaseSessionRepository(sessionCouchbase, dao, mapper, serializer, eventPublisher);
+    @ConditionalOnProperty(name = "session-couchbase.size-profiler.enabled", havingValue = "true")
+    public SessionSizeProfiler sessionSizeProfiler() {
+        SessionCouchbaseProperties.SizeProfiler profiler = sessionCouchbase.getSizeProfiler();
+        return new SessionSizeProfiler(profiler.getSampleRate(), profiler.getWarnSize(), profiler.getMaxSize(), profiler.getTopOffenders());
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(name = "session-couchbase.deserialization-cache.enabled", havingValue = "true")
+    public DeserializedValueCache deserializedValueCache(ObjectProvider<TypeIdRegistry> typeIdRegistry) {
+        SessionCouchbaseProperties.DeserializationCache cache = sessionCouchbase.getDeserializationCache();
+        DeserializedValueCache deserializedValueCache = new DeserializedValueCache(cache.getMaximumSize(), cache.getAttributeNames(), cache.getTypes());
+        deserializedValueCache.setTypeIdRegistry(typeIdRegistry.getIfAvailable());
+        return deserializedValueCache;
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(name = "session-couchbase.type-ids.enabled", havingValue = "true")
+    public TypeIdRegistry typeIdRegistry() {
+        return new TypeIdRegistry(sessionCouchbase.getTypeIds().getIds());
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public SessionIdGenerator sessionIdGenerator() {
+        SessionCouchbaseProperties.SessionId sessionId = sessionCouchbase.getSessionId();
+        return new SecureRandomSessionIdGenerator(sessionId.getEntropyBytes(), sessionId.getAlgorithm());
+    }
+
+    @Bean
+    @ConditionalOnMissingBean(SessionRepository.class)
+    public CouchbaseSessionRepository sessionRepository(SessionDao dao, ObjectMapper mapper, JsonSerializer serializer,
+                                                        ApplicationEventPublisher eventPublisher, SessionIdGenerator sessionIdGenerator,
+                                                        ObjectProvider<SessionExpirationIndex> expirationIndex,
+                                                        ObjectProvider<SessionTimeoutPolicy> timeoutPolicy) {
+        CouchbaseSessionRepository repository = new CouchbaseSessionRepository(sessionCouchbase, dao, mapper, serializer, eventPublisher);
+        repository.setSessionIdGenerator(sessionIdGenerator);
+        repository.setExpirationIndex(expirationIndex.getIfAvailable());
+        repository.setTimeoutPolicy(timeoutPolicy.getIfAvailable());
+        return repository;
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(name = "session-couchbase.timeout-policy.enabled", havingValue = "true")
+    public SessionTimeoutPolicy sessionTimeoutPolicy() {
+        SessionCouchbaseProperties.TimeoutPolicy timeoutPolicy = sessionCouchbase.getTimeoutPolicy();
+        return new RoleSessionTimeoutPolicy(sessionCouchbase.getTimeout(), timeoutPolicy.getAnonymousTimeout(), timeoutPolicy.getRoleTimeouts());
+    }
+
+    @Configuration
+    @ConditionalOnClass(name = "org.springframework.boot.actuate.endpoint.annotation.Endpoint")
+    @ConditionalOnProperty(name = "session-couchbase.size-profiler.enabled", havingValue = "true")
+    protected static class SessionSizeEndpointConfiguration {
+
+        @Bean
+        @ConditionalOnMissingBean
+        public SessionSizeEndpoint sessionSizeEndpoint(SessionSizeProfiler profiler) {
+            return new SessionSizeEndpoint(profiler);
+        }
+    }
+
+    @Configuration
+    @ConditionalOnProperty(name = "session-couchbase.persistent.expiration-tracking.enabled", havingValue = "true")
+    protected static class ExpirationTrackingConfiguration {
+
+        protected SessionCouchbaseProperties sessionCouchbase;
+
+        public ExpirationTrackingConfiguration(SessionCouchbaseProperties sessionCouchbase) {
+            this.sessionCouchbase = sessionCouchbase;
+        }
+
+        @Bean
+        @ConditionalOnMissingBean
+        public SessionExpirationIndex sessionExpirationIndex() {
+            return new SessionExpirationIndex(sessionCouchbase.getPersistent().getExpirationTracking().getBucketWidth().getSeconds());
+        }
+
+        @Bean
+        public ExpiredSessionsCleaner expiredSessionsCleaner(ObjectProvider<CouchbaseSessionRepository> sessionRepository) {
+            return new ExpiredSessionsCleaner(sessionRepository.getIfAvailable(), sessionCouchbase.getPersistent().getExpirationTracking().getSweepInterval());
+        }
     }
 }
\ No newline at end of file
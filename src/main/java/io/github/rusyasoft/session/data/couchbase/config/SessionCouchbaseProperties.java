@@ -1,14 +1,25 @@
 package io.github.rusyasoft.session.data.couchbase.config;
 
 import com.couchbase.client.java.query.consistency.ScanConsistency;
+import io.github.rusyasoft.session.data.couchbase.core.FlushMode;
+import io.github.rusyasoft.session.data.couchbase.core.SecureRandomSessionIdGenerator;
+import io.github.rusyasoft.session.data.couchbase.data.DocumentLayout;
+import io.github.rusyasoft.session.data.couchbase.data.SaveMode;
 import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.boot.context.properties.NestedConfigurationProperty;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import static com.couchbase.client.java.query.consistency.ScanConsistency.REQUEST_PLUS;
+import static java.time.Duration.ofMillis;
 import static java.time.Duration.ofMinutes;
+import static java.time.Duration.ofSeconds;
+import static java.util.Collections.singletonList;
 import static org.apache.commons.lang3.StringUtils.trimToNull;
 
 /**
@@ -26,11 +37,60 @@ public class SessionCouchbaseProperties {
      * HTTP session application namespace under which session data must be stored.
      */
     private String applicationNamespace = "default";
+    /**
+     * Moment HTTP session changes are written to Couchbase.
+     */
+    private FlushMode flushMode = FlushMode.ON_SAVE;
+    /**
+     * Flag for deferring creation of HTTP session documents until the first save of a session carrying attributes.
+     * Sessions which never get any attribute, like the ones of crawlers and health checks, are never persisted.
+     */
+    private boolean deferredCreation = false;
     /**
      * Properties responsible for managing principal HTTP sessions.
      */
     @NestedConfigurationProperty
     private PrincipalSessions principalSessions = new PrincipalSessions();
+    /**
+     * Properties responsible for coalescing concurrent loads of the same HTTP session.
+     */
+    @NestedConfigurationProperty
+    private ReadCoalescing readCoalescing = new ReadCoalescing();
+    /**
+     * Properties responsible for generating HTTP session IDs.
+     */
+    @NestedConfigurationProperty
+    private SessionId sessionId = new SessionId();
+    /**
+     * Properties responsible for caching deserialized HTTP session attribute values.
+     */
+    @NestedConfigurationProperty
+    private DeserializationCache deserializationCache = new DeserializationCache();
+    /**
+     * Properties responsible for writing short type IDs instead of class names of HTTP session attribute values.
+     */
+    @NestedConfigurationProperty
+    private TypeIds typeIds = new TypeIds();
+    /**
+     * Properties responsible for profiling serialized sizes of HTTP session attributes.
+     */
+    @NestedConfigurationProperty
+    private SizeProfiler sizeProfiler = new SizeProfiler();
+    /**
+     * Properties responsible for accounting session store operations per HTTP request.
+     */
+    @NestedConfigurationProperty
+    private Accounting accounting = new Accounting();
+    /**
+     * Properties responsible for keeping large attributes outside of the HTTP session document.
+     */
+    @NestedConfigurationProperty
+    private ExternalizedAttributes externalizedAttributes = new ExternalizedAttributes();
+    /**
+     * Properties responsible for choosing the maximum inactive interval of HTTP sessions by their users.
+     */
+    @NestedConfigurationProperty
+    private TimeoutPolicy timeoutPolicy = new TimeoutPolicy();
     /**
      * Properties responsible for persistent mode behaviour.
      */
@@ -82,6 +142,22 @@ public class SessionCouchbaseProperties {
         this.applicationNamespace = applicationNamespace;
     }
 
+    public FlushMode getFlushMode() {
+        return flushMode;
+    }
+
+    public void setFlushMode(FlushMode flushMode) {
+        this.flushMode = flushMode;
+    }
+
+    public boolean isDeferredCreation() {
+        return deferredCreation;
+    }
+
+    public void setDeferredCreation(boolean deferredCreation) {
+        this.deferredCreation = deferredCreation;
+    }
+
     public PrincipalSessions getPrincipalSessions() {
         return principalSessions;
     }
@@ -90,6 +166,22 @@ public class SessionCouchbaseProperties {
         this.principalSessions = principalSessions;
     }
 
+    public ReadCoalescing getReadCoalescing() {
+        return readCoalescing;
+    }
+
+    public void setReadCoalescing(ReadCoalescing readCoalescing) {
+        this.readCoalescing = readCoalescing;
+    }
+
+    public SessionId getSessionId() {
+        return sessionId;
+    }
+
+    public void setSessionId(SessionId sessionId) {
+        this.sessionId = sessionId;
+    }
+
     public Persistent getPersistent() {
         return persistent;
     }
@@ -122,57 +214,302 @@ public class SessionCouchbaseProperties {
         }
     }
 
-    public static class Persistent {
+    public static class ReadCoalescing {
 
         /**
-         * N1QL query scan consistency.
+         * Flag for enabling and disabling sharing a single in-flight load between concurrent requests for the same HTTP session.
          */
-        private ScanConsistency queryConsistency = REQUEST_PLUS;
+        private boolean enabled = true;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+    }
+
+    public static class DeserializationCache {
+
         /**
-         * Properties responsible for retrying Couchbase query when an error occurs.
+         * Flag for reusing parsed JSON of unchanged HTTP session attributes. Values are bound anew on every read, so
+         * requests never share attribute instances.
          */
-        @NestedConfigurationProperty
-        private Retry retry = new Retry();
+        private boolean enabled = false;
+        /**
+         * Maximum number of cached attribute values, the least recently used ones are evicted first.
+         */
+        private int maximumSize = 10000;
+        /**
+         * Names of HTTP session attributes whose values are cached.
+         */
+        private List<String> attributeNames = new ArrayList<>();
+        /**
+         * Fully qualified names of classes, including their subclasses, whose values are cached.
+         */
+        private List<String> types = new ArrayList<>(singletonList("org.springframework.security.core.context.SecurityContext"));
 
-        public ScanConsistency getQueryConsistency() {
-            return queryConsistency;
+        public boolean isEnabled() {
+            return enabled;
         }
 
-        public void setQueryConsistency(ScanConsistency queryConsistency) {
-            this.queryConsistency = queryConsistency;
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
         }
 
-        public Retry getRetry() {
-            return retry;
+        public int getMaximumSize() {
+            return maximumSize;
         }
 
-        public void setRetry(Retry retry) {
-            this.retry = retry;
+        public void setMaximumSize(int maximumSize) {
+            this.maximumSize = maximumSize;
         }
 
-        public static class Retry {
+        public List<String> getAttributeNames() {
+            return attributeNames;
+        }
 
-            /**
-             * Maximum number of attempts to repeat a query to Couchbase when error occurs.
-             */
-            private int maxAttempts = 1;
+        public void setAttributeNames(List<String> attributeNames) {
+            this.attributeNames = attributeNames;
+        }
 
-            public int getMaxAttempts() {
-                return maxAttempts;
-            }
+        public List<String> getTypes() {
+            return types;
+        }
 
-            public void setMaxAttempts(int maxAttempts) {
-                this.maxAttempts = maxAttempts;
-            }
+        public void setTypes(List<String> types) {
+            this.types = types;
         }
     }
 
-    public static class InMemory {
+    public static class SizeProfiler {
 
         /**
-         * Flag for enabling and disabling in-memory mode.
+         * Flag for collecting serialized sizes of written HTTP session attributes and checking them against the limits.
+         */
+        private boolean enabled = false;
+        /**
+         * Share of attribute writes whose size is added to the size distributions, from 0 to 1.
+         */
+        private double sampleRate = 0.01;
+        /**
+         * Serialized size in characters above which a warning is logged for every write. 0 disables the warning.
+         */
+        private long warnSize = 64 * 1024;
+        /**
+         * Serialized size in characters above which an attribute is rejected and the HTTP session is not saved. 0 disables the limit.
+         */
+        private long maxSize = 0;
+        /**
+         * Number of largest attributes reported per namespace.
+         */
+        private int topOffenders = 10;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public double getSampleRate() {
+            return sampleRate;
+        }
+
+        public void setSampleRate(double sampleRate) {
+            this.sampleRate = sampleRate;
+        }
+
+        public long getWarnSize() {
+            return warnSize;
+        }
+
+        public void setWarnSize(long warnSize) {
+            this.warnSize = warnSize;
+        }
+
+        public long getMaxSize() {
+            return maxSize;
+        }
+
+        public void setMaxSize(long maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        public int getTopOffenders() {
+            return topOffenders;
+        }
+
+        public void setTopOffenders(int topOffenders) {
+            this.topOffenders = topOffenders;
+        }
+    }
+
+    public static class TimeoutPolicy {
+
+        /**
+         * Flag for enabling and disabling choosing the maximum inactive interval of HTTP sessions by their users.
+         */
+        private boolean enabled = false;
+        /**
+         * Maximum inactive interval of HTTP sessions without an authenticated user. The default timeout applies if not set.
+         */
+        private Duration anonymousTimeout;
+        /**
+         * Maximum inactive intervals of HTTP sessions by granted authority of their users. The first authority the user
+         * has decides, users without any of them get the default timeout.
+         */
+        private Map<String, Duration> roleTimeouts = new LinkedHashMap<>();
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public Duration getAnonymousTimeout() {
+            return anonymousTimeout;
+        }
+
+        public void setAnonymousTimeout(Duration anonymousTimeout) {
+            this.anonymousTimeout = anonymousTimeout;
+        }
+
+        public Map<String, Duration> getRoleTimeouts() {
+            return roleTimeouts;
+        }
+
+        public void setRoleTimeouts(Map<String, Duration> roleTimeouts) {
+            this.roleTimeouts = roleTimeouts;
+        }
+    }
+
+    public static class ExternalizedAttributes {
+
+        /**
+         * Flag for enabling and disabling storing large application namespace attributes in separate documents, which
+         * are loaded only when the attribute is read.
+         */
+        private boolean enabled = false;
+        /**
+         * Serialized size in characters above which an attribute is stored in a separate document.
+         */
+        private long threshold = 16 * 1024;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public long getThreshold() {
+            return threshold;
+        }
+
+        public void setThreshold(long threshold) {
+            this.threshold = threshold;
+        }
+    }
+
+    public static class Accounting {
+
+        /**
+         * Flag for counting session store operations and their time per HTTP request.
+         */
+        private boolean enabled = false;
+        /**
+         * Flag for describing the session store operations of an HTTP request in a response header.
+         */
+        private boolean debugHeader = false;
+        /**
+         * Name of the response header describing the session store operations of an HTTP request.
+         */
+        private String headerName = "X-Session-Couchbase-Operations";
+        /**
+         * Number of Couchbase round trips per HTTP request above which a budget violation is logged. Every attempt of
+         * an operation counts, bulk operations count once per document. 0 disables the check.
+         */
+        private int maxRoundTrips = 0;
+        /**
+         * Total time of session store operations per HTTP request above which a budget violation is logged. Not set disables the check.
+         */
+        private Duration maxTime;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public boolean isDebugHeader() {
+            return debugHeader;
+        }
+
+        public void setDebugHeader(boolean debugHeader) {
+            this.debugHeader = debugHeader;
+        }
+
+        public String getHeaderName() {
+            return headerName;
+        }
+
+        public void setHeaderName(String headerName) {
+            this.headerName = headerName;
+        }
+
+        public int getMaxRoundTrips() {
+            return maxRoundTrips;
+        }
+
+        public void setMaxRoundTrips(int maxRoundTrips) {
+            this.maxRoundTrips = maxRoundTrips;
+        }
+
+        public Duration getMaxTime() {
+            return maxTime;
+        }
+
+        public void setMaxTime(Duration maxTime) {
+            this.maxTime = maxTime;
+        }
+    }
+
+    public static class TypeIds {
+
+        /**
+         * Flag for writing registered classes as short type IDs. Documents written with type IDs can be read only by
+         * nodes with the same IDs registered, documents with class names stay readable.
          */
         private boolean enabled = false;
+        /**
+         * Type IDs mapped to fully qualified class names. IDs cannot contain dots and must never be reassigned.
+         */
+        private Map<String, String> ids = new LinkedHashMap<>();
+
+        public TypeIds() {
+            ids.put("sc", "org.springframework.security.core.context.SecurityContextImpl");
+            ids.put("upat", "org.springframework.security.authentication.UsernamePasswordAuthenticationToken");
+            ids.put("aat", "org.springframework.security.authentication.AnonymousAuthenticationToken");
+            ids.put("rmat", "org.springframework.security.authentication.RememberMeAuthenticationToken");
+            ids.put("user", "org.springframework.security.core.userdetails.User");
+            ids.put("sga", "org.springframework.security.core.authority.SimpleGrantedAuthority");
+            ids.put("wad", "org.springframework.security.web.authentication.WebAuthenticationDetails");
+            ids.put("al", "java.util.ArrayList");
+            ids.put("lhm", "java.util.LinkedHashMap");
+            ids.put("hm", "java.util.HashMap");
+            ids.put("ts", "java.util.TreeSet");
+            ids.put("hs", "java.util.HashSet");
+            ids.put("ul", "java.util.Collections$UnmodifiableRandomAccessList");
+            ids.put("us", "java.util.Collections$UnmodifiableSet");
+        }
 
         public boolean isEnabled() {
             return enabled;
@@ -181,5 +518,822 @@ public class SessionCouchbaseProperties {
         public void setEnabled(boolean enabled) {
             this.enabled = enabled;
         }
+
+        public Map<String, String> getIds() {
+            return ids;
+        }
+
+        public void setIds(Map<String, String> ids) {
+            this.ids = ids;
+        }
+    }
+
+    public static class SessionId {
+
+        /**
+         * Number of random bytes in a generated HTTP session ID. IDs are base64url encoded, so 16 bytes give 22 characters.
+         */
+        private int entropyBytes = SecureRandomSessionIdGenerator.DEFAULT_ENTROPY_BYTES;
+        /**
+         * Secure random algorithm used for generating HTTP session IDs, e.g. SHA1PRNG or DRBG. The platform default is used
+         * when empty.
+         */
+        private String algorithm = SecureRandomSessionIdGenerator.DEFAULT_ALGORITHM;
+
+        public int getEntropyBytes() {
+            return entropyBytes;
+        }
+
+        public void setEntropyBytes(int entropyBytes) {
+            this.entropyBytes = entropyBytes;
+        }
+
+        public String getAlgorithm() {
+            return trimToNull(algorithm);
+        }
+
+        public void setAlgorithm(String algorithm) {
+            this.algorithm = algorithm;
+        }
+    }
+
+    public static class Persistent {
+
+        /**
+         * N1QL query scan consistency.
+         */
+        private ScanConsistency queryConsistency = REQUEST_PLUS;
+        /**
+         * Layout of HTTP session documents. SPLIT stores every application namespace in its own document.
+         */
+        private DocumentLayout documentLayout = DocumentLayout.SINGLE;
+        /**
+         * Way HTTP session attribute changes are written. CAS merges concurrent writes to the same session without locking.
+         */
+        private SaveMode saveMode = SaveMode.QUERY;
+        /**
+         * Properties responsible for CAS save mode behaviour.
+         */
+        @NestedConfigurationProperty
+        private Cas cas = new Cas();
+        /**
+         * Properties responsible for extending the HTTP session document expiration while reading it.
+         */
+        @NestedConfigurationProperty
+        private TouchOnRead touchOnRead = new TouchOnRead();
+        /**
+         * Properties responsible for publishing expiration events of HTTP sessions removed by the document expiration.
+         */
+        @NestedConfigurationProperty
+        private ExpirationTracking expirationTracking = new ExpirationTracking();
+        /**
+         * Properties responsible for retrying Couchbase query when an error occurs.
+         */
+        @NestedConfigurationProperty
+        private Retry retry = new Retry();
+        /**
+         * Properties responsible for failing fast when Couchbase is unhealthy.
+         */
+        @NestedConfigurationProperty
+        private CircuitBreaker circuitBreaker = new CircuitBreaker();
+        /**
+         * Properties responsible for limiting concurrent calls to Couchbase.
+         */
+        @NestedConfigurationProperty
+        private Bulkhead bulkhead = new Bulkhead();
+        /**
+         * Properties responsible for connecting to Couchbase when the application starts.
+         */
+        @NestedConfigurationProperty
+        private Bootstrap bootstrap = new Bootstrap();
+        /**
+         * Properties responsible for spreading HTTP sessions across several Couchbase buckets or clusters.
+         */
+        @NestedConfigurationProperty
+        private Sharding sharding = new Sharding();
+        /**
+         * Properties responsible for backing slow reads of HTTP sessions with reads from replicas.
+         */
+        @NestedConfigurationProperty
+        private HedgedReads hedgedReads = new HedgedReads();
+        /**
+         * Flag for configuring Spring Data Couchbase on the session bucket, with the couchbaseTemplate bean and the Couchbase
+         * repositories of the application. Its connection is opened while the application context is created.
+         */
+        private boolean springDataRepositories = true;
+
+        public ScanConsistency getQueryConsistency() {
+            return queryConsistency;
+        }
+
+        public void setQueryConsistency(ScanConsistency queryConsistency) {
+            this.queryConsistency = queryConsistency;
+        }
+
+        public DocumentLayout getDocumentLayout() {
+            return documentLayout;
+        }
+
+        public void setDocumentLayout(DocumentLayout documentLayout) {
+            this.documentLayout = documentLayout;
+        }
+
+        public SaveMode getSaveMode() {
+            return saveMode;
+        }
+
+        public void setSaveMode(SaveMode saveMode) {
+            this.saveMode = saveMode;
+        }
+
+        public Cas getCas() {
+            return cas;
+        }
+
+        public void setCas(Cas cas) {
+            this.cas = cas;
+        }
+
+        public TouchOnRead getTouchOnRead() {
+            return touchOnRead;
+        }
+
+        public void setTouchOnRead(TouchOnRead touchOnRead) {
+            this.touchOnRead = touchOnRead;
+        }
+
+        public ExpirationTracking getExpirationTracking() {
+            return expirationTracking;
+        }
+
+        public void setExpirationTracking(ExpirationTracking expirationTracking) {
+            this.expirationTracking = expirationTracking;
+        }
+
+        public Retry getRetry() {
+            return retry;
+        }
+
+        public void setRetry(Retry retry) {
+            this.retry = retry;
+        }
+
+        public CircuitBreaker getCircuitBreaker() {
+            return circuitBreaker;
+        }
+
+        public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+            this.circuitBreaker = circuitBreaker;
+        }
+
+        public Bulkhead getBulkhead() {
+            return bulkhead;
+        }
+
+        public void setBulkhead(Bulkhead bulkhead) {
+            this.bulkhead = bulkhead;
+        }
+
+        public Bootstrap getBootstrap() {
+            return bootstrap;
+        }
+
+        public void setBootstrap(Bootstrap bootstrap) {
+            this.bootstrap = bootstrap;
+        }
+
+        public Sharding getSharding() {
+            return sharding;
+        }
+
+        public void setSharding(Sharding sharding) {
+            this.sharding = sharding;
+        }
+
+        public HedgedReads getHedgedReads() {
+            return hedgedReads;
+        }
+
+        public void setHedgedReads(HedgedReads hedgedReads) {
+            this.hedgedReads = hedgedReads;
+        }
+
+        public boolean isSpringDataRepositories() {
+            return springDataRepositories;
+        }
+
+        public void setSpringDataRepositories(boolean springDataRepositories) {
+            this.springDataRepositories = springDataRepositories;
+        }
+
+        public static class Sharding {
+
+            /**
+             * Flag for storing HTTP sessions in the configured shards instead of the session bucket.
+             */
+            private boolean enabled = false;
+            /**
+             * Number of points every unit of shard weight occupies on the consistent hash ring.
+             * More points spread the documents more evenly.
+             */
+            private int virtualNodes = 160;
+            /**
+             * Couchbase buckets HTTP sessions are spread across. Sessions are routed by ID and principal HTTP sessions by principal.
+             */
+            private List<Shard> shards = new ArrayList<>();
+            /**
+             * Shards used before the current shard list, set while the shard list is being changed. HTTP sessions missing
+             * in their shard are looked up in the shard which owned them before and moved over. Shards with the name of a
+             * current shard must use the same bucket.
+             */
+            private List<Shard> previousShards = new ArrayList<>();
+
+            public boolean isEnabled() {
+                return enabled;
+            }
+
+            public void setEnabled(boolean enabled) {
+                this.enabled = enabled;
+            }
+
+            public int getVirtualNodes() {
+                return virtualNodes;
+            }
+
+            public void setVirtualNodes(int virtualNodes) {
+                this.virtualNodes = virtualNodes;
+            }
+
+            public List<Shard> getShards() {
+                return shards;
+            }
+
+            public void setShards(List<Shard> shards) {
+                this.shards = shards;
+            }
+
+            public List<Shard> getPreviousShards() {
+                return previousShards;
+            }
+
+            public void setPreviousShards(List<Shard> previousShards) {
+                this.previousShards = previousShards;
+            }
+
+            public static class Shard {
+
+                /**
+                 * Name of the shard. It places the shard on the hash ring, so it must not change when the shard is moved to other servers.
+                 */
+                private String name;
+                /**
+                 * Couchbase cluster nodes of the shard.
+                 */
+                private String serverNodes = "127.0.0.1:8091";
+                /**
+                 * Couchbase bucket name of the shard.
+                 */
+                private String bucketName;
+                /**
+                 * Couchbase bucket password of the shard.
+                 */
+                private String bucketPassword;
+                /**
+                 * Relative share of HTTP sessions stored in the shard.
+                 */
+                private int weight = 1;
+
+                public String getName() {
+                    return name;
+                }
+
+                public void setName(String name) {
+                    this.name = name;
+                }
+
+                public String getServerNodes() {
+                    return serverNodes;
+                }
+
+                public void setServerNodes(String serverNodes) {
+                    this.serverNodes = serverNodes;
+                }
+
+                public String getBucketName() {
+                    return bucketName;
+                }
+
+                public void setBucketName(String bucketName) {
+                    this.bucketName = bucketName;
+                }
+
+                public String getBucketPassword() {
+                    return bucketPassword;
+                }
+
+                public void setBucketPassword(String bucketPassword) {
+                    this.bucketPassword = bucketPassword;
+                }
+
+                public int getWeight() {
+                    return weight;
+                }
+
+                public void setWeight(int weight) {
+                    this.weight = weight;
+                }
+            }
+        }
+
+        public static class Bootstrap {
+
+            /**
+             * Flag for opening the Couchbase bucket in the background, so that the application context does not wait for Couchbase.
+             */
+            private boolean async = false;
+            /**
+             * Maximum time a Couchbase operation waits for the bucket opened in the background before failing.
+             */
+            private Duration awaitTimeout = ofSeconds(5);
+            /**
+             * Delay before opening the Couchbase bucket in the background is attempted again after a failure.
+             */
+            private Duration retryInterval = ofSeconds(5);
+            /**
+             * Flag for pinging Couchbase and preparing the N1QL statements before the bucket is reported as ready.
+             */
+            private boolean warmUp = true;
+            /**
+             * Flag for reporting the bucket as ready even when the warm-up fails, so that the session store takes traffic cold.
+             * Otherwise a failed warm-up fails the start, or is attempted again in the background when the bootstrap is asynchronous.
+             */
+            private boolean warmUpFailureAllowed = false;
+            /**
+             * Flag for executing N1QL statements with fixed text as prepared statements.
+             */
+            private boolean prepareStatements = true;
+
+            public boolean isAsync() {
+                return async;
+            }
+
+            public void setAsync(boolean async) {
+                this.async = async;
+            }
+
+            public Duration getAwaitTimeout() {
+                return awaitTimeout;
+            }
+
+            public void setAwaitTimeout(Duration awaitTimeout) {
+                this.awaitTimeout = awaitTimeout;
+            }
+
+            public Duration getRetryInterval() {
+                return retryInterval;
+            }
+
+            public void setRetryInterval(Duration retryInterval) {
+                this.retryInterval = retryInterval;
+            }
+
+            public boolean isWarmUp() {
+                return warmUp;
+            }
+
+            public void setWarmUp(boolean warmUp) {
+                this.warmUp = warmUp;
+            }
+
+            public boolean isWarmUpFailureAllowed() {
+                return warmUpFailureAllowed;
+            }
+
+            public void setWarmUpFailureAllowed(boolean warmUpFailureAllowed) {
+                this.warmUpFailureAllowed = warmUpFailureAllowed;
+            }
+
+            public boolean isPrepareStatements() {
+                return prepareStatements;
+            }
+
+            public void setPrepareStatements(boolean prepareStatements) {
+                this.prepareStatements = prepareStatements;
+            }
+        }
+
+        public static class Retry {
+
+            /**
+             * Maximum number of attempts to repeat a query to Couchbase when error occurs.
+             */
+            private int maxAttempts = 1;
+            /**
+             * Delay before the first retry. Subsequent delays grow exponentially and are randomized (jitter).
+             */
+            private Duration initialInterval = ofMillis(50);
+            /**
+             * Multiplier applied to the retry delay after each failed attempt.
+             */
+            private double multiplier = 2.0;
+            /**
+             * Upper bound of a single retry delay.
+             */
+            private Duration maxInterval = ofSeconds(1);
+            /**
+             * Total time budget of the Couchbase operations of a single session repository call, like loading or saving a session, including all
+             * of their retries and the delays between them. Single attempts and delays are cut short to the remaining budget and no further operation
+             * is issued once it is exhausted. Time spent by the application between repository calls is not charged against the budget. Operations
+             * issued outside of repository calls get the budget each.
+             */
+            private Duration deadline = ofSeconds(5);
+
+            public int getMaxAttempts() {
+                return maxAttempts;
+            }
+
+            public void setMaxAttempts(int maxAttempts) {
+                this.maxAttempts = maxAttempts;
+            }
+
+            public Duration getInitialInterval() {
+                return initialInterval;
+            }
+
+            public void setInitialInterval(Duration initialInterval) {
+                this.initialInterval = initialInterval;
+            }
+
+            public double getMultiplier() {
+                return multiplier;
+            }
+
+            public void setMultiplier(double multiplier) {
+                this.multiplier = multiplier;
+            }
+
+            public Duration getMaxInterval() {
+                return maxInterval;
+            }
+
+            public void setMaxInterval(Duration maxInterval) {
+                this.maxInterval = maxInterval;
+            }
+
+            public Duration getDeadline() {
+                return deadline;
+            }
+
+            public void setDeadline(Duration deadline) {
+                this.deadline = deadline;
+            }
+        }
+
+        public static class Cas {
+
+            /**
+             * Maximum number of attempts to write HTTP session changes when the document has been modified concurrently.
+             */
+            private int maxAttempts = 10;
+
+            public int getMaxAttempts() {
+                return maxAttempts;
+            }
+
+            public void setMaxAttempts(int maxAttempts) {
+                this.maxAttempts = maxAttempts;
+            }
+        }
+
+        public static class TouchOnRead {
+
+            /**
+             * Flag for loading HTTP sessions with get-and-touch, so that reading a session also extends its expiration time.
+             */
+            private boolean enabled = false;
+            /**
+             * Minimum change of the last accessed time that is written to Couchbase on its own. Smaller changes are skipped,
+             * and expiration checks of stored sessions allow for them, so a session can outlive its max inactive interval
+             * by up to this much but never expires earlier.
+             */
+            private Duration lastAccessedTimeGranularity = ofSeconds(60);
+
+            public boolean isEnabled() {
+                return enabled;
+            }
+
+            public void setEnabled(boolean enabled) {
+                this.enabled = enabled;
+            }
+
+            public Duration getLastAccessedTimeGranularity() {
+                return lastAccessedTimeGranularity;
+            }
+
+            public void setLastAccessedTimeGranularity(Duration lastAccessedTimeGranularity) {
+                this.lastAccessedTimeGranularity = lastAccessedTimeGranularity;
+            }
+        }
+
+        public static class ExpirationTracking {
+
+            /**
+             * Flag for tracking expiration deadlines of HTTP sessions saved on this node and publishing their expiration events.
+             */
+            private boolean enabled = false;
+            /**
+             * Width of the deadline buckets. Expired sessions are reported at most this much after their deadline.
+             */
+            private Duration bucketWidth = ofSeconds(30);
+            /**
+             * Delay between checks for expired HTTP sessions.
+             */
+            private Duration sweepInterval = ofSeconds(30);
+            /**
+             * Maximum number of expired HTTP sessions handled in one batch.
+             */
+            private int batchSize = 500;
+
+            public boolean isEnabled() {
+                return enabled;
+            }
+
+            public void setEnabled(boolean enabled) {
+                this.enabled = enabled;
+            }
+
+            public Duration getBucketWidth() {
+                return bucketWidth;
+            }
+
+            public void setBucketWidth(Duration bucketWidth) {
+                this.bucketWidth = bucketWidth;
+            }
+
+            public Duration getSweepInterval() {
+                return sweepInterval;
+            }
+
+            public void setSweepInterval(Duration sweepInterval) {
+                this.sweepInterval = sweepInterval;
+            }
+
+            public int getBatchSize() {
+                return batchSize;
+            }
+
+            public void setBatchSize(int batchSize) {
+                this.batchSize = batchSize;
+            }
+        }
+
+        public static class CircuitBreaker {
+
+            /**
+             * Flag for enabling and disabling the Couchbase circuit breaker.
+             */
+            private boolean enabled = false;
+            /**
+             * Number of consecutive transient Couchbase errors after which the circuit opens.
+             */
+            private int failureThreshold = 20;
+            /**
+             * Time during which calls are rejected before a single trial call is let through.
+             */
+            private Duration openDuration = ofSeconds(10);
+
+            public boolean isEnabled() {
+                return enabled;
+            }
+
+            public void setEnabled(boolean enabled) {
+                this.enabled = enabled;
+            }
+
+            public int getFailureThreshold() {
+                return failureThreshold;
+            }
+
+            public void setFailureThreshold(int failureThreshold) {
+                this.failureThreshold = failureThreshold;
+            }
+
+            public Duration getOpenDuration() {
+                return openDuration;
+            }
+
+            public void setOpenDuration(Duration openDuration) {
+                this.openDuration = openDuration;
+            }
+        }
+
+        public static class Bulkhead {
+
+            /**
+             * Flag for enabling and disabling the bulkhead in front of the session data access object.
+             */
+            private boolean enabled = false;
+            /**
+             * Maximum number of concurrent in-flight calls to Couchbase.
+             */
+            private int maxConcurrentCalls = 50;
+            /**
+             * Maximum number of calls waiting for a free slot. Calls beyond it are rejected immediately.
+             */
+            private int maxQueueSize = 100;
+            /**
+             * Maximum time a call waits for a free slot before it is rejected.
+             */
+            private Duration maxWaitTime = ofMillis(200);
+
+            public boolean isEnabled() {
+                return enabled;
+            }
+
+            public void setEnabled(boolean enabled) {
+                this.enabled = enabled;
+            }
+
+            public int getMaxConcurrentCalls() {
+                return maxConcurrentCalls;
+            }
+
+            public void setMaxConcurrentCalls(int maxConcurrentCalls) {
+                this.maxConcurrentCalls = maxConcurrentCalls;
+            }
+
+            public int getMaxQueueSize() {
+                return maxQueueSize;
+            }
+
+            public void setMaxQueueSize(int maxQueueSize) {
+                this.maxQueueSize = maxQueueSize;
+            }
+
+            public Duration getMaxWaitTime() {
+                return maxWaitTime;
+            }
+
+            public void setMaxWaitTime(Duration maxWaitTime) {
+                this.maxWaitTime = maxWaitTime;
+            }
+        }
+
+        public static class HedgedReads {
+
+            /**
+             * Flag for enabling and disabling reading HTTP sessions from replicas when the active copy answers slowly.
+             */
+            private boolean enabled = false;
+            /**
+             * Percentile of recent read latencies, from 0 to 1, after which a replica read is issued.
+             */
+            private double percentile = 0.95;
+            /**
+             * Minimum time to wait for the active copy before a replica read is issued.
+             */
+            private Duration minDelay = ofMillis(5);
+            /**
+             * Maximum time to wait for the active copy before a replica read is issued.
+             */
+            private Duration maxDelay = ofMillis(200);
+            /**
+             * Number of recent read latencies the percentile is computed from.
+             */
+            private int sampleSize = 1000;
+
+            public boolean isEnabled() {
+                return enabled;
+            }
+
+            public void setEnabled(boolean enabled) {
+                this.enabled = enabled;
+            }
+
+            public double getPercentile() {
+                return percentile;
+            }
+
+            public void setPercentile(double percentile) {
+                this.percentile = percentile;
+            }
+
+            public Duration getMinDelay() {
+                return minDelay;
+            }
+
+            public void setMinDelay(Duration minDelay) {
+                this.minDelay = minDelay;
+            }
+
+            public Duration getMaxDelay() {
+                return maxDelay;
+            }
+
+            public void setMaxDelay(Duration maxDelay) {
+                this.maxDelay = maxDelay;
+            }
+
+            public int getSampleSize() {
+                return sampleSize;
+            }
+
+            public void setSampleSize(int sampleSize) {
+                this.sampleSize = sampleSize;
+            }
+        }
+    }
+
+    public static class InMemory {
+
+        /**
+         * Flag for enabling and disabling in-memory mode.
+         */
+        private boolean enabled = false;
+        /**
+         * Properties responsible for the off-heap store holding HTTP sessions in in-memory mode.
+         */
+        @NestedConfigurationProperty
+        private OffHeap offHeap = new OffHeap();
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public OffHeap getOffHeap() {
+            return offHeap;
+        }
+
+        public void setOffHeap(OffHeap offHeap) {
+            this.offHeap = offHeap;
+        }
+
+        public static class OffHeap {
+
+            /**
+             * Maximum number of bytes of direct memory taken by the store slabs.
+             */
+            private long maxMemory = 256 * 1024 * 1024;
+            /**
+             * Size of a single slab in bytes. A serialized HTTP session must fit into one slab.
+             */
+            private int slabSize = 4 * 1024 * 1024;
+            /**
+             * Number of independently locked store segments, must be a power of two.
+             */
+            private int segments = 16;
+            /**
+             * Share of live bytes in a slab, from 0 to 1, below which the slab is compacted.
+             */
+            private double compactionThreshold = 0.5;
+            /**
+             * Interval of removing expired HTTP sessions from the store.
+             */
+            private Duration sweepInterval = ofMinutes(1);
+
+            public long getMaxMemory() {
+                return maxMemory;
+            }
+
+            public void setMaxMemory(long maxMemory) {
+                this.maxMemory = maxMemory;
+            }
+
+            public int getSlabSize() {
+                return slabSize;
+            }
+
+            public void setSlabSize(int slabSize) {
+                this.slabSize = slabSize;
+            }
+
+            public int getSegments() {
+                return segments;
+            }
+
+            public void setSegments(int segments) {
+                this.segments = segments;
+            }
+
+            public double getCompactionThreshold() {
+                return compactionThreshold;
+            }
+
+            public void setCompactionThreshold(double compactionThreshold) {
+                this.compactionThreshold = compactionThreshold;
+            }
+
+            public Duration getSweepInterval() {
+                return sweepInterval;
+            }
+
+            public void setSweepInterval(Duration sweepInterval) {
+                this.sweepInterval = sweepInterval;
+            }
+        }
     }
 }
\ No newline at end of file
@@ -1,9 +1,12 @@
 package io.github.rusyasoft.session.data.couchbase.config;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.rusyasoft.session.data.couchbase.core.CompactTypeResolverBuilder;
 import io.github.rusyasoft.session.data.couchbase.core.CouchbaseJsonSerializer;
 import io.github.rusyasoft.session.data.couchbase.core.GenericJackson2JsonRedisSerializer;
+import io.github.rusyasoft.session.data.couchbase.core.TypeIdRegistry;
 import org.springframework.beans.factory.BeanClassLoaderAware;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.security.jackson2.SecurityJackson2Modules;
@@ -13,12 +16,20 @@ public class SessionJsonConfig implements BeanClassLoaderAware {
     private ClassLoader loader;
 
     @Bean
-    public CouchbaseJsonSerializer<Object> springSessionDefaultRedisSerializer() {
-        return new GenericJackson2JsonRedisSerializer(objectMapper());
+    public CouchbaseJsonSerializer<Object> springSessionDefaultRedisSerializer(ObjectProvider<TypeIdRegistry> typeIdRegistry) {
+        return new GenericJackson2JsonRedisSerializer(objectMapper(typeIdRegistry.getIfAvailable()));
     }
 
     public ObjectMapper objectMapper() {
+        return objectMapper(null);
+    }
+
+    public ObjectMapper objectMapper(TypeIdRegistry typeIdRegistry) {
         ObjectMapper mapper = new ObjectMapper();
+        if (typeIdRegistry != null) {
+            // Takes the place of the default typing of the Spring Security modules, including their allowlist.
+            CompactTypeResolverBuilder.configure(mapper, typeIdRegistry);
+        }
         mapper.registerModules(SecurityJackson2Modules.getModules(this.loader));
         return mapper;
     }
@@ -0,0 +1,215 @@
+package io.github.rusyasoft.session.data.couchbase.config;
+
+import io.github.rusyasoft.session.data.couchbase.data.SessionOperationAccount;
+import org.slf4j.Logger;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Opens a {@link SessionOperationAccount} for every HTTP request, checks it against the configured budget when the
+ * request completes and optionally describes it in a response header. Must be ordered before the session repository
+ * filter, so operations issued when the session is committed are accounted too.
+ */
+public class SessionOperationAccountingFilter extends OncePerRequestFilter {
+
+    private static final Logger log = getLogger(SessionOperationAccountingFilter.class);
+
+    protected final SessionCouchbaseProperties.Accounting accounting;
+    protected final LongAdder requests = new LongAdder();
+    protected final LongAdder operations = new LongAdder();
+    protected final LongAdder roundTrips = new LongAdder();
+    protected final LongAdder violations = new LongAdder();
+
+    public SessionOperationAccountingFilter(SessionCouchbaseProperties sessionCouchbase) {
+        this.accounting = sessionCouchbase.getAccounting();
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+        SessionOperationAccount account = SessionOperationAccount.open();
+        try {
+            if (accounting.isDebugHeader()) {
+                DebugHeaderResponse debugResponse = new DebugHeaderResponse(response, account);
+                filterChain.doFilter(request, debugResponse);
+                debugResponse.writeHeader();
+            } else {
+                filterChain.doFilter(request, response);
+            }
+        } finally {
+            SessionOperationAccount.close();
+            complete(request, account);
+        }
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getOperations() {
+        return operations.sum();
+    }
+
+    public long getRoundTrips() {
+        return roundTrips.sum();
+    }
+
+    public long getViolations() {
+        return violations.sum();
+    }
+
+    protected void complete(HttpServletRequest request, SessionOperationAccount account) {
+        int accountRoundTrips = account.getRoundTrips();
+        requests.increment();
+        operations.add(account.getCount());
+        roundTrips.add(accountRoundTrips);
+        Duration maxTime = accounting.getMaxTime();
+        boolean tooMany = accounting.getMaxRoundTrips() > 0 && accountRoundTrips > accounting.getMaxRoundTrips();
+        boolean tooLong = maxTime != null && account.getTimeInNanos() > maxTime.toNanos();
+        if (tooMany || tooLong) {
+            violations.increment();
+            log.warn("Session store budget exceeded by {} {}: {} round trips, {} operations in {} ms ({})", request.getMethod(), request.getRequestURI(),
+                    accountRoundTrips, account.getCount(), NANOSECONDS.toMillis(account.getTimeInNanos()), account.describe());
+        }
+    }
+
+    /**
+     * Adds the header as late as possible, right before the response gets committed explicitly, by flushing or closing
+     * its output stream or writer, or after the filter chain completes, so it covers the session save done by the
+     * session repository filter. Responses committed by overflowing their buffer go without the header.
+     */
+    protected class DebugHeaderResponse extends HttpServletResponseWrapper {
+
+        protected final SessionOperationAccount account;
+        protected boolean headerWritten;
+        protected ServletOutputStream outputStream;
+        protected PrintWriter writer;
+
+        protected DebugHeaderResponse(HttpServletResponse response, SessionOperationAccount account) {
+            super(response);
+            this.account = account;
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            writeHeader();
+            super.flushBuffer();
+        }
+
+        @Override
+        public void sendError(int sc) throws IOException {
+            writeHeader();
+            super.sendError(sc);
+        }
+
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+            writeHeader();
+            super.sendError(sc, msg);
+        }
+
+        @Override
+        public void sendRedirect(String location) throws IOException {
+            writeHeader();
+            super.sendRedirect(location);
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (outputStream == null) {
+                outputStream = new DebugHeaderOutputStream(super.getOutputStream());
+            }
+            return outputStream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                writer = new DebugHeaderWriter(super.getWriter());
+            }
+            return writer;
+        }
+
+        protected void writeHeader() {
+            if (headerWritten || isCommitted()) {
+                return;
+            }
+            headerWritten = true;
+            setHeader(accounting.getHeaderName(), account.getRoundTrips() + " round trips, " + account.getCount() + " operations in "
+                    + NANOSECONDS.toMillis(account.getTimeInNanos()) + " ms" + (account.getCount() > 0 ? " (" + account.describe() + ")" : ""));
+        }
+
+        protected class DebugHeaderOutputStream extends ServletOutputStream {
+
+            protected final ServletOutputStream delegate;
+
+            protected DebugHeaderOutputStream(ServletOutputStream delegate) {
+                this.delegate = delegate;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                delegate.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                delegate.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                writeHeader();
+                delegate.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                writeHeader();
+                delegate.close();
+            }
+
+            @Override
+            public boolean isReady() {
+                return delegate.isReady();
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+                delegate.setWriteListener(writeListener);
+            }
+        }
+
+        protected class DebugHeaderWriter extends PrintWriter {
+
+            protected DebugHeaderWriter(PrintWriter delegate) {
+                super(delegate);
+            }
+
+            @Override
+            public void flush() {
+                writeHeader();
+                super.flush();
+            }
+
+            @Override
+            public void close() {
+                writeHeader();
+                super.close();
+            }
+        }
+    }
+}
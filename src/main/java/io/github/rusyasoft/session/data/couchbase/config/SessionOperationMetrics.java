@@ -0,0 +1,70 @@
+package io.github.rusyasoft.session.data.couchbase.config;
+
+import io.github.rusyasoft.session.data.couchbase.data.AccountingSessionDao;
+import io.github.rusyasoft.session.data.couchbase.data.DelegatingSessionDao;
+import io.github.rusyasoft.session.data.couchbase.data.SessionDao;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Exposes session store operations accounted per HTTP request as Micrometer meters.
+ */
+public class SessionOperationMetrics implements MeterBinder {
+
+    protected static final List<String> OPERATIONS = Arrays.asList("insertNamespace", "updateSession", "updatePutPrincipalSession",
+            "updateRemovePrincipalSession", "updateRemovePrincipalSessions", "findSessionAttributes", "findById", "findNamespaces", "findNamespacesBulk",
+            "findNamespacesAndTouch", "findByPrincipal", "updateExpirationTime", "saveSession", "savePrincipalSessions", "exists",
+            "delete", "deleteSessions", "deleteAll", "getObjectFromCouchbase");
+
+    protected final SessionDao dao;
+    protected final SessionOperationAccountingFilter filter;
+
+    public SessionOperationMetrics(SessionDao dao, SessionOperationAccountingFilter filter) {
+        this.dao = dao;
+        this.filter = filter;
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        AccountingSessionDao accountingDao = findAccountingDao(dao);
+        if (accountingDao != null) {
+            for (String operation : OPERATIONS) {
+                AccountingSessionDao.OperationTotals totals = accountingDao.getTotals(operation);
+                FunctionTimer.builder("session.couchbase.operations", totals,
+                        AccountingSessionDao.OperationTotals::getCount, AccountingSessionDao.OperationTotals::getTimeInNanos, NANOSECONDS)
+                        .description("Session store operations by type")
+                        .tag("operation", operation)
+                        .register(registry);
+            }
+        }
+        FunctionCounter.builder("session.couchbase.accounting.requests", filter, SessionOperationAccountingFilter::getRequests)
+                .description("HTTP requests with accounted session store operations")
+                .register(registry);
+        FunctionCounter.builder("session.couchbase.accounting.operations", filter, SessionOperationAccountingFilter::getOperations)
+                .description("Session store operations issued by HTTP requests, as called on the session DAO")
+                .register(registry);
+        FunctionCounter.builder("session.couchbase.accounting.round-trips", filter, SessionOperationAccountingFilter::getRoundTrips)
+                .description("Couchbase round trips issued by HTTP requests, retries included")
+                .register(registry);
+        FunctionCounter.builder("session.couchbase.accounting.violations", filter, SessionOperationAccountingFilter::getViolations)
+                .description("HTTP requests exceeding the session store operations budget")
+                .register(registry);
+    }
+
+    protected AccountingSessionDao findAccountingDao(SessionDao dao) {
+        while (dao instanceof DelegatingSessionDao) {
+            if (dao instanceof AccountingSessionDao) {
+                return (AccountingSessionDao) dao;
+            }
+            dao = ((DelegatingSessionDao) dao).getDelegate();
+        }
+        return null;
+    }
+}
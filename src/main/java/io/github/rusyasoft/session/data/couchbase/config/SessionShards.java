@@ -0,0 +1,162 @@
+package io.github.rusyasoft.session.data.couchbase.config;
+
+import com.couchbase.client.java.Cluster;
+import com.couchbase.client.java.CouchbaseCluster;
+import com.couchbase.client.java.env.CouchbaseEnvironment;
+import io.github.rusyasoft.session.data.couchbase.data.ConsistentHashRing;
+import io.github.rusyasoft.session.data.couchbase.data.CouchbaseCircuitBreaker;
+import io.github.rusyasoft.session.data.couchbase.data.PersistentDao;
+import io.github.rusyasoft.session.data.couchbase.data.ShardedSessionDao;
+import io.github.rusyasoft.session.data.couchbase.data.TransientErrorClassifier;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.retry.support.RetryTemplate;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.Arrays.asList;
+import static org.springframework.util.Assert.hasText;
+import static org.springframework.util.Assert.isTrue;
+import static org.springframework.util.Assert.notEmpty;
+import static org.springframework.util.StringUtils.tokenizeToStringArray;
+
+/**
+ * Buckets HTTP sessions are spread across when sharding is enabled. Every shard has its own bootstrap and circuit
+ * breaker, so a slow or failing shard affects only the sessions stored in it. Clusters are shared by shards with the
+ * same server nodes. Shard buckets are opened when the application context starts. Shards of the previous shard list
+ * are opened as well, so HTTP sessions can be moved out of them.
+ */
+public class SessionShards implements SmartLifecycle, DisposableBean {
+
+    protected final SessionCouchbaseProperties sessionCouchbase;
+    protected final CouchbaseEnvironment environment;
+    protected final RetryTemplate retryTemplate;
+    protected final TransientErrorClassifier errorClassifier;
+    protected final Map<String, Cluster> clusters = new ConcurrentHashMap<>();
+    protected final Map<String, Shard> shards = new LinkedHashMap<>();
+    protected final ShardedSessionDao dao;
+    protected volatile boolean running = false;
+
+    public SessionShards(SessionCouchbaseProperties sessionCouchbase, CouchbaseEnvironment environment, RetryTemplate retryTemplate,
+                         TransientErrorClassifier errorClassifier) {
+        this.sessionCouchbase = sessionCouchbase;
+        this.environment = environment;
+        this.retryTemplate = retryTemplate;
+        this.errorClassifier = errorClassifier;
+        SessionCouchbaseProperties.Persistent.Sharding sharding = sessionCouchbase.getPersistent().getSharding();
+        notEmpty(sharding.getShards(), "At least one shard must be configured when sharding is enabled");
+        ConsistentHashRing<PersistentDao> ring = createRing(sharding.getShards(), sharding.getVirtualNodes());
+        ConsistentHashRing<PersistentDao> previousRing = sharding.getPreviousShards().isEmpty()
+                ? null : createRing(sharding.getPreviousShards(), sharding.getVirtualNodes());
+        dao = new ShardedSessionDao(ring, previousRing);
+    }
+
+    @Override
+    public void start() {
+        shards.values().forEach(shard -> shard.getBootstrap().start());
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        shards.values().forEach(shard -> shard.getBootstrap().stop());
+        running = false;
+    }
+
+    @Override
+    public void stop(Runnable callback) {
+        stop();
+        callback.run();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public boolean isAutoStartup() {
+        return true;
+    }
+
+    @Override
+    public int getPhase() {
+        return 0;
+    }
+
+    @Override
+    public void destroy() {
+        clusters.values().forEach(Cluster::disconnect);
+    }
+
+    public ShardedSessionDao getDao() {
+        return dao;
+    }
+
+    public Map<String, Shard> getShards() {
+        return Collections.unmodifiableMap(shards);
+    }
+
+    protected ConsistentHashRing<PersistentDao> createRing(List<SessionCouchbaseProperties.Persistent.Sharding.Shard> shardsProperties, int virtualNodes) {
+        ConsistentHashRing<PersistentDao> ring = new ConsistentHashRing<>(virtualNodes);
+        for (SessionCouchbaseProperties.Persistent.Sharding.Shard properties : shardsProperties) {
+            ring.add(properties.getName(), getShard(properties).getDao(), properties.getWeight());
+        }
+        return ring;
+    }
+
+    /**
+     * Returns the shard with the given properties, creating it unless a shard with the same name already exists.
+     */
+    protected Shard getShard(SessionCouchbaseProperties.Persistent.Sharding.Shard properties) {
+        hasText(properties.getName(), "Shard name must be set");
+        hasText(properties.getBucketName(), "Bucket name of shard '" + properties.getName() + "' must be set");
+        Shard existingShard = shards.get(properties.getName());
+        if (existingShard != null) {
+            isTrue(existingShard.getBootstrap().getBucketName().equals(properties.getBucketName()),
+                    "Shard '" + properties.getName() + "' must use the same bucket in the current and the previous shard list");
+            return existingShard;
+        }
+        SessionBucketBootstrap bootstrap = new SessionBucketBootstrap(() -> getCluster(properties.getServerNodes()), properties.getBucketName(),
+                properties.getBucketPassword(), sessionCouchbase);
+        CouchbaseCircuitBreaker circuitBreaker = new CouchbaseCircuitBreaker(sessionCouchbase, errorClassifier);
+        PersistentDao shardDao = new PersistentDao(sessionCouchbase, properties.getBucketName(), bootstrap, retryTemplate, circuitBreaker);
+        bootstrap.setStatementsPreparation(shardDao::prepareStatements);
+        Shard shard = new Shard(bootstrap, circuitBreaker, shardDao);
+        shards.put(properties.getName(), shard);
+        return shard;
+    }
+
+    protected Cluster getCluster(String serverNodes) {
+        return clusters.computeIfAbsent(serverNodes, nodes -> CouchbaseCluster.create(environment, asList(tokenizeToStringArray(nodes, ","))));
+    }
+
+    public static class Shard {
+
+        protected final SessionBucketBootstrap bootstrap;
+        protected final CouchbaseCircuitBreaker circuitBreaker;
+        protected final PersistentDao dao;
+
+        public Shard(SessionBucketBootstrap bootstrap, CouchbaseCircuitBreaker circuitBreaker, PersistentDao dao) {
+            this.bootstrap = bootstrap;
+            this.circuitBreaker = circuitBreaker;
+            this.dao = dao;
+        }
+
+        public SessionBucketBootstrap getBootstrap() {
+            return bootstrap;
+        }
+
+        public CouchbaseCircuitBreaker getCircuitBreaker() {
+            return circuitBreaker;
+        }
+
+        public PersistentDao getDao() {
+            return dao;
+        }
+    }
+}
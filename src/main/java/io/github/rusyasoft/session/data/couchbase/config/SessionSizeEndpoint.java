@@ -0,0 +1,31 @@
+package io.github.rusyasoft.session.data.couchbase.config;
+
+import io.github.rusyasoft.session.data.couchbase.core.SessionSizeProfiler;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+
+import java.util.Map;
+
+/**
+ * Actuator endpoint reporting serialized sizes and write counts of HTTP session attributes per namespace.
+ */
+@Endpoint(id = "sessionsize")
+public class SessionSizeEndpoint {
+
+    protected final SessionSizeProfiler profiler;
+
+    public SessionSizeEndpoint(SessionSizeProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    @ReadOperation
+    public Map<String, Object> report() {
+        return profiler.getReport();
+    }
+
+    @DeleteOperation
+    public void reset() {
+        profiler.reset();
+    }
+}
@@ -0,0 +1,65 @@
+package io.github.rusyasoft.session.data.couchbase.config;
+
+import io.github.rusyasoft.session.data.couchbase.data.CouchbaseCircuitBreaker;
+import org.springframework.boot.actuate.health.AbstractHealthIndicator;
+import org.springframework.boot.actuate.health.Health;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reports the session store as out of service until the session bucket is open and warmed up, so that traffic is
+ * routed to the application only once HTTP sessions can be served. When sharding is enabled all shards must be ready.
+ */
+public class SessionStoreHealthIndicator extends AbstractHealthIndicator {
+
+    protected final SessionBucketBootstrap bootstrap;
+    protected final CouchbaseCircuitBreaker circuitBreaker;
+    protected final SessionShards shards;
+
+    public SessionStoreHealthIndicator(SessionBucketBootstrap bootstrap, CouchbaseCircuitBreaker circuitBreaker) {
+        this(bootstrap, circuitBreaker, null);
+    }
+
+    public SessionStoreHealthIndicator(SessionBucketBootstrap bootstrap, CouchbaseCircuitBreaker circuitBreaker, SessionShards shards) {
+        this.bootstrap = bootstrap;
+        this.circuitBreaker = circuitBreaker;
+        this.shards = shards;
+    }
+
+    @Override
+    protected void doHealthCheck(Health.Builder builder) {
+        if (shards == null) {
+            setStatus(builder, bootstrap.isReady());
+            builder.withDetails(describe(bootstrap, circuitBreaker));
+            return;
+        }
+        boolean ready = true;
+        Map<String, Object> shardDetails = new LinkedHashMap<>();
+        for (Map.Entry<String, SessionShards.Shard> shard : shards.getShards().entrySet()) {
+            ready &= shard.getValue().getBootstrap().isReady();
+            shardDetails.put(shard.getKey(), describe(shard.getValue().getBootstrap(), shard.getValue().getCircuitBreaker()));
+        }
+        setStatus(builder, ready);
+        builder.withDetail("shards", shardDetails);
+    }
+
+    protected void setStatus(Health.Builder builder, boolean ready) {
+        if (ready) {
+            builder.up();
+        } else {
+            builder.outOfService();
+        }
+    }
+
+    protected Map<String, Object> describe(SessionBucketBootstrap bootstrap, CouchbaseCircuitBreaker circuitBreaker) {
+        Map<String, Object> details = new LinkedHashMap<>();
+        details.put("ready", bootstrap.isReady());
+        details.put("circuitBreaker", circuitBreaker.getState());
+        Throwable lastFailure = bootstrap.getLastFailure();
+        if (lastFailure != null) {
+            details.put("lastFailure", lastFailure.toString());
+        }
+        return details;
+    }
+}
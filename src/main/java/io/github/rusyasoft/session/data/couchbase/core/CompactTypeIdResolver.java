@@ -0,0 +1,76 @@
+package io.github.rusyasoft.session.data.couchbase.core;
+
+import com.fasterxml.jackson.annotation.JacksonAnnotation;
+import com.fasterxml.jackson.databind.DatabindContext;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.jsontype.impl.ClassNameIdResolver;
+import com.fasterxml.jackson.databind.type.TypeFactory;
+import org.springframework.core.annotation.AnnotationUtils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Class name type ID resolver writing registered classes as their short type IDs. It replaces the default typing of
+ * the Spring Security Jackson modules, so it enforces the same allowlist when reading: registered classes, the JDK
+ * classes the modules allow and classes with Jackson annotations or mixins can be read, all other classes are rejected.
+ */
+public class CompactTypeIdResolver extends ClassNameIdResolver {
+
+    /**
+     * JDK classes allowed by the Spring Security Jackson modules.
+     */
+    protected static final Set<String> ALLOWED_CLASS_NAMES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "java.util.ArrayList",
+            "java.util.Collections$EmptyList",
+            "java.util.Collections$EmptyMap",
+            "java.util.Collections$UnmodifiableRandomAccessList",
+            "java.util.Collections$SingletonList",
+            "java.util.Date",
+            "java.util.TreeMap",
+            "java.util.HashMap",
+            "java.util.LinkedHashMap"
+    )));
+
+    protected final TypeIdRegistry registry;
+
+    public CompactTypeIdResolver(JavaType baseType, TypeFactory typeFactory, TypeIdRegistry registry) {
+        super(baseType, typeFactory);
+        this.registry = registry;
+    }
+
+    @Override
+    public String idFromValue(Object value) {
+        return registry.getId(super.idFromValue(value));
+    }
+
+    @Override
+    public String idFromValueAndType(Object value, Class<?> type) {
+        return registry.getId(super.idFromValueAndType(value, type));
+    }
+
+    @Override
+    public JavaType typeFromId(DatabindContext context, String id) throws IOException {
+        JavaType type = super.typeFromId(context, registry.getClassName(id));
+        if (type != null && !isAllowed(context, type.getRawClass())) {
+            throw new IllegalArgumentException("The class with " + id + " and name of " + type.getRawClass().getName() + " is not allowed. "
+                    + "Register a type ID for it or provide Jackson annotations or a mixin");
+        }
+        return type;
+    }
+
+    @Override
+    public String getDescForKnownTypeIds() {
+        return "class name or registered type ID";
+    }
+
+    protected boolean isAllowed(DatabindContext context, Class<?> type) {
+        return registry.containsClassName(type.getName())
+                || ALLOWED_CLASS_NAMES.contains(type.getName())
+                || context.getConfig().findMixInClassFor(type) != null
+                || AnnotationUtils.findAnnotation(type, JacksonAnnotation.class) != null;
+    }
+}
@@ -0,0 +1,74 @@
+package io.github.rusyasoft.session.data.couchbase.core;
+
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.cfg.MapperConfig;
+import com.fasterxml.jackson.databind.introspect.JacksonAnnotationIntrospector;
+import com.fasterxml.jackson.databind.jsontype.NamedType;
+import com.fasterxml.jackson.databind.jsontype.TypeIdResolver;
+import com.fasterxml.jackson.databind.jsontype.impl.StdTypeResolverBuilder;
+
+import java.util.Collection;
+
+/**
+ * Default typing builder writing registered classes as short type IDs. Use {@link #configure(ObjectMapper, TypeIdRegistry)}
+ * to apply the registry to both default typing and {@code @JsonTypeInfo} annotations, such as the Spring Security mixins.
+ */
+public class CompactTypeResolverBuilder extends ObjectMapper.DefaultTypeResolverBuilder {
+
+    private static final long serialVersionUID = 1L;
+
+    protected final transient TypeIdRegistry registry;
+
+    public CompactTypeResolverBuilder(ObjectMapper.DefaultTyping typing, TypeIdRegistry registry) {
+        super(typing);
+        this.registry = registry;
+    }
+
+    /**
+     * Enables non-final default typing with the type ID written as the {@code @class} property, and resolves class
+     * names through the registry. Must be called before modules enabling default typing are registered.
+     */
+    public static ObjectMapper configure(ObjectMapper mapper, TypeIdRegistry registry) {
+        mapper.setDefaultTyping(new CompactTypeResolverBuilder(ObjectMapper.DefaultTyping.NON_FINAL, registry)
+                .init(JsonTypeInfo.Id.CLASS, null)
+                .inclusion(JsonTypeInfo.As.PROPERTY));
+        mapper.setAnnotationIntrospector(new CompactTypeIdAnnotationIntrospector(registry));
+        return mapper;
+    }
+
+    @Override
+    protected TypeIdResolver idResolver(MapperConfig<?> config, JavaType baseType, Collection<NamedType> subtypes, boolean forSer, boolean forDeser) {
+        if (_idType == JsonTypeInfo.Id.CLASS) {
+            return new CompactTypeIdResolver(baseType, config.getTypeFactory(), registry);
+        }
+        return super.idResolver(config, baseType, subtypes, forSer, forDeser);
+    }
+
+    protected static class CompactTypeIdAnnotationIntrospector extends JacksonAnnotationIntrospector {
+
+        private static final long serialVersionUID = 1L;
+
+        protected final transient TypeIdRegistry registry;
+
+        protected CompactTypeIdAnnotationIntrospector(TypeIdRegistry registry) {
+            this.registry = registry;
+        }
+
+        @Override
+        protected StdTypeResolverBuilder _constructStdTypeResolverBuilder() {
+            return new StdTypeResolverBuilder() {
+
+                @Override
+                protected TypeIdResolver idResolver(MapperConfig<?> config, JavaType baseType, Collection<NamedType> subtypes,
+                                                    boolean forSer, boolean forDeser) {
+                    if (_idType == JsonTypeInfo.Id.CLASS) {
+                        return new CompactTypeIdResolver(baseType, config.getTypeFactory(), registry);
+                    }
+                    return super.idResolver(config, baseType, subtypes, forSer, forDeser);
+                }
+            };
+        }
+    }
+}
@@ -11,13 +11,16 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+import java.util.function.BiFunction;
 
 import static java.time.Duration.ofSeconds;
 import static java.time.Instant.now;
 import static java.time.Instant.ofEpochSecond;
-import static java.util.UUID.randomUUID;
-import static java.util.stream.Collectors.toSet;
-import static org.apache.commons.lang3.StringUtils.removeStart;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.emptySet;
 import static org.slf4j.LoggerFactory.getLogger;
 import static java.util.Collections.unmodifiableSet;
 import static org.springframework.session.FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME;
@@ -30,40 +33,85 @@ public class CouchbaseSession implements Session {
     public static final String LAST_ACCESSED_TIME_ATTRIBUTE = "$lastAccessedTime";
     public static final String MAX_INACTIVE_INTERVAL_ATTRIBUTE = "$maxInactiveInterval";
     protected static final String GLOBAL_ATTRIBUTE_NAME_PREFIX = CouchbaseSession.class.getName() + ".global.";
+    protected static final int GLOBAL_ATTRIBUTE_NAMES_CACHE_SIZE = 1024;
+    protected static final ConcurrentMap<String, String> NAMES_BY_GLOBAL_NAME = new ConcurrentHashMap<>();
+    protected static final ConcurrentMap<String, String> GLOBAL_NAMES_BY_NAME = new ConcurrentHashMap<>();
 
     private static final Logger log = getLogger(CouchbaseSession.class);
 
-    protected String id = generateSessionId();
+    protected static final SessionIdGenerator DEFAULT_ID_GENERATOR = new SecureRandomSessionIdGenerator();
 
-    protected Map<String, Object> globalAttributesToUpdate = new HashMap<>();
+    protected final SessionIdGenerator idGenerator;
+    protected String id;
 
-    protected Set<String> globalAttributesToRemove = new HashSet<>();
-    protected Map<String, Object> globalAttributes = new HashMap<>();
-    protected Map<String, Object> namespaceAttributesToUpdate = new HashMap<>();
-    protected Set<String> namespaceAttributesToRemove = new HashSet<>();
-    protected Map<String, Object> namespaceAttributes = new HashMap<>();
+    // Change tracking collections are created on the first change, most loaded sessions only touch the last accessed time.
+    protected Map<String, Object> globalAttributesToUpdate;
+    protected Set<String> globalAttributesToRemove;
+    protected Map<String, Object> globalAttributes;
+    protected Map<String, Object> namespaceAttributesToUpdate;
+    protected Set<String> namespaceAttributesToRemove;
+    protected Map<String, Object> namespaceAttributes;
+    protected Set<String> attributeNames;
     protected boolean principalSessionsUpdateRequired = false;
     protected boolean idChanged = false;
     protected String oldId;
+    protected Long persistedLastAccessedTime;
+    protected boolean documentExpirationUpdated = false;
+    protected boolean persisted;
+    protected boolean fromReplica = false;
+    protected boolean namespaceMissing = false;
+    protected boolean maxInactiveIntervalSet = false;
+    protected Consumer<CouchbaseSession> immediateFlush;
+    // Keys of documents holding application namespace attributes stored outside of the session document, by attribute name.
+    protected Map<String, String> externalizedAttributeKeys;
+    protected BiFunction<String, String, Object> externalizedAttributeLoader;
 
     public CouchbaseSession(Duration timeout) {
+        this(timeout, DEFAULT_ID_GENERATOR);
+    }
+
+    public CouchbaseSession(Duration timeout, SessionIdGenerator idGenerator) {
+        this.idGenerator = idGenerator;
+        this.id = generateSessionId();
+        this.globalAttributes = new HashMap<>(4);
+        this.namespaceAttributes = new HashMap<>(4);
         Instant now = now();
         setCreationTime(now);
         setLastAccessedTime(now);
-        setMaxInactiveInterval(timeout);
+        applyMaxInactiveInterval(timeout);
     }
 
     public CouchbaseSession(String id, Map<String, Object> globalAttributes, Map<String, Object> namespaceAttributes) {
+        this(id, globalAttributes, namespaceAttributes, DEFAULT_ID_GENERATOR);
+    }
+
+    public CouchbaseSession(String id, Map<String, Object> globalAttributes, Map<String, Object> namespaceAttributes, SessionIdGenerator idGenerator) {
+        this.idGenerator = idGenerator;
         this.id = id;
         this.globalAttributes = globalAttributes == null ? new HashMap<>() : globalAttributes;
         this.namespaceAttributes = namespaceAttributes == null ? new HashMap<>() : namespaceAttributes;
+        Object lastAccessedTime = this.globalAttributes.get(LAST_ACCESSED_TIME_ATTRIBUTE);
+        if (lastAccessedTime instanceof Number) {
+            this.persistedLastAccessedTime = ((Number) lastAccessedTime).longValue();
+        }
         if (containsPrincipalAttribute()) {
             principalSessionsUpdateRequired = true;
         }
+        this.namespaceAttributes.forEach((name, value) -> {
+            if (value instanceof ExternalizedAttribute) {
+                putExternalizedAttributeKey(name, ((ExternalizedAttribute) value).getKey());
+            }
+        });
+        this.persisted = true;
     }
 
     public static String globalAttributeName(String attributeName) {
-        return GLOBAL_ATTRIBUTE_NAME_PREFIX + attributeName;
+        String globalName = GLOBAL_NAMES_BY_NAME.get(attributeName);
+        if (globalName == null) {
+            globalName = GLOBAL_ATTRIBUTE_NAME_PREFIX + attributeName;
+            cacheGlobalAttributeName(attributeName, globalName);
+        }
+        return globalName;
     }
 
     @Override
@@ -73,8 +121,7 @@ public class CouchbaseSession implements Session {
 
     @Override
     public void setLastAccessedTime(Instant lastAccessedTime) {
-        globalAttributes.put(LAST_ACCESSED_TIME_ATTRIBUTE, lastAccessedTime.getEpochSecond());
-        globalAttributesToUpdate.put(LAST_ACCESSED_TIME_ATTRIBUTE, lastAccessedTime.getEpochSecond());
+        putGlobalAttribute(LAST_ACCESSED_TIME_ATTRIBUTE, lastAccessedTime.getEpochSecond());
     }
 
     @Override
@@ -84,8 +131,24 @@ public class CouchbaseSession implements Session {
 
     @Override
     public void setMaxInactiveInterval(Duration interval) {
-        globalAttributes.put(MAX_INACTIVE_INTERVAL_ATTRIBUTE, interval.getSeconds());
-        globalAttributesToUpdate.put(MAX_INACTIVE_INTERVAL_ATTRIBUTE, interval.getSeconds());
+        putGlobalAttribute(MAX_INACTIVE_INTERVAL_ATTRIBUTE, interval.getSeconds());
+        maxInactiveIntervalSet = true;
+        flushImmediately();
+    }
+
+    /**
+     * Sets the maximum inactive interval chosen while the session is being saved. Unlike
+     * {@link #setMaxInactiveInterval(Duration)} it does not flush the session, the save persists the change.
+     */
+    public void applyMaxInactiveInterval(Duration interval) {
+        putGlobalAttribute(MAX_INACTIVE_INTERVAL_ATTRIBUTE, interval.getSeconds());
+    }
+
+    /**
+     * Tells whether the application has set the maximum inactive interval since the session has been created or loaded.
+     */
+    public boolean isMaxInactiveIntervalSet() {
+        return maxInactiveIntervalSet;
     }
 
     @Override
@@ -123,7 +186,11 @@ public class CouchbaseSession implements Session {
             attribute = (T) globalAttributes.get(name);
             log.trace("Global HTTP session attribute: [name='{}', value={}] has been read", name, attribute);
         } else {
-            attribute = (T) namespaceAttributes.get(attributeName);
+            Object value = namespaceAttributes.get(attributeName);
+            if (value instanceof ExternalizedAttribute) {
+                value = loadExternalizedAttribute(attributeName, (ExternalizedAttribute) value);
+            }
+            attribute = (T) value;
             log.trace("Application namespace HTTP session attribute: [name='{}', value={}] has been read", attributeName, attribute);
         }
         return attribute;
@@ -131,11 +198,17 @@ public class CouchbaseSession implements Session {
 
     @Override
     public Set<String> getAttributeNames() {
-        Set<String> attributesNames = globalAttributes.keySet().stream()
-                .map(CouchbaseSession::globalAttributeName)
-                .collect(toSet());
-        attributesNames.addAll(namespaceAttributes.keySet());
-        return unmodifiableSet(attributesNames);
+        Set<String> names = attributeNames;
+        if (names == null) {
+            names = new HashSet<>((globalAttributes.size() + namespaceAttributes.size()) * 4 / 3 + 1);
+            for (String name : globalAttributes.keySet()) {
+                names.add(globalAttributeName(name));
+            }
+            names.addAll(namespaceAttributes.keySet());
+            names = unmodifiableSet(names);
+            attributeNames = names;
+        }
+        return names;
     }
 
     @Override
@@ -146,17 +219,26 @@ public class CouchbaseSession implements Session {
             if (PRINCIPAL_NAME_INDEX_NAME.equals(name)) {
                 principalSessionsUpdateRequired = true;
             }
-            globalAttributes.put(name, attributeValue);
-            globalAttributesToUpdate.put(name, attributeValue);
+            putGlobalAttribute(name, attributeValue);
             log.trace("Global HTTP session attribute: [name='{}', value={}] has been set", name, attributeValue);
         } else {
             if (PRINCIPAL_NAME_INDEX_NAME.equals(attributeName)) {
                 principalSessionsUpdateRequired = true;
             }
+            if (!namespaceAttributes.containsKey(attributeName)) {
+                attributeNames = null;
+            }
             namespaceAttributes.put(attributeName, attributeValue);
+            if (namespaceAttributesToUpdate == null) {
+                namespaceAttributesToUpdate = new HashMap<>(4);
+            }
             namespaceAttributesToUpdate.put(attributeName, attributeValue);
+            if (namespaceAttributesToRemove != null) {
+                namespaceAttributesToRemove.remove(attributeName);
+            }
             log.trace("Application namespace HTTP session attribute: [name='{}', value={}] has been set", attributeName, attributeValue);
         }
+        flushImmediately();
     }
 
     @Override
@@ -165,26 +247,41 @@ public class CouchbaseSession implements Session {
         if (isGlobal(attributeName)) {
             String name = getNameFromGlobalName(attributeName);
             globalAttributes.remove(name);
+            attributeNames = null;
+            if (globalAttributesToRemove == null) {
+                globalAttributesToRemove = new HashSet<>(4);
+            }
             globalAttributesToRemove.add(name);
+            if (globalAttributesToUpdate != null) {
+                globalAttributesToUpdate.remove(name);
+            }
             log.trace("Global HTTP session attribute: [name='{}'] has been removed", name);
         } else {
             namespaceAttributes.remove(attributeName);
+            attributeNames = null;
+            if (namespaceAttributesToRemove == null) {
+                namespaceAttributesToRemove = new HashSet<>(4);
+            }
             namespaceAttributesToRemove.add(attributeName);
+            if (namespaceAttributesToUpdate != null) {
+                namespaceAttributesToUpdate.remove(attributeName);
+            }
             log.trace("Application namespace HTTP session attribute: [name='{}'] has been removed", attributeName);
         }
+        flushImmediately();
     }
 
     public Map<String, Object> getGlobalAttributesToUpdate() {
-        return globalAttributesToUpdate;
+        return globalAttributesToUpdate == null ? emptyMap() : globalAttributesToUpdate;
     }
 
     public Set<String> getGlobalAttributesToRemove() {
-        return globalAttributesToRemove;
+        return globalAttributesToRemove == null ? emptySet() : globalAttributesToRemove;
     }
 
     public void clearChangedGlobalAttributes() {
-        globalAttributesToUpdate.clear();
-        globalAttributesToRemove.clear();
+        globalAttributesToUpdate = null;
+        globalAttributesToRemove = null;
     }
 
     public Map<String, Object> getGlobalAttributes() {
@@ -192,16 +289,16 @@ public class CouchbaseSession implements Session {
     }
 
     public Map<String, Object> getNamespaceAttributesToUpdate() {
-        return namespaceAttributesToUpdate;
+        return namespaceAttributesToUpdate == null ? emptyMap() : namespaceAttributesToUpdate;
     }
 
     public Set<String> getNamespaceAttributesToRemove() {
-        return namespaceAttributesToRemove;
+        return namespaceAttributesToRemove == null ? emptySet() : namespaceAttributesToRemove;
     }
 
     public void clearChangedNamespaceAttributes() {
-        namespaceAttributesToUpdate.clear();
-        namespaceAttributesToRemove.clear();
+        namespaceAttributesToUpdate = null;
+        namespaceAttributesToRemove = null;
     }
 
     public Map<String, Object> getNamespaceAttributes() {
@@ -236,13 +333,144 @@ public class CouchbaseSession implements Session {
         return (String) principal;
     }
 
+    public boolean isOnlyLastAccessedTimeChanged() {
+        return globalAttributesToUpdate != null && globalAttributesToUpdate.size() == 1 && globalAttributesToUpdate.containsKey(LAST_ACCESSED_TIME_ATTRIBUTE)
+                && CollectionUtils.isEmpty(globalAttributesToRemove) && !isNamespacePersistenceRequired();
+    }
+
+    public Instant getPersistedLastAccessedTime() {
+        return persistedLastAccessedTime == null ? null : ofEpochSecond(persistedLastAccessedTime);
+    }
+
+    public boolean isDocumentExpirationUpdated() {
+        return documentExpirationUpdated;
+    }
+
+    public void setDocumentExpirationUpdated(boolean documentExpirationUpdated) {
+        this.documentExpirationUpdated = documentExpirationUpdated;
+    }
+
+    protected Object loadExternalizedAttribute(String name, ExternalizedAttribute attribute) {
+        if (externalizedAttributeLoader == null) {
+            return null;
+        }
+        Object value = externalizedAttributeLoader.apply(name, attribute.getKey());
+        // The loaded value replaces the reference without being marked as changed, so the document is not rewritten.
+        namespaceAttributes.put(name, value);
+        log.trace("Externalized application namespace HTTP session attribute: [name='{}'] has been loaded", name);
+        return value;
+    }
+
+    /**
+     * Sets the function loading the value of an externalized attribute from its name and document key.
+     */
+    public void setExternalizedAttributeLoader(BiFunction<String, String, Object> externalizedAttributeLoader) {
+        this.externalizedAttributeLoader = externalizedAttributeLoader;
+    }
+
+    public Map<String, String> getExternalizedAttributeKeys() {
+        return externalizedAttributeKeys == null ? emptyMap() : externalizedAttributeKeys;
+    }
+
+    /**
+     * Records the key of the document holding the application namespace attribute.
+     *
+     * @return key of the document previously holding the attribute, if any
+     */
+    public String putExternalizedAttributeKey(String name, String key) {
+        if (externalizedAttributeKeys == null) {
+            externalizedAttributeKeys = new HashMap<>(4);
+        }
+        return externalizedAttributeKeys.put(name, key);
+    }
+
+    /**
+     * Forgets the document holding the application namespace attribute.
+     *
+     * @return key of the document previously holding the attribute, if any
+     */
+    public String removeExternalizedAttributeKey(String name) {
+        return externalizedAttributeKeys == null ? null : externalizedAttributeKeys.remove(name);
+    }
+
+    /**
+     * Tells whether the session document exists in Couchbase. Only new sessions whose creation has been deferred are not persisted.
+     */
+    public boolean isPersisted() {
+        return persisted;
+    }
+
+    public void setPersisted(boolean persisted) {
+        this.persisted = persisted;
+    }
+
+    /**
+     * Tells whether the session has been loaded from a Couchbase replica and may miss the latest writes. Saving such a
+     * session writes only the attributes changed since it has been loaded, and nothing once the active copy has been
+     * deleted, so that an invalidated session is never brought back.
+     */
+    public boolean isFromReplica() {
+        return fromReplica;
+    }
+
+    public void setFromReplica(boolean fromReplica) {
+        this.fromReplica = fromReplica;
+    }
+
+    /**
+     * Tells whether the session document lacks the application namespace, which then has to be created before its
+     * attributes are written.
+     */
+    public boolean isNamespaceMissing() {
+        return namespaceMissing;
+    }
+
+    public void setNamespaceMissing(boolean namespaceMissing) {
+        this.namespaceMissing = namespaceMissing;
+    }
+
+    /**
+     * Tells whether the session carries any attribute besides its creation time, last accessed time and maximum inactive interval.
+     */
+    public boolean containsAttributes() {
+        if (!namespaceAttributes.isEmpty()) {
+            return true;
+        }
+        for (String name : globalAttributes.keySet()) {
+            if (!CREATION_TIME_ATTRIBUTE.equals(name) && !LAST_ACCESSED_TIME_ATTRIBUTE.equals(name) && !MAX_INACTIVE_INTERVAL_ATTRIBUTE.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets the callback saving the session after every attribute or maximum inactive interval change.
+     */
+    public void setImmediateFlush(Consumer<CouchbaseSession> immediateFlush) {
+        this.immediateFlush = immediateFlush;
+    }
+
     public void unsetPrincipalSessionsUpdateRequired() {
         principalSessionsUpdateRequired = false;
     }
 
     protected void setCreationTime(Instant creationTime) {
-        globalAttributes.put(CREATION_TIME_ATTRIBUTE, creationTime.getEpochSecond());
-        globalAttributesToUpdate.put(CREATION_TIME_ATTRIBUTE, creationTime.getEpochSecond());
+        putGlobalAttribute(CREATION_TIME_ATTRIBUTE, creationTime.getEpochSecond());
+    }
+
+    protected void putGlobalAttribute(String name, Object value) {
+        if (!globalAttributes.containsKey(name)) {
+            attributeNames = null;
+        }
+        globalAttributes.put(name, value);
+        if (globalAttributesToUpdate == null) {
+            globalAttributesToUpdate = new HashMap<>(4);
+        }
+        globalAttributesToUpdate.put(name, value);
+        if (globalAttributesToRemove != null) {
+            globalAttributesToRemove.remove(name);
+        }
     }
 
     protected void checkAttributeName(String attributeName) {
@@ -255,7 +483,20 @@ public class CouchbaseSession implements Session {
     }
 
     protected String getNameFromGlobalName(String globalAttributeName) {
-        return removeStart(globalAttributeName, GLOBAL_ATTRIBUTE_NAME_PREFIX);
+        String name = NAMES_BY_GLOBAL_NAME.get(globalAttributeName);
+        if (name == null) {
+            name = globalAttributeName.substring(GLOBAL_ATTRIBUTE_NAME_PREFIX.length());
+            cacheGlobalAttributeName(name, globalAttributeName);
+        }
+        return name;
+    }
+
+    protected static void cacheGlobalAttributeName(String name, String globalName) {
+        // Attribute names come from application code, so the cache stays small. The bound only guards against names built from user input.
+        if (NAMES_BY_GLOBAL_NAME.size() < GLOBAL_ATTRIBUTE_NAMES_CACHE_SIZE) {
+            NAMES_BY_GLOBAL_NAME.putIfAbsent(globalName, name);
+            GLOBAL_NAMES_BY_NAME.putIfAbsent(name, globalName);
+        }
     }
 
     protected boolean containsPrincipalAttribute() {
@@ -271,8 +512,14 @@ public class CouchbaseSession implements Session {
         return ((Number) globalAttributes.get(attributeName)).longValue();
     }
 
+    protected void flushImmediately() {
+        if (immediateFlush != null) {
+            immediateFlush.accept(this);
+        }
+    }
+
     protected String generateSessionId() {
-        return randomUUID().toString();
+        return idGenerator.generateId();
     }
 
     public void setIdChanged(boolean isIdChanged) {
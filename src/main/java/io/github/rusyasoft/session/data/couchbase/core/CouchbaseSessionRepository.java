@@ -3,24 +3,49 @@ package io.github.rusyasoft.session.data.couchbase.core;
 import com.couchbase.client.java.document.json.JsonObject;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.github.rusyasoft.session.data.couchbase.config.SessionCouchbaseProperties;
+import io.github.rusyasoft.session.data.couchbase.data.AsyncSessionDao;
+import io.github.rusyasoft.session.data.couchbase.data.CouchbaseDeadline;
+import io.github.rusyasoft.session.data.couchbase.data.DocumentLayout;
 import io.github.rusyasoft.session.data.couchbase.data.PrincipalSessionsDocument;
+import io.github.rusyasoft.session.data.couchbase.data.SaveMode;
 import io.github.rusyasoft.session.data.couchbase.data.SessionDao;
 import io.github.rusyasoft.session.data.couchbase.data.SessionDocument;
+import io.github.rusyasoft.session.data.couchbase.data.SessionNamespacesDocument;
+import io.github.rusyasoft.session.data.couchbase.data.SessionOperationAccount;
 import org.slf4j.Logger;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.session.FindByIndexNameSessionRepository;
+import org.springframework.session.MapSession;
+import org.springframework.session.Session;
 import org.springframework.session.events.SessionCreatedEvent;
 import org.springframework.session.events.SessionDeletedEvent;
 import org.springframework.session.events.SessionExpiredEvent;
 
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static io.github.rusyasoft.session.data.couchbase.data.AsyncSessionDao.joinAll;
 import static java.lang.Math.toIntExact;
+import static java.time.Duration.ofSeconds;
 import static java.time.Instant.now;
+import static java.time.Instant.ofEpochSecond;
+import static java.util.Collections.emptyList;
 import static java.util.Collections.emptyMap;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singletonMap;
 import static org.slf4j.LoggerFactory.getLogger;
 import static org.springframework.util.Assert.hasText;
 import static org.springframework.util.Assert.isTrue;
@@ -28,18 +53,27 @@ import static org.springframework.util.Assert.notNull;
 
 public class CouchbaseSessionRepository implements FindByIndexNameSessionRepository<CouchbaseSession> {
 
-    protected static final String GLOBAL_NAMESPACE = "global";
+    protected static final String GLOBAL_NAMESPACE = SessionDocument.GLOBAL_NAMESPACE;
     protected static final int SESSION_DOCUMENT_EXPIRATION_DELAY_IN_SECONDS = 60;
+    // Couchbase reads expiry values above 30 days as epoch seconds.
+    protected static final long MAX_RELATIVE_EXPIRATION_IN_SECONDS = 30 * 24 * 60 * 60;
+    protected static final String EXTERNALIZED_ATTRIBUTE_VALUE = "value";
 
     private static final Logger log = getLogger(CouchbaseSessionRepository.class);
 
     protected final SessionCouchbaseProperties sessionCouchbase;
     protected final SessionDao dao;
+    protected final AsyncSessionDao asyncDao;
     protected final ObjectMapper mapper;
     //protected final Serializer serializer;
     protected final JsonSerializer serializer;
 
     protected final ApplicationEventPublisher eventPublisher;
+    protected final SingleFlight<String, SessionNamespacesDocument> namespaceLoads = new SingleFlight<>();
+    protected SessionIdGenerator sessionIdGenerator = new SecureRandomSessionIdGenerator();
+    protected SessionExpirationIndex expirationIndex;
+    protected SessionTimeoutPolicy timeoutPolicy;
+    protected Executor continuationExecutor = ForkJoinPool.commonPool();
 
     public CouchbaseSessionRepository(
             SessionCouchbaseProperties sessionCouchbase,
@@ -59,99 +93,268 @@ public class CouchbaseSessionRepository implements FindByIndexNameSessionReposit
         notNull(eventPublisher, "Missing application event publisher");
         this.sessionCouchbase = sessionCouchbase;
         this.dao = dao;
+        this.asyncDao = dao.async();
         this.mapper = mapper;
         this.serializer = serializer;
         this.eventPublisher = eventPublisher;
     }
 
+    public void setSessionIdGenerator(SessionIdGenerator sessionIdGenerator) {
+        notNull(sessionIdGenerator, "Missing HTTP session ID generator");
+        this.sessionIdGenerator = sessionIdGenerator;
+    }
+
+    public void setExpirationIndex(SessionExpirationIndex expirationIndex) {
+        this.expirationIndex = expirationIndex;
+    }
+
+    public void setTimeoutPolicy(SessionTimeoutPolicy timeoutPolicy) {
+        this.timeoutPolicy = timeoutPolicy;
+    }
+
+    /**
+     * Sets the executor running writes which depend on the result of an asynchronous read, so that they are not issued
+     * from the threads of the Couchbase client.
+     */
+    public void setContinuationExecutor(Executor continuationExecutor) {
+        notNull(continuationExecutor, "Missing continuation executor");
+        this.continuationExecutor = continuationExecutor;
+    }
+
     @Override
     public CouchbaseSession createSession() {
-        CouchbaseSession session = new CouchbaseSession(sessionCouchbase.getTimeout());
-        SessionDocument sessionDocument = convertToDocument(session);
-        dao.save(sessionDocument);
-        dao.updateExpirationTime(session.getId(), getSessionDocumentExpiration());
-        eventPublisher.publishEvent(new SessionCreatedEvent(this, session));
-
-        log.debug("HTTP session with ID {} has been created", session.getId());
+        return withinDeadline(this::newSession);
+    }
 
+    protected CouchbaseSession newSession() {
+        CouchbaseSession session = new CouchbaseSession(sessionCouchbase.getTimeout(), sessionIdGenerator);
+        applyTimeoutPolicy(session);
+        if (sessionCouchbase.isDeferredCreation()) {
+            log.debug("HTTP session with ID {} has been created, its persistence is deferred until it carries attributes", session.getId());
+        } else {
+            insertSession(session);
+            trackExpiration(session);
+        }
+        enableImmediateFlush(session);
         return session;
     }
 
     @Override
     public void save(CouchbaseSession session) {
-        if (session.isIdChanged()) {
+        withinDeadline(() -> {
+            saveSession(session);
+            return null;
+        });
+    }
+
+    protected void saveSession(CouchbaseSession session) {
+        if (isTimeoutPolicyReevaluationRequired(session)) {
+            applyTimeoutPolicy(session);
+        }
+        if (!session.isPersisted() && !session.containsAttributes()) {
+            log.trace("HTTP session with ID {} carries no attributes, skipping its persistence", session.getId());
+            return;
+        }
+        if (session.isFromReplica() && !dao.exists(session.getId())) {
+            // The replica copy has been read after the session was invalidated on the active copy.
+            log.debug("HTTP session with ID {} read from a replica no longer exists, skipping its persistence", session.getId());
+            return;
+        }
+        if (isLastAccessedTimePersistenceSkippable(session)) {
+            log.trace("Only last accessed time of HTTP session with ID {} has changed, skipping its persistence", session.getId());
+            session.clearChangedGlobalAttributes();
+        }
+        // Changed attributes are serialized before anything is written, so that an attribute exceeding the maximum size
+        // fails the save without leaving the stored session partially updated.
+        Map<String, Object> serializedGlobal = serializer.serializeSessionAttributes(session.getGlobalAttributesToUpdate(), GLOBAL_NAMESPACE);
+        Map<String, Object> serializedNamespace = serializer.serializeSessionAttributes(session.getNamespaceAttributesToUpdate(),
+                sessionCouchbase.getApplicationNamespace());
+
+        boolean documentChanged = false;
+        if (!session.isPersisted()) {
+            insertSession(session);
+            documentChanged = true;
+        } else if (session.isIdChanged()) {
             changeSessionId(session);
+            documentChanged = true;
         }
 
-        if (session.isGlobalPersistenceRequired()) {
-            Map<String, Object> serializedGlobal = serializer.serializeSessionAttributes(session.getGlobalAttributesToUpdate());
-            dao.updateSession(serializedGlobal, session.getGlobalAttributesToRemove(), GLOBAL_NAMESPACE, session.getId());
+        // Independent writes are issued together and awaited before the document expiration is updated.
+        List<CompletableFuture<Void>> documentWrites = new ArrayList<>(2);
+        CompletableFuture<Void> principalWrite = null;
+        if (isOperationOnPrincipalSessionsRequired(session)) {
+            principalWrite = savePrincipalSession(session);
+        }
+
+        boolean globalPersistenceRequired = session.isGlobalPersistenceRequired();
+        if (globalPersistenceRequired) {
+            documentWrites.add(asyncDao.updateSession(serializedGlobal, session.getGlobalAttributesToRemove(), GLOBAL_NAMESPACE, session.getId()));
+        }
+
+        boolean namespacePersistenceRequired = session.isNamespacePersistenceRequired();
+        List<String> obsoleteAttributeKeys = emptyList();
+        if (namespacePersistenceRequired) {
+            if (!areNamespaceWritesIndependent() || session.isNamespaceMissing()) {
+                joinAll(documentWrites);
+            }
+            if (session.isNamespaceMissing()) {
+                dao.insertNamespace(sessionCouchbase.getApplicationNamespace(), session.getId());
+                session.setNamespaceMissing(false);
+            }
+            List<CompletableFuture<Void>> attributeWrites = new ArrayList<>();
+            obsoleteAttributeKeys = externalizeAttributes(session, serializedNamespace, attributeWrites);
+            joinAll(attributeWrites);
+            documentWrites.add(asyncDao.updateSession(serializedNamespace, session.getNamespaceAttributesToRemove(),
+                    sessionCouchbase.getApplicationNamespace(), session.getId()));
+        }
+
+        joinAll(documentWrites);
+        if (globalPersistenceRequired) {
             log.debug("Global attributes of HTTP session with ID {} has been saved", session.getId());
             session.clearChangedGlobalAttributes();
+            documentChanged = true;
         }
-
-        if (session.isNamespacePersistenceRequired()) {
-            Map<String, Object> serializedNamespace = serializer.serializeSessionAttributes(session.getNamespaceAttributesToUpdate());
-            dao.updateSession(serializedNamespace, session.getNamespaceAttributesToRemove(), sessionCouchbase.getApplicationNamespace(), session.getId());
+        if (namespacePersistenceRequired) {
             log.debug("Application namespace attributes of HTTP session with ID {} has been saved", session.getId());
             session.clearChangedNamespaceAttributes();
+            documentChanged = true;
+        }
+        List<CompletableFuture<?>> remainingWrites = new ArrayList<>(2);
+        if (principalWrite != null) {
+            remainingWrites.add(principalWrite);
         }
+        if (documentChanged || !session.isDocumentExpirationUpdated()) {
+            remainingWrites.add(asyncDao.updateExpirationTime(session.getId(), getSessionDocumentExpiration(session)));
+            remainingWrites.addAll(touchExternalizedAttributes(session));
+        }
+        obsoleteAttributeKeys.forEach(key -> remainingWrites.add(asyncDao.delete(key)));
+        joinAll(remainingWrites);
+        if (principalWrite != null) {
+            log.debug("Principals {} session with ID {} has been added", session.getPrincipalAttribute(), session.getId());
+            session.unsetPrincipalSessionsUpdateRequired();
+        }
+        trackExpiration(session);
+    }
 
-        if (isOperationOnPrincipalSessionsRequired(session)) {
-            savePrincipalSession(session);
+    /**
+     * Publishes {@link SessionExpiredEvent}s for sessions saved on this node whose deadline has passed and removes them
+     * from their principal indexes. Sessions which have been accessed on another node in the meantime are tracked again
+     * with their stored last accessed time, sessions deleted already are only removed from their principal indexes.
+     */
+    public void cleanUpExpiredSessions() {
+        if (expirationIndex == null) {
+            return;
         }
-        dao.updateExpirationTime(session.getId(), getSessionDocumentExpiration());
+        int batchSize = sessionCouchbase.getPersistent().getExpirationTracking().getBatchSize();
+        List<SessionExpirationIndex.Entry> expiredEntries;
+        boolean checkFailed = false;
+        do {
+            long now = now().getEpochSecond();
+            expiredEntries = expirationIndex.pollExpired(now, batchSize);
+            List<Session> expiredSessions = new ArrayList<>(expiredEntries.size());
+            Map<String, List<String>> expiredSessionIdsByPrincipal = new HashMap<>();
+            for (SessionExpirationIndex.Entry entry : expiredEntries) {
+                if (checkFailed) {
+                    retrackExpiration(entry);
+                    continue;
+                }
+                StoredSessionState state;
+                try {
+                    state = getStoredSessionState(entry, now);
+                } catch (RuntimeException e) {
+                    log.warn("Checking expiration of HTTP session with ID " + entry.getId()
+                            + " has failed, remaining sessions will be checked in the next run", e);
+                    retrackExpiration(entry);
+                    checkFailed = true;
+                    continue;
+                }
+                if (state == StoredSessionState.ACTIVE) {
+                    continue;
+                }
+                if (state == StoredSessionState.MISSING) {
+                    log.trace("HTTP session with ID {} has already been deleted, dropping it from the expiration index", entry.getId());
+                } else {
+                    expiredSessions.add(toExpiredSession(entry));
+                }
+                // Sessions deleted by Couchbase expiry are still listed in their principal index, removing IDs is idempotent.
+                if (entry.getPrincipal() != null) {
+                    expiredSessionIdsByPrincipal.computeIfAbsent(entry.getPrincipal(), principal -> new ArrayList<>()).add(entry.getId());
+                }
+            }
+            expiredSessionIdsByPrincipal.forEach(dao::updateRemovePrincipalSessions);
+            expiredSessions.forEach(session -> eventPublisher.publishEvent(new SessionExpiredEvent(this, session)));
+            if (!expiredSessions.isEmpty()) {
+                log.debug("{} expired HTTP sessions have been cleaned up", expiredSessions.size());
+            }
+        } while (!checkFailed && expiredEntries.size() >= batchSize);
     }
 
     @Override
     public CouchbaseSession findById(String id) {
+        return withinDeadline(() -> loadSession(id));
+    }
 
-        //rustamchange// before code experiment
-        JsonObject globalAttributesJsonObject = (JsonObject) dao.getObjectFromCouchbase(id, GLOBAL_NAMESPACE);
-        JsonObject namespaceAttributesJsonObject = (JsonObject) dao.getObjectFromCouchbase(id, sessionCouchbase.getApplicationNamespace());
-        ///////////////////////////////////////
-
-
-        if (globalAttributesJsonObject == null && namespaceAttributesJsonObject == null) {
-            log.debug("HTTP session with ID {} not found", id);
-            return null;
+    protected CouchbaseSession loadSession(String id) {
+        SessionNamespacesDocument document = loadNamespaces(id);
+        CouchbaseSession session = toSession(id, document, isTouchWhileReadingEnabled());
+        if (session != null && isTouchOnReadEnabled() && !isTouchWhileReadingEnabled()) {
+            touchSession(session);
         }
-
-        notNull(globalAttributesJsonObject, "Invalid state of HTTP session persisted in couchbase. Missing global attributes.");
-
-        if (namespaceAttributesJsonObject == null) {
-            dao.insertNamespace(sessionCouchbase.getApplicationNamespace(), id);
+        if (session != null) {
+            log.debug("HTTP session with ID {} has been found", id);
         }
+        return session;
+    }
 
-        Map<String, Object> deserializedGlobal = serializer.deserializeSessionAttributes(globalAttributesJsonObject);
-        Map<String, Object> deserializedNamespace = serializer.deserializeSessionAttributes(namespaceAttributesJsonObject);
+    /**
+     * Loads many HTTP sessions with a single multi-get, instead of one lookup per session. Sessions which do not exist or
+     * have expired are left out of the result. The session documents are not touched, so saving a returned session
+     * updates their expiration.
+     *
+     * @return found HTTP sessions by ID, in the order of the given IDs
+     */
+    public Map<String, CouchbaseSession> findByIds(Collection<String> ids) {
+        return withinDeadline(() -> loadSessions(ids));
+    }
 
-        CouchbaseSession session = new CouchbaseSession(id, deserializedGlobal, deserializedNamespace);
-        if (session.isExpired()) {
-            log.debug("HTTP session with ID {} has expired", id);
-            deleteSession(session);
-            eventPublisher.publishEvent(new SessionExpiredEvent(this, session));
-            return null;
-        }
-        session.setLastAccessedTime(now());
+    protected Map<String, CouchbaseSession> loadSessions(Collection<String> ids) {
+        Map<String, SessionNamespacesDocument> documents = dao.findNamespaces(new LinkedHashSet<>(ids), GLOBAL_NAMESPACE,
+                sessionCouchbase.getApplicationNamespace());
+        Map<String, CouchbaseSession> sessionsById = new LinkedHashMap<>(documents.size());
+        documents.forEach((id, document) -> {
+            if (document.getNamespace(GLOBAL_NAMESPACE) == null) {
+                log.warn("Invalid state of HTTP session with ID {} persisted in couchbase, missing global attributes. Skipping it.", id);
+                return;
+            }
+            CouchbaseSession session = toSession(id, document, false);
+            if (session != null) {
+                sessionsById.put(id, session);
+            }
+        });
 
-        log.debug("HTTP session with ID {} has been found", id);
+        log.debug("HTTP sessions with IDs {} have been found", sessionsById.keySet());
 
-        return session;
+        return sessionsById;
     }
 
     @Override
     public void deleteById(String id) {
-        CouchbaseSession session = findById(id);
-        if (session == null) {
-            return;
-        }
-        deleteSession(session);
-        eventPublisher.publishEvent(new SessionDeletedEvent(this, session));
+        withinDeadline(() -> {
+            CouchbaseSession session = loadSession(id);
+            if (session != null) {
+                deleteSession(session);
+                eventPublisher.publishEvent(new SessionDeletedEvent(this, session));
+            }
+            return null;
+        });
     }
 
     @Override
     public Map<String, CouchbaseSession> findByIndexNameAndIndexValue(String indexName, String indexValue) {
+        return withinDeadline(() -> loadPrincipalSessions(indexName, indexValue));
+    }
+
+    protected Map<String, CouchbaseSession> loadPrincipalSessions(String indexName, String indexValue) {
         if (!sessionCouchbase.getPrincipalSessions().isEnabled()) {
             throw new IllegalStateException("Cannot get principal HTTP sessions. Enable getting principal HTTP sessions using 'session-couchbase.principal-sessions.enabled' configuration property.");
         }
@@ -163,13 +366,7 @@ public class CouchbaseSessionRepository implements FindByIndexNameSessionReposit
             log.debug("Principals {} sessions not found", indexValue);
             return emptyMap();
         }
-        Map<String, CouchbaseSession> sessionsById = new HashMap<>(sessionsDocument.getSessionIds().size());
-        sessionsDocument.getSessionIds().forEach(sessionId -> {
-            CouchbaseSession session = findById(sessionId);
-            if (session != null) {
-                sessionsById.put(sessionId, session);
-            }
-        });
+        Map<String, CouchbaseSession> sessionsById = loadSessions(sessionsDocument.getSessionIds());
         if (sessionsById.isEmpty()) {
             dao.delete(indexValue);
         }
@@ -179,6 +376,296 @@ public class CouchbaseSessionRepository implements FindByIndexNameSessionReposit
         return sessionsById;
     }
 
+    /**
+     * Deletes all HTTP sessions of the given principal without loading them. The principal HTTP sessions document is read
+     * once, the session documents are removed in parallel together with the documents of their externalized attributes
+     * and the removed IDs are dropped from the principal index in a single mutation.
+     * <p>
+     * Unlike {@link #deleteById(String)}, the {@link SessionDeletedEvent}s published afterwards do not carry the deleted
+     * session, but a {@link MapSession} holding only its ID, so listeners cannot read its attributes or timestamps.
+     *
+     * @return IDs of the deleted HTTP sessions
+     */
+    public Set<String> deleteByPrincipal(String principal) {
+        return withinDeadline(() -> deletePrincipalSessions(principal));
+    }
+
+    protected Set<String> deletePrincipalSessions(String principal) {
+        if (!sessionCouchbase.getPrincipalSessions().isEnabled()) {
+            throw new IllegalStateException("Cannot delete principal HTTP sessions. Enable managing principal HTTP sessions"
+                    + " using 'session-couchbase.principal-sessions.enabled' configuration property.");
+        }
+        PrincipalSessionsDocument sessionsDocument = dao.findByPrincipal(principal);
+        if (sessionsDocument == null || sessionsDocument.getSessionIds().isEmpty()) {
+            log.debug("Principals {} sessions not found", principal);
+            return emptySet();
+        }
+        Set<String> sessionIds = new LinkedHashSet<>(sessionsDocument.getSessionIds());
+        List<String> externalizedAttributeKeys = findExternalizedAttributeKeys(sessionIds);
+        List<CompletableFuture<Void>> deletes = new ArrayList<>(2 + externalizedAttributeKeys.size());
+        deletes.add(asyncDao.deleteSessions(sessionIds));
+        externalizedAttributeKeys.forEach(key -> deletes.add(asyncDao.delete(key)));
+        deletes.add(asyncDao.updateRemovePrincipalSessions(principal, sessionIds));
+        joinAll(deletes);
+        sessionIds.forEach(sessionId -> {
+            if (expirationIndex != null) {
+                expirationIndex.untrack(sessionId);
+            }
+            eventPublisher.publishEvent(new SessionDeletedEvent(this, new MapSession(sessionId)));
+        });
+
+        log.debug("Principals {} sessions with IDs {} have been deleted", principal, sessionIds);
+
+        return sessionIds;
+    }
+
+    /**
+     * Reads the keys of the documents holding externalized attributes of the given HTTP sessions from their application
+     * namespaces, without deserializing the attributes.
+     */
+    protected List<String> findExternalizedAttributeKeys(Collection<String> sessionIds) {
+        if (!sessionCouchbase.getExternalizedAttributes().isEnabled()) {
+            return emptyList();
+        }
+        String namespace = sessionCouchbase.getApplicationNamespace();
+        List<String> keys = new ArrayList<>();
+        dao.findNamespaces(sessionIds, namespace).values().forEach(document -> {
+            JsonObject attributes = document.getNamespace(namespace);
+            if (attributes == null) {
+                return;
+            }
+            for (String name : attributes.getNames()) {
+                String key = serializer.getExternalizedAttributeKey(attributes.get(name));
+                if (key != null) {
+                    keys.add(key);
+                }
+            }
+        });
+        return keys;
+    }
+
+    /**
+     * Creates the HTTP session out of its loaded namespaces. Missing sessions give {@code null}, expired ones are deleted
+     * first. Replica copies which look expired give {@code null} too, but are neither deleted nor reported as expired.
+     *
+     * @param documentTouched whether the expiration of the session document has been updated while loading it
+     */
+    protected CouchbaseSession toSession(String id, SessionNamespacesDocument document, boolean documentTouched) {
+        JsonObject globalAttributesJsonObject = document == null ? null : document.getNamespace(GLOBAL_NAMESPACE);
+        JsonObject namespaceAttributesJsonObject = document == null ? null : document.getNamespace(sessionCouchbase.getApplicationNamespace());
+
+        if (globalAttributesJsonObject == null && namespaceAttributesJsonObject == null) {
+            log.debug("HTTP session with ID {} not found", id);
+            return null;
+        }
+
+        notNull(globalAttributesJsonObject, "Invalid state of HTTP session persisted in couchbase. Missing global attributes.");
+
+        Map<String, Object> deserializedGlobal = serializer.deserializeSessionAttributes(globalAttributesJsonObject);
+        Map<String, Object> deserializedNamespace = serializer.deserializeSessionAttributes(namespaceAttributesJsonObject);
+
+        CouchbaseSession session = new CouchbaseSession(id, deserializedGlobal, deserializedNamespace, sessionIdGenerator);
+        session.setExternalizedAttributeLoader(this::loadExternalizedAttribute);
+        if (isExpired(session)) {
+            if (document.isFromReplica()) {
+                // The replica may lag behind the active copy, which is left to expire on its own.
+                log.debug("Replica copy of HTTP session with ID {} looks expired, ignoring it", id);
+                return null;
+            }
+            log.debug("HTTP session with ID {} has expired", id);
+            deleteSession(session);
+            eventPublisher.publishEvent(new SessionExpiredEvent(this, session));
+            return null;
+        }
+        if (document.isFromReplica()) {
+            log.debug("HTTP session with ID {} has been read from a replica", id);
+            session.setFromReplica(true);
+        }
+        // A missing namespace is created on the first save writing to it, so that reads never write.
+        session.setNamespaceMissing(namespaceAttributesJsonObject == null);
+        session.setLastAccessedTime(now());
+        // Reads touch the document with the default timeout, so its expiration has to be set again on save.
+        session.setDocumentExpirationUpdated(documentTouched && session.getMaxInactiveInterval().equals(sessionCouchbase.getTimeout()));
+        if (documentTouched) {
+            joinAll(touchExternalizedAttributes(session));
+        }
+        enableImmediateFlush(session);
+        return session;
+    }
+
+    /**
+     * Runs the repository call with a time budget of its own, which all the session store operations it issues share.
+     * The budget starts when the call does, so time the application spends between calls is never charged against it.
+     * Nested calls, like immediate flushes or deletes of expired sessions, share the budget of the outer call.
+     */
+    protected <T> T withinDeadline(Supplier<T> call) {
+        Duration budget = sessionCouchbase.getPersistent().getRetry().getDeadline();
+        if (budget == null || CouchbaseDeadline.current() != null) {
+            return call.get();
+        }
+        CouchbaseDeadline.open(budget);
+        try {
+            return call.get();
+        } finally {
+            CouchbaseDeadline.close();
+        }
+    }
+
+    protected SessionNamespacesDocument loadNamespaces(String id) {
+        if (!sessionCouchbase.getReadCoalescing().isEnabled()) {
+            return fetchNamespaces(id);
+        }
+        return namespaceLoads.execute(id, () -> fetchNamespaces(id));
+    }
+
+    protected SessionNamespacesDocument fetchNamespaces(String id) {
+        if (isTouchWhileReadingEnabled()) {
+            return dao.findNamespacesAndTouch(id, getSessionDocumentExpiration(), GLOBAL_NAMESPACE, sessionCouchbase.getApplicationNamespace());
+        }
+        return dao.findNamespaces(id, GLOBAL_NAMESPACE, sessionCouchbase.getApplicationNamespace());
+    }
+
+    protected boolean isTouchOnReadEnabled() {
+        return sessionCouchbase.getPersistent().getTouchOnRead().isEnabled();
+    }
+
+    /**
+     * Tells whether session documents are touched by the read loading them. Reads touch with the default timeout, so
+     * under a timeout policy sessions are touched after being loaded, with their own expiration.
+     */
+    protected boolean isTouchWhileReadingEnabled() {
+        return isTouchOnReadEnabled() && timeoutPolicy == null;
+    }
+
+    /**
+     * Updates the expiration of the session documents to the one of the session, so that saving it does not have to.
+     */
+    protected void touchSession(CouchbaseSession session) {
+        List<CompletableFuture<Void>> touches = touchExternalizedAttributes(session);
+        touches.add(asyncDao.updateExpirationTime(session.getId(), getSessionDocumentExpiration(session)));
+        joinAll(touches);
+        session.setDocumentExpirationUpdated(true);
+    }
+
+    /**
+     * Tells whether the loaded session has expired, allowing for last accessed time changes that saves have skipped.
+     */
+    protected boolean isExpired(CouchbaseSession session) {
+        if (!session.isExpired()) {
+            return false;
+        }
+        Duration tolerance = getLastAccessedTimeTolerance();
+        return now().minus(session.getMaxInactiveInterval()).minus(tolerance).compareTo(session.getLastAccessedTime()) >= 0;
+    }
+
+    /**
+     * Returns how much older than the actual one the stored last accessed time can be. Saves skip smaller changes only
+     * when reads touch the session documents.
+     */
+    protected Duration getLastAccessedTimeTolerance() {
+        if (!isTouchOnReadEnabled()) {
+            return Duration.ZERO;
+        }
+        return sessionCouchbase.getPersistent().getTouchOnRead().getLastAccessedTimeGranularity();
+    }
+
+    protected boolean isLastAccessedTimePersistenceSkippable(CouchbaseSession session) {
+        if (!session.isDocumentExpirationUpdated() || !session.isOnlyLastAccessedTimeChanged() || session.getPersistedLastAccessedTime() == null) {
+            return false;
+        }
+        Duration granularity = sessionCouchbase.getPersistent().getTouchOnRead().getLastAccessedTimeGranularity();
+        return Duration.between(session.getPersistedLastAccessedTime(), session.getLastAccessedTime()).compareTo(granularity) < 0;
+    }
+
+    /**
+     * Writes the whole document of a new session together with its expiration, so that it expires even if a later
+     * write of the save fails. The session ID may have changed before, the document is created under the current one.
+     */
+    protected void insertSession(CouchbaseSession session) {
+        SessionDocument document = convertToDocument(session);
+        session.clearChangedGlobalAttributes();
+        if (sessionCouchbase.getExternalizedAttributes().isEnabled()) {
+            // Namespace attributes are left to the update following the insert, where large ones are externalized.
+            document.getData().put(sessionCouchbase.getApplicationNamespace(), new HashMap<>());
+        } else {
+            session.clearChangedNamespaceAttributes();
+        }
+        dao.save(document, getSessionDocumentExpiration(session));
+        session.setIdChanged(false);
+        session.setPersisted(true);
+        eventPublisher.publishEvent(new SessionCreatedEvent(this, session));
+
+        log.debug("HTTP session with ID {} has been created", session.getId());
+    }
+
+    /**
+     * Moves serialized attributes above the size threshold to separate documents and puts references to them in their
+     * place. The documents are written together with the session expiration and the writes are added to the given list,
+     * which has to complete before the session document refers to them.
+     *
+     * @return keys of documents holding previous values of the updated or removed attributes
+     */
+    protected List<String> externalizeAttributes(CouchbaseSession session, Map<String, Object> serializedAttributes,
+                                                 List<CompletableFuture<Void>> attributeWrites) {
+        SessionCouchbaseProperties.ExternalizedAttributes externalizedAttributes = sessionCouchbase.getExternalizedAttributes();
+        int expiration = getSessionDocumentExpiration(session);
+        List<String> obsoleteKeys = new ArrayList<>();
+        for (Map.Entry<String, Object> attribute : serializedAttributes.entrySet()) {
+            String previousKey;
+            Object serializedValue = attribute.getValue();
+            if (externalizedAttributes.isEnabled() && serializedValue != null && serializedValue.toString().length() > externalizedAttributes.getThreshold()) {
+                String key = SessionDocument.EXTERNALIZED_ATTRIBUTE_KEY_PREFIX + UUID.randomUUID();
+                Map<String, Map<String, Object>> data = singletonMap(sessionCouchbase.getApplicationNamespace(),
+                        singletonMap(EXTERNALIZED_ATTRIBUTE_VALUE, serializedValue.toString()));
+                attributeWrites.add(asyncDao.save(new SessionDocument(key, data), expiration));
+                attribute.setValue(serializer.serializeExternalizedAttributeReference(key));
+                previousKey = session.putExternalizedAttributeKey(attribute.getKey(), key);
+                log.debug("Attribute '{}' of HTTP session with ID {} is stored in document {}", attribute.getKey(), session.getId(), key);
+            } else {
+                previousKey = session.removeExternalizedAttributeKey(attribute.getKey());
+            }
+            if (previousKey != null) {
+                obsoleteKeys.add(previousKey);
+            }
+        }
+        for (String name : session.getNamespaceAttributesToRemove()) {
+            String previousKey = session.removeExternalizedAttributeKey(name);
+            if (previousKey != null) {
+                obsoleteKeys.add(previousKey);
+            }
+        }
+        return obsoleteKeys;
+    }
+
+    protected Object loadExternalizedAttribute(String name, String key) {
+        String namespace = sessionCouchbase.getApplicationNamespace();
+        SessionNamespacesDocument document = dao.findNamespaces(key, namespace);
+        JsonObject attribute = document == null ? null : document.getNamespace(namespace);
+        Object serializedValue = attribute == null ? null : attribute.get(EXTERNALIZED_ATTRIBUTE_VALUE);
+        if (serializedValue == null) {
+            log.warn("Document {} of externalized HTTP session attribute does not exist", key);
+            return null;
+        }
+        return serializer.deserializeSessionAttribute(name, serializedValue);
+    }
+
+    /**
+     * Extends the expiration of documents holding externalized attributes to the one of the session document.
+     */
+    protected List<CompletableFuture<Void>> touchExternalizedAttributes(CouchbaseSession session) {
+        Collection<String> keys = session.getExternalizedAttributeKeys().values();
+        List<CompletableFuture<Void>> touches = new ArrayList<>(keys.size());
+        int expiration = getSessionDocumentExpiration(session);
+        keys.forEach(key -> touches.add(asyncDao.updateExpirationTime(key, expiration)));
+        return touches;
+    }
+
+    protected void enableImmediateFlush(CouchbaseSession session) {
+        if (sessionCouchbase.getFlushMode() == FlushMode.IMMEDIATE) {
+            session.setImmediateFlush(this::save);
+        }
+    }
+
     protected SessionDocument convertToDocument(CouchbaseSession session) {
         Map<String, Map<String, Object>> sessionData = new HashMap<>(2);
         sessionData.put(GLOBAL_NAMESPACE, session.getGlobalAttributes());
@@ -192,10 +679,13 @@ public class CouchbaseSessionRepository implements FindByIndexNameSessionReposit
 
         //rustamchange// removing the following line didn't help
         dao.delete(session.getOldId());
+        if (expirationIndex != null) {
+            expirationIndex.untrack(session.getOldId());
+        }
 
         log.debug("Old HTTP session with ID {} has been deleted after changing HTTP session ID", session.getOldId());
         SessionDocument newDocument = new SessionDocument(session.getId(), oldDocument.getData());
-        dao.save(newDocument);
+        dao.save(newDocument, getSessionDocumentExpiration(session));
         log.debug("New HTTP session with ID {} has been saved after changing HTTP session ID", session.getId());
 
         //rustamchange// try to add changed information by trueing
@@ -203,33 +693,148 @@ public class CouchbaseSessionRepository implements FindByIndexNameSessionReposit
     }
 
     protected int getSessionDocumentExpiration() {
-        return toIntExact(sessionCouchbase.getTimeout().plusSeconds(SESSION_DOCUMENT_EXPIRATION_DELAY_IN_SECONDS).getSeconds());
+        return toDocumentExpiration(sessionCouchbase.getTimeout());
+    }
+
+    /**
+     * Returns the expiration of the session document following the maximum inactive interval of the session.
+     */
+    protected int getSessionDocumentExpiration(CouchbaseSession session) {
+        return toDocumentExpiration(session.getMaxInactiveInterval());
+    }
+
+    protected int toDocumentExpiration(Duration maxInactiveInterval) {
+        if (maxInactiveInterval.isNegative()) {
+            // Sessions with a negative interval never expire.
+            return 0;
+        }
+        long expiration = maxInactiveInterval.plusSeconds(SESSION_DOCUMENT_EXPIRATION_DELAY_IN_SECONDS).getSeconds();
+        if (expiration > MAX_RELATIVE_EXPIRATION_IN_SECONDS) {
+            return toIntExact(now().getEpochSecond() + expiration);
+        }
+        return toIntExact(expiration);
     }
 
-    protected void savePrincipalSession(CouchbaseSession session) {
+    protected boolean isTimeoutPolicyReevaluationRequired(CouchbaseSession session) {
+        if (timeoutPolicy == null || !timeoutPolicy.isReevaluationRequired(session)) {
+            return false;
+        }
+        // An interval set by the application while handling the request takes precedence over the policy.
+        return !session.isMaxInactiveIntervalSet();
+    }
+
+    protected void applyTimeoutPolicy(CouchbaseSession session) {
+        if (timeoutPolicy == null) {
+            return;
+        }
+        Duration interval = timeoutPolicy.getMaxInactiveInterval(session);
+        if (interval != null && !interval.equals(session.getMaxInactiveInterval())) {
+            session.applyMaxInactiveInterval(interval);
+            log.debug("Maximum inactive interval of HTTP session with ID {} has been set to {}", session.getId(), interval);
+        }
+    }
+
+    protected CompletableFuture<Void> savePrincipalSession(CouchbaseSession session) {
         String principal = session.getPrincipalAttribute();
-        if (dao.exists(principal)) {
-            dao.updatePutPrincipalSession(principal, session.getId());
-        } else {
+        String sessionId = session.getId();
+        // The write follows on another thread, which must share the time budget and the operation account of the
+        // request.
+        Function<Boolean, CompletableFuture<Void>> write = exists -> {
+            if (exists) {
+                return asyncDao.updatePutPrincipalSession(principal, sessionId);
+            }
             List<String> sessionIds = new ArrayList<>(1);
-            sessionIds.add(session.getId());
+            sessionIds.add(sessionId);
             PrincipalSessionsDocument sessionsDocument = new PrincipalSessionsDocument(principal, sessionIds);
-            dao.save(sessionsDocument);
+            return asyncDao.save(sessionsDocument);
+        };
+        write = CouchbaseDeadline.boundTo(CouchbaseDeadline.current(), write);
+        write = SessionOperationAccount.boundTo(SessionOperationAccount.current(), write);
+        return asyncDao.exists(principal).thenComposeAsync(write, continuationExecutor);
+    }
+
+    /**
+     * Tells whether the global and the application namespace attributes can be written at the same time. Concurrent
+     * N1QL updates of a single document conflict, so this holds only for split documents or CAS merges.
+     */
+    protected boolean areNamespaceWritesIndependent() {
+        SessionCouchbaseProperties.Persistent persistent = sessionCouchbase.getPersistent();
+        return persistent.getDocumentLayout() == DocumentLayout.SPLIT || persistent.getSaveMode() == SaveMode.CAS;
+    }
+
+    protected void trackExpiration(CouchbaseSession session) {
+        if (expirationIndex == null) {
+            return;
+        }
+        if (session.getMaxInactiveInterval().isNegative()) {
+            // Sessions with a negative interval never expire.
+            expirationIndex.untrack(session.getId());
+            return;
+        }
+        String principal = sessionCouchbase.getPrincipalSessions().isEnabled() ? session.getPrincipalAttribute() : null;
+        expirationIndex.track(session.getId(), principal, session.getLastAccessedTime().getEpochSecond(), session.getMaxInactiveInterval().getSeconds());
+    }
+
+    protected void retrackExpiration(SessionExpirationIndex.Entry entry) {
+        expirationIndex.track(entry.getId(), entry.getPrincipal(), entry.getLastAccessedTime(), entry.getMaxInactiveInterval());
+    }
+
+    /**
+     * Checks the stored session of an expired index entry and deletes it when it has expired in the store too. Missing
+     * sessions have been deleted already, by logout, on another node or by Couchbase expiry, and get no events. Active
+     * sessions are tracked again with their stored last accessed time.
+     */
+    protected StoredSessionState getStoredSessionState(SessionExpirationIndex.Entry entry, long now) {
+        SessionNamespacesDocument document = dao.findNamespaces(entry.getId(), GLOBAL_NAMESPACE);
+        JsonObject global = document == null ? null : document.getNamespace(GLOBAL_NAMESPACE);
+        if (global == null) {
+            return StoredSessionState.MISSING;
+        }
+        Long lastAccessedTime = global.getLong(CouchbaseSession.LAST_ACCESSED_TIME_ATTRIBUTE);
+        Long maxInactiveInterval = global.getLong(CouchbaseSession.MAX_INACTIVE_INTERVAL_ATTRIBUTE);
+        long tolerance = getLastAccessedTimeTolerance().getSeconds();
+        if (lastAccessedTime == null || maxInactiveInterval == null || maxInactiveInterval < 0) {
+            return StoredSessionState.ACTIVE;
         }
-        log.debug("Principals {} session with ID {} has been added", principal, session.getId());
-        session.unsetPrincipalSessionsUpdateRequired();
+        if (lastAccessedTime + maxInactiveInterval + tolerance > now) {
+            // The stored time may lag behind by the tolerance, the session is checked again once that has passed too.
+            expirationIndex.track(entry.getId(), entry.getPrincipal(), lastAccessedTime + tolerance, maxInactiveInterval);
+            return StoredSessionState.ACTIVE;
+        }
+        dao.delete(entry.getId());
+        return StoredSessionState.EXPIRED;
+    }
+
+    protected Session toExpiredSession(SessionExpirationIndex.Entry entry) {
+        MapSession session = new MapSession(entry.getId());
+        session.setLastAccessedTime(ofEpochSecond(entry.getLastAccessedTime()));
+        session.setMaxInactiveInterval(ofSeconds(entry.getMaxInactiveInterval()));
+        return session;
     }
 
     protected void deleteSession(CouchbaseSession session) {
-        if (isOperationOnPrincipalSessionsRequired(session)) {
-            dao.updateRemovePrincipalSession(session.getPrincipalAttribute(), session.getId());
+        List<CompletableFuture<Void>> deletes = new ArrayList<>(2);
+        boolean principalSessionRemoved = isOperationOnPrincipalSessionsRequired(session);
+        if (principalSessionRemoved) {
+            deletes.add(asyncDao.updateRemovePrincipalSession(session.getPrincipalAttribute(), session.getId()));
+        }
+        deletes.add(asyncDao.delete(session.getId()));
+        session.getExternalizedAttributeKeys().values().forEach(key -> deletes.add(asyncDao.delete(key)));
+        joinAll(deletes);
+        if (principalSessionRemoved) {
             log.debug("Principals {} session with ID {} has been removed", session.getPrincipalAttribute(), session.getId());
         }
-        dao.delete(session.getId());
+        if (expirationIndex != null) {
+            expirationIndex.untrack(session.getId());
+        }
         log.debug("HTTP session with ID {} has been deleted", session.getId());
     }
 
     protected boolean isOperationOnPrincipalSessionsRequired(CouchbaseSession session) {
         return sessionCouchbase.getPrincipalSessions().isEnabled() && session.isPrincipalSessionsUpdateRequired();
     }
+
+    protected enum StoredSessionState {
+        ACTIVE, EXPIRED, MISSING
+    }
 }
@@ -0,0 +1,141 @@
+package io.github.rusyasoft.session.data.couchbase.core;
+
+import com.couchbase.client.java.document.json.JsonObject;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.util.ClassUtils;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Bounded per-node cache of parsed HTTP session attribute values keyed by a SHA-256 hash of their serialized JSON, so
+ * that loading an unchanged attribute skips parsing its JSON. Every read binds a new instance from the cached token
+ * tree, so requests never share values, mutable ones like the authentication of a security context included. Only
+ * attributes opted in by name or by type are cached. When the cache is full the least recently used entry is evicted.
+ */
+public class DeserializedValueCache {
+
+    protected static final String TYPE_PROPERTY = "@class";
+    protected static final int CACHEABLE_TYPES_CACHE_SIZE = 1024;
+
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(DeserializedValueCache::sha256);
+
+    protected final int maximumSize;
+    protected final Set<String> attributeNames;
+    protected final Set<Class<?>> types = new HashSet<>();
+    protected final Map<String, JsonNode> trees;
+    protected final ConcurrentMap<String, Boolean> cacheableTypeNames = new ConcurrentHashMap<>();
+    protected TypeIdRegistry typeIdRegistry;
+
+    public DeserializedValueCache(int maximumSize, Collection<String> attributeNames, Collection<String> typeNames) {
+        this.maximumSize = maximumSize;
+        this.attributeNames = new HashSet<>(attributeNames);
+        this.trees = new LinkedHashMap<String, JsonNode>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, JsonNode> eldest) {
+                return size() > maximumSize;
+            }
+        };
+        ClassLoader classLoader = ClassUtils.getDefaultClassLoader();
+        typeNames.stream()
+                .filter(typeName -> ClassUtils.isPresent(typeName, classLoader))
+                .forEach(typeName -> types.add(ClassUtils.resolveClassName(typeName, classLoader)));
+    }
+
+    /**
+     * Sets the registry resolving short type IDs written instead of class names.
+     */
+    public void setTypeIdRegistry(TypeIdRegistry typeIdRegistry) {
+        this.typeIdRegistry = typeIdRegistry;
+    }
+
+    /**
+     * Tells whether the given serialized attribute is opted in, either by its name or by the type recorded in its JSON.
+     */
+    public boolean isCacheable(String attributeName, Object serializedValue) {
+        if (attributeNames.contains(attributeName)) {
+            return true;
+        }
+        if (types.isEmpty() || !(serializedValue instanceof JsonObject)) {
+            return false;
+        }
+        String typeName = ((JsonObject) serializedValue).getString(TYPE_PROPERTY);
+        return typeName != null && isCacheableType(typeName);
+    }
+
+    /**
+     * Deserializes the given value from its cached token tree, which is parsed and cached first when missing.
+     */
+    public Object deserialize(String serializedValue, ObjectMapper objectMapper) throws IOException {
+        String key = hash(serializedValue);
+        JsonNode tree;
+        synchronized (trees) {
+            tree = trees.get(key);
+        }
+        if (tree == null) {
+            tree = objectMapper.readTree(serializedValue);
+            synchronized (trees) {
+                trees.put(key, tree);
+            }
+        }
+        return objectMapper.treeToValue(tree, Object.class);
+    }
+
+    public int size() {
+        synchronized (trees) {
+            return trees.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (trees) {
+            trees.clear();
+        }
+    }
+
+    protected boolean isCacheableType(String typeName) {
+        Boolean cacheable = cacheableTypeNames.get(typeName);
+        if (cacheable == null) {
+            cacheable = resolveCacheable(typeName);
+            if (cacheableTypeNames.size() < CACHEABLE_TYPES_CACHE_SIZE) {
+                cacheableTypeNames.putIfAbsent(typeName, cacheable);
+            }
+        }
+        return cacheable;
+    }
+
+    protected boolean resolveCacheable(String typeId) {
+        String typeName = typeIdRegistry == null ? typeId : typeIdRegistry.getClassName(typeId);
+        ClassLoader classLoader = ClassUtils.getDefaultClassLoader();
+        if (!ClassUtils.isPresent(typeName, classLoader)) {
+            return false;
+        }
+        Class<?> type = ClassUtils.resolveClassName(typeName, classLoader);
+        return types.stream().anyMatch(cacheableType -> cacheableType.isAssignableFrom(type));
+    }
+
+    protected static String hash(String serializedValue) {
+        return Base64.getEncoder().encodeToString(SHA_256.get().digest(serializedValue.getBytes(UTF_8)));
+    }
+
+    protected static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+}
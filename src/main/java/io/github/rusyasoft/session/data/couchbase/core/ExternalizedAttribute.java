@@ -0,0 +1,25 @@
+package io.github.rusyasoft.session.data.couchbase.core;
+
+/**
+ * Stands in for an HTTP session attribute stored in a separate document until the attribute is read.
+ */
+public class ExternalizedAttribute {
+
+    protected final String key;
+
+    public ExternalizedAttribute(String key) {
+        this.key = key;
+    }
+
+    /**
+     * Returns the key of the document holding the serialized attribute.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    @Override
+    public String toString() {
+        return "ExternalizedAttribute{key='" + key + "'}";
+    }
+}
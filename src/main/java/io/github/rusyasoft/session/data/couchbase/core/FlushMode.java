@@ -0,0 +1,16 @@
+package io.github.rusyasoft.session.data.couchbase.core;
+
+/**
+ * Moment HTTP session changes are written to Couchbase.
+ */
+public enum FlushMode {
+
+    /**
+     * Changes are written when the session repository saves the session, usually once at the end of the HTTP request.
+     */
+    ON_SAVE,
+    /**
+     * Changes are written as soon as an attribute is set or removed or the maximum inactive interval is changed.
+     */
+    IMMEDIATE
+}
@@ -16,13 +16,33 @@ import static org.springframework.util.ClassUtils.isPrimitiveOrWrapper;
 public class JsonSerializer {
 
     protected static final String SERIALIZED_OBJECT_PREFIX = "_$object=";
+    public static final String EXTERNALIZED_ATTRIBUTE_PREFIX = "_$externalized=";
 
     private static final Logger LOGGER = getLogger(JsonSerializer.class);
 
     @Autowired
     public CouchbaseJsonSerializer<Object> rustamSerializer;
 
+    protected DeserializedValueCache deserializedValueCache;
+    protected SessionSizeProfiler sizeProfiler;
+
+    public void setDeserializedValueCache(DeserializedValueCache deserializedValueCache) {
+        this.deserializedValueCache = deserializedValueCache;
+    }
+
+    public void setSizeProfiler(SessionSizeProfiler sizeProfiler) {
+        this.sizeProfiler = sizeProfiler;
+    }
+
     public Map<String, Object> serializeSessionAttributes(Map<String, Object> attributes) {
+        return serializeSessionAttributes(attributes, null);
+    }
+
+    /**
+     * Serializes attributes of the given HTTP session namespace. Sizes of the serialized values are reported to the size
+     * profiler, if set, which rejects values above its maximum size.
+     */
+    public Map<String, Object> serializeSessionAttributes(Map<String, Object> attributes, String namespace) {
         if (attributes == null) {
             return null;
         }
@@ -36,6 +56,9 @@ public class JsonSerializer {
             } catch (JsonProcessingException e) {
                 LOGGER.error("json serializeSessionAttributes: " + e.getMessage() + " e: " + e.toString()) ;;
             }
+            if (sizeProfiler != null && attributeValue != null) {
+                sizeProfiler.record(namespace, name, attributeValue.toString().length());
+            }
             serialized.put(name, attributeValue);
         });
 
@@ -53,8 +76,9 @@ public class JsonSerializer {
             Object [] nameObjects = attributes.getNames().toArray();
             if (nameObjects != null) {
                 for (int i = 0; i < nameObjects.length; i++) {
-                    Object obj = rustamSerializer.getObjectMapper().readValue(attributes.get(nameObjects[i].toString()).toString(), Object.class);
-                    deserialized.put(nameObjects[i].toString(), obj);
+                    String name = nameObjects[i].toString();
+                    Object obj = deserializeAttribute(name, attributes.get(name));
+                    deserialized.put(name, obj);
                 }
             }
         } catch (IOException e) {
@@ -66,6 +90,51 @@ public class JsonSerializer {
         return deserialized;
     }
 
+    /**
+     * Deserializes a single attribute value, returning {@code null} when it cannot be read.
+     */
+    public Object deserializeSessionAttribute(String name, Object serializedValue) {
+        if (serializedValue == null) {
+            return null;
+        }
+        try {
+            return deserializeAttribute(name, serializedValue);
+        } catch (IOException e) {
+            LOGGER.error("Error deserializing HTTP session attribute '" + name + "': " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the serialized reference to an attribute stored in the document with the given key.
+     */
+    public String serializeExternalizedAttributeReference(String key) {
+        return "\"" + EXTERNALIZED_ATTRIBUTE_PREFIX + key + "\"";
+    }
+
+    /**
+     * Returns the key of the document holding the externalized attribute the given serialized value refers to, or
+     * {@code null} when the value is stored inline.
+     */
+    public String getExternalizedAttributeKey(Object serializedValue) {
+        if (serializedValue instanceof String && startsWith((String) serializedValue, EXTERNALIZED_ATTRIBUTE_PREFIX)) {
+            return ((String) serializedValue).substring(EXTERNALIZED_ATTRIBUTE_PREFIX.length());
+        }
+        return null;
+    }
+
+    protected Object deserializeAttribute(String name, Object serializedValue) throws IOException {
+        String externalizedAttributeKey = getExternalizedAttributeKey(serializedValue);
+        if (externalizedAttributeKey != null) {
+            return new ExternalizedAttribute(externalizedAttributeKey);
+        }
+        String json = serializedValue.toString();
+        if (deserializedValueCache == null || !deserializedValueCache.isCacheable(name, serializedValue)) {
+            return rustamSerializer.getObjectMapper().readValue(json, Object.class);
+        }
+        return deserializedValueCache.deserialize(json, rustamSerializer.getObjectMapper());
+    }
+
     protected boolean isDeserializedObject(Object attributeValue) {
         return attributeValue != null && !isPrimitiveOrWrapper(attributeValue.getClass()) && !(attributeValue instanceof String);
     }
@@ -0,0 +1,52 @@
+package io.github.rusyasoft.session.data.couchbase.core;
+
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContext;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static java.util.stream.Collectors.toSet;
+
+/**
+ * Chooses the maximum inactive interval by the granted authorities of the user stored in the Spring Security context
+ * of the session. Sessions without an authenticated user get the anonymous timeout, so that they leave the bucket soon.
+ */
+public class RoleSessionTimeoutPolicy implements SessionTimeoutPolicy {
+
+    protected final Duration defaultTimeout;
+    protected final Duration anonymousTimeout;
+    protected final Map<String, Duration> roleTimeouts;
+
+    public RoleSessionTimeoutPolicy(Duration defaultTimeout, Duration anonymousTimeout, Map<String, Duration> roleTimeouts) {
+        this.defaultTimeout = defaultTimeout;
+        this.anonymousTimeout = anonymousTimeout == null ? defaultTimeout : anonymousTimeout;
+        this.roleTimeouts = new LinkedHashMap<>(roleTimeouts);
+    }
+
+    @Override
+    public Duration getMaxInactiveInterval(CouchbaseSession session) {
+        Authentication authentication = getAuthentication(session);
+        if (authentication == null || !authentication.isAuthenticated() || authentication instanceof AnonymousAuthenticationToken) {
+            return anonymousTimeout;
+        }
+        Set<String> authorities = authentication.getAuthorities().stream()
+                .map(GrantedAuthority::getAuthority)
+                .collect(toSet());
+        for (Map.Entry<String, Duration> roleTimeout : roleTimeouts.entrySet()) {
+            if (authorities.contains(roleTimeout.getKey())) {
+                return roleTimeout.getValue();
+            }
+        }
+        return defaultTimeout;
+    }
+
+    protected Authentication getAuthentication(CouchbaseSession session) {
+        Object securityContext = session.getAttribute(SECURITY_CONTEXT_ATTRIBUTE);
+        return securityContext instanceof SecurityContext ? ((SecurityContext) securityContext).getAuthentication() : null;
+    }
+}
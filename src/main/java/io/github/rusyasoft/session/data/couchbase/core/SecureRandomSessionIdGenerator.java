@@ -0,0 +1,53 @@
+package io.github.rusyasoft.session.data.couchbase.core;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import static org.springframework.util.Assert.isTrue;
+
+/**
+ * Generates base64url encoded session IDs from a configurable number of random bytes. Every thread owns its
+ * {@link SecureRandom} instance, so session creation does not contend on a single shared generator. Without an explicit
+ * algorithm the platform default generator is used, other ones like {@code SHA1PRNG} have to be opted in.
+ */
+public class SecureRandomSessionIdGenerator implements SessionIdGenerator {
+
+    public static final int DEFAULT_ENTROPY_BYTES = 16;
+    public static final String DEFAULT_ALGORITHM = null;
+    protected static final int MIN_ENTROPY_BYTES = 16;
+
+    protected final int entropyBytes;
+    protected final String algorithm;
+    protected final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+    protected final ThreadLocal<SecureRandom> random = ThreadLocal.withInitial(this::createSecureRandom);
+
+    public SecureRandomSessionIdGenerator() {
+        this(DEFAULT_ENTROPY_BYTES, DEFAULT_ALGORITHM);
+    }
+
+    public SecureRandomSessionIdGenerator(int entropyBytes, String algorithm) {
+        isTrue(entropyBytes >= MIN_ENTROPY_BYTES, "HTTP session ID entropy must be at least " + MIN_ENTROPY_BYTES + " bytes");
+        this.entropyBytes = entropyBytes;
+        this.algorithm = algorithm;
+    }
+
+    @Override
+    public String generateId() {
+        byte[] bytes = new byte[entropyBytes];
+        random.get().nextBytes(bytes);
+        return encoder.encodeToString(bytes);
+    }
+
+    protected SecureRandom createSecureRandom() {
+        SecureRandom secureRandom;
+        try {
+            secureRandom = algorithm == null ? new SecureRandom() : SecureRandom.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Secure random algorithm '" + algorithm + "' is not available", e);
+        }
+        // Forces self-seeding from the system entropy source before the first ID is generated.
+        secureRandom.nextInt();
+        return secureRandom;
+    }
+}
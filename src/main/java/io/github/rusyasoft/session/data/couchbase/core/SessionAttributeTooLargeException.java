@@ -0,0 +1,11 @@
+package io.github.rusyasoft.session.data.couchbase.core;
+
+/**
+ * Thrown when a serialized HTTP session attribute exceeds the configured maximum size, so it is not written.
+ */
+public class SessionAttributeTooLargeException extends IllegalArgumentException {
+
+    public SessionAttributeTooLargeException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,138 @@
+package io.github.rusyasoft.session.data.couchbase.core;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import static org.springframework.util.Assert.isTrue;
+
+/**
+ * Local index of HTTP session expiration deadlines, ordered by deadline and grouped into fixed width buckets. Only
+ * sessions saved on this node are tracked, so expired sessions can be found without scanning the bucket.
+ */
+public class SessionExpirationIndex {
+
+    protected final long bucketWidthInSeconds;
+    protected final ConcurrentNavigableMap<Long, Set<String>> buckets = new ConcurrentSkipListMap<>();
+    protected final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public SessionExpirationIndex(long bucketWidthInSeconds) {
+        isTrue(bucketWidthInSeconds > 0, "Expiration index bucket width must be positive");
+        this.bucketWidthInSeconds = bucketWidthInSeconds;
+    }
+
+    public void track(String id, String principal, long lastAccessedTime, long maxInactiveInterval) {
+        Entry entry = new Entry(id, principal, lastAccessedTime, maxInactiveInterval);
+        Entry previous = entries.put(id, entry);
+        long bucket = bucketOf(entry.getDeadline());
+        if (previous != null) {
+            long previousBucket = bucketOf(previous.getDeadline());
+            if (previousBucket == bucket) {
+                return;
+            }
+            removeFromBucket(previousBucket, id);
+        }
+        addToBucket(bucket, id);
+    }
+
+    public void untrack(String id) {
+        Entry entry = entries.remove(id);
+        if (entry != null) {
+            removeFromBucket(bucketOf(entry.getDeadline()), id);
+        }
+    }
+
+    /**
+     * Removes and returns up to {@code maxEntries} sessions whose deadline has passed. Only buckets that end before
+     * {@code now} are drained, so a session is reported at most one bucket width after its deadline.
+     */
+    public List<Entry> pollExpired(long now, int maxEntries) {
+        List<Entry> expired = new ArrayList<>();
+        ConcurrentNavigableMap<Long, Set<String>> dueBuckets = buckets.headMap(bucketOf(now));
+        for (Map.Entry<Long, Set<String>> bucket : dueBuckets.entrySet()) {
+            Iterator<String> ids = bucket.getValue().iterator();
+            while (ids.hasNext() && expired.size() < maxEntries) {
+                String id = ids.next();
+                ids.remove();
+                Entry entry = entries.get(id);
+                if (entry != null && entry.getDeadline() <= now && entries.remove(id, entry)) {
+                    expired.add(entry);
+                }
+            }
+            if (bucket.getValue().isEmpty()) {
+                buckets.remove(bucket.getKey(), bucket.getValue());
+            }
+            if (expired.size() >= maxEntries) {
+                break;
+            }
+        }
+        return expired;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    protected void addToBucket(long bucket, String id) {
+        while (true) {
+            Set<String> ids = buckets.computeIfAbsent(bucket, key -> ConcurrentHashMap.newKeySet());
+            ids.add(id);
+            // The bucket may have been drained and removed concurrently, in which case the ID is added to a fresh one.
+            if (buckets.get(bucket) == ids) {
+                return;
+            }
+        }
+    }
+
+    protected void removeFromBucket(long bucket, String id) {
+        Set<String> ids = buckets.get(bucket);
+        if (ids != null) {
+            ids.remove(id);
+        }
+    }
+
+    protected long bucketOf(long epochSecond) {
+        return Math.floorDiv(epochSecond, bucketWidthInSeconds);
+    }
+
+    public static class Entry {
+
+        protected final String id;
+        protected final String principal;
+        protected final long lastAccessedTime;
+        protected final long maxInactiveInterval;
+
+        public Entry(String id, String principal, long lastAccessedTime, long maxInactiveInterval) {
+            this.id = id;
+            this.principal = principal;
+            this.lastAccessedTime = lastAccessedTime;
+            this.maxInactiveInterval = maxInactiveInterval;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getPrincipal() {
+            return principal;
+        }
+
+        public long getLastAccessedTime() {
+            return lastAccessedTime;
+        }
+
+        public long getMaxInactiveInterval() {
+            return maxInactiveInterval;
+        }
+
+        public long getDeadline() {
+            return lastAccessedTime + maxInactiveInterval;
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package io.github.rusyasoft.session.data.couchbase.core;
+
+/**
+ * Strategy for generating new HTTP session IDs. Implementations must be thread safe and produce IDs that cannot be
+ * guessed.
+ */
+public interface SessionIdGenerator {
+
+    String generateId();
+}
@@ -0,0 +1,164 @@
+package io.github.rusyasoft.session.data.couchbase.core;
+
+import org.slf4j.Logger;
+
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.stream.Collectors.toList;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Collects serialized sizes of written HTTP session attributes per namespace and attribute name. Every write is counted
+ * and checked against the size limits, while size distributions are built from a sample of writes only. Sizes are
+ * measured in characters of the serialized JSON.
+ */
+public class SessionSizeProfiler {
+
+    protected static final String UNKNOWN_NAMESPACE = "unknown";
+    protected static final String OTHER_ATTRIBUTES = "(other)";
+    protected static final int MAX_ATTRIBUTES_PER_NAMESPACE = 1000;
+    protected static final long[] HISTOGRAM_BOUNDS = {1 << 10, 4 << 10, 16 << 10, 64 << 10, 256 << 10, Long.MAX_VALUE};
+    protected static final String[] HISTOGRAM_LABELS = {"<=1K", "<=4K", "<=16K", "<=64K", "<=256K", ">256K"};
+
+    private static final Logger log = getLogger(SessionSizeProfiler.class);
+
+    protected final double sampleRate;
+    protected final long warnSize;
+    protected final long maxSize;
+    protected final int topOffenders;
+    protected final ConcurrentMap<String, ConcurrentMap<String, AttributeStats>> statsByNamespace = new ConcurrentHashMap<>();
+
+    /**
+     * @param sampleRate share of writes whose size is added to the distributions, from 0 to 1
+     * @param warnSize   size above which a warning is logged, 0 disables the warning
+     * @param maxSize    size above which the attribute is rejected, 0 disables the limit
+     */
+    public SessionSizeProfiler(double sampleRate, long warnSize, long maxSize, int topOffenders) {
+        this.sampleRate = sampleRate;
+        this.warnSize = warnSize;
+        this.maxSize = maxSize;
+        this.topOffenders = topOffenders;
+    }
+
+    /**
+     * Records a write of a serialized attribute.
+     *
+     * @throws SessionAttributeTooLargeException when the attribute exceeds the maximum size
+     */
+    public void record(String namespace, String attributeName, int size) {
+        String namespaceName = namespace == null ? UNKNOWN_NAMESPACE : namespace;
+        AttributeStats stats = getStats(namespaceName, attributeName);
+        stats.record(size, sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate);
+        if (maxSize > 0 && size > maxSize) {
+            stats.rejections.increment();
+            throw new SessionAttributeTooLargeException("HTTP session attribute '" + attributeName + "' in namespace '" + namespaceName
+                    + "' has " + size + " characters serialized, which exceeds the limit of " + maxSize);
+        }
+        if (warnSize > 0 && size > warnSize) {
+            log.warn("HTTP session attribute '{}' in namespace '{}' has {} characters serialized, which exceeds the warning limit of {}",
+                    attributeName, namespaceName, size, warnSize);
+        }
+    }
+
+    public Map<String, Object> getReport() {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("sampleRate", sampleRate);
+        report.put("warnSize", warnSize);
+        report.put("maxSize", maxSize);
+        Map<String, Object> namespaces = new LinkedHashMap<>();
+        statsByNamespace.forEach((namespace, statsByName) -> {
+            Map<String, Object> attributes = new LinkedHashMap<>();
+            statsByName.forEach((name, stats) -> attributes.put(name, stats.toReport()));
+            List<Map<String, Object>> offenders = statsByName.entrySet().stream()
+                    .sorted(Comparator.comparingLong((Map.Entry<String, AttributeStats> entry) -> entry.getValue().maxSize.get()).reversed())
+                    .limit(topOffenders)
+                    .map(entry -> {
+                        Map<String, Object> offender = new LinkedHashMap<>();
+                        offender.put("name", entry.getKey());
+                        offender.put("maxSize", entry.getValue().maxSize.get());
+                        offender.put("meanSize", entry.getValue().getMeanSize());
+                        offender.put("writes", entry.getValue().writes.sum());
+                        return offender;
+                    })
+                    .collect(toList());
+            Map<String, Object> namespaceReport = new LinkedHashMap<>();
+            namespaceReport.put("topOffenders", offenders);
+            namespaceReport.put("attributes", attributes);
+            namespaces.put(namespace, namespaceReport);
+        });
+        report.put("namespaces", namespaces);
+        return report;
+    }
+
+    public void reset() {
+        statsByNamespace.clear();
+    }
+
+    protected AttributeStats getStats(String namespace, String attributeName) {
+        ConcurrentMap<String, AttributeStats> statsByName = statsByNamespace.computeIfAbsent(namespace, name -> new ConcurrentHashMap<>());
+        AttributeStats stats = statsByName.get(attributeName);
+        if (stats != null) {
+            return stats;
+        }
+        // Attribute names are bounded, so that generated names cannot make the statistics grow without limit.
+        String name = statsByName.size() < MAX_ATTRIBUTES_PER_NAMESPACE ? attributeName : OTHER_ATTRIBUTES;
+        return statsByName.computeIfAbsent(name, key -> new AttributeStats());
+    }
+
+    protected static class AttributeStats {
+
+        protected final LongAdder writes = new LongAdder();
+        protected final LongAdder rejections = new LongAdder();
+        protected final LongAdder samples = new LongAdder();
+        protected final LongAdder sampledSize = new LongAdder();
+        protected final AtomicLong maxSize = new AtomicLong();
+        protected final AtomicLongArray histogram = new AtomicLongArray(HISTOGRAM_BOUNDS.length);
+
+        protected void record(int size, boolean sampled) {
+            writes.increment();
+            if (size > maxSize.get()) {
+                maxSize.accumulateAndGet(size, Math::max);
+            }
+            if (!sampled) {
+                return;
+            }
+            samples.increment();
+            sampledSize.add(size);
+            for (int i = 0; i < HISTOGRAM_BOUNDS.length; i++) {
+                if (size <= HISTOGRAM_BOUNDS[i]) {
+                    histogram.incrementAndGet(i);
+                    break;
+                }
+            }
+        }
+
+        protected long getMeanSize() {
+            long sampleCount = samples.sum();
+            return sampleCount == 0 ? 0 : sampledSize.sum() / sampleCount;
+        }
+
+        protected Map<String, Object> toReport() {
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("writes", writes.sum());
+            report.put("rejections", rejections.sum());
+            report.put("samples", samples.sum());
+            report.put("meanSize", getMeanSize());
+            report.put("maxSize", maxSize.get());
+            Map<String, Long> buckets = new LinkedHashMap<>();
+            for (int i = 0; i < HISTOGRAM_BOUNDS.length; i++) {
+                buckets.put(HISTOGRAM_LABELS[i], histogram.get(i));
+            }
+            report.put("distribution", buckets);
+            return report;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package io.github.rusyasoft.session.data.couchbase.core;
+
+import java.time.Duration;
+
+import static org.springframework.session.FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME;
+
+/**
+ * Chooses the maximum inactive interval of an HTTP session, for example by the roles of its user or by the kind of
+ * request which created it. The session document expires according to the chosen interval.
+ */
+public interface SessionTimeoutPolicy {
+
+    String SECURITY_CONTEXT_ATTRIBUTE = "SPRING_SECURITY_CONTEXT";
+
+    /**
+     * Returns the maximum inactive interval of the session, {@code null} to keep the current one.
+     */
+    Duration getMaxInactiveInterval(CouchbaseSession session);
+
+    /**
+     * Tells whether the interval has to be chosen again before the session is saved. By default it is chosen again
+     * when the user of the session changes, on log in and log out.
+     */
+    default boolean isReevaluationRequired(CouchbaseSession session) {
+        return isChanged(session, SECURITY_CONTEXT_ATTRIBUTE) || isChanged(session, PRINCIPAL_NAME_INDEX_NAME);
+    }
+
+    static boolean isChanged(CouchbaseSession session, String attributeName) {
+        return session.getNamespaceAttributesToUpdate().containsKey(attributeName)
+                || session.getNamespaceAttributesToRemove().contains(attributeName)
+                || session.getGlobalAttributesToUpdate().containsKey(attributeName)
+                || session.getGlobalAttributesToRemove().contains(attributeName);
+    }
+}
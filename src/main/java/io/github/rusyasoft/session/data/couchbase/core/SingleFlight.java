@@ -0,0 +1,77 @@
+package io.github.rusyasoft.session.data.couchbase.core;
+
+import io.github.rusyasoft.session.data.couchbase.data.CouchbaseDeadline;
+import io.github.rusyasoft.session.data.couchbase.data.DeadlineExceededException;
+import io.github.rusyasoft.session.data.couchbase.data.SessionStoreUnavailableException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Coalesces concurrent loads of the same key, so that only the first caller executes the load and the others wait for
+ * its result. A key is forgotten as soon as its load completes, so results are never cached. Waiting callers give up
+ * with {@link DeadlineExceededException} once their own {@link CouchbaseDeadline} is exhausted, whatever the budget of
+ * the caller executing the load.
+ */
+public class SingleFlight<K, V> {
+
+    protected final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    public V execute(K key, Supplier<V> loader) {
+        CompletableFuture<V> load = new CompletableFuture<>();
+        CompletableFuture<V> existingLoad = inFlight.putIfAbsent(key, load);
+        if (existingLoad != null) {
+            return await(existingLoad);
+        }
+        try {
+            V value = loader.get();
+            load.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, load);
+        }
+    }
+
+    protected V await(CompletableFuture<V> load) {
+        CouchbaseDeadline deadline = CouchbaseDeadline.current();
+        if (deadline == null) {
+            return join(load);
+        }
+        try {
+            return load.get(Math.max(0, deadline.getRemainingNanos()), NANOSECONDS);
+        } catch (TimeoutException e) {
+            throw new DeadlineExceededException("Couchbase time budget of " + deadline.getBudget().toMillis()
+                    + " ms has been exhausted while waiting for a concurrent load");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SessionStoreUnavailableException("Interrupted while waiting for a concurrent load", e);
+        } catch (ExecutionException e) {
+            return join(load);
+        }
+    }
+
+    protected V join(CompletableFuture<V> load) {
+        try {
+            return load.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package io.github.rusyasoft.session.data.couchbase.core;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.springframework.util.Assert.hasText;
+import static org.springframework.util.Assert.isTrue;
+
+/**
+ * Maps classes of polymorphic HTTP session attribute values to short stable type IDs written instead of fully qualified
+ * class names. IDs cannot contain dots, so they never clash with class names, and unknown IDs are resolved as class
+ * names, which keeps documents written without the registry readable. IDs end up in stored documents, so an ID must
+ * never be reassigned to another class. Registering a class allows reading it, like the allowlist of the Spring Security
+ * Jackson modules does.
+ */
+public class TypeIdRegistry {
+
+    protected final Map<String, String> classNamesById;
+    protected final Map<String, String> idsByClassName;
+
+    public TypeIdRegistry(Map<String, String> classNamesById) {
+        this.classNamesById = new HashMap<>(classNamesById.size());
+        this.idsByClassName = new HashMap<>(classNamesById.size());
+        classNamesById.forEach((id, className) -> {
+            hasText(id, "Empty type ID");
+            hasText(className, "Empty class name of type ID '" + id + "'");
+            isTrue(id.indexOf('.') < 0, "Type ID '" + id + "' must not contain dots");
+            isTrue(!idsByClassName.containsKey(className), "Class " + className + " has more than one type ID");
+            this.classNamesById.put(id, className);
+            this.idsByClassName.put(className, id);
+        });
+    }
+
+    public String getId(String className) {
+        return idsByClassName.getOrDefault(className, className);
+    }
+
+    public String getClassName(String id) {
+        return classNamesById.getOrDefault(id, id);
+    }
+
+    /**
+     * Tells whether the class has a type ID, which also allows reading it.
+     */
+    public boolean containsClassName(String className) {
+        return idsByClassName.containsKey(className);
+    }
+}
@@ -0,0 +1,151 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import static java.lang.System.nanoTime;
+
+/**
+ * Records every session store operation in the account of the current HTTP request, if any, and in totals per
+ * operation type kept for metrics. Asynchronous operations are recorded when they complete and keep running
+ * concurrently.
+ */
+public class AccountingSessionDao extends DelegatingSessionDao {
+
+    protected final ConcurrentMap<String, OperationTotals> totals = new ConcurrentHashMap<>();
+
+    public AccountingSessionDao(SessionDao delegate) {
+        super(delegate);
+    }
+
+    @Override
+    protected <T> T invoke(String operation, Supplier<T> call) {
+        SessionOperationAccount account = SessionOperationAccount.current();
+        long start = nanoTime();
+        try {
+            return call.get();
+        } finally {
+            record(account, operation, nanoTime() - start);
+        }
+    }
+
+    @Override
+    protected AsyncSessionDao decorateAsync(AsyncSessionDao delegateAsync) {
+        return new AccountingAsyncSessionDao(delegateAsync);
+    }
+
+    /**
+     * Returns totals of operations recorded since startup by operation type.
+     */
+    public Map<String, OperationTotals> getTotals() {
+        return totals;
+    }
+
+    public OperationTotals getTotals(String operation) {
+        return totals.computeIfAbsent(operation, name -> new OperationTotals());
+    }
+
+    protected void record(SessionOperationAccount account, String operation, long timeInNanos) {
+        if (account != null) {
+            account.record(operation, timeInNanos);
+        }
+        getTotals(operation).record(timeInNanos);
+    }
+
+    protected <T> CompletableFuture<T> invokeAsync(String operation, Supplier<CompletableFuture<T>> call) {
+        SessionOperationAccount account = SessionOperationAccount.current();
+        long start = nanoTime();
+        CompletableFuture<T> future;
+        try {
+            future = call.get();
+        } catch (RuntimeException e) {
+            record(account, operation, nanoTime() - start);
+            throw e;
+        }
+        return future.whenComplete((result, error) -> record(account, operation, nanoTime() - start));
+    }
+
+    public static class OperationTotals {
+
+        protected final LongAdder count = new LongAdder();
+        protected final LongAdder timeInNanos = new LongAdder();
+
+        protected void record(long time) {
+            count.increment();
+            timeInNanos.add(time);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public double getTimeInNanos() {
+            return timeInNanos.sum();
+        }
+    }
+
+    protected class AccountingAsyncSessionDao implements AsyncSessionDao {
+
+        protected final AsyncSessionDao delegate;
+
+        protected AccountingAsyncSessionDao(AsyncSessionDao delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public CompletableFuture<Void> updateSession(Map<String, Object> attributesToUpdate, Set<String> attributesToRemove, String namespace, String id) {
+            return invokeAsync("updateSession", () -> delegate.updateSession(attributesToUpdate, attributesToRemove, namespace, id));
+        }
+
+        @Override
+        public CompletableFuture<Void> updatePutPrincipalSession(String principal, String sessionId) {
+            return invokeAsync("updatePutPrincipalSession", () -> delegate.updatePutPrincipalSession(principal, sessionId));
+        }
+
+        @Override
+        public CompletableFuture<Void> updateRemovePrincipalSession(String principal, String sessionId) {
+            return invokeAsync("updateRemovePrincipalSession", () -> delegate.updateRemovePrincipalSession(principal, sessionId));
+        }
+
+        @Override
+        public CompletableFuture<Void> updateRemovePrincipalSessions(String principal, Collection<String> sessionIds) {
+            return invokeAsync("updateRemovePrincipalSessions", () -> delegate.updateRemovePrincipalSessions(principal, sessionIds));
+        }
+
+        @Override
+        public CompletableFuture<Void> updateExpirationTime(String id, int expiry) {
+            return invokeAsync("updateExpirationTime", () -> delegate.updateExpirationTime(id, expiry));
+        }
+
+        @Override
+        public CompletableFuture<Void> save(SessionDocument document, int expiry) {
+            return invokeAsync("saveSession", () -> delegate.save(document, expiry));
+        }
+
+        @Override
+        public CompletableFuture<Void> save(PrincipalSessionsDocument document) {
+            return invokeAsync("savePrincipalSessions", () -> delegate.save(document));
+        }
+
+        @Override
+        public CompletableFuture<Boolean> exists(String documentId) {
+            return invokeAsync("exists", () -> delegate.exists(documentId));
+        }
+
+        @Override
+        public CompletableFuture<Void> delete(String id) {
+            return invokeAsync("delete", () -> delegate.delete(id));
+        }
+
+        @Override
+        public CompletableFuture<Void> deleteSessions(Collection<String> ids) {
+            return invokeAsync("deleteSessions", () -> delegate.deleteSessions(ids));
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+import org.springframework.retry.RetryCallback;
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.RetryListener;
+import org.springframework.retry.RetryPolicy;
+import org.springframework.retry.backoff.BackOffContext;
+import org.springframework.retry.backoff.BackOffPolicy;
+import org.springframework.retry.backoff.SleepingBackOffPolicy;
+import rx.Observable;
+import rx.functions.Func1;
+
+import java.util.List;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Retries a single asynchronous Couchbase operation following the retry policy, back off policy and listeners of a
+ * {@link CouchbaseRetryTemplate}, so that it is retried like the blocking operations. Delays are computed by the back off
+ * policy but waited for on timers, not on sleeping threads, so back off policies which do not sleep through a sleeper
+ * retry right away. The deadline of the operation is bound while the policies are consulted and delays are cut short to
+ * its remaining budget. A new handler must be used for every operation and closed once the operation has completed.
+ */
+public class AsyncRetryHandler implements Func1<Observable<? extends Throwable>, Observable<?>> {
+
+    /**
+     * Stands in for the operation in listener callbacks, asynchronous operations cannot be run by listeners.
+     */
+    protected static final RetryCallback<Object, RuntimeException> ASYNC_OPERATION = context -> {
+        throw new UnsupportedOperationException("Asynchronous Couchbase operations are retried by " + AsyncRetryHandler.class.getSimpleName());
+    };
+
+    protected final RetryPolicy retryPolicy;
+    protected final BackOffPolicy backOffPolicy;
+    protected final List<RetryListener> listeners;
+    protected final CouchbaseDeadline deadline;
+    protected final RetryContext context;
+    protected final BackOffContext backOffContext;
+    protected long delay;
+
+    /**
+     * @param deadline deadline of the operation, {@code null} when it is unbounded
+     */
+    public AsyncRetryHandler(RetryPolicy retryPolicy, BackOffPolicy backOffPolicy, List<RetryListener> listeners, CouchbaseDeadline deadline) {
+        this.retryPolicy = retryPolicy;
+        this.backOffPolicy = backOffPolicy instanceof SleepingBackOffPolicy
+                ? ((SleepingBackOffPolicy<?>) backOffPolicy).withSleeper(period -> delay = period)
+                : null;
+        this.listeners = listeners;
+        this.deadline = deadline;
+        CouchbaseDeadline previousDeadline = CouchbaseDeadline.bind(deadline);
+        try {
+            context = retryPolicy.open(null);
+            for (RetryListener listener : listeners) {
+                if (!listener.open(context, ASYNC_OPERATION)) {
+                    context.setExhaustedOnly();
+                }
+            }
+            backOffContext = this.backOffPolicy == null ? null : this.backOffPolicy.start(context);
+        } finally {
+            CouchbaseDeadline.bind(previousDeadline);
+        }
+    }
+
+    @Override
+    public Observable<?> call(Observable<? extends Throwable> errors) {
+        return errors.flatMap(error -> {
+            CouchbaseDeadline previousDeadline = CouchbaseDeadline.bind(deadline);
+            try {
+                retryPolicy.registerThrowable(context, error);
+                listeners.forEach(listener -> listener.onError(context, ASYNC_OPERATION, error));
+                if (context.isExhaustedOnly() || !retryPolicy.canRetry(context)) {
+                    return Observable.<Long>error(error);
+                }
+                return Observable.timer(getDelay(), MILLISECONDS);
+            } finally {
+                CouchbaseDeadline.bind(previousDeadline);
+            }
+        });
+    }
+
+    /**
+     * Releases the retry context once the operation has completed.
+     *
+     * @param lastError error the operation has failed with, {@code null} when it has succeeded
+     */
+    public void close(Throwable lastError) {
+        CouchbaseDeadline previousDeadline = CouchbaseDeadline.bind(deadline);
+        try {
+            retryPolicy.close(context);
+            for (int i = listeners.size() - 1; i >= 0; i--) {
+                listeners.get(i).close(context, ASYNC_OPERATION, lastError);
+            }
+        } finally {
+            CouchbaseDeadline.bind(previousDeadline);
+        }
+    }
+
+    protected long getDelay() {
+        delay = 0;
+        if (backOffPolicy != null) {
+            backOffPolicy.backOff(backOffContext);
+        }
+        return deadline == null ? delay : deadline.limit(delay);
+    }
+}
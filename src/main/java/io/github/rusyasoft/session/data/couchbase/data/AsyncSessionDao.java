@@ -0,0 +1,58 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Non-blocking counterpart of the {@link SessionDao} write operations, so that independent writes of a single request
+ * can be issued together. Returned futures complete with the same exceptions the blocking operations throw.
+ */
+public interface AsyncSessionDao {
+
+    CompletableFuture<Void> updateSession(Map<String, Object> attributesToUpdate, Set<String> attributesToRemove, String namespace, String id);
+
+    CompletableFuture<Void> updatePutPrincipalSession(String principal, String sessionId);
+
+    CompletableFuture<Void> updateRemovePrincipalSession(String principal, String sessionId);
+
+    CompletableFuture<Void> updateRemovePrincipalSessions(String principal, Collection<String> sessionIds);
+
+    CompletableFuture<Void> updateExpirationTime(String id, int expiry);
+
+    CompletableFuture<Void> save(SessionDocument document, int expiry);
+
+    CompletableFuture<Void> save(PrincipalSessionsDocument document);
+
+    CompletableFuture<Boolean> exists(String documentId);
+
+    CompletableFuture<Void> delete(String id);
+
+    CompletableFuture<Void> deleteSessions(Collection<String> ids);
+
+    /**
+     * Waits for the given future and rethrows its failure as thrown by the operation, not wrapped in a {@link CompletionException}.
+     */
+    static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for all the given futures to complete and rethrows the failure of one of them, if any has failed.
+     */
+    static void joinAll(Collection<? extends CompletableFuture<?>> futures) {
+        join(CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])));
+    }
+}
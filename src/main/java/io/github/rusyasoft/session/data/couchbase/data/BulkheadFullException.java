@@ -0,0 +1,8 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+public class BulkheadFullException extends SessionStoreUnavailableException {
+
+    public BulkheadFullException(String message) {
+        super(message);
+    }
+}
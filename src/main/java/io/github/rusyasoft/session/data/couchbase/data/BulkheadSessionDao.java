@@ -0,0 +1,207 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+import io.github.rusyasoft.session.data.couchbase.config.SessionCouchbaseProperties;
+import org.slf4j.Logger;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Caps the number of concurrent in-flight session store calls. Callers that cannot get a permit wait in a bounded
+ * queue for at most the configured time and are rejected with {@link BulkheadFullException} afterwards, so a slow
+ * Couchbase cannot block every request thread of the application. Asynchronous operations take their permit before
+ * they are issued and hold it until their future completes.
+ */
+public class BulkheadSessionDao extends DelegatingSessionDao {
+
+    private static final Logger log = getLogger(BulkheadSessionDao.class);
+
+    protected final int maxConcurrentCalls;
+    protected final int maxQueueSize;
+    protected final long maxWaitTimeInNanos;
+    protected final Semaphore permits;
+    protected final AtomicInteger queued = new AtomicInteger();
+    protected final LongAdder queuedCalls = new LongAdder();
+    protected final LongAdder queueTimeInNanos = new LongAdder();
+    protected final AtomicLong maxQueueTimeInNanos = new AtomicLong();
+    protected final LongAdder rejectedCalls = new LongAdder();
+
+    public BulkheadSessionDao(SessionDao delegate, SessionCouchbaseProperties sessionCouchbase) {
+        super(delegate);
+        SessionCouchbaseProperties.Persistent.Bulkhead bulkhead = sessionCouchbase.getPersistent().getBulkhead();
+        this.maxConcurrentCalls = bulkhead.getMaxConcurrentCalls();
+        this.maxQueueSize = bulkhead.getMaxQueueSize();
+        this.maxWaitTimeInNanos = bulkhead.getMaxWaitTime().toNanos();
+        this.permits = new Semaphore(maxConcurrentCalls);
+    }
+
+    @Override
+    protected <T> T invoke(String operation, Supplier<T> call) {
+        acquirePermit(operation);
+        try {
+            return call.get();
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    protected AsyncSessionDao decorateAsync(AsyncSessionDao delegateAsync) {
+        return new BulkheadAsyncSessionDao(delegateAsync);
+    }
+
+    protected <T> CompletableFuture<T> invokeAsync(String operation, Supplier<CompletableFuture<T>> call) {
+        CompletableFuture<T> future;
+        try {
+            acquirePermit(operation);
+        } catch (BulkheadFullException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+        try {
+            future = call.get();
+        } catch (RuntimeException | Error e) {
+            permits.release();
+            throw e;
+        }
+        return future.whenComplete((result, error) -> permits.release());
+    }
+
+    protected void acquirePermit(String operation) {
+        if (permits.tryAcquire()) {
+            return;
+        }
+        if (queued.incrementAndGet() > maxQueueSize) {
+            queued.decrementAndGet();
+            reject(operation, "wait queue is full");
+        }
+        long start = nanoTime();
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(maxWaitTimeInNanos, NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        } finally {
+            queued.decrementAndGet();
+            recordQueueTime(nanoTime() - start);
+        }
+        if (!acquired) {
+            reject(operation, "no permit within " + NANOSECONDS.toMillis(maxWaitTimeInNanos) + " ms");
+        }
+    }
+
+    protected void recordQueueTime(long queueTime) {
+        queuedCalls.increment();
+        queueTimeInNanos.add(queueTime);
+        long max = maxQueueTimeInNanos.get();
+        while (queueTime > max && !maxQueueTimeInNanos.compareAndSet(max, queueTime)) {
+            max = maxQueueTimeInNanos.get();
+        }
+    }
+
+    protected void reject(String operation, String reason) {
+        rejectedCalls.increment();
+        log.debug("Session store call {} has been rejected by the bulkhead, {}", operation, reason);
+        throw new BulkheadFullException("Session store bulkhead rejected " + operation + ", " + reason);
+    }
+
+    public int getMaxConcurrentCalls() {
+        return maxConcurrentCalls;
+    }
+
+    public int getInFlightCalls() {
+        return maxConcurrentCalls - permits.availablePermits();
+    }
+
+    public int getQueuedCalls() {
+        return queued.get();
+    }
+
+    public long getTotalQueuedCalls() {
+        return queuedCalls.sum();
+    }
+
+    public long getTotalQueueTimeInNanos() {
+        return queueTimeInNanos.sum();
+    }
+
+    public long getMaxQueueTimeInNanos() {
+        return maxQueueTimeInNanos.get();
+    }
+
+    public long getRejectedCalls() {
+        return rejectedCalls.sum();
+    }
+
+    protected class BulkheadAsyncSessionDao implements AsyncSessionDao {
+
+        protected final AsyncSessionDao delegate;
+
+        protected BulkheadAsyncSessionDao(AsyncSessionDao delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public CompletableFuture<Void> updateSession(Map<String, Object> attributesToUpdate, Set<String> attributesToRemove, String namespace, String id) {
+            return invokeAsync("updateSession", () -> delegate.updateSession(attributesToUpdate, attributesToRemove, namespace, id));
+        }
+
+        @Override
+        public CompletableFuture<Void> updatePutPrincipalSession(String principal, String sessionId) {
+            return invokeAsync("updatePutPrincipalSession", () -> delegate.updatePutPrincipalSession(principal, sessionId));
+        }
+
+        @Override
+        public CompletableFuture<Void> updateRemovePrincipalSession(String principal, String sessionId) {
+            return invokeAsync("updateRemovePrincipalSession", () -> delegate.updateRemovePrincipalSession(principal, sessionId));
+        }
+
+        @Override
+        public CompletableFuture<Void> updateRemovePrincipalSessions(String principal, Collection<String> sessionIds) {
+            return invokeAsync("updateRemovePrincipalSessions", () -> delegate.updateRemovePrincipalSessions(principal, sessionIds));
+        }
+
+        @Override
+        public CompletableFuture<Void> updateExpirationTime(String id, int expiry) {
+            return invokeAsync("updateExpirationTime", () -> delegate.updateExpirationTime(id, expiry));
+        }
+
+        @Override
+        public CompletableFuture<Void> save(SessionDocument document, int expiry) {
+            return invokeAsync("saveSession", () -> delegate.save(document, expiry));
+        }
+
+        @Override
+        public CompletableFuture<Void> save(PrincipalSessionsDocument document) {
+            return invokeAsync("savePrincipalSessions", () -> delegate.save(document));
+        }
+
+        @Override
+        public CompletableFuture<Boolean> exists(String documentId) {
+            return invokeAsync("exists", () -> delegate.exists(documentId));
+        }
+
+        @Override
+        public CompletableFuture<Void> delete(String id) {
+            return invokeAsync("delete", () -> delegate.delete(id));
+        }
+
+        @Override
+        public CompletableFuture<Void> deleteSessions(Collection<String> ids) {
+            return invokeAsync("deleteSessions", () -> delegate.deleteSessions(ids));
+        }
+    }
+}
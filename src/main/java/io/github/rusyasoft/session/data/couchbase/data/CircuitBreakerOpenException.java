@@ -0,0 +1,8 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+public class CircuitBreakerOpenException extends SessionStoreUnavailableException {
+
+    public CircuitBreakerOpenException(String message) {
+        super(message);
+    }
+}
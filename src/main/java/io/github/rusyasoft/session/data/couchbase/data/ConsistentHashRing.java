@@ -0,0 +1,73 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.springframework.util.Assert.isTrue;
+import static org.springframework.util.Assert.state;
+
+/**
+ * Consistent hash ring mapping keys to named nodes. Every node occupies a number of points proportional to its weight,
+ * derived from the node name only, so adding or removing a node moves just the keys of its own ring segments.
+ * Nodes must be added before the ring is used.
+ */
+public class ConsistentHashRing<T> {
+
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(ConsistentHashRing::md5);
+
+    protected final int virtualNodes;
+    protected final NavigableMap<Long, T> ring = new TreeMap<>();
+    protected final Map<String, T> nodes = new LinkedHashMap<>();
+
+    public ConsistentHashRing(int virtualNodes) {
+        isTrue(virtualNodes > 0, "Number of virtual nodes must be positive");
+        this.virtualNodes = virtualNodes;
+    }
+
+    public void add(String name, T node, int weight) {
+        isTrue(weight > 0, "Weight of node '" + name + "' must be positive");
+        isTrue(!nodes.containsKey(name), "Node '" + name + "' is already on the ring");
+        nodes.put(name, node);
+        for (int point = 0; point < virtualNodes * weight; point++) {
+            ring.put(hash(name + "#" + point), node);
+        }
+    }
+
+    public T get(String key) {
+        state(!ring.isEmpty(), "Consistent hash ring has no nodes");
+        Map.Entry<Long, T> entry = ring.ceilingEntry(hash(key));
+        return entry == null ? ring.firstEntry().getValue() : entry.getValue();
+    }
+
+    public Collection<T> getNodes() {
+        return Collections.unmodifiableCollection(nodes.values());
+    }
+
+    public Map<String, T> getNamedNodes() {
+        return Collections.unmodifiableMap(nodes);
+    }
+
+    protected static long hash(String key) {
+        byte[] digest = MD5.get().digest(key.getBytes(UTF_8));
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (digest[i] & 0xFF);
+        }
+        return hash;
+    }
+
+    protected static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not supported", e);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+import io.github.rusyasoft.session.data.couchbase.config.SessionCouchbaseProperties;
+import org.slf4j.Logger;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.lang.System.nanoTime;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Fails Couchbase calls fast after a series of consecutive transient errors. Once the open duration elapses a single
+ * trial call is let through and its outcome decides whether the circuit closes again.
+ */
+public class CouchbaseCircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final Logger log = getLogger(CouchbaseCircuitBreaker.class);
+
+    protected final boolean enabled;
+    protected final int failureThreshold;
+    protected final long openDurationInNanos;
+    protected final TransientErrorClassifier errorClassifier;
+    protected final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    protected final AtomicInteger consecutiveFailures = new AtomicInteger();
+    protected volatile long openedAt;
+
+    public CouchbaseCircuitBreaker(SessionCouchbaseProperties sessionCouchbase, TransientErrorClassifier errorClassifier) {
+        SessionCouchbaseProperties.Persistent.CircuitBreaker circuitBreaker = sessionCouchbase.getPersistent().getCircuitBreaker();
+        this.enabled = circuitBreaker.isEnabled();
+        this.failureThreshold = circuitBreaker.getFailureThreshold();
+        this.openDurationInNanos = circuitBreaker.getOpenDuration().toNanos();
+        this.errorClassifier = errorClassifier;
+    }
+
+    public void acquirePermission() {
+        if (!enabled) {
+            return;
+        }
+        State current = state.get();
+        if (current == State.CLOSED) {
+            return;
+        }
+        if (current == State.OPEN && nanoTime() - openedAt >= openDurationInNanos && state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+            log.debug("Couchbase circuit breaker is half-open, letting a trial call through");
+            return;
+        }
+        throw new CircuitBreakerOpenException("Couchbase circuit breaker is " + current + ", call has been rejected");
+    }
+
+    public void onSuccess() {
+        if (!enabled) {
+            return;
+        }
+        if (consecutiveFailures.get() != 0) {
+            consecutiveFailures.set(0);
+        }
+        if (state.get() != State.CLOSED && state.compareAndSet(State.HALF_OPEN, State.CLOSED)) {
+            log.info("Couchbase circuit breaker has been closed");
+        }
+    }
+
+    public void onError(Throwable throwable) {
+        if (!enabled) {
+            return;
+        }
+        if (!errorClassifier.isTransient(throwable)) {
+            onSuccess();
+            return;
+        }
+        if (state.get() == State.HALF_OPEN) {
+            openedAt = nanoTime();
+            state.set(State.OPEN);
+            log.warn("Couchbase circuit breaker trial call has failed, circuit is open again", throwable);
+            return;
+        }
+        if (consecutiveFailures.incrementAndGet() >= failureThreshold && state.get() == State.CLOSED) {
+            openedAt = nanoTime();
+            state.set(State.OPEN);
+            consecutiveFailures.set(0);
+            log.warn("Couchbase circuit breaker has been opened after " + failureThreshold + " consecutive failures", throwable);
+        }
+    }
+
+    public State getState() {
+        return state.get();
+    }
+}
@@ -0,0 +1,107 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+import java.time.Duration;
+import java.util.function.Function;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Time budget shared by all Couchbase operations issued by a single session repository call, their retries and the
+ * delays between them included. The deadline of the current call is bound to the calling thread, operations issued
+ * outside of repository calls get a deadline of their own.
+ */
+public class CouchbaseDeadline {
+
+    private static final ThreadLocal<CouchbaseDeadline> CURRENT = new ThreadLocal<>();
+
+    protected final Duration budget;
+    protected final long deadlineInNanos;
+
+    public CouchbaseDeadline(Duration budget) {
+        this.budget = budget;
+        this.deadlineInNanos = nanoTime() + budget.toNanos();
+    }
+
+    public static CouchbaseDeadline open(Duration budget) {
+        CouchbaseDeadline deadline = new CouchbaseDeadline(budget);
+        CURRENT.set(deadline);
+        return deadline;
+    }
+
+    public static CouchbaseDeadline current() {
+        return CURRENT.get();
+    }
+
+    public static void close() {
+        CURRENT.remove();
+    }
+
+    /**
+     * Makes the given deadline current, {@code null} unbinds it.
+     *
+     * @return the deadline that was current before
+     */
+    public static CouchbaseDeadline bind(CouchbaseDeadline deadline) {
+        CouchbaseDeadline previous = CURRENT.get();
+        if (deadline == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(deadline);
+        }
+        return previous;
+    }
+
+    /**
+     * Wraps the function so that it runs with the given deadline bound, for continuations of asynchronous operations
+     * running on other threads than the one which has issued the operation.
+     */
+    public static <T, R> Function<T, R> boundTo(CouchbaseDeadline deadline, Function<T, R> function) {
+        return argument -> {
+            CouchbaseDeadline previous = bind(deadline);
+            try {
+                return function.apply(argument);
+            } finally {
+                bind(previous);
+            }
+        };
+    }
+
+    /**
+     * Sleeps for the given period, cut short to the remaining budget of the current deadline.
+     */
+    public static void sleep(long periodInMillis) throws InterruptedException {
+        CouchbaseDeadline deadline = CURRENT.get();
+        long period = deadline == null ? periodInMillis : deadline.limit(periodInMillis);
+        if (period > 0) {
+            Thread.sleep(period);
+        }
+    }
+
+    public Duration getBudget() {
+        return budget;
+    }
+
+    public long getRemainingNanos() {
+        return deadlineInNanos - nanoTime();
+    }
+
+    public boolean isExceeded() {
+        return getRemainingNanos() <= 0;
+    }
+
+    /**
+     * Returns the given time in milliseconds, cut short to the remaining budget but at least 1 ms.
+     */
+    public long limit(long timeInMillis) {
+        return max(1, min(timeInMillis, NANOSECONDS.toMillis(getRemainingNanos())));
+    }
+
+    public void check() {
+        if (isExceeded()) {
+            throw new DeadlineExceededException("Couchbase time budget of " + budget.toMillis() + " ms has been exhausted, call has been rejected");
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+import com.couchbase.client.java.document.json.JsonObject;
+import org.springframework.data.couchbase.core.CouchbaseQueryExecutionException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * Thrown when a N1QL statement returns errors, carrying their error codes so that transient ones can be retried.
+ */
+public class CouchbaseQueryException extends CouchbaseQueryExecutionException {
+
+    protected final List<Integer> codes;
+
+    public CouchbaseQueryException(String statement, List<JsonObject> errors) {
+        super("Error executing N1QL statement '" + statement + "'. " + errors);
+        List<Integer> codes = new ArrayList<>(errors.size());
+        for (JsonObject error : errors) {
+            Integer code = error.getInt("code");
+            if (code != null) {
+                codes.add(code);
+            }
+        }
+        this.codes = unmodifiableList(codes);
+    }
+
+    public List<Integer> getCodes() {
+        return codes;
+    }
+}
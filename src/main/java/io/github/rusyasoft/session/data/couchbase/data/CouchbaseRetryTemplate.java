@@ -0,0 +1,57 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+import org.springframework.retry.RetryListener;
+import org.springframework.retry.RetryPolicy;
+import org.springframework.retry.backoff.BackOffPolicy;
+import org.springframework.retry.backoff.NoBackOffPolicy;
+import org.springframework.retry.policy.SimpleRetryPolicy;
+import org.springframework.retry.support.RetryTemplate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Retry template whose retry policy, back off policy and listeners drive the retries of asynchronous Couchbase
+ * operations as well, so that blocking and asynchronous operations follow a single retry configuration.
+ */
+public class CouchbaseRetryTemplate extends RetryTemplate {
+
+    protected RetryPolicy retryPolicy = new SimpleRetryPolicy(3);
+    protected BackOffPolicy backOffPolicy = new NoBackOffPolicy();
+    protected final List<RetryListener> listeners = new ArrayList<>();
+
+    @Override
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        super.setRetryPolicy(retryPolicy);
+        this.retryPolicy = retryPolicy;
+    }
+
+    @Override
+    public void setBackOffPolicy(BackOffPolicy backOffPolicy) {
+        super.setBackOffPolicy(backOffPolicy);
+        this.backOffPolicy = backOffPolicy;
+    }
+
+    @Override
+    public void setListeners(RetryListener[] listeners) {
+        super.setListeners(listeners);
+        this.listeners.clear();
+        this.listeners.addAll(Arrays.asList(listeners));
+    }
+
+    @Override
+    public void registerListener(RetryListener listener) {
+        super.registerListener(listener);
+        listeners.add(listener);
+    }
+
+    /**
+     * Creates the retry handler of a single asynchronous operation.
+     *
+     * @param deadline deadline of the operation, {@code null} when it is unbounded
+     */
+    public AsyncRetryHandler createAsyncRetryHandler(CouchbaseDeadline deadline) {
+        return new AsyncRetryHandler(retryPolicy, backOffPolicy, listeners, deadline);
+    }
+}
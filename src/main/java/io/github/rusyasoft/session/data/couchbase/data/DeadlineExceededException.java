@@ -0,0 +1,8 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+public class DeadlineExceededException extends SessionStoreUnavailableException {
+
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+}
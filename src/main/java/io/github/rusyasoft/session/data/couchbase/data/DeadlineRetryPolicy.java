@@ -0,0 +1,32 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.RetryPolicy;
+import org.springframework.retry.context.RetryContextSupport;
+
+/**
+ * Allows retries while the current {@link CouchbaseDeadline} has budget left. Unlike a timeout measured per operation,
+ * the budget is shared by all operations of the session repository call.
+ */
+public class DeadlineRetryPolicy implements RetryPolicy {
+
+    @Override
+    public boolean canRetry(RetryContext context) {
+        CouchbaseDeadline deadline = CouchbaseDeadline.current();
+        return deadline == null || !deadline.isExceeded();
+    }
+
+    @Override
+    public RetryContext open(RetryContext parent) {
+        return new RetryContextSupport(parent);
+    }
+
+    @Override
+    public void close(RetryContext context) {
+    }
+
+    @Override
+    public void registerThrowable(RetryContext context, Throwable throwable) {
+        ((RetryContextSupport) context).registerThrowable(throwable);
+    }
+}
@@ -0,0 +1,191 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Base for {@link SessionDao} decorators. Every call is routed through {@link #invoke(String, Supplier)}, so subclasses
+ * only have to wrap a single method.
+ */
+public abstract class DelegatingSessionDao implements SessionDao {
+
+    protected final SessionDao delegate;
+    private volatile AsyncSessionDao async;
+
+    protected DelegatingSessionDao(SessionDao delegate) {
+        this.delegate = delegate;
+    }
+
+    protected abstract <T> T invoke(String operation, Supplier<T> call);
+
+    @Override
+    public void insertNamespace(String namespace, String id) {
+        invoke("insertNamespace", () -> {
+            delegate.insertNamespace(namespace, id);
+            return null;
+        });
+    }
+
+    @Override
+    public void updateSession(Map<String, Object> attributesToUpdate, Set<String> attributesToRemove, String namespace, String id) {
+        invoke("updateSession", () -> {
+            delegate.updateSession(attributesToUpdate, attributesToRemove, namespace, id);
+            return null;
+        });
+    }
+
+    @Override
+    public void updatePutPrincipalSession(String principal, String sessionId) {
+        invoke("updatePutPrincipalSession", () -> {
+            delegate.updatePutPrincipalSession(principal, sessionId);
+            return null;
+        });
+    }
+
+    @Override
+    public void updateRemovePrincipalSession(String principal, String sessionId) {
+        invoke("updateRemovePrincipalSession", () -> {
+            delegate.updateRemovePrincipalSession(principal, sessionId);
+            return null;
+        });
+    }
+
+    @Override
+    public void updateRemovePrincipalSessions(String principal, Collection<String> sessionIds) {
+        invoke("updateRemovePrincipalSessions", () -> {
+            delegate.updateRemovePrincipalSessions(principal, sessionIds);
+            return null;
+        });
+    }
+
+    @Override
+    public Map<String, Object> findSessionAttributes(String id, String namespace) {
+        return invoke("findSessionAttributes", () -> delegate.findSessionAttributes(id, namespace));
+    }
+
+    @Override
+    public SessionDocument findById(String id) {
+        return invoke("findById", () -> delegate.findById(id));
+    }
+
+    @Override
+    public SessionNamespacesDocument findNamespaces(String id, String... namespaces) {
+        return invoke("findNamespaces", () -> delegate.findNamespaces(id, namespaces));
+    }
+
+    @Override
+    public Map<String, SessionNamespacesDocument> findNamespaces(Collection<String> ids, String... namespaces) {
+        return invoke("findNamespacesBulk", () -> delegate.findNamespaces(ids, namespaces));
+    }
+
+    @Override
+    public SessionNamespacesDocument findNamespacesAndTouch(String id, int expiry, String... namespaces) {
+        return invoke("findNamespacesAndTouch", () -> delegate.findNamespacesAndTouch(id, expiry, namespaces));
+    }
+
+    @Override
+    public PrincipalSessionsDocument findByPrincipal(String principal) {
+        return invoke("findByPrincipal", () -> delegate.findByPrincipal(principal));
+    }
+
+    @Override
+    public void updateExpirationTime(String id, int expiry) {
+        invoke("updateExpirationTime", () -> {
+            delegate.updateExpirationTime(id, expiry);
+            return null;
+        });
+    }
+
+    @Override
+    public void save(SessionDocument document) {
+        invoke("saveSession", () -> {
+            delegate.save(document);
+            return null;
+        });
+    }
+
+    @Override
+    public void save(PrincipalSessionsDocument document) {
+        invoke("savePrincipalSessions", () -> {
+            delegate.save(document);
+            return null;
+        });
+    }
+
+    @Override
+    public void save(SessionDocument document, int expiry) {
+        invoke("saveSession", () -> {
+            delegate.save(document, expiry);
+            return null;
+        });
+    }
+
+    @Override
+    public void save(PrincipalSessionsDocument document, int expiry) {
+        invoke("savePrincipalSessions", () -> {
+            delegate.save(document, expiry);
+            return null;
+        });
+    }
+
+    @Override
+    public boolean exists(String documentId) {
+        return invoke("exists", () -> delegate.exists(documentId));
+    }
+
+    @Override
+    public void delete(String id) {
+        invoke("delete", () -> {
+            delegate.delete(id);
+            return null;
+        });
+    }
+
+    @Override
+    public void deleteSessions(Collection<String> ids) {
+        invoke("deleteSessions", () -> {
+            delegate.deleteSessions(ids);
+            return null;
+        });
+    }
+
+    @Override
+    public void deleteAll() {
+        invoke("deleteAll", () -> {
+            delegate.deleteAll();
+            return null;
+        });
+    }
+
+    @Override
+    public Object getObjectFromCouchbase(String id, String nameSpace) {
+        return invoke("getObjectFromCouchbase", () -> delegate.getObjectFromCouchbase(id, nameSpace));
+    }
+
+    /**
+     * Returns the non-blocking view of the delegate, decorated by {@link #decorateAsync(AsyncSessionDao)}. The view is
+     * created on first use and shared afterwards.
+     */
+    @Override
+    public AsyncSessionDao async() {
+        AsyncSessionDao view = async;
+        if (view == null) {
+            view = decorateAsync(delegate.async());
+            async = view;
+        }
+        return view;
+    }
+
+    /**
+     * Decorates the non-blocking view of the delegate, which is returned unchanged by default.
+     */
+    protected AsyncSessionDao decorateAsync(AsyncSessionDao delegateAsync) {
+        return delegateAsync;
+    }
+
+    public SessionDao getDelegate() {
+        return delegate;
+    }
+}
@@ -0,0 +1,17 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+/**
+ * Layout of HTTP session data in the bucket.
+ */
+public enum DocumentLayout {
+
+    /**
+     * All namespaces of a session are stored in one document under the session ID.
+     */
+    SINGLE,
+    /**
+     * Global attributes are stored under the session ID and every application namespace in its own document under
+     * a key derived from the session ID and the namespace, so applications sharing a session do not write to the same key.
+     */
+    SPLIT
+}
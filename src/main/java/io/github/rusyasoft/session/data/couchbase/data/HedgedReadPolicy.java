@@ -0,0 +1,86 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+import io.github.rusyasoft.session.data.couchbase.config.SessionCouchbaseProperties;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides how long a read waits for the active copy of a document before a replica read is issued. The delay follows
+ * a percentile of recent read latencies, bounded by the configured minimum and maximum, so that only the slowest reads
+ * are doubled.
+ */
+public class HedgedReadPolicy {
+
+    protected final double percentile;
+    protected final long minDelay;
+    protected final long maxDelay;
+    protected final long[] samples;
+    protected final int samplesPerUpdate;
+    protected final LongAdder reads = new LongAdder();
+    protected final LongAdder hedgedReads = new LongAdder();
+    protected final LongAdder replicaReads = new LongAdder();
+    protected int sampleCount;
+    protected int nextSample;
+    protected int samplesSinceUpdate;
+    protected volatile long delay;
+
+    public HedgedReadPolicy(SessionCouchbaseProperties.Persistent.HedgedReads hedgedReads) {
+        percentile = hedgedReads.getPercentile();
+        minDelay = hedgedReads.getMinDelay().toNanos();
+        maxDelay = hedgedReads.getMaxDelay().toNanos();
+        samples = new long[Math.max(1, hedgedReads.getSampleSize())];
+        samplesPerUpdate = Math.max(1, samples.length / 10);
+        // Until latencies are known, replicas are only asked when the active copy is really slow.
+        delay = maxDelay;
+    }
+
+    /**
+     * Returns the time in nanoseconds to wait for the active copy before reading from replicas.
+     */
+    public long getDelay() {
+        return delay;
+    }
+
+    public synchronized void recordLatency(long nanos) {
+        samples[nextSample] = nanos;
+        nextSample = (nextSample + 1) % samples.length;
+        sampleCount = Math.min(sampleCount + 1, samples.length);
+        if (++samplesSinceUpdate >= samplesPerUpdate) {
+            samplesSinceUpdate = 0;
+            long[] sorted = Arrays.copyOf(samples, sampleCount);
+            Arrays.sort(sorted);
+            int index = Math.max(0, (int) Math.ceil(percentile * sampleCount) - 1);
+            delay = Math.min(maxDelay, Math.max(minDelay, sorted[index]));
+        }
+    }
+
+    public void recordHedge() {
+        hedgedReads.increment();
+    }
+
+    public void recordRead(boolean fromReplica) {
+        reads.increment();
+        if (fromReplica) {
+            replicaReads.increment();
+        }
+    }
+
+    public long getReads() {
+        return reads.sum();
+    }
+
+    /**
+     * Returns the number of reads for which a replica read has been issued.
+     */
+    public long getHedgedReads() {
+        return hedgedReads.sum();
+    }
+
+    /**
+     * Returns the number of reads answered by a replica.
+     */
+    public long getReplicaReads() {
+        return replicaReads.sum();
+    }
+}
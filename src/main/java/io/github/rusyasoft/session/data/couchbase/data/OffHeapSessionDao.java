@@ -0,0 +1,264 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import static com.couchbase.client.java.document.json.JsonArray.from;
+import static com.couchbase.client.java.document.json.JsonObject.create;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Session DAO keeping the documents in an {@link OffHeapStore}. Documents have the same JSON shape as in Couchbase and
+ * are serialized to UTF-8 bytes, so the heap usage does not grow with the number of stored sessions.
+ */
+public class OffHeapSessionDao implements SessionDao {
+
+    // Couchbase reads expiry values above 30 days as epoch seconds, the same expiry values are accepted here.
+    protected static final long MAX_RELATIVE_EXPIRY = DAYS.toSeconds(30);
+
+    protected final OffHeapStore store;
+    protected final AsyncSessionDao async = new SynchronousAsyncSessionDao(this);
+
+    public OffHeapSessionDao(OffHeapStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public void insertNamespace(String namespace, String id) {
+        update(id, document -> {
+            JsonObject data = document.getObject("data");
+            if (data == null || data.containsKey(namespace)) {
+                return false;
+            }
+            data.put(namespace, create());
+            return true;
+        });
+    }
+
+    @Override
+    public void updateSession(Map<String, Object> attributesToUpdate, Set<String> attributesToRemove, String namespace, String id) {
+        update(id, document -> {
+            JsonObject data = document.getObject("data");
+            if (data == null) {
+                return false;
+            }
+            JsonObject namespaceData = data.getObject(namespace);
+            if (namespaceData == null) {
+                namespaceData = create();
+                data.put(namespace, namespaceData);
+            }
+            for (Map.Entry<String, Object> attribute : attributesToUpdate.entrySet()) {
+                namespaceData.put(attribute.getKey(), toJsonValue(attribute.getValue()));
+            }
+            attributesToRemove.forEach(namespaceData::removeKey);
+            return true;
+        });
+    }
+
+    protected Object toJsonValue(Object serializedValue) {
+        if (serializedValue == null) {
+            return null;
+        }
+        return JsonObject.fromJson("{\"value\":" + serializedValue + "}").get("value");
+    }
+
+    @Override
+    public void updatePutPrincipalSession(String principal, String sessionId) {
+        update(principal, document -> {
+            JsonArray sessionIds = document.getArray("sessionIds");
+            if (sessionIds == null || sessionIds.toList().contains(sessionId)) {
+                return false;
+            }
+            sessionIds.add(sessionId);
+            return true;
+        });
+    }
+
+    @Override
+    public void updateRemovePrincipalSession(String principal, String sessionId) {
+        removePrincipalSessions(principal, sessionId::equals);
+    }
+
+    @Override
+    public void updateRemovePrincipalSessions(String principal, Collection<String> sessionIds) {
+        removePrincipalSessions(principal, sessionIds::contains);
+    }
+
+    protected void removePrincipalSessions(String principal, Predicate<Object> removed) {
+        update(principal, document -> {
+            JsonArray sessionIds = document.getArray("sessionIds");
+            if (sessionIds == null) {
+                return false;
+            }
+            List<Object> remaining = sessionIds.toList().stream()
+                    .filter(removed.negate())
+                    .collect(toList());
+            document.put("sessionIds", from(remaining));
+            return remaining.size() != sessionIds.size();
+        });
+    }
+
+    @Override
+    public Map<String, Object> findSessionAttributes(String id, String namespace) {
+        JsonObject namespaceData = getNamespace(read(store.get(id)), namespace);
+        return namespaceData == null ? null : namespaceData.toMap();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public SessionDocument findById(String id) {
+        JsonObject document = read(store.get(id));
+        if (document == null) {
+            return null;
+        }
+        Map<String, Object> namespaces = document.getObject("data").toMap();
+        Map<String, Map<String, Object>> data = new HashMap<>(namespaces.size());
+        namespaces.forEach((namespace, namespaceData) -> data.put(namespace, (Map<String, Object>) namespaceData));
+        return new SessionDocument(id, data);
+    }
+
+    @Override
+    public SessionNamespacesDocument findNamespaces(String id, String... namespaces) {
+        return toNamespacesDocument(id, read(store.get(id)), namespaces);
+    }
+
+    @Override
+    public SessionNamespacesDocument findNamespacesAndTouch(String id, int expiry, String... namespaces) {
+        return toNamespacesDocument(id, read(store.getAndTouch(id, toTimeToLive(expiry))), namespaces);
+    }
+
+    @Override
+    public Map<String, SessionNamespacesDocument> findNamespaces(Collection<String> ids, String... namespaces) {
+        Map<String, SessionNamespacesDocument> documents = new LinkedHashMap<>(ids.size());
+        for (String id : ids) {
+            SessionNamespacesDocument document = findNamespaces(id, namespaces);
+            if (document != null) {
+                documents.put(id, document);
+            }
+        }
+        return documents;
+    }
+
+    protected SessionNamespacesDocument toNamespacesDocument(String id, JsonObject document, String... namespaces) {
+        if (document == null) {
+            return null;
+        }
+        Map<String, JsonObject> namespacesData = new HashMap<>(namespaces.length);
+        for (String namespace : namespaces) {
+            JsonObject namespaceData = getNamespace(document, namespace);
+            if (namespaceData != null) {
+                namespacesData.put(namespace, namespaceData);
+            }
+        }
+        return new SessionNamespacesDocument(id, namespacesData);
+    }
+
+    @Override
+    public PrincipalSessionsDocument findByPrincipal(String principal) {
+        JsonObject document = read(store.get(principal));
+        if (document == null) {
+            return null;
+        }
+        List<String> sessionIds = document.getArray("sessionIds").toList().stream()
+                .map(sessionId -> (String) sessionId)
+                .collect(toList());
+        return new PrincipalSessionsDocument(principal, sessionIds);
+    }
+
+    @Override
+    public void updateExpirationTime(String id, int expiry) {
+        store.touch(id, toTimeToLive(expiry));
+    }
+
+    protected long toTimeToLive(int expiry) {
+        if (expiry > MAX_RELATIVE_EXPIRY) {
+            return Math.max(1, SECONDS.toMillis(expiry) - store.now());
+        }
+        return SECONDS.toMillis(expiry);
+    }
+
+    @Override
+    public void save(SessionDocument document) {
+        save(document, 0);
+    }
+
+    @Override
+    public void save(PrincipalSessionsDocument document) {
+        save(document, 0);
+    }
+
+    @Override
+    public void save(SessionDocument document, int expiry) {
+        store.put(document.getId(), write(create().put("data", document.getData())), toTimeToLive(expiry));
+    }
+
+    @Override
+    public void save(PrincipalSessionsDocument document, int expiry) {
+        store.put(document.getPrincipal(), write(create().put("sessionIds", from(document.getSessionIds()))), toTimeToLive(expiry));
+    }
+
+    @Override
+    public boolean exists(String documentId) {
+        return store.contains(documentId);
+    }
+
+    @Override
+    public void delete(String id) {
+        store.remove(id);
+    }
+
+    @Override
+    public void deleteSessions(Collection<String> ids) {
+        ids.forEach(store::remove);
+    }
+
+    @Override
+    public void deleteAll() {
+        store.clear();
+    }
+
+    @Override
+    public Object getObjectFromCouchbase(String id, String nameSpace) {
+        return getNamespace(read(store.get(id)), nameSpace);
+    }
+
+    @Override
+    public AsyncSessionDao async() {
+        return async;
+    }
+
+    /**
+     * Applies the mutation to the stored document. The mutation returns whether it changed the document, unchanged
+     * documents are not written back.
+     */
+    protected void update(String key, Predicate<JsonObject> mutation) {
+        store.update(key, value -> {
+            JsonObject document = read(value);
+            return mutation.test(document) ? write(document) : null;
+        });
+    }
+
+    protected JsonObject getNamespace(JsonObject document, String namespace) {
+        JsonObject data = document == null ? null : document.getObject("data");
+        return data == null ? null : data.getObject(namespace);
+    }
+
+    protected JsonObject read(byte[] value) {
+        return value == null ? null : JsonObject.fromJson(new String(value, UTF_8));
+    }
+
+    protected byte[] write(JsonObject document) {
+        return document.toString().getBytes(UTF_8);
+    }
+}
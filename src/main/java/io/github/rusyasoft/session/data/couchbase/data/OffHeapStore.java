@@ -0,0 +1,585 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+import java.nio.ByteBuffer;
+import java.time.Clock;
+import java.util.Arrays;
+import java.util.function.UnaryOperator;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.springframework.util.Assert.isTrue;
+
+/**
+ * Key-value store keeping values outside of the Java heap. Records are appended to direct {@link ByteBuffer} slabs and
+ * indexed by key with open-addressing tables of primitive arrays, so the heap holds no object per entry. Overwritten,
+ * removed and expired records leave garbage in their slabs, which is reclaimed by moving the live records of sparse
+ * slabs into the current one and reusing the emptied slabs.
+ * <p>
+ * Keys are spread over independently locked segments, each owning its slabs and index.
+ */
+public class OffHeapStore {
+
+    // Record layout: key hash, key length, value length, expiration time in epoch milliseconds (0 for none), key, value.
+    protected static final int HASH_OFFSET = 0;
+    protected static final int KEY_LENGTH_OFFSET = 4;
+    protected static final int VALUE_LENGTH_OFFSET = 8;
+    protected static final int EXPIRATION_OFFSET = 12;
+    protected static final int HEADER_SIZE = 20;
+    protected static final int INITIAL_INDEX_CAPACITY = 1024;
+
+    protected final Segment[] segments;
+    protected final int segmentShift;
+    protected final Clock clock;
+
+    public OffHeapStore(long maxMemory, int slabSize, int segmentCount, double compactionThreshold) {
+        this(maxMemory, slabSize, segmentCount, compactionThreshold, Clock.systemUTC());
+    }
+
+    public OffHeapStore(long maxMemory, int slabSize, int segmentCount, double compactionThreshold, Clock clock) {
+        isTrue(segmentCount > 0 && Integer.bitCount(segmentCount) == 1, "Number of off-heap store segments must be a power of two");
+        isTrue(slabSize > HEADER_SIZE, "Off-heap store slab size must be greater than " + HEADER_SIZE + " bytes");
+        isTrue(compactionThreshold >= 0 && compactionThreshold < 1, "Off-heap store compaction threshold must be between 0 and 1");
+        int slabsPerSegment = (int) Math.max(2, maxMemory / slabSize / segmentCount);
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(slabsPerSegment, slabSize, compactionThreshold);
+        }
+        segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+        this.clock = clock;
+    }
+
+    public byte[] get(String key) {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        int hash = hash(keyBytes);
+        return segmentOf(hash).get(keyBytes, hash, now());
+    }
+
+    /**
+     * Returns the value and sets its time to live.
+     *
+     * @param timeToLive time to live in milliseconds, 0 for none
+     */
+    public byte[] getAndTouch(String key, long timeToLive) {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        int hash = hash(keyBytes);
+        long now = now();
+        return segmentOf(hash).getAndTouch(keyBytes, hash, expiresAt(now, timeToLive), now);
+    }
+
+    /**
+     * Stores the value replacing the current one.
+     *
+     * @param timeToLive time to live in milliseconds, 0 for none
+     */
+    public void put(String key, byte[] value, long timeToLive) {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        int hash = hash(keyBytes);
+        long now = now();
+        segmentOf(hash).put(keyBytes, hash, value, expiresAt(now, timeToLive), now);
+    }
+
+    /**
+     * Replaces the value with the result of the mutation, keeping its time to live. The mutation runs under the lock of
+     * the key segment and can return {@code null} to leave the value unchanged.
+     *
+     * @return whether the key is present
+     */
+    public boolean update(String key, UnaryOperator<byte[]> mutation) {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        int hash = hash(keyBytes);
+        return segmentOf(hash).update(keyBytes, hash, mutation, now());
+    }
+
+    /**
+     * Sets the time to live of the value.
+     *
+     * @param timeToLive time to live in milliseconds, 0 for none
+     * @return whether the key is present
+     */
+    public boolean touch(String key, long timeToLive) {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        int hash = hash(keyBytes);
+        long now = now();
+        return segmentOf(hash).touch(keyBytes, hash, expiresAt(now, timeToLive), now);
+    }
+
+    public boolean contains(String key) {
+        return get(key) != null;
+    }
+
+    public boolean remove(String key) {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        int hash = hash(keyBytes);
+        return segmentOf(hash).remove(keyBytes, hash, now());
+    }
+
+    /**
+     * Removes expired values, so that compaction can reclaim their memory.
+     *
+     * @return number of removed values
+     */
+    public int evictExpired() {
+        long now = now();
+        int evicted = 0;
+        for (Segment segment : segments) {
+            evicted += segment.evictExpired(now);
+        }
+        return evicted;
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * Releases all slabs. Direct memory is returned once the slabs are garbage collected.
+     */
+    public void close() {
+        clear();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of bytes of allocated slabs.
+     */
+    public long getAllocatedMemory() {
+        long memory = 0;
+        for (Segment segment : segments) {
+            memory += segment.getAllocatedMemory();
+        }
+        return memory;
+    }
+
+    /**
+     * Returns the number of bytes taken by live records.
+     */
+    public long getLiveMemory() {
+        long memory = 0;
+        for (Segment segment : segments) {
+            memory += segment.getLiveMemory();
+        }
+        return memory;
+    }
+
+    protected Segment segmentOf(int hash) {
+        return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    protected long now() {
+        return clock.millis();
+    }
+
+    protected static long expiresAt(long now, long timeToLive) {
+        return timeToLive <= 0 ? 0 : now + timeToLive;
+    }
+
+    protected static int hash(byte[] key) {
+        int hash = Arrays.hashCode(key) * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    protected static class Segment {
+
+        protected final int slabSize;
+        protected final double compactionThreshold;
+        protected final ByteBuffer[] slabs;
+        protected final int[] usedBytes;
+        protected final int[] liveBytes;
+        protected int currentSlab = -1;
+        // Index slots hold record addresses, slab number plus one in the high half and offset in the low half, 0 marks an empty slot.
+        protected long[] addresses = new long[INITIAL_INDEX_CAPACITY];
+        protected int[] hashes = new int[INITIAL_INDEX_CAPACITY];
+        protected int size;
+
+        protected Segment(int slabCount, int slabSize, double compactionThreshold) {
+            this.slabSize = slabSize;
+            this.compactionThreshold = compactionThreshold;
+            slabs = new ByteBuffer[slabCount];
+            usedBytes = new int[slabCount];
+            liveBytes = new int[slabCount];
+        }
+
+        protected synchronized byte[] get(byte[] key, int hash, long now) {
+            int slot = findLive(key, hash, now);
+            return slot < 0 ? null : readValue(addresses[slot]);
+        }
+
+        protected synchronized byte[] getAndTouch(byte[] key, int hash, long expiresAt, long now) {
+            int slot = findLive(key, hash, now);
+            if (slot < 0) {
+                return null;
+            }
+            long address = addresses[slot];
+            slabOf(address).putLong(offsetOf(address) + EXPIRATION_OFFSET, expiresAt);
+            return readValue(address);
+        }
+
+        protected synchronized boolean touch(byte[] key, int hash, long expiresAt, long now) {
+            int slot = findLive(key, hash, now);
+            if (slot < 0) {
+                return false;
+            }
+            long address = addresses[slot];
+            slabOf(address).putLong(offsetOf(address) + EXPIRATION_OFFSET, expiresAt);
+            return true;
+        }
+
+        protected synchronized void put(byte[] key, int hash, byte[] value, long expiresAt, long now) {
+            int recordSize = HEADER_SIZE + key.length + value.length;
+            if (recordSize > slabSize) {
+                throw new OffHeapStoreFullException("Off-heap record of " + recordSize + " bytes does not fit into slab of " + slabSize + " bytes");
+            }
+            // Allocation can move records, so the slot is looked up afterwards.
+            long address = allocate(recordSize, now);
+            writeRecord(address, key, hash, value, expiresAt);
+            int slot = find(key, hash);
+            if (slot >= 0) {
+                release(addresses[slot]);
+                addresses[slot] = address;
+            } else {
+                insert(hash, address);
+            }
+        }
+
+        protected synchronized boolean update(byte[] key, int hash, UnaryOperator<byte[]> mutation, long now) {
+            int slot = findLive(key, hash, now);
+            if (slot < 0) {
+                return false;
+            }
+            long address = addresses[slot];
+            byte[] value = mutation.apply(readValue(address));
+            if (value != null) {
+                put(key, hash, value, slabOf(address).getLong(offsetOf(address) + EXPIRATION_OFFSET), now);
+            }
+            return true;
+        }
+
+        protected synchronized boolean remove(byte[] key, int hash, long now) {
+            int slot = findLive(key, hash, now);
+            if (slot < 0) {
+                return false;
+            }
+            removeSlot(slot);
+            return true;
+        }
+
+        protected synchronized int evictExpired(long now) {
+            int evicted = 0;
+            for (int slot = 0; slot < addresses.length; ) {
+                if (addresses[slot] != 0 && isExpired(addresses[slot], now)) {
+                    // Removal shifts following entries back, so the same slot is checked again.
+                    removeSlot(slot);
+                    evicted++;
+                } else {
+                    slot++;
+                }
+            }
+            return evicted;
+        }
+
+        protected synchronized void clear() {
+            Arrays.fill(slabs, null);
+            Arrays.fill(usedBytes, 0);
+            Arrays.fill(liveBytes, 0);
+            currentSlab = -1;
+            addresses = new long[INITIAL_INDEX_CAPACITY];
+            hashes = new int[INITIAL_INDEX_CAPACITY];
+            size = 0;
+        }
+
+        protected synchronized int size() {
+            return size;
+        }
+
+        protected synchronized long getAllocatedMemory() {
+            long memory = 0;
+            for (ByteBuffer slab : slabs) {
+                if (slab != null) {
+                    memory += slab.capacity();
+                }
+            }
+            return memory;
+        }
+
+        protected synchronized long getLiveMemory() {
+            long memory = 0;
+            for (int bytes : liveBytes) {
+                memory += bytes;
+            }
+            return memory;
+        }
+
+        protected int findLive(byte[] key, int hash, long now) {
+            int slot = find(key, hash);
+            if (slot >= 0 && isExpired(addresses[slot], now)) {
+                removeSlot(slot);
+                return -1;
+            }
+            return slot;
+        }
+
+        protected int find(byte[] key, int hash) {
+            int mask = addresses.length - 1;
+            for (int slot = hash & mask; addresses[slot] != 0; slot = (slot + 1) & mask) {
+                if (hashes[slot] == hash && keyEquals(addresses[slot], key)) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        protected int findAddress(int hash, long address) {
+            int mask = addresses.length - 1;
+            for (int slot = hash & mask; addresses[slot] != 0; slot = (slot + 1) & mask) {
+                if (addresses[slot] == address) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        protected void insert(int hash, long address) {
+            if ((size + 1) * 4L > addresses.length * 3L) {
+                resize(addresses.length * 2);
+            }
+            int mask = addresses.length - 1;
+            int slot = hash & mask;
+            while (addresses[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            addresses[slot] = address;
+            hashes[slot] = hash;
+            size++;
+        }
+
+        protected void resize(int capacity) {
+            long[] oldAddresses = addresses;
+            int[] oldHashes = hashes;
+            addresses = new long[capacity];
+            hashes = new int[capacity];
+            int mask = capacity - 1;
+            for (int i = 0; i < oldAddresses.length; i++) {
+                if (oldAddresses[i] != 0) {
+                    int slot = oldHashes[i] & mask;
+                    while (addresses[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    addresses[slot] = oldAddresses[i];
+                    hashes[slot] = oldHashes[i];
+                }
+            }
+        }
+
+        /**
+         * Removes the slot with backward shift deletion, so that linear probing needs no tombstones.
+         */
+        protected void removeSlot(int slot) {
+            release(addresses[slot]);
+            int mask = addresses.length - 1;
+            int hole = slot;
+            for (int next = (slot + 1) & mask; addresses[next] != 0; next = (next + 1) & mask) {
+                int home = hashes[next] & mask;
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    addresses[hole] = addresses[next];
+                    hashes[hole] = hashes[next];
+                    hole = next;
+                }
+            }
+            addresses[hole] = 0;
+            hashes[hole] = 0;
+            size--;
+        }
+
+        protected long allocate(int recordSize, long now) {
+            if (currentSlab < 0 || usedBytes[currentSlab] + recordSize > slabSize) {
+                switchSlab(recordSize, now);
+            }
+            int offset = usedBytes[currentSlab];
+            usedBytes[currentSlab] += recordSize;
+            liveBytes[currentSlab] += recordSize;
+            return address(currentSlab, offset);
+        }
+
+        protected void switchSlab(int recordSize, long now) {
+            int slab = findEmptySlab();
+            if (slab < 0) {
+                evictExpired(now);
+                slab = findEmptySlab();
+            }
+            if (slab >= 0) {
+                currentSlab = slab;
+                compactSparseSlabs(recordSize, now);
+                return;
+            }
+            // No empty slab is left: the sparsest slab is emptied into the free space of the current one and takes its place.
+            int victim = findSparsestSlab();
+            if (victim < 0 || liveBytes[victim] > slabSize - usedBytes[currentSlab]) {
+                throw segmentFull();
+            }
+            evacuate(victim, now);
+            currentSlab = victim;
+        }
+
+        protected OffHeapStoreFullException segmentFull() {
+            return new OffHeapStoreFullException("Off-heap store segment is full, " + slabs.length + " slabs of " + slabSize + " bytes are in use");
+        }
+
+        protected int findEmptySlab() {
+            int unallocated = -1;
+            for (int i = 0; i < slabs.length; i++) {
+                if (i == currentSlab) {
+                    continue;
+                }
+                if (slabs[i] != null && liveBytes[i] == 0) {
+                    usedBytes[i] = 0;
+                    return i;
+                }
+                if (slabs[i] == null && unallocated < 0) {
+                    unallocated = i;
+                }
+            }
+            if (unallocated >= 0) {
+                slabs[unallocated] = ByteBuffer.allocateDirect(slabSize);
+                usedBytes[unallocated] = 0;
+            }
+            return unallocated;
+        }
+
+        protected int findSparsestSlab() {
+            int sparsest = -1;
+            for (int i = 0; i < slabs.length; i++) {
+                if (i != currentSlab && slabs[i] != null && (sparsest < 0 || liveBytes[i] < liveBytes[sparsest])) {
+                    sparsest = i;
+                }
+            }
+            return sparsest;
+        }
+
+        /**
+         * Moves live records of slabs below the compaction threshold into the fresh current slab while they fit next to
+         * the record being allocated.
+         *
+         * @param reservedBytes size of the record being allocated, which has to fit into the current slab afterwards
+         */
+        protected void compactSparseSlabs(int reservedBytes, long now) {
+            for (int i = 0; i < slabs.length; i++) {
+                if (i == currentSlab || slabs[i] == null || usedBytes[i] == 0) {
+                    continue;
+                }
+                boolean sparse = liveBytes[i] < usedBytes[i] * compactionThreshold;
+                if (sparse && liveBytes[i] <= slabSize - usedBytes[currentSlab] - reservedBytes) {
+                    evacuate(i, now);
+                }
+            }
+        }
+
+        /**
+         * Copies live records of the slab into the current slab and empties it. Expired records are dropped on the way.
+         */
+        protected void evacuate(int slab, long now) {
+            ByteBuffer source = slabs[slab];
+            int offset = 0;
+            while (offset < usedBytes[slab]) {
+                int recordSize = HEADER_SIZE + source.getInt(offset + KEY_LENGTH_OFFSET) + source.getInt(offset + VALUE_LENGTH_OFFSET);
+                long address = address(slab, offset);
+                int slot = findAddress(source.getInt(offset + HASH_OFFSET), address);
+                if (slot >= 0) {
+                    if (isExpired(address, now)) {
+                        removeSlot(slot);
+                    } else {
+                        addresses[slot] = copy(source, offset, recordSize);
+                    }
+                }
+                offset += recordSize;
+            }
+            usedBytes[slab] = 0;
+            liveBytes[slab] = 0;
+        }
+
+        protected long copy(ByteBuffer source, int offset, int recordSize) {
+            ByteBuffer record = source.duplicate();
+            record.limit(offset + recordSize);
+            record.position(offset);
+            ByteBuffer target = slabs[currentSlab].duplicate();
+            target.position(usedBytes[currentSlab]);
+            target.put(record);
+            long address = address(currentSlab, usedBytes[currentSlab]);
+            usedBytes[currentSlab] += recordSize;
+            liveBytes[currentSlab] += recordSize;
+            return address;
+        }
+
+        protected void writeRecord(long address, byte[] key, int hash, byte[] value, long expiresAt) {
+            ByteBuffer slab = slabOf(address);
+            int offset = offsetOf(address);
+            slab.putInt(offset + HASH_OFFSET, hash);
+            slab.putInt(offset + KEY_LENGTH_OFFSET, key.length);
+            slab.putInt(offset + VALUE_LENGTH_OFFSET, value.length);
+            slab.putLong(offset + EXPIRATION_OFFSET, expiresAt);
+            ByteBuffer target = slab.duplicate();
+            target.position(offset + HEADER_SIZE);
+            target.put(key);
+            target.put(value);
+        }
+
+        protected byte[] readValue(long address) {
+            ByteBuffer slab = slabOf(address);
+            int offset = offsetOf(address);
+            byte[] value = new byte[slab.getInt(offset + VALUE_LENGTH_OFFSET)];
+            ByteBuffer source = slab.duplicate();
+            source.position(offset + HEADER_SIZE + slab.getInt(offset + KEY_LENGTH_OFFSET));
+            source.get(value);
+            return value;
+        }
+
+        protected boolean keyEquals(long address, byte[] key) {
+            ByteBuffer slab = slabOf(address);
+            int offset = offsetOf(address);
+            if (slab.getInt(offset + KEY_LENGTH_OFFSET) != key.length) {
+                return false;
+            }
+            int keyOffset = offset + HEADER_SIZE;
+            for (int i = 0; i < key.length; i++) {
+                if (slab.get(keyOffset + i) != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        protected boolean isExpired(long address, long now) {
+            long expiresAt = slabOf(address).getLong(offsetOf(address) + EXPIRATION_OFFSET);
+            return expiresAt != 0 && expiresAt <= now;
+        }
+
+        protected void release(long address) {
+            ByteBuffer slab = slabOf(address);
+            int offset = offsetOf(address);
+            liveBytes[slabNumberOf(address)] -= HEADER_SIZE + slab.getInt(offset + KEY_LENGTH_OFFSET) + slab.getInt(offset + VALUE_LENGTH_OFFSET);
+        }
+
+        protected ByteBuffer slabOf(long address) {
+            return slabs[slabNumberOf(address)];
+        }
+
+        protected static long address(int slab, int offset) {
+            return ((long) (slab + 1) << 32) | (offset & 0xFFFFFFFFL);
+        }
+
+        protected static int slabNumberOf(long address) {
+            return (int) (address >>> 32) - 1;
+        }
+
+        protected static int offsetOf(long address) {
+            return (int) address;
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+public class OffHeapStoreFullException extends SessionStoreUnavailableException {
+
+    public OffHeapStoreFullException(String message) {
+        super(message);
+    }
+}
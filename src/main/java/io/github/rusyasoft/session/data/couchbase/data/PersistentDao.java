@@ -1,11 +1,22 @@
 package io.github.rusyasoft.session.data.couchbase.data;
 
+import com.couchbase.client.core.message.kv.subdoc.multi.Lookup;
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.ReplicaMode;
 import com.couchbase.client.java.document.JsonDocument;
 import com.couchbase.client.java.document.json.JsonArray;
 import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.query.AsyncN1qlQueryRow;
+import com.couchbase.client.java.query.N1qlParams;
 import com.couchbase.client.java.query.N1qlQueryResult;
 import com.couchbase.client.java.query.N1qlQueryRow;
 import com.couchbase.client.java.query.consistency.ScanConsistency;
+import com.couchbase.client.java.subdoc.DocumentFragment;
+import com.couchbase.client.java.subdoc.MutateInBuilder;
+import com.couchbase.client.java.subdoc.SubdocOptionsBuilder;
 import io.github.rusyasoft.session.data.couchbase.config.SessionCouchbaseProperties;
 import io.github.rusyasoft.session.data.couchbase.core.CouchbaseJsonSerializer;
 import io.github.rusyasoft.session.data.couchbase.core.CouchbaseSessionRepository;
@@ -13,53 +24,127 @@ import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.collections4.MapUtils;
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.couchbase.core.CouchbaseQueryExecutionException;
 import org.springframework.data.couchbase.core.CouchbaseTemplate;
+import org.springframework.retry.RetryCallback;
+import org.springframework.retry.backoff.NoBackOffPolicy;
+import org.springframework.retry.policy.NeverRetryPolicy;
 import org.springframework.retry.support.RetryTemplate;
+import rx.Observable;
+import rx.functions.Action0;
 
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 
 import static com.couchbase.client.java.document.json.JsonArray.from;
 import static com.couchbase.client.java.document.json.JsonObject.create;
 import static com.couchbase.client.java.query.N1qlParams.build;
 import static com.couchbase.client.java.query.N1qlQuery.parameterized;
+import static io.github.rusyasoft.session.data.couchbase.core.SessionTimeoutPolicy.SECURITY_CONTEXT_ATTRIBUTE;
+import static io.github.rusyasoft.session.data.couchbase.data.AsyncSessionDao.join;
+import static io.github.rusyasoft.session.data.couchbase.data.CouchbaseDeadline.boundTo;
+import static java.util.Collections.emptyList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.stream.Collectors.toList;
 import static org.slf4j.LoggerFactory.getLogger;
+import static org.springframework.util.Assert.notNull;
 
 
 public class PersistentDao implements SessionDao {
 
+    protected static final String NAMESPACE_KEY_SEPARATOR = "::";
+    protected static final String NAMESPACES_FIELD = "namespaces";
+    protected static final int BULK_OPERATION_CONCURRENCY = 64;
+    protected static final String EXPIRATION_XATTR = "$document.exptime";
+
     protected final String bucket;
     protected final ScanConsistency queryConsistency;
-    protected final CouchbaseTemplate couchbaseTemplate;
+    protected final DocumentLayout documentLayout;
+    protected final String applicationNamespace;
+    protected final SaveMode saveMode;
+    protected final int casMaxAttempts;
+    protected final boolean preparedStatements;
+    protected final Supplier<CouchbaseTemplate> couchbaseTemplate;
     protected final RetryTemplate retryTemplate;
+    protected final CouchbaseCircuitBreaker circuitBreaker;
+    protected final Duration deadline;
+    protected final AsyncSessionDao async = new PersistentAsyncDao();
+    protected final HedgedReadPolicy hedgedReadPolicy;
+    protected Executor continuationExecutor = ForkJoinPool.commonPool();
 
     private static final Logger log = getLogger(PersistentDao.class);
 
     public PersistentDao(SessionCouchbaseProperties sessionCouchbase, CouchbaseTemplate couchbaseTemplate, RetryTemplate retryTemplate) {
-        bucket = couchbaseTemplate.getCouchbaseBucket().name();
+        this(sessionCouchbase, couchbaseTemplate, retryTemplate, new CouchbaseCircuitBreaker(sessionCouchbase, new TransientErrorClassifier()));
+    }
+
+    public PersistentDao(SessionCouchbaseProperties sessionCouchbase, CouchbaseTemplate couchbaseTemplate, RetryTemplate retryTemplate,
+                         CouchbaseCircuitBreaker circuitBreaker) {
+        this(sessionCouchbase, couchbaseTemplate.getCouchbaseBucket().name(), () -> couchbaseTemplate, retryTemplate, circuitBreaker);
+    }
+
+    /**
+     * Creates data access object resolving the Couchbase template on first use, so that the bucket can be opened in the
+     * background.
+     */
+    public PersistentDao(SessionCouchbaseProperties sessionCouchbase, String bucketName, Supplier<CouchbaseTemplate> couchbaseTemplate,
+                         RetryTemplate retryTemplate, CouchbaseCircuitBreaker circuitBreaker) {
+        bucket = bucketName;
         queryConsistency = sessionCouchbase.getPersistent().getQueryConsistency();
+        documentLayout = sessionCouchbase.getPersistent().getDocumentLayout();
+        applicationNamespace = sessionCouchbase.getApplicationNamespace();
+        saveMode = sessionCouchbase.getPersistent().getSaveMode();
+        casMaxAttempts = sessionCouchbase.getPersistent().getCas().getMaxAttempts();
+        preparedStatements = sessionCouchbase.getPersistent().getBootstrap().isPrepareStatements();
         this.couchbaseTemplate = couchbaseTemplate;
         this.retryTemplate = retryTemplate;
+        this.circuitBreaker = circuitBreaker;
+        deadline = sessionCouchbase.getPersistent().getRetry().getDeadline();
+        SessionCouchbaseProperties.Persistent.HedgedReads hedgedReads = sessionCouchbase.getPersistent().getHedgedReads();
+        hedgedReadPolicy = hedgedReads.isEnabled() ? new HedgedReadPolicy(hedgedReads) : null;
+    }
+
+    /**
+     * Sets the executor running continuations of asynchronous operations, so that they do not hold up the threads of
+     * the Couchbase client.
+     */
+    public void setContinuationExecutor(Executor continuationExecutor) {
+        notNull(continuationExecutor, "Missing continuation executor");
+        this.continuationExecutor = continuationExecutor;
     }
 
     @Override
     public void insertNamespace(String namespace, String id) {
+        if (isSplitLayout()) {
+            upsertDocument(documentKey(id, namespace), create().put("data", create().put(namespace, create())));
+            String statement = "UPDATE `" + bucket + "` USE KEYS $1 SET "
+                    + NAMESPACES_FIELD + " = ARRAY_PUT(IFMISSINGORNULL(" + NAMESPACES_FIELD + ", []), $2)";
+            executeQuery(statement, from(id, namespace));
+            return;
+        }
         String statement = "UPDATE `" + bucket + "` USE KEYS $1 SET data.`" + namespace + "` = {}";
         executeQuery(statement, from(id, namespace));
     }
 
     @Override
     public void updateSession(Map<String, Object> attributesToUpdate, Set<String> attributesToRemove, String namespace, String id) {
+        join(async.updateSession(attributesToUpdate, attributesToRemove, namespace, id));
+    }
+
+    protected CompletableFuture<List<JsonObject>> updateSessionWithQuery(Map<String, Object> attributesToUpdate, Set<String> attributesToRemove,
+                                                                         String namespace, String id) {
         StringBuilder statement = new StringBuilder("UPDATE `").append(bucket).append("` USE KEYS $1");
         List<Object> parameters = new ArrayList<>(attributesToUpdate.size() + attributesToRemove.size() + 1);
-        parameters.add(id);
-        int parameterIndex = 2;
+        parameters.add(documentKey(id, namespace));
         if (MapUtils.isNotEmpty(attributesToUpdate)) {
             statement.append(" SET ");
             for (Map.Entry<String, Object> attribute : attributesToUpdate.entrySet()) {
                 parameters.add(attribute.getValue());
-                //statement.append("data.`").append(namespace).append("`.`").append(attribute.getKey()).append("` = $").append(parameterIndex++).append(",");
                 statement.append("data.`").append(namespace).append("`.`").append(attribute.getKey()).append("` = ").append(attribute.getValue()).append(",");
             }
             deleteLastCharacter(statement);
@@ -69,25 +154,104 @@ public class PersistentDao implements SessionDao {
             attributesToRemove.forEach(name -> statement.append("data.`").append(namespace).append("`.`").append(name).append("`,"));
             deleteLastCharacter(statement);
         }
-        executeQuery(statement.toString(), from(parameters));
+        return executeQueryAsync(statement.toString(), from(parameters), false);
+    }
+
+    /**
+     * Merges attribute changes into the document with sub-document mutations. Upserts never depend on the current content,
+     * so without removals a single mutation is enough. Removing a missing path fails the whole mutation, so removals
+     * first look up which of the removed paths exist and guard the mutation with the CAS of that lookup.
+     */
+    protected void updateSessionWithCas(Map<String, Object> attributesToUpdate, Set<String> attributesToRemove, String namespace, String id) {
+        if (MapUtils.isEmpty(attributesToUpdate) && CollectionUtils.isEmpty(attributesToRemove)) {
+            return;
+        }
+        Bucket couchbaseBucket = couchbaseTemplate().getCouchbaseBucket();
+        String key = documentKey(id, namespace);
+        if (CollectionUtils.isEmpty(attributesToRemove)) {
+            MutateInBuilder mutation = couchbaseBucket.mutateIn(key);
+            upsertAttributes(mutation, attributesToUpdate, namespace);
+            try {
+                execute(context -> mutation.execute(kvTimeout(couchbaseBucket), MILLISECONDS));
+            } catch (DocumentDoesNotExistException e) {
+                log.debug("HTTP session document {} does not exist, attributes have not been updated", key);
+            }
+            return;
+        }
+        String[] removedPaths = attributesToRemove.stream()
+                .map(name -> attributePath(namespace, name))
+                .toArray(String[]::new);
+        for (int attempt = 1; ; attempt++) {
+            DocumentFragment<Lookup> current;
+            try {
+                current = execute(context -> couchbaseBucket.lookupIn(key).exists(removedPaths).execute(kvTimeout(couchbaseBucket), MILLISECONDS));
+            } catch (DocumentDoesNotExistException e) {
+                log.debug("HTTP session document {} does not exist, attributes have not been updated", key);
+                return;
+            }
+            MutateInBuilder mutation = couchbaseBucket.mutateIn(key).withCas(current.cas());
+            boolean mutated = upsertAttributes(mutation, attributesToUpdate, namespace);
+            for (String path : removedPaths) {
+                if (current.exists(path)) {
+                    mutation.remove(path);
+                    mutated = true;
+                }
+            }
+            if (!mutated) {
+                return;
+            }
+            try {
+                execute(context -> mutation.execute(kvTimeout(couchbaseBucket), MILLISECONDS));
+                return;
+            } catch (CASMismatchException e) {
+                if (attempt >= casMaxAttempts) {
+                    throw e;
+                }
+                log.debug("HTTP session document {} has been modified concurrently, merging changes again (attempt {})", key, attempt);
+            }
+        }
+    }
+
+    protected boolean upsertAttributes(MutateInBuilder mutation, Map<String, Object> attributesToUpdate, String namespace) {
+        if (MapUtils.isEmpty(attributesToUpdate)) {
+            return false;
+        }
+        for (Map.Entry<String, Object> attribute : attributesToUpdate.entrySet()) {
+            mutation.upsert(attributePath(namespace, attribute.getKey()), toJsonValue(attribute.getValue()), new SubdocOptionsBuilder().createPath(true));
+        }
+        return true;
+    }
+
+    protected String attributePath(String namespace, String attributeName) {
+        return "data.`" + namespace + "`.`" + attributeName + "`";
+    }
+
+    protected Object toJsonValue(Object serializedValue) {
+        if (serializedValue == null) {
+            return null;
+        }
+        return JsonObject.fromJson("{\"value\":" + serializedValue + "}").get("value");
     }
 
     @Override
     public void updatePutPrincipalSession(String principal, String sessionId) {
-        String statement = "UPDATE `" + bucket + "` USE KEYS $1 SET sessionIds = ARRAY_PUT(sessionIds, $2)";
-        executeQuery(statement, from(principal, sessionId));
+        join(async.updatePutPrincipalSession(principal, sessionId));
     }
 
     @Override
     public void updateRemovePrincipalSession(String principal, String sessionId) {
-        String statement = "UPDATE `" + bucket + "` USE KEYS $1 SET sessionIds = ARRAY_REMOVE(sessionIds, $2)";
-        executeQuery(statement, from(principal, sessionId));
+        join(async.updateRemovePrincipalSession(principal, sessionId));
+    }
+
+    @Override
+    public void updateRemovePrincipalSessions(String principal, Collection<String> sessionIds) {
+        join(async.updateRemovePrincipalSessions(principal, sessionIds));
     }
 
     @Override
     public Map<String, Object> findSessionAttributes(String id, String namespace) {
         String statement = "SELECT data.`" + namespace + "` FROM `" + bucket + "` USE KEYS $1";
-        N1qlQueryResult result = executeQuery(statement, from(id));
+        N1qlQueryResult result = executeQuery(statement, from(documentKey(id, namespace)));
         JsonObject document = getDocument(namespace, result);
         if (document == null) {
             return null;
@@ -105,9 +269,108 @@ public class PersistentDao implements SessionDao {
         Map<String, Object> namespaces = document.getObject("data").toMap();
         Map<String, Map<String, Object>> data = new HashMap<>(namespaces.size());
         namespaces.forEach((namespace, namespaceData) -> data.put(namespace, (Map<String, Object>) namespaceData));
+        if (isSplitLayout()) {
+            for (String namespace : getNamespaceNames(document)) {
+                JsonObject namespaceDocument = findByDocumentKey(documentKey(id, namespace));
+                JsonObject namespaceData = namespaceDocument == null ? null : namespaceDocument.getObject("data").getObject(namespace);
+                if (namespaceData != null) {
+                    data.put(namespace, namespaceData.toMap());
+                }
+            }
+        }
         return new SessionDocument(id, data);
     }
 
+    @Override
+    public SessionNamespacesDocument findNamespaces(String id, String... namespaces) {
+        return findNamespaces(id, null, namespaces);
+    }
+
+    @Override
+    public SessionNamespacesDocument findNamespacesAndTouch(String id, int expiry, String... namespaces) {
+        return findNamespaces(id, expiry, namespaces);
+    }
+
+    protected SessionNamespacesDocument findNamespaces(String id, Integer expiry, String... namespaces) {
+        if (isSplitLayout()) {
+            return findSplitNamespaces(id, expiry, namespaces);
+        }
+        JsonObject document;
+        boolean fromReplica = false;
+        if (expiry != null) {
+            // Replicas cannot touch documents, so reads updating the expiration always go to the active copy.
+            document = getAndTouchDocument(id, expiry);
+        } else if (hedgedReadPolicy == null) {
+            document = getDocument(id);
+        } else {
+            HedgedDocument hedgedDocument = getHedgedDocument(id);
+            document = hedgedDocument == null ? null : hedgedDocument.getContent();
+            fromReplica = hedgedDocument != null && hedgedDocument.isFromReplica();
+        }
+        if (document == null) {
+            return null;
+        }
+        JsonObject data = document.getObject("data");
+        Map<String, JsonObject> namespacesData = new HashMap<>(namespaces.length);
+        for (String namespace : namespaces) {
+            JsonObject namespaceData = data == null ? null : data.getObject(namespace);
+            if (namespaceData != null) {
+                namespacesData.put(namespace, namespaceData);
+            }
+        }
+        return new SessionNamespacesDocument(id, namespacesData, fromReplica);
+    }
+
+    @Override
+    public Map<String, SessionNamespacesDocument> findNamespaces(Collection<String> ids, String... namespaces) {
+        Set<String> keys = new LinkedHashSet<>(ids.size() * namespaces.length);
+        for (String id : ids) {
+            for (String namespace : namespaces) {
+                keys.add(documentKey(id, namespace));
+            }
+        }
+        Map<String, JsonObject> documents = getDocuments(new ArrayList<>(keys), null);
+        Map<String, SessionNamespacesDocument> namespacesDocuments = new LinkedHashMap<>(ids.size());
+        for (String id : ids) {
+            Map<String, JsonObject> namespacesData = new HashMap<>(namespaces.length);
+            boolean found = false;
+            for (String namespace : namespaces) {
+                JsonObject document = documents.get(documentKey(id, namespace));
+                found |= document != null;
+                JsonObject data = document == null ? null : document.getObject("data");
+                JsonObject namespaceData = data == null ? null : data.getObject(namespace);
+                if (namespaceData != null) {
+                    namespacesData.put(namespace, namespaceData);
+                }
+            }
+            if (found) {
+                namespacesDocuments.put(id, new SessionNamespacesDocument(id, namespacesData));
+            }
+        }
+        return namespacesDocuments;
+    }
+
+    protected SessionNamespacesDocument findSplitNamespaces(String id, Integer expiry, String... namespaces) {
+        List<String> keys = new ArrayList<>(namespaces.length);
+        for (String namespace : namespaces) {
+            keys.add(documentKey(id, namespace));
+        }
+        Map<String, JsonObject> documents = getDocuments(keys, expiry);
+        if (documents.isEmpty()) {
+            return null;
+        }
+        Map<String, JsonObject> namespacesData = new HashMap<>(namespaces.length);
+        for (int i = 0; i < namespaces.length; i++) {
+            JsonObject document = documents.get(keys.get(i));
+            JsonObject data = document == null ? null : document.getObject("data");
+            JsonObject namespaceData = data == null ? null : data.getObject(namespaces[i]);
+            if (namespaceData != null) {
+                namespacesData.put(namespaces[i], namespaceData);
+            }
+        }
+        return new SessionNamespacesDocument(id, namespacesData);
+    }
+
     @Override
     public PrincipalSessionsDocument findByPrincipal(String principal) {
         JsonObject document = findByDocumentKey(principal);
@@ -122,34 +385,74 @@ public class PersistentDao implements SessionDao {
 
     @Override
     public void updateExpirationTime(String id, int expiry) {
-        couchbaseTemplate.getCouchbaseBucket().touch(id, expiry);
+        join(async.updateExpirationTime(id, expiry));
     }
 
     @Override
     public void save(SessionDocument document) {
-        String statement = "UPSERT INTO `" + bucket + "` (KEY, VALUE) VALUES ($1, $2)";
-        JsonObject json = create().put("data", document.getData());
-        executeQuery(statement, from(document.getId(), json));
+        toDocuments(document).forEach(this::upsertDocument);
+    }
+
+    @Override
+    public void save(SessionDocument document, int expiry) {
+        join(async.save(document, expiry));
+    }
+
+    /**
+     * Returns the contents of the documents the HTTP session is stored in, keyed by document key. Namespace documents
+     * of the split layout precede the session document listing them.
+     */
+    protected Map<String, JsonObject> toDocuments(SessionDocument document) {
+        Map<String, JsonObject> documents = new LinkedHashMap<>();
+        if (!isSplitLayout()) {
+            documents.put(document.getId(), create().put("data", document.getData()));
+            return documents;
+        }
+        List<String> namespaces = new ArrayList<>(document.getData().size());
+        document.getData().forEach((namespace, namespaceData) -> {
+            if (!SessionDocument.GLOBAL_NAMESPACE.equals(namespace)) {
+                documents.put(documentKey(document.getId(), namespace), create().put("data", create().put(namespace, namespaceData)));
+                namespaces.add(namespace);
+            }
+        });
+        Map<String, Object> globalData = document.getData().get(SessionDocument.GLOBAL_NAMESPACE);
+        JsonObject global = create()
+                .put("data", create().put(SessionDocument.GLOBAL_NAMESPACE, globalData == null ? create() : JsonObject.from(globalData)))
+                .put(NAMESPACES_FIELD, JsonArray.from(namespaces));
+        documents.put(document.getId(), global);
+        return documents;
     }
 
     @Override
     public void save(PrincipalSessionsDocument document) {
-        String statement = "UPSERT INTO `" + bucket + "` (KEY, VALUE) VALUES ($1, $2)";
-        JsonObject json = create().put("sessionIds", document.getSessionIds());
-        executeQuery(statement, from(document.getPrincipal(), json));
+        join(async.save(document));
+    }
+
+    @Override
+    public void save(PrincipalSessionsDocument document, int expiry) {
+        JsonObject content = create().put("sessionIds", document.getSessionIds());
+        JsonDocument json = JsonDocument.create(document.getPrincipal(), expiry, content);
+        join(executeAsync(() -> couchbaseTemplate().getCouchbaseBucket().async().upsert(json)));
     }
 
     @Override
     public boolean exists(String documentId) {
-        String statement = "SELECT * FROM `" + bucket + "` USE KEYS $1";
-        N1qlQueryResult result = executeQuery(statement, from(documentId));
-        return result.rows().hasNext();
+        return join(async.exists(documentId));
     }
 
     @Override
     public void delete(String id) {
-        String statement = "DELETE FROM `" + bucket + "` USE KEYS $1";
-        executeQuery(statement, from(id));
+        join(async.delete(id));
+    }
+
+    @Override
+    public void deleteSessions(Collection<String> ids) {
+        join(async.deleteSessions(ids));
+    }
+
+    @Override
+    public AsyncSessionDao async() {
+        return async;
     }
 
     @Override
@@ -158,9 +461,33 @@ public class PersistentDao implements SessionDao {
         executeQuery(statement, from());
     }
 
+    protected void upsertDocument(String key, JsonObject document) {
+        executeQuery(upsertStatement(), from(key, document), true);
+    }
+
+    protected boolean isSplitLayout() {
+        return documentLayout == DocumentLayout.SPLIT;
+    }
+
+    protected String documentKey(String id, String namespace) {
+        if (!isSplitLayout() || SessionDocument.GLOBAL_NAMESPACE.equals(namespace)) {
+            return id;
+        }
+        return id + NAMESPACE_KEY_SEPARATOR + namespace;
+    }
+
+    protected List<String> getNamespaceNames(JsonObject document) {
+        JsonArray namespaces = document.getArray(NAMESPACES_FIELD);
+        if (namespaces == null) {
+            return new ArrayList<>();
+        }
+        return namespaces.toList().stream()
+                .map(namespace -> (String) namespace)
+                .collect(toList());
+    }
+
     protected JsonObject findByDocumentKey(String key) {
-        String statement = "SELECT * FROM `" + bucket + "` USE KEYS $1";
-        N1qlQueryResult result = executeQuery(statement, from(key));
+        N1qlQueryResult result = executeQuery(selectStatement(), from(key), true);
         return getDocument(bucket, result);
     }
 
@@ -172,16 +499,206 @@ public class PersistentDao implements SessionDao {
         return attributes.get(0).value().getObject(rootNode);
     }
 
+    /**
+     * Executes statements with fixed text of this data access object once, so that their query plans are prepared
+     * before the first HTTP request. The statements get an empty key list, so they cannot match any document, whatever
+     * keys principals or sessions have.
+     */
+    public void prepareStatements() {
+        JsonArray noKeys = JsonArray.empty();
+        executeQuery(selectStatement(), from(noKeys), true);
+        executeQuery(putPrincipalSessionStatement(), from(noKeys, ""), true);
+        executeQuery(removePrincipalSessionStatement(), from(noKeys, ""), true);
+        executeQuery(removePrincipalSessionsStatement(), from(noKeys, JsonArray.empty()), true);
+        executeQuery(deleteStatement(), from(noKeys), true);
+    }
+
+    protected String selectStatement() {
+        return "SELECT * FROM `" + bucket + "` USE KEYS $1";
+    }
+
+    protected String upsertStatement() {
+        return "UPSERT INTO `" + bucket + "` (KEY, VALUE) VALUES ($1, $2)";
+    }
+
+    protected String deleteStatement() {
+        return "DELETE FROM `" + bucket + "` USE KEYS $1";
+    }
+
+    protected String putPrincipalSessionStatement() {
+        return "UPDATE `" + bucket + "` USE KEYS $1 SET sessionIds = ARRAY_PUT(sessionIds, $2)";
+    }
+
+    protected String removePrincipalSessionStatement() {
+        return "UPDATE `" + bucket + "` USE KEYS $1 SET sessionIds = ARRAY_REMOVE(sessionIds, $2)";
+    }
+
+    protected String removePrincipalSessionsStatement() {
+        return "UPDATE `" + bucket + "` USE KEYS $1 SET sessionIds = ARRAY id FOR id IN sessionIds WHEN id NOT IN $2 END";
+    }
+
     protected N1qlQueryResult executeQuery(String statement, JsonArray parameters) {
-        return retryTemplate.execute(context -> {
-            N1qlQueryResult result = couchbaseTemplate.queryN1QL(parameterized(statement, parameters, build().consistency(queryConsistency)));
+        return executeQuery(statement, parameters, false);
+    }
+
+    protected N1qlQueryResult executeQuery(String statement, JsonArray parameters, boolean fixedStatement) {
+        return execute(context -> {
+            N1qlQueryResult result = couchbaseTemplate().queryN1QL(
+                    parameterized(statement, parameters, queryParams(fixedStatement, CouchbaseDeadline.current())));
             if (hasQueryFailed(result)) {
-                throw new CouchbaseQueryExecutionException("Error executing N1QL statement '" + statement + "'. " + result.errors());
+                throw new CouchbaseQueryException(statement, result.errors());
             }
             return result;
         });
     }
 
+    protected CompletableFuture<List<JsonObject>> executeQueryAsync(String statement, JsonArray parameters, boolean fixedStatement) {
+        CouchbaseDeadline operationDeadline = operationDeadline();
+        return executeAsync(operationDeadline, () -> couchbaseTemplate().getCouchbaseBucket().async()
+                .query(parameterized(statement, parameters, queryParams(fixedStatement, operationDeadline)))
+                .flatMap(result -> result.errors()
+                        .toList()
+                        .flatMap(errors -> errors.isEmpty()
+                                ? result.rows()
+                                : Observable.<AsyncN1qlQueryRow>error(new CouchbaseQueryException(statement, errors))))
+                .map(AsyncN1qlQueryRow::value)
+                .toList());
+    }
+
+    /**
+     * Builds parameters of a N1QL statement. The server gives up on statements running past the deadline.
+     */
+    protected N1qlParams queryParams(boolean fixedStatement, CouchbaseDeadline operationDeadline) {
+        N1qlParams params = build().consistency(queryConsistency).adhoc(!(fixedStatement && preparedStatements));
+        if (operationDeadline != null) {
+            params.serverSideTimeout(Math.max(1, NANOSECONDS.toMillis(operationDeadline.getRemainingNanos())), MILLISECONDS);
+        }
+        return params;
+    }
+
+    protected <T> CompletableFuture<T> executeAsync(Supplier<Observable<T>> operation) {
+        return executeAsync(operationDeadline(), operation);
+    }
+
+    protected <T> CompletableFuture<T> executeAsync(CouchbaseDeadline operationDeadline, Supplier<Observable<T>> operation) {
+        return executeAsync(operationDeadline, 1, operation);
+    }
+
+    /**
+     * Issues the asynchronous operation. It completes on other threads, so the deadline of the repository call and the
+     * account of the HTTP request current when it has been issued are kept for its retries. Every attempt is cut short to
+     * the remaining budget and counted as the given number of round trips.
+     */
+    protected <T> CompletableFuture<T> executeAsync(CouchbaseDeadline operationDeadline, int roundTrips, Supplier<Observable<T>> operation) {
+        SessionOperationAccount account = SessionOperationAccount.current();
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            if (operationDeadline != null) {
+                operationDeadline.check();
+            }
+            circuitBreaker.acquirePermission();
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        AsyncRetryHandler retryHandler = createAsyncRetryHandler(operationDeadline);
+        Observable.defer(() -> {
+            recordRoundTrips(account, roundTrips);
+            return operationDeadline == null
+                    ? operation.get()
+                    : operation.get().timeout(Math.max(1, operationDeadline.getRemainingNanos()), NANOSECONDS);
+        })
+                .retryWhen(retryHandler)
+                .lastOrDefault(null)
+                .subscribe(result -> {
+                    retryHandler.close(null);
+                    circuitBreaker.onSuccess();
+                    future.complete(result);
+                }, error -> {
+                    retryHandler.close(error);
+                    circuitBreaker.onError(error);
+                    future.completeExceptionally(error);
+                });
+        return future;
+    }
+
+    /**
+     * Creates the retry handler of an asynchronous operation following the retry template. The retry configuration of
+     * other templates than {@link CouchbaseRetryTemplate} is not accessible, their asynchronous operations are not retried.
+     */
+    protected AsyncRetryHandler createAsyncRetryHandler(CouchbaseDeadline operationDeadline) {
+        if (retryTemplate instanceof CouchbaseRetryTemplate) {
+            return ((CouchbaseRetryTemplate) retryTemplate).createAsyncRetryHandler(operationDeadline);
+        }
+        return new AsyncRetryHandler(new NeverRetryPolicy(), new NoBackOffPolicy(), emptyList(), operationDeadline);
+    }
+
+    protected CouchbaseTemplate couchbaseTemplate() {
+        return couchbaseTemplate.get();
+    }
+
+    protected <T> T execute(RetryCallback<T, RuntimeException> operation) {
+        return execute(1, operation);
+    }
+
+    /**
+     * Runs the blocking operation, counting every attempt as the given number of round trips in the account of the
+     * current HTTP request.
+     */
+    protected <T> T execute(int roundTrips, RetryCallback<T, RuntimeException> operation) {
+        SessionOperationAccount account = SessionOperationAccount.current();
+        CouchbaseDeadline previousDeadline = CouchbaseDeadline.bind(operationDeadline());
+        try {
+            CouchbaseDeadline operationDeadline = CouchbaseDeadline.current();
+            if (operationDeadline != null) {
+                operationDeadline.check();
+            }
+            circuitBreaker.acquirePermission();
+            try {
+                T result = retryTemplate.execute(context -> {
+                    recordRoundTrips(account, roundTrips);
+                    return operation.doWithRetry(context);
+                });
+                circuitBreaker.onSuccess();
+                return result;
+            } catch (RuntimeException e) {
+                circuitBreaker.onError(e);
+                throw e;
+            }
+        } finally {
+            CouchbaseDeadline.bind(previousDeadline);
+        }
+    }
+
+    protected void recordRoundTrips(SessionOperationAccount account, int roundTrips) {
+        if (account != null) {
+            account.recordRoundTrips(roundTrips);
+        }
+    }
+
+    /**
+     * Returns the deadline of the current repository call or, for operations issued outside of repository calls, a new one.
+     */
+    protected CouchbaseDeadline operationDeadline() {
+        CouchbaseDeadline current = CouchbaseDeadline.current();
+        if (current != null || deadline == null) {
+            return current;
+        }
+        return new CouchbaseDeadline(deadline);
+    }
+
+    /**
+     * Returns the key-value timeout of a single attempt, cut short to the remaining budget of the current deadline.
+     */
+    protected long kvTimeout(Bucket couchbaseBucket) {
+        return limitToDeadline(couchbaseBucket.environment().kvTimeout());
+    }
+
+    protected long limitToDeadline(long timeoutInMillis) {
+        CouchbaseDeadline current = CouchbaseDeadline.current();
+        return current == null ? timeoutInMillis : current.limit(timeoutInMillis);
+    }
+
     protected boolean hasQueryFailed(N1qlQueryResult result) {
         return !result.finalSuccess() || CollectionUtils.isNotEmpty(result.errors());
     }
@@ -195,7 +712,7 @@ public class PersistentDao implements SessionDao {
 
     public Object getObjectFromCouchbase(String id, String nameSpace) {
         try {
-            JsonObject jsonObject = getDocument(id);
+            JsonObject jsonObject = getDocument(documentKey(id, nameSpace));
             if (jsonObject == null) return null;
             JsonObject jsonObject1 = jsonObject.getObject("data");
             JsonObject jsonObject2 = jsonObject1.getObject(nameSpace);
@@ -207,11 +724,281 @@ public class PersistentDao implements SessionDao {
     }
 
     protected JsonObject getDocument(String id) {
-        JsonDocument jsonDocument = couchbaseTemplate.getCouchbaseBucket().get(id);
+        JsonDocument jsonDocument = execute(context -> {
+            Bucket couchbaseBucket = couchbaseTemplate().getCouchbaseBucket();
+            return couchbaseBucket.get(id, kvTimeout(couchbaseBucket), MILLISECONDS);
+        });
+        if (jsonDocument == null) {
+            return null;
+        }
+        return jsonDocument.content();
+
+    }
+
+    /**
+     * Reads the document from the active copy and, if it has not answered within the hedging delay, from replicas as
+     * well, taking whichever answers first. Replicas missing the document or failing never decide the read. Neither do
+     * replica copies of authenticated sessions, which may have been logged out or invalidated on the active copy already.
+     */
+    protected HedgedDocument getHedgedDocument(String id) {
+        return execute(context -> {
+            long timeout = kvTimeout(couchbaseTemplate().getCouchbaseBucket());
+            AsyncBucket couchbaseBucket = couchbaseTemplate().getCouchbaseBucket().async();
+            long start = System.nanoTime();
+            AtomicBoolean measured = new AtomicBoolean();
+            // The active read is unsubscribed when a replica wins, its latency is then known to be at least the elapsed time.
+            Action0 measure = () -> {
+                if (measured.compareAndSet(false, true)) {
+                    hedgedReadPolicy.recordLatency(System.nanoTime() - start);
+                }
+            };
+            Observable<HedgedDocument> active = couchbaseBucket.get(id)
+                    .map(document -> new HedgedDocument(document.content(), false))
+                    .doOnTerminate(measure)
+                    .doOnUnsubscribe(measure);
+            Observable<HedgedDocument> replica = Observable.timer(hedgedReadPolicy.getDelay(), NANOSECONDS)
+                    .doOnNext(tick -> hedgedReadPolicy.recordHedge())
+                    .flatMap(tick -> couchbaseBucket.getFromReplica(id, ReplicaMode.ALL))
+                    .filter(document -> !isAuthenticated(document.content()))
+                    .map(document -> new HedgedDocument(document.content(), true))
+                    .onErrorResumeNext(Observable.empty())
+                    .concatWith(Observable.never());
+            HedgedDocument document = Observable.amb(active, replica)
+                    .take(1)
+                    .timeout(timeout, MILLISECONDS)
+                    .toBlocking()
+                    .singleOrDefault(null);
+            hedgedReadPolicy.recordRead(document != null && document.isFromReplica());
+            return document;
+        });
+    }
+
+    protected boolean isAuthenticated(JsonObject document) {
+        JsonObject data = document == null ? null : document.getObject("data");
+        JsonObject namespace = data == null ? null : data.getObject(applicationNamespace);
+        return namespace != null && namespace.containsKey(SECURITY_CONTEXT_ATTRIBUTE);
+    }
+
+    /**
+     * Returns keys of HTTP session, externalized attribute and principal documents following the given key in key order,
+     * so that the whole bucket can be paged through without holding more than one page. Namespace documents of the split
+     * layout are left out, they are read together with their HTTP sessions.
+     *
+     * @param afterKey key to continue after, {@code null} to start from the first key
+     */
+    public List<SessionDocumentKey> findDocumentKeys(String afterKey, int limit) {
+        String statement = "SELECT META().id AS id, sessionIds IS NOT MISSING AS principal FROM `" + bucket + "`"
+                + " WHERE META().id > $1 AND (sessionIds IS NOT MISSING OR data.`" + SessionDocument.GLOBAL_NAMESPACE + "` IS NOT MISSING"
+                + " OR (META().id LIKE \"" + SessionDocument.EXTERNALIZED_ATTRIBUTE_KEY_PREFIX + "%\""
+                + " AND META().id NOT LIKE \"" + SessionDocument.EXTERNALIZED_ATTRIBUTE_KEY_PREFIX + "%" + NAMESPACE_KEY_SEPARATOR + "%\"))"
+                + " ORDER BY META().id LIMIT $2";
+        N1qlQueryResult result = executeQuery(statement, from(afterKey == null ? "" : afterKey, limit), true);
+        List<SessionDocumentKey> keys = new ArrayList<>();
+        for (N1qlQueryRow row : result.allRows()) {
+            keys.add(new SessionDocumentKey(row.value().getString("id"), Boolean.TRUE.equals(row.value().getBoolean("principal"))));
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the expiration time of the document in epoch seconds, 0 when it never expires or {@code null} when it
+     * does not exist.
+     */
+    public Long findExpiration(String key) {
+        try {
+            DocumentFragment<Lookup> fragment = execute(context -> {
+                Bucket couchbaseBucket = couchbaseTemplate().getCouchbaseBucket();
+                return couchbaseBucket.lookupIn(key)
+                        .get(EXPIRATION_XATTR, new SubdocOptionsBuilder().xattr(true))
+                        .execute(kvTimeout(couchbaseBucket), MILLISECONDS);
+            });
+            return ((Number) fragment.content(EXPIRATION_XATTR)).longValue();
+        } catch (DocumentDoesNotExistException e) {
+            return null;
+        }
+    }
+
+    public HedgedReadPolicy getHedgedReadPolicy() {
+        return hedgedReadPolicy;
+    }
+
+    protected JsonObject getAndTouchDocument(String id, int expiry) {
+        JsonDocument jsonDocument = execute(context -> {
+            Bucket couchbaseBucket = couchbaseTemplate().getCouchbaseBucket();
+            return couchbaseBucket.getAndTouch(id, expiry, kvTimeout(couchbaseBucket), MILLISECONDS);
+        });
         if (jsonDocument == null) {
             return null;
         }
         return jsonDocument.content();
+    }
+
+    protected Map<String, JsonObject> getDocuments(List<String> keys, Integer expiry) {
+        Bucket couchbaseBucket = couchbaseTemplate().getCouchbaseBucket();
+        // Gets are pipelined on the connections, the bound only keeps large bulk loads from flooding the request queue.
+        long timeout = couchbaseBucket.environment().kvTimeout() * (1 + keys.size() / BULK_OPERATION_CONCURRENCY);
+        List<JsonDocument> documents = execute(keys.size(), context -> Observable.from(keys)
+                .flatMap(key -> expiry == null ? couchbaseBucket.async().get(key) : couchbaseBucket.async().getAndTouch(key, expiry),
+                        BULK_OPERATION_CONCURRENCY)
+                .toList()
+                .timeout(limitToDeadline(timeout), MILLISECONDS)
+                .toBlocking()
+                .single());
+        Map<String, JsonObject> documentsByKey = new HashMap<>(documents.size());
+        documents.forEach(document -> documentsByKey.put(document.id(), document.content()));
+        return documentsByKey;
+    }
+
+    protected static class HedgedDocument {
+
+        protected final JsonObject content;
+        protected final boolean fromReplica;
+
+        protected HedgedDocument(JsonObject content, boolean fromReplica) {
+            this.content = content;
+            this.fromReplica = fromReplica;
+        }
+
+        public JsonObject getContent() {
+            return content;
+        }
+
+        public boolean isFromReplica() {
+            return fromReplica;
+        }
+    }
+
+    /**
+     * Issues the write operations on the asynchronous Couchbase API. CAS merges of attribute changes stay blocking,
+     * because every attempt depends on the document read before it.
+     */
+    protected class PersistentAsyncDao implements AsyncSessionDao {
 
+        @Override
+        public CompletableFuture<Void> updateSession(Map<String, Object> attributesToUpdate, Set<String> attributesToRemove, String namespace, String id) {
+            if (saveMode == SaveMode.CAS) {
+                CompletableFuture<Void> future = new CompletableFuture<>();
+                try {
+                    updateSessionWithCas(attributesToUpdate, attributesToRemove, namespace, id);
+                    future.complete(null);
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+                return future;
+            }
+            return discardResult(updateSessionWithQuery(attributesToUpdate, attributesToRemove, namespace, id));
+        }
+
+        @Override
+        public CompletableFuture<Void> updatePutPrincipalSession(String principal, String sessionId) {
+            return discardResult(executeQueryAsync(putPrincipalSessionStatement(), from(principal, sessionId), true));
+        }
+
+        @Override
+        public CompletableFuture<Void> updateRemovePrincipalSession(String principal, String sessionId) {
+            return discardResult(executeQueryAsync(removePrincipalSessionStatement(), from(principal, sessionId), true));
+        }
+
+        @Override
+        public CompletableFuture<Void> updateRemovePrincipalSessions(String principal, Collection<String> sessionIds) {
+            return discardResult(executeQueryAsync(removePrincipalSessionsStatement(), from(principal, JsonArray.from(new ArrayList<>(sessionIds))), true));
+        }
+
+        @Override
+        public CompletableFuture<Void> updateExpirationTime(String id, int expiry) {
+            return discardResult(executeAsync(operationDeadline(), isSplitLayout() ? 2 : 1, () -> {
+                AsyncBucket couchbaseBucket = couchbaseTemplate().getCouchbaseBucket().async();
+                Observable<Boolean> touch = couchbaseBucket.touch(id, expiry);
+                if (!isSplitLayout()) {
+                    return touch;
+                }
+                return touch.concatWith(couchbaseBucket.touch(documentKey(id, applicationNamespace), expiry).onErrorResumeNext(error -> {
+                    if (error instanceof DocumentDoesNotExistException) {
+                        log.debug("Namespace document of HTTP session with ID {} does not exist, expiration time has not been updated", id);
+                        return Observable.just(false);
+                    }
+                    return Observable.error(error);
+                }));
+            }));
+        }
+
+        @Override
+        public CompletableFuture<Void> save(SessionDocument document, int expiry) {
+            List<JsonDocument> documents = new ArrayList<>();
+            toDocuments(document).forEach((key, content) -> documents.add(JsonDocument.create(key, expiry, content)));
+            return discardResult(executeAsync(operationDeadline(), documents.size(), () -> {
+                AsyncBucket couchbaseBucket = couchbaseTemplate().getCouchbaseBucket().async();
+                return Observable.from(documents)
+                        .flatMap(couchbaseBucket::upsert)
+                        .count();
+            }));
+        }
+
+        @Override
+        public CompletableFuture<Void> save(PrincipalSessionsDocument document) {
+            JsonObject json = create().put("sessionIds", document.getSessionIds());
+            return discardResult(executeQueryAsync(upsertStatement(), from(document.getPrincipal(), json), true));
+        }
+
+        @Override
+        public CompletableFuture<Boolean> exists(String documentId) {
+            return executeQueryAsync(selectStatement(), from(documentId), true).thenApply(rows -> !rows.isEmpty());
+        }
+
+        @Override
+        public CompletableFuture<Void> delete(String id) {
+            if (!isSplitLayout()) {
+                return discardResult(executeQueryAsync(deleteStatement(), from(id), true));
+            }
+            CouchbaseDeadline operationDeadline = operationDeadline();
+            return discardResult(executeQueryAsync(selectStatement(), from(id), true).thenComposeAsync(boundTo(operationDeadline, rows -> {
+                Set<String> keys = new LinkedHashSet<>();
+                keys.add(id);
+                keys.add(documentKey(id, applicationNamespace));
+                JsonObject document = rows.isEmpty() ? null : rows.get(0).getObject(bucket);
+                if (document != null) {
+                    getNamespaceNames(document).forEach(namespace -> keys.add(documentKey(id, namespace)));
+                }
+                return executeQueryAsync(deleteStatement(), from(JsonArray.from(new ArrayList<>(keys))), true);
+            }), continuationExecutor));
+        }
+
+        @Override
+        public CompletableFuture<Void> deleteSessions(Collection<String> ids) {
+            // The number of documents is only known once split layout sessions have been read, round trips are counted as issued.
+            SessionOperationAccount account = SessionOperationAccount.current();
+            return discardResult(executeAsync(operationDeadline(), 0, () -> {
+                AsyncBucket couchbaseBucket = couchbaseTemplate().getCouchbaseBucket().async();
+                return Observable.from(ids)
+                        .flatMap(id -> getSessionDocumentKeys(couchbaseBucket, id, account), BULK_OPERATION_CONCURRENCY)
+                        .flatMap(key -> couchbaseBucket.remove(key)
+                                .doOnSubscribe(() -> recordRoundTrips(account, 1))
+                                .map(document -> true)
+                                .onErrorResumeNext(error -> error instanceof DocumentDoesNotExistException
+                                        ? Observable.just(false) : Observable.error(error)), BULK_OPERATION_CONCURRENCY)
+                        .count();
+            }));
+        }
+
+        protected Observable<String> getSessionDocumentKeys(AsyncBucket couchbaseBucket, String id, SessionOperationAccount account) {
+            Set<String> keys = new LinkedHashSet<>();
+            keys.add(id);
+            keys.add(documentKey(id, applicationNamespace));
+            if (!isSplitLayout()) {
+                return Observable.from(keys);
+            }
+            return couchbaseBucket.get(id)
+                    .doOnSubscribe(() -> recordRoundTrips(account, 1))
+                    .map(document -> {
+                        getNamespaceNames(document.content()).forEach(namespace -> keys.add(documentKey(id, namespace)));
+                        return keys;
+                    })
+                    .defaultIfEmpty(keys)
+                    .flatMap(Observable::from);
+        }
+
+        protected CompletableFuture<Void> discardResult(CompletableFuture<?> future) {
+            return future.thenApply(result -> null);
+        }
     }
 }
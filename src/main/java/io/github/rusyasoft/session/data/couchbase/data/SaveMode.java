@@ -0,0 +1,17 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+/**
+ * Way HTTP session attribute changes are written to Couchbase.
+ */
+public enum SaveMode {
+
+    /**
+     * Changes are written with a N1QL UPDATE statement.
+     */
+    QUERY,
+    /**
+     * Changes are written with a sub-document mutation guarded by the document CAS. On a CAS mismatch the namespace is
+     * re-read and the changes are merged on top of its current content.
+     */
+    CAS
+}
@@ -1,5 +1,9 @@
 package io.github.rusyasoft.session.data.couchbase.data;
 
+import com.couchbase.client.java.document.json.JsonObject;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -13,10 +17,60 @@ public interface SessionDao {
 
     void updateRemovePrincipalSession(String principal, String sessionId);
 
+    /**
+     * Removes many HTTP sessions from the principal HTTP sessions document. By default every session is removed with its
+     * own mutation.
+     */
+    default void updateRemovePrincipalSessions(String principal, Collection<String> sessionIds) {
+        sessionIds.forEach(sessionId -> updateRemovePrincipalSession(principal, sessionId));
+    }
+
     Map<String, Object> findSessionAttributes(String id, String namespace);
 
     SessionDocument findById(String id);
 
+    /**
+     * Loads the given namespaces of the HTTP session, {@code null} when none of them exists. By default every namespace
+     * is loaded with its own lookup.
+     */
+    default SessionNamespacesDocument findNamespaces(String id, String... namespaces) {
+        Map<String, JsonObject> namespaceAttributes = new LinkedHashMap<>(namespaces.length);
+        for (String namespace : namespaces) {
+            Map<String, Object> attributes = findSessionAttributes(id, namespace);
+            if (attributes != null) {
+                namespaceAttributes.put(namespace, JsonObject.from(attributes));
+            }
+        }
+        return namespaceAttributes.isEmpty() ? null : new SessionNamespacesDocument(id, namespaceAttributes);
+    }
+
+    /**
+     * Loads the given namespaces of the HTTP session and updates its expiration. By default the expiration is updated
+     * with a separate call once the namespaces have been found.
+     */
+    default SessionNamespacesDocument findNamespacesAndTouch(String id, int expiry, String... namespaces) {
+        SessionNamespacesDocument document = findNamespaces(id, namespaces);
+        if (document != null) {
+            updateExpirationTime(id, expiry);
+        }
+        return document;
+    }
+
+    /**
+     * Loads the given namespaces of many HTTP sessions at once. Sessions which do not exist are left out of the result.
+     * By default the sessions are loaded one after another.
+     */
+    default Map<String, SessionNamespacesDocument> findNamespaces(Collection<String> ids, String... namespaces) {
+        Map<String, SessionNamespacesDocument> documents = new LinkedHashMap<>(ids.size());
+        for (String id : ids) {
+            SessionNamespacesDocument document = findNamespaces(id, namespaces);
+            if (document != null) {
+                documents.put(id, document);
+            }
+        }
+        return documents;
+    }
+
     PrincipalSessionsDocument findByPrincipal(String principal);
 
     void updateExpirationTime(String id, int expiry);
@@ -25,11 +79,49 @@ public interface SessionDao {
 
     void save(PrincipalSessionsDocument document);
 
+    /**
+     * Saves the HTTP session together with its expiration, so that it never exists without one. By default the
+     * expiration is updated with a separate call after the save, implementations should write both at once.
+     *
+     * @param expiry expiration of the session, 0 for a session which never expires
+     */
+    default void save(SessionDocument document, int expiry) {
+        save(document);
+        updateExpirationTime(document.getId(), expiry);
+    }
+
+    /**
+     * Saves the principal HTTP sessions document together with its expiration. By default the expiration is updated
+     * with a separate call after the save.
+     *
+     * @param expiry expiration of the document, 0 for a document which never expires
+     */
+    default void save(PrincipalSessionsDocument document, int expiry) {
+        save(document);
+        updateExpirationTime(document.getPrincipal(), expiry);
+    }
+
     boolean exists(String documentId);
 
     void delete(String id);
 
+    /**
+     * Deletes many HTTP sessions. By default every session is deleted with its own call.
+     */
+    default void deleteSessions(Collection<String> ids) {
+        ids.forEach(this::delete);
+    }
+
     void deleteAll();
 
     public Object getObjectFromCouchbase(String id, String nameSpace);
+
+    /**
+     * Returns the non-blocking view of the write operations. By default every operation runs in the calling thread,
+     * implementations backed by the asynchronous Couchbase API issue operations without waiting for them. The default
+     * allocates a new view on every call, implementations should return a shared one.
+     */
+    default AsyncSessionDao async() {
+        return new SynchronousAsyncSessionDao(this);
+    }
 }
\ No newline at end of file
@@ -4,6 +4,12 @@ import java.util.Map;
 
 public class SessionDocument {
 
+    public static final String GLOBAL_NAMESPACE = "global";
+    /**
+     * Prefix of keys of documents holding single HTTP session attributes stored outside of their session documents.
+     */
+    public static final String EXTERNALIZED_ATTRIBUTE_KEY_PREFIX = "$attribute::";
+
     protected final String id;
     protected final Map<String, Map<String, Object>> data;
 
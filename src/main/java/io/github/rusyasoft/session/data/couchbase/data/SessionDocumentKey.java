@@ -0,0 +1,23 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+public class SessionDocumentKey {
+
+    protected final String key;
+    protected final boolean principal;
+
+    public SessionDocumentKey(String key, boolean principal) {
+        this.key = key;
+        this.principal = principal;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Tells whether the key belongs to the document listing HTTP sessions of a principal, not to an HTTP session.
+     */
+    public boolean isPrincipal() {
+        return principal;
+    }
+}
@@ -0,0 +1,269 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Copies HTTP sessions and principal HTTP sessions documents from a Couchbase bucket to another session store, keeping
+ * their remaining time to live. Keys are paged in key order and the documents of a page are copied in parallel, so at
+ * most one page is held in memory. The last key of every completely copied page is written to the checkpoint file and
+ * a migration started with an existing checkpoint file continues after it.
+ * <p>
+ * Documents are read and written through {@link SessionDao}, so the source and target may use different document
+ * layouts.
+ */
+public class SessionMigrator {
+
+    private static final Logger log = getLogger(SessionMigrator.class);
+
+    // Couchbase reads expiry values above 30 days as epoch seconds.
+    protected static final long MAX_RELATIVE_EXPIRY = DAYS.toSeconds(30);
+
+    protected final PersistentDao source;
+    protected final SessionDao target;
+    protected int pageSize = 1000;
+    protected int parallelism = 16;
+    protected int maxDocumentsPerSecond = 0;
+    protected Path checkpointFile;
+    protected Clock clock = Clock.systemUTC();
+    protected long nextPermit;
+
+    public SessionMigrator(PersistentDao source, SessionDao target) {
+        this.source = source;
+        this.target = target;
+    }
+
+    /**
+     * Copies all documents following the checkpoint.
+     *
+     * @throws RuntimeException when copying a document fails, the checkpoint then points at the last complete page
+     */
+    public Progress migrate() {
+        Progress progress = loadCheckpoint();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "session-couchbase-migration");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<SessionDocumentKey> keys;
+            do {
+                keys = source.findDocumentKeys(progress.getLastKey(), pageSize);
+                List<CompletableFuture<Void>> copies = new ArrayList<>(keys.size());
+                for (SessionDocumentKey key : keys) {
+                    copies.add(CompletableFuture.runAsync(() -> copy(key, progress), executor));
+                }
+                join(copies, progress);
+                if (!keys.isEmpty()) {
+                    progress.lastKey = keys.get(keys.size() - 1).getKey();
+                    saveCheckpoint(progress);
+                    log.info("HTTP sessions migration has reached key {}: {}", progress.getLastKey(), progress);
+                }
+            } while (keys.size() == pageSize);
+        } finally {
+            executor.shutdownNow();
+        }
+        log.info("HTTP sessions migration has finished: {}", progress);
+        return progress;
+    }
+
+    protected void join(List<CompletableFuture<Void>> copies, Progress progress) {
+        try {
+            CompletableFuture.allOf(copies.toArray(new CompletableFuture[0])).join();
+        } catch (CompletionException e) {
+            log.error("HTTP sessions migration has stopped, it can be resumed after key {}", progress.getLastKey());
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    protected void copy(SessionDocumentKey key, Progress progress) {
+        throttle();
+        Long expiration = source.findExpiration(key.getKey());
+        if (expiration == null) {
+            progress.missing.increment();
+            return;
+        }
+        if (expiration != 0 && expiration <= clock.instant().getEpochSecond()) {
+            progress.expired.increment();
+            return;
+        }
+        if (key.isPrincipal()) {
+            PrincipalSessionsDocument document = source.findByPrincipal(key.getKey());
+            if (document == null) {
+                progress.missing.increment();
+                return;
+            }
+            target.save(document, toExpiry(expiration));
+        } else {
+            SessionDocument document = source.findById(key.getKey());
+            if (document == null) {
+                progress.missing.increment();
+                return;
+            }
+            target.save(document, toExpiry(expiration));
+        }
+        progress.copied.increment();
+    }
+
+    /**
+     * Converts the expiration time to the remaining time to live, measured when the document is written. Documents
+     * which never expire keep the expiry 0.
+     */
+    protected int toExpiry(long expiration) {
+        if (expiration == 0) {
+            return 0;
+        }
+        long remaining = expiration - clock.instant().getEpochSecond();
+        if (remaining > MAX_RELATIVE_EXPIRY) {
+            return (int) expiration;
+        }
+        return (int) Math.max(1, remaining);
+    }
+
+    protected void throttle() {
+        if (maxDocumentsPerSecond <= 0) {
+            return;
+        }
+        long interval = SECONDS.toNanos(1) / maxDocumentsPerSecond;
+        long permit;
+        synchronized (this) {
+            permit = Math.max(System.nanoTime(), nextPermit);
+            nextPermit = permit + interval;
+        }
+        long wait;
+        while ((wait = permit - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    protected Progress loadCheckpoint() {
+        Progress progress = new Progress();
+        if (checkpointFile == null || !Files.exists(checkpointFile)) {
+            return progress;
+        }
+        Properties checkpoint = new Properties();
+        try (Reader reader = Files.newBufferedReader(checkpointFile)) {
+            checkpoint.load(reader);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error reading HTTP sessions migration checkpoint " + checkpointFile, e);
+        }
+        progress.lastKey = checkpoint.getProperty("lastKey");
+        progress.copied.add(Long.parseLong(checkpoint.getProperty("copied", "0")));
+        progress.expired.add(Long.parseLong(checkpoint.getProperty("expired", "0")));
+        progress.missing.add(Long.parseLong(checkpoint.getProperty("missing", "0")));
+        log.info("HTTP sessions migration resumes after key {}", progress.getLastKey());
+        return progress;
+    }
+
+    protected void saveCheckpoint(Progress progress) {
+        if (checkpointFile == null) {
+            return;
+        }
+        Properties checkpoint = new Properties();
+        checkpoint.setProperty("lastKey", progress.getLastKey());
+        checkpoint.setProperty("copied", String.valueOf(progress.getCopied()));
+        checkpoint.setProperty("expired", String.valueOf(progress.getExpired()));
+        checkpoint.setProperty("missing", String.valueOf(progress.getMissing()));
+        Path temporaryFile = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(temporaryFile)) {
+                checkpoint.store(writer, "HTTP sessions migration checkpoint");
+            }
+            Files.move(temporaryFile, checkpointFile, REPLACE_EXISTING, ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error writing HTTP sessions migration checkpoint " + checkpointFile, e);
+        }
+    }
+
+    /**
+     * Sets the number of keys read at once.
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Sets the number of documents copied concurrently.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Sets the maximum rate of copied documents, 0 for no limit.
+     */
+    public void setMaxDocumentsPerSecond(int maxDocumentsPerSecond) {
+        this.maxDocumentsPerSecond = maxDocumentsPerSecond;
+    }
+
+    /**
+     * Sets the file keeping the progress, so that an interrupted migration can be resumed.
+     */
+    public void setCheckpointFile(Path checkpointFile) {
+        this.checkpointFile = checkpointFile;
+    }
+
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    public static class Progress {
+
+        protected final LongAdder copied = new LongAdder();
+        protected final LongAdder expired = new LongAdder();
+        protected final LongAdder missing = new LongAdder();
+        protected volatile String lastKey;
+
+        /**
+         * Returns the last key of the completely copied pages.
+         */
+        public String getLastKey() {
+            return lastKey;
+        }
+
+        public long getCopied() {
+            return copied.sum();
+        }
+
+        /**
+         * Returns the number of documents skipped because they have expired.
+         */
+        public long getExpired() {
+            return expired.sum();
+        }
+
+        /**
+         * Returns the number of documents skipped because they have been removed after their keys were read.
+         */
+        public long getMissing() {
+            return missing.sum();
+        }
+
+        @Override
+        public String toString() {
+            return getCopied() + " copied, " + getExpired() + " expired, " + getMissing() + " missing";
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+import com.couchbase.client.java.document.json.JsonObject;
+
+import java.util.Map;
+
+public class SessionNamespacesDocument {
+
+    protected final String id;
+    protected final Map<String, JsonObject> namespaces;
+    protected final boolean fromReplica;
+
+    public SessionNamespacesDocument(String id, Map<String, JsonObject> namespaces) {
+        this(id, namespaces, false);
+    }
+
+    public SessionNamespacesDocument(String id, Map<String, JsonObject> namespaces, boolean fromReplica) {
+        this.id = id;
+        this.namespaces = namespaces;
+        this.fromReplica = fromReplica;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public JsonObject getNamespace(String namespace) {
+        return namespaces.get(namespace);
+    }
+
+    public Map<String, JsonObject> getNamespaces() {
+        return namespaces;
+    }
+
+    /**
+     * Returns whether the namespaces have been read from a replica and may miss the latest writes.
+     */
+    public boolean isFromReplica() {
+        return fromReplica;
+    }
+}
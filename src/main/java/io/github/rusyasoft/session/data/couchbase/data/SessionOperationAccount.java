@@ -0,0 +1,112 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Counts session store operations issued while handling a single HTTP request, with their time per operation type,
+ * and the Couchbase round trips they have taken, retries included. The account of the current request is bound to the
+ * request thread, operations completing asynchronously are recorded into the account that was current when they were
+ * issued.
+ */
+public class SessionOperationAccount {
+
+    private static final ThreadLocal<SessionOperationAccount> CURRENT = new ThreadLocal<>();
+
+    protected final Map<String, long[]> operations = new LinkedHashMap<>();
+    protected int count;
+    protected long timeInNanos;
+    protected int roundTrips;
+
+    public static SessionOperationAccount open() {
+        SessionOperationAccount account = new SessionOperationAccount();
+        CURRENT.set(account);
+        return account;
+    }
+
+    public static SessionOperationAccount current() {
+        return CURRENT.get();
+    }
+
+    public static void close() {
+        CURRENT.remove();
+    }
+
+    /**
+     * Makes the given account current, {@code null} unbinds it.
+     *
+     * @return the account that was current before
+     */
+    public static SessionOperationAccount bind(SessionOperationAccount account) {
+        SessionOperationAccount previous = CURRENT.get();
+        if (account == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(account);
+        }
+        return previous;
+    }
+
+    /**
+     * Wraps the function so that operations it issues are recorded into the given account, for continuations running
+     * on other threads than the request thread.
+     */
+    public static <T, R> Function<T, R> boundTo(SessionOperationAccount account, Function<T, R> function) {
+        return argument -> {
+            SessionOperationAccount previous = bind(account);
+            try {
+                return function.apply(argument);
+            } finally {
+                bind(previous);
+            }
+        };
+    }
+
+    public synchronized void record(String operation, long timeInNanos) {
+        long[] stats = operations.computeIfAbsent(operation, name -> new long[2]);
+        stats[0]++;
+        stats[1] += timeInNanos;
+        count++;
+        this.timeInNanos += timeInNanos;
+    }
+
+    public synchronized void recordRoundTrips(int roundTrips) {
+        this.roundTrips += roundTrips;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    public synchronized long getTimeInNanos() {
+        return timeInNanos;
+    }
+
+    public synchronized int getRoundTrips() {
+        return roundTrips;
+    }
+
+    /**
+     * Returns the operations as {@code name=count;time ms} pairs, for example
+     * {@code findNamespaces=1;2ms, updateSession=2;5ms}.
+     */
+    public synchronized String describe() {
+        StringBuilder description = new StringBuilder();
+        operations.forEach((name, stats) -> {
+            if (description.length() > 0) {
+                description.append(", ");
+            }
+            description.append(name).append('=').append(stats[0]).append(';').append(NANOSECONDS.toMillis(stats[1])).append("ms");
+        });
+        return description.toString();
+    }
+
+    public synchronized Map<String, Long> getCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>(operations.size());
+        operations.forEach((name, stats) -> counts.put(name, stats[0]));
+        return counts;
+    }
+}
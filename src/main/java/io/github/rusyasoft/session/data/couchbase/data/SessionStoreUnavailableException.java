@@ -0,0 +1,15 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+/**
+ * Thrown when a call to the session store is rejected up front because Couchbase is unhealthy or not connected yet.
+ */
+public class SessionStoreUnavailableException extends RuntimeException {
+
+    public SessionStoreUnavailableException(String message) {
+        super(message);
+    }
+
+    public SessionStoreUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
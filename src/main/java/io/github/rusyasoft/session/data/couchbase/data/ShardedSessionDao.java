@@ -0,0 +1,349 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import static io.github.rusyasoft.session.data.couchbase.data.AsyncSessionDao.join;
+import static java.lang.Math.toIntExact;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Spreads HTTP sessions across several data access objects, each backed by its own bucket. Session documents are routed
+ * by session ID and principal HTTP sessions documents by principal, so every document lives in exactly one shard.
+ * <p>
+ * While the shard list is being changed, the ring of the previous shard list is consulted as well. Documents missing
+ * in their shard are read from the shard owning them on the previous ring and moved over, together with their
+ * expiration. Principal HTTP sessions documents are moved before they are updated too, because they are written
+ * without being read first. Once every moved document has been read or has expired, the previous ring can be dropped.
+ */
+public class ShardedSessionDao implements SessionDao {
+
+    private static final Logger log = getLogger(ShardedSessionDao.class);
+
+    protected final ConsistentHashRing<PersistentDao> ring;
+    protected final ConsistentHashRing<PersistentDao> previousRing;
+    protected final AsyncSessionDao async = new ShardedAsyncSessionDao();
+
+    public ShardedSessionDao(ConsistentHashRing<PersistentDao> ring) {
+        this(ring, null);
+    }
+
+    /**
+     * @param previousRing ring of the shard list used before the current one, {@code null} when the shard list has not changed
+     */
+    public ShardedSessionDao(ConsistentHashRing<PersistentDao> ring, ConsistentHashRing<PersistentDao> previousRing) {
+        this.ring = ring;
+        this.previousRing = previousRing;
+    }
+
+    @Override
+    public void insertNamespace(String namespace, String id) {
+        shardOf(id).insertNamespace(namespace, id);
+    }
+
+    @Override
+    public void updateSession(Map<String, Object> attributesToUpdate, Set<String> attributesToRemove, String namespace, String id) {
+        shardOf(id).updateSession(attributesToUpdate, attributesToRemove, namespace, id);
+    }
+
+    @Override
+    public void updatePutPrincipalSession(String principal, String sessionId) {
+        principalShardOf(principal).updatePutPrincipalSession(principal, sessionId);
+    }
+
+    @Override
+    public void updateRemovePrincipalSession(String principal, String sessionId) {
+        principalShardOf(principal).updateRemovePrincipalSession(principal, sessionId);
+    }
+
+    @Override
+    public void updateRemovePrincipalSessions(String principal, Collection<String> sessionIds) {
+        principalShardOf(principal).updateRemovePrincipalSessions(principal, sessionIds);
+    }
+
+    @Override
+    public Map<String, Object> findSessionAttributes(String id, String namespace) {
+        Map<String, Object> attributes = shardOf(id).findSessionAttributes(id, namespace);
+        if (attributes == null && relocateSession(id)) {
+            return shardOf(id).findSessionAttributes(id, namespace);
+        }
+        return attributes;
+    }
+
+    @Override
+    public SessionDocument findById(String id) {
+        SessionDocument document = shardOf(id).findById(id);
+        if (document == null && relocateSession(id)) {
+            return shardOf(id).findById(id);
+        }
+        return document;
+    }
+
+    @Override
+    public SessionNamespacesDocument findNamespaces(String id, String... namespaces) {
+        SessionNamespacesDocument document = shardOf(id).findNamespaces(id, namespaces);
+        if (document == null && relocateSession(id)) {
+            return shardOf(id).findNamespaces(id, namespaces);
+        }
+        return document;
+    }
+
+    @Override
+    public Map<String, SessionNamespacesDocument> findNamespaces(Collection<String> ids, String... namespaces) {
+        Map<String, SessionNamespacesDocument> documents = new LinkedHashMap<>(ids.size());
+        groupByShard(ids).forEach((shard, shardIds) -> documents.putAll(shard.findNamespaces(shardIds, namespaces)));
+        Set<String> relocatedIds = new LinkedHashSet<>();
+        for (String id : ids) {
+            if (!documents.containsKey(id) && relocateSession(id)) {
+                relocatedIds.add(id);
+            }
+        }
+        groupByShard(relocatedIds).forEach((shard, shardIds) -> documents.putAll(shard.findNamespaces(shardIds, namespaces)));
+        return documents;
+    }
+
+    @Override
+    public SessionNamespacesDocument findNamespacesAndTouch(String id, int expiry, String... namespaces) {
+        SessionNamespacesDocument document = shardOf(id).findNamespacesAndTouch(id, expiry, namespaces);
+        if (document == null && relocateSession(id)) {
+            return shardOf(id).findNamespacesAndTouch(id, expiry, namespaces);
+        }
+        return document;
+    }
+
+    @Override
+    public PrincipalSessionsDocument findByPrincipal(String principal) {
+        return principalShardOf(principal).findByPrincipal(principal);
+    }
+
+    @Override
+    public void updateExpirationTime(String id, int expiry) {
+        shardOf(id).updateExpirationTime(id, expiry);
+    }
+
+    @Override
+    public void save(SessionDocument document) {
+        shardOf(document.getId()).save(document);
+    }
+
+    @Override
+    public void save(PrincipalSessionsDocument document) {
+        shardOf(document.getPrincipal()).save(document);
+    }
+
+    @Override
+    public void save(SessionDocument document, int expiry) {
+        shardOf(document.getId()).save(document, expiry);
+    }
+
+    @Override
+    public void save(PrincipalSessionsDocument document, int expiry) {
+        shardOf(document.getPrincipal()).save(document, expiry);
+    }
+
+    @Override
+    public boolean exists(String documentId) {
+        if (shardOf(documentId).exists(documentId)) {
+            return true;
+        }
+        PersistentDao previousShard = previousShardOf(documentId);
+        return previousShard != null && previousShard.exists(documentId);
+    }
+
+    @Override
+    public void delete(String id) {
+        join(async.delete(id));
+    }
+
+    @Override
+    public void deleteSessions(Collection<String> ids) {
+        join(async.deleteSessions(ids));
+    }
+
+    @Override
+    public void deleteAll() {
+        Set<PersistentDao> shards = new LinkedHashSet<>(ring.getNodes());
+        if (previousRing != null) {
+            shards.addAll(previousRing.getNodes());
+        }
+        shards.forEach(SessionDao::deleteAll);
+    }
+
+    @Override
+    public Object getObjectFromCouchbase(String id, String nameSpace) {
+        Object object = shardOf(id).getObjectFromCouchbase(id, nameSpace);
+        if (object == null && relocateSession(id)) {
+            return shardOf(id).getObjectFromCouchbase(id, nameSpace);
+        }
+        return object;
+    }
+
+    protected Map<PersistentDao, List<String>> groupByShard(Collection<String> ids) {
+        Map<PersistentDao, List<String>> idsByShard = new LinkedHashMap<>();
+        ids.forEach(id -> idsByShard.computeIfAbsent(shardOf(id), shard -> new ArrayList<>()).add(id));
+        return idsByShard;
+    }
+
+    /**
+     * Groups the IDs by the shards owning them on the previous ring, leaving out IDs whose shard has not changed.
+     */
+    protected Map<PersistentDao, List<String>> groupByPreviousShard(Collection<String> ids) {
+        Map<PersistentDao, List<String>> idsByShard = new LinkedHashMap<>();
+        for (String id : ids) {
+            PersistentDao previousShard = previousShardOf(id);
+            if (previousShard != null) {
+                idsByShard.computeIfAbsent(previousShard, shard -> new ArrayList<>()).add(id);
+            }
+        }
+        return idsByShard;
+    }
+
+    /**
+     * Moves the HTTP session from the shard owning it on the previous ring, if it is stored there.
+     *
+     * @return whether the HTTP session has been moved
+     */
+    protected boolean relocateSession(String id) {
+        PersistentDao previousShard = previousShardOf(id);
+        if (previousShard == null) {
+            return false;
+        }
+        SessionDocument document = previousShard.findById(id);
+        Long expiration = document == null ? null : previousShard.findExpiration(id);
+        if (expiration == null) {
+            return false;
+        }
+        shardOf(id).save(document, toIntExact(expiration));
+        previousShard.delete(id);
+        log.debug("HTTP session with ID {} has been moved to its shard", id);
+        return true;
+    }
+
+    /**
+     * Returns the shard storing the principal HTTP sessions document, moving the document from the shard owning it on
+     * the previous ring first, if it is stored there.
+     */
+    protected PersistentDao principalShardOf(String principal) {
+        PersistentDao shard = shardOf(principal);
+        PersistentDao previousShard = previousShardOf(principal);
+        if (previousShard == null) {
+            return shard;
+        }
+        PrincipalSessionsDocument document = previousShard.findByPrincipal(principal);
+        if (document != null) {
+            PrincipalSessionsDocument currentDocument = shard.findByPrincipal(principal);
+            if (currentDocument != null) {
+                Set<String> sessionIds = new LinkedHashSet<>(currentDocument.getSessionIds());
+                sessionIds.addAll(document.getSessionIds());
+                document = new PrincipalSessionsDocument(principal, new ArrayList<>(sessionIds));
+            }
+            shard.save(document);
+            previousShard.delete(principal);
+            log.debug("Principal HTTP sessions document of {} has been moved to its shard", principal);
+        }
+        return shard;
+    }
+
+    @Override
+    public AsyncSessionDao async() {
+        return async;
+    }
+
+    /**
+     * Returns the shard storing the document with the given key, which is a session ID or a principal.
+     */
+    public PersistentDao shardOf(String key) {
+        return ring.get(key);
+    }
+
+    /**
+     * Returns the shard which stored the document with the given key before the shard list changed, {@code null} when
+     * it is the current shard or the shard list has not changed.
+     */
+    public PersistentDao previousShardOf(String key) {
+        if (previousRing == null) {
+            return null;
+        }
+        PersistentDao previousShard = previousRing.get(key);
+        return previousShard == shardOf(key) ? null : previousShard;
+    }
+
+    public Map<String, PersistentDao> getShards() {
+        return ring.getNamedNodes();
+    }
+
+    protected class ShardedAsyncSessionDao implements AsyncSessionDao {
+
+        @Override
+        public CompletableFuture<Void> updateSession(Map<String, Object> attributesToUpdate, Set<String> attributesToRemove, String namespace, String id) {
+            return shardOf(id).async().updateSession(attributesToUpdate, attributesToRemove, namespace, id);
+        }
+
+        @Override
+        public CompletableFuture<Void> updatePutPrincipalSession(String principal, String sessionId) {
+            return principalShardOf(principal).async().updatePutPrincipalSession(principal, sessionId);
+        }
+
+        @Override
+        public CompletableFuture<Void> updateRemovePrincipalSession(String principal, String sessionId) {
+            return principalShardOf(principal).async().updateRemovePrincipalSession(principal, sessionId);
+        }
+
+        @Override
+        public CompletableFuture<Void> updateRemovePrincipalSessions(String principal, Collection<String> sessionIds) {
+            return principalShardOf(principal).async().updateRemovePrincipalSessions(principal, sessionIds);
+        }
+
+        @Override
+        public CompletableFuture<Void> updateExpirationTime(String id, int expiry) {
+            return shardOf(id).async().updateExpirationTime(id, expiry);
+        }
+
+        @Override
+        public CompletableFuture<Void> save(SessionDocument document, int expiry) {
+            return shardOf(document.getId()).async().save(document, expiry);
+        }
+
+        @Override
+        public CompletableFuture<Void> save(PrincipalSessionsDocument document) {
+            return shardOf(document.getPrincipal()).async().save(document);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> exists(String documentId) {
+            PersistentDao previousShard = previousShardOf(documentId);
+            CompletableFuture<Boolean> exists = shardOf(documentId).async().exists(documentId);
+            if (previousShard == null) {
+                return exists;
+            }
+            CompletableFuture<Boolean> previouslyExists = previousShard.async().exists(documentId);
+            return exists.thenCombine(previouslyExists, Boolean::logicalOr);
+        }
+
+        @Override
+        public CompletableFuture<Void> delete(String id) {
+            PersistentDao previousShard = previousShardOf(id);
+            CompletableFuture<Void> delete = shardOf(id).async().delete(id);
+            if (previousShard == null) {
+                return delete;
+            }
+            return CompletableFuture.allOf(delete, previousShard.async().delete(id));
+        }
+
+        @Override
+        public CompletableFuture<Void> deleteSessions(Collection<String> ids) {
+            List<CompletableFuture<Void>> deletes = new ArrayList<>();
+            groupByShard(ids).forEach((shard, shardIds) -> deletes.add(shard.async().deleteSessions(shardIds)));
+            groupByPreviousShard(ids).forEach((shard, shardIds) -> deletes.add(shard.async().deleteSessions(shardIds)));
+            return CompletableFuture.allOf(deletes.toArray(new CompletableFuture<?>[0]));
+        }
+    }
+}
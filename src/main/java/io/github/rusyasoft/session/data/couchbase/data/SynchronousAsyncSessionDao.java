@@ -0,0 +1,87 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Exposes a blocking {@link SessionDao} as {@link AsyncSessionDao} by running every operation in the calling thread
+ * and returning an already completed future. Used by data access objects without a native asynchronous implementation.
+ */
+public class SynchronousAsyncSessionDao implements AsyncSessionDao {
+
+    protected final SessionDao dao;
+
+    public SynchronousAsyncSessionDao(SessionDao dao) {
+        this.dao = dao;
+    }
+
+    @Override
+    public CompletableFuture<Void> updateSession(Map<String, Object> attributesToUpdate, Set<String> attributesToRemove, String namespace, String id) {
+        return run(() -> dao.updateSession(attributesToUpdate, attributesToRemove, namespace, id));
+    }
+
+    @Override
+    public CompletableFuture<Void> updatePutPrincipalSession(String principal, String sessionId) {
+        return run(() -> dao.updatePutPrincipalSession(principal, sessionId));
+    }
+
+    @Override
+    public CompletableFuture<Void> updateRemovePrincipalSession(String principal, String sessionId) {
+        return run(() -> dao.updateRemovePrincipalSession(principal, sessionId));
+    }
+
+    @Override
+    public CompletableFuture<Void> updateRemovePrincipalSessions(String principal, Collection<String> sessionIds) {
+        return run(() -> dao.updateRemovePrincipalSessions(principal, sessionIds));
+    }
+
+    @Override
+    public CompletableFuture<Void> updateExpirationTime(String id, int expiry) {
+        return run(() -> dao.updateExpirationTime(id, expiry));
+    }
+
+    @Override
+    public CompletableFuture<Void> save(SessionDocument document, int expiry) {
+        return run(() -> dao.save(document, expiry));
+    }
+
+    @Override
+    public CompletableFuture<Void> save(PrincipalSessionsDocument document) {
+        return run(() -> dao.save(document));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> exists(String documentId) {
+        return call(() -> dao.exists(documentId));
+    }
+
+    @Override
+    public CompletableFuture<Void> delete(String id) {
+        return run(() -> dao.delete(id));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteSessions(Collection<String> ids) {
+        return run(() -> dao.deleteSessions(ids));
+    }
+
+    protected CompletableFuture<Void> run(Runnable operation) {
+        return call(() -> {
+            operation.run();
+            return null;
+        });
+    }
+
+    protected <T> CompletableFuture<T> call(Supplier<T> operation) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            future.complete(operation.get());
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+}
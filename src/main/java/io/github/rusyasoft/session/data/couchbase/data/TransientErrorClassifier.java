@@ -0,0 +1,66 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+import com.couchbase.client.core.BackpressureException;
+import com.couchbase.client.core.RequestCancelledException;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentAlreadyExistsException;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import com.couchbase.client.java.error.TemporaryFailureException;
+import com.couchbase.client.java.error.TemporaryLockFailureException;
+import org.springframework.classify.BinaryExceptionClassifier;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeoutException;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.unmodifiableMap;
+import static java.util.Collections.unmodifiableSet;
+
+/**
+ * Tells transient Couchbase errors, which are worth retrying and count as cluster failures, apart from errors
+ * describing the state of a document, which will not change by repeating the call. Failed N1QL statements are
+ * transient when all of their errors have transient codes: timeouts, internal errors and failed key-value fetches.
+ */
+public class TransientErrorClassifier extends BinaryExceptionClassifier {
+
+    public static final Map<Class<? extends Throwable>, Boolean> RETRYABLE_EXCEPTIONS;
+
+    static {
+        Map<Class<? extends Throwable>, Boolean> exceptions = new HashMap<>();
+        exceptions.put(TimeoutException.class, true);
+        exceptions.put(TemporaryFailureException.class, true);
+        exceptions.put(TemporaryLockFailureException.class, true);
+        exceptions.put(BackpressureException.class, true);
+        exceptions.put(RequestCancelledException.class, true);
+        exceptions.put(DocumentDoesNotExistException.class, false);
+        exceptions.put(DocumentAlreadyExistsException.class, false);
+        exceptions.put(CASMismatchException.class, false);
+        RETRYABLE_EXCEPTIONS = unmodifiableMap(exceptions);
+    }
+
+    public static final Set<Integer> TRANSIENT_QUERY_ERROR_CODES = unmodifiableSet(new HashSet<>(asList(1080, 5000, 12008)));
+
+    public TransientErrorClassifier() {
+        super(RETRYABLE_EXCEPTIONS, false);
+        setTraverseCauses(true);
+    }
+
+    @Override
+    public Boolean classify(Throwable classifiable) {
+        for (Throwable cause = classifiable; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CouchbaseQueryException) {
+                List<Integer> codes = ((CouchbaseQueryException) cause).getCodes();
+                return !codes.isEmpty() && TRANSIENT_QUERY_ERROR_CODES.containsAll(codes);
+            }
+        }
+        return super.classify(classifiable);
+    }
+
+    public boolean isTransient(Throwable throwable) {
+        return classify(throwable);
+    }
+}
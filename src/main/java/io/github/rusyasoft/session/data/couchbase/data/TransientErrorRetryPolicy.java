@@ -0,0 +1,24 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.policy.SimpleRetryPolicy;
+
+/**
+ * Retries errors the {@link TransientErrorClassifier} considers transient, N1QL errors with transient error codes
+ * included, up to the maximum number of attempts.
+ */
+public class TransientErrorRetryPolicy extends SimpleRetryPolicy {
+
+    protected final TransientErrorClassifier errorClassifier;
+
+    public TransientErrorRetryPolicy(int maxAttempts, TransientErrorClassifier errorClassifier) {
+        setMaxAttempts(maxAttempts);
+        this.errorClassifier = errorClassifier;
+    }
+
+    @Override
+    public boolean canRetry(RetryContext context) {
+        Throwable throwable = context.getLastThrowable();
+        return (throwable == null || errorClassifier.isTransient(throwable)) && context.getRetryCount() < getMaxAttempts();
+    }
+}
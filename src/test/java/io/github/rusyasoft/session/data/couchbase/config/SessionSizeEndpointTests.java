@@ -0,0 +1,43 @@
+package io.github.rusyasoft.session.data.couchbase.config;
+
+import io.github.rusyasoft.session.data.couchbase.core.SessionSizeProfiler;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SuppressWarnings("unchecked")
+public class SessionSizeEndpointTests {
+
+    protected final SessionSizeProfiler profiler = new SessionSizeProfiler(1, 0, 0, 5);
+    protected final SessionSizeEndpoint endpoint = new SessionSizeEndpoint(profiler);
+
+    @Test
+    public void reportsAttributeSizesPerNamespace() {
+        profiler.record("app", "cart", 300);
+        profiler.record("app", "cart", 100);
+
+        Map<String, Object> report = endpoint.report();
+
+        assertThat(report).containsKeys("sampleRate", "warnSize", "maxSize", "namespaces");
+        Map<String, Object> namespace = (Map<String, Object>) ((Map<String, Object>) report.get("namespaces")).get("app");
+        assertThat(namespace).containsOnlyKeys("topOffenders", "attributes");
+        Map<String, Object> cart = (Map<String, Object>) ((Map<String, Object>) namespace.get("attributes")).get("cart");
+        assertThat(cart)
+                .containsEntry("writes", 2L)
+                .containsEntry("samples", 2L)
+                .containsEntry("meanSize", 200L)
+                .containsEntry("maxSize", 300L)
+                .containsKey("distribution");
+    }
+
+    @Test
+    public void resetsCollectedSizes() {
+        profiler.record("app", "cart", 300);
+
+        endpoint.reset();
+
+        assertThat((Map<String, Object>) endpoint.report().get("namespaces")).isEmpty();
+    }
+}
@@ -0,0 +1,44 @@
+package io.github.rusyasoft.session.data.couchbase.core;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.rusyasoft.session.data.couchbase.config.SessionCouchbaseProperties;
+import io.github.rusyasoft.session.data.couchbase.config.SessionJsonConfig;
+import org.junit.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class CompactTypeIdResolverTests {
+
+    protected final ObjectMapper mapper = new SessionJsonConfig().objectMapper(new TypeIdRegistry(new SessionCouchbaseProperties.TypeIds().getIds()));
+
+    @Test
+    public void writesAndReadsRegisteredClassesAsTypeIds() throws Exception {
+        UsernamePasswordAuthenticationToken authentication =
+                new UsernamePasswordAuthenticationToken("user", null, singletonList(new SimpleGrantedAuthority("ROLE_USER")));
+
+        String json = mapper.writeValueAsString(authentication);
+        Object value = mapper.readValue(json, Object.class);
+
+        assertThat(json).contains("\"@class\":\"upat\"");
+        assertThat(value).isInstanceOf(UsernamePasswordAuthenticationToken.class);
+        assertThat(((UsernamePasswordAuthenticationToken) value).getAuthorities()).extracting("authority").containsExactly("ROLE_USER");
+    }
+
+    @Test
+    public void readsClassNamesOfClassesWithMixins() throws Exception {
+        String json = "{\"@class\":\"org.springframework.security.core.authority.SimpleGrantedAuthority\",\"authority\":\"ROLE_USER\"}";
+
+        assertThat(mapper.readValue(json, Object.class)).isEqualTo(new SimpleGrantedAuthority("ROLE_USER"));
+    }
+
+    @Test
+    public void rejectsClassesOutsideOfAllowlist() {
+        String json = "{\"@class\":\"java.util.concurrent.ConcurrentHashMap\"}";
+
+        assertThatThrownBy(() -> mapper.readValue(json, Object.class)).hasStackTraceContaining("is not allowed");
+    }
+}
@@ -0,0 +1,434 @@
+package io.github.rusyasoft.session.data.couchbase.core;
+
+import com.couchbase.client.java.document.json.JsonObject;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.rusyasoft.session.data.couchbase.config.SessionCouchbaseProperties;
+import io.github.rusyasoft.session.data.couchbase.config.SessionJsonConfig;
+import io.github.rusyasoft.session.data.couchbase.data.AccountingSessionDao;
+import io.github.rusyasoft.session.data.couchbase.data.BucketEmulator;
+import io.github.rusyasoft.session.data.couchbase.data.CouchbaseDeadline;
+import io.github.rusyasoft.session.data.couchbase.data.CouchbaseRetryTemplate;
+import io.github.rusyasoft.session.data.couchbase.data.PersistentDao;
+import io.github.rusyasoft.session.data.couchbase.data.SessionDao;
+import io.github.rusyasoft.session.data.couchbase.data.SessionOperationAccount;
+import io.github.rusyasoft.session.data.couchbase.data.TransientErrorClassifier;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.retry.backoff.NoBackOffPolicy;
+import org.springframework.retry.policy.SimpleRetryPolicy;
+import org.springframework.retry.support.RetryTemplate;
+import org.springframework.session.events.SessionDeletedEvent;
+import org.springframework.session.events.SessionExpiredEvent;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static io.github.rusyasoft.session.data.couchbase.core.CouchbaseSession.LAST_ACCESSED_TIME_ATTRIBUTE;
+import static io.github.rusyasoft.session.data.couchbase.core.CouchbaseSession.MAX_INACTIVE_INTERVAL_ATTRIBUTE;
+import static io.github.rusyasoft.session.data.couchbase.data.SessionDocument.GLOBAL_NAMESPACE;
+import static java.time.Duration.ofMillis;
+import static java.time.Duration.ofMinutes;
+import static java.util.Arrays.asList;
+import static java.util.Collections.nCopies;
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+import static org.springframework.session.FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME;
+
+public class CouchbaseSessionRepositoryEmulatorTests {
+
+    protected BucketEmulator emulator;
+    protected SessionCouchbaseProperties properties;
+    protected List<Object> events;
+
+    @Before
+    public void setUp() {
+        emulator = new BucketEmulator("sessions");
+        properties = new SessionCouchbaseProperties();
+        events = new ArrayList<>();
+    }
+
+    @Test
+    public void coalescesConcurrentLoadsOfSameSession() throws Exception {
+        CouchbaseSessionRepository repository = createRepository();
+        String id = saveSession(repository, null);
+        emulator.setLatency(ofMillis(300));
+        int readers = 4;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(readers);
+        try {
+            List<Future<CouchbaseSession>> loads = new ArrayList<>(readers);
+            for (int i = 0; i < readers; i++) {
+                loads.add(executor.submit((Callable<CouchbaseSession>) () -> {
+                    start.await();
+                    return repository.findById(id);
+                }));
+            }
+            start.countDown();
+
+            for (Future<CouchbaseSession> load : loads) {
+                assertThat(load.get().<String>getAttribute("color")).isEqualTo("red");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(emulator.getOperationCount("get")).isEqualTo(1);
+    }
+
+    @Test
+    public void loadsSessionsSeparatelyWithoutReadCoalescing() {
+        properties.getReadCoalescing().setEnabled(false);
+        CouchbaseSessionRepository repository = createRepository();
+        String id = saveSession(repository, null);
+
+        repository.findById(id);
+        repository.findById(id);
+
+        assertThat(emulator.getOperationCount("get")).isEqualTo(2);
+    }
+
+    @Test
+    public void touchesSessionWhileLoadingIt() {
+        properties.getPersistent().getTouchOnRead().setEnabled(true);
+        CouchbaseSessionRepository repository = createRepository();
+        String id = saveSession(repository, null);
+        long touches = emulator.getOperationCount("touch");
+
+        CouchbaseSession session = repository.findById(id);
+        repository.save(session);
+
+        assertThat(emulator.getOperationCount("getAndTouch")).isEqualTo(1);
+        assertThat(emulator.getOperationCount("get")).isZero();
+        assertThat(emulator.getOperationCount("touch")).isEqualTo(touches);
+        assertThat(emulator.getExpiration(id)).isGreaterThan(0);
+    }
+
+    @Test
+    public void touchesSessionOnceWithExpirationChosenByTimeoutPolicy() {
+        properties.getPersistent().getTouchOnRead().setEnabled(true);
+        CouchbaseSessionRepository repository = createRepository();
+        repository.setTimeoutPolicy(session -> ofMinutes(10));
+        String id = saveSession(repository, null);
+        long touches = emulator.getOperationCount("touch");
+
+        CouchbaseSession session = repository.findById(id);
+        repository.save(session);
+
+        assertThat(session.getMaxInactiveInterval()).isEqualTo(ofMinutes(10));
+        assertThat(emulator.getOperationCount("getAndTouch")).isZero();
+        assertThat(emulator.getOperationCount("touch")).isEqualTo(touches + 1);
+        long expiration = Instant.now().getEpochSecond() + repository.getSessionDocumentExpiration(session);
+        assertThat(emulator.getExpiration(id)).isCloseTo(expiration, within(1L));
+    }
+
+    @Test
+    public void allowsForSkippedLastAccessedTimeChangesWhenCheckingExpiration() {
+        properties.getPersistent().getTouchOnRead().setEnabled(true);
+        properties.getPersistent().getTouchOnRead().setLastAccessedTimeGranularity(ofMinutes(1));
+        CouchbaseSessionRepository repository = createRepository();
+        String recentId = saveSession(repository, null);
+        String staleId = saveSession(repository, null);
+
+        setStoredInactivity(recentId, 30);
+        setStoredInactivity(staleId, 90);
+
+        assertThat(repository.findById(recentId)).isNotNull();
+        assertThat(repository.findById(staleId)).isNull();
+        assertThat(emulator.getDocument(staleId)).isNull();
+    }
+
+    @Test
+    public void neitherDeletesNorExpiresSessionWhoseReplicaCopyLooksExpired() {
+        CouchbaseSessionRepository repository = createHedgingRepository();
+        String id = saveSession(repository, null);
+        JsonObject replica = emulator.getDocument(id);
+        replica.getObject("data").getObject(GLOBAL_NAMESPACE).put(LAST_ACCESSED_TIME_ATTRIBUTE, 0L);
+        emulator.putReplica(id, replica);
+        emulator.setLatency("get", ofMillis(500));
+
+        assertThat(repository.findById(id)).isNull();
+
+        assertThat(emulator.getOperationCount("getFromReplica")).isEqualTo(1);
+        assertThat(emulator.getDocument(id)).isNotNull();
+        assertThat(events).noneMatch(event -> event instanceof SessionExpiredEvent);
+    }
+
+    @Test
+    public void savesChangedAttributesOfSessionReadFromReplica() {
+        CouchbaseSessionRepository repository = createHedgingRepository();
+        String id = saveSession(repository, null);
+        emulator.putReplica(id, emulator.getDocument(id));
+        emulator.setLatency("get", ofMillis(500));
+
+        CouchbaseSession session = repository.findById(id);
+        session.setAttribute("size", "large");
+        repository.save(session);
+        emulator.setLatency("get", Duration.ZERO);
+
+        assertThat(session.isFromReplica()).isTrue();
+        CouchbaseSession savedSession = repository.findById(id);
+        assertThat(savedSession.isFromReplica()).isFalse();
+        assertThat(savedSession.<String>getAttribute("color")).isEqualTo("red");
+        assertThat(savedSession.<String>getAttribute("size")).isEqualTo("large");
+    }
+
+    @Test
+    public void skipsSaveOfSessionReadFromReplicaOnceDeletedOnActiveCopy() {
+        CouchbaseSessionRepository repository = createHedgingRepository();
+        String id = saveSession(repository, null);
+        emulator.putReplica(id, emulator.getDocument(id));
+        emulator.setLatency("get", ofMillis(500));
+        CouchbaseSession session = repository.findById(id);
+        createDao().delete(id);
+
+        session.setAttribute("size", "large");
+        repository.save(session);
+
+        assertThat(session.isFromReplica()).isTrue();
+        assertThat(emulator.getDocument(id)).isNull();
+    }
+
+    @Test
+    public void keepsIntervalSetByApplicationOnNewSession() {
+        properties.setDeferredCreation(true);
+        CouchbaseSessionRepository repository = createRepository();
+        repository.setTimeoutPolicy(session -> ofMinutes(10));
+        CouchbaseSession session = repository.createSession();
+        session.setAttribute(PRINCIPAL_NAME_INDEX_NAME, "user");
+        session.setMaxInactiveInterval(ofMinutes(5));
+
+        repository.save(session);
+
+        assertThat(session.getMaxInactiveInterval()).isEqualTo(ofMinutes(5));
+        assertThat(repository.findById(session.getId()).getMaxInactiveInterval()).isEqualTo(ofMinutes(5));
+    }
+
+    @Test
+    public void storesLargeAttributesInDocumentsExpiringWithSession() {
+        properties.getExternalizedAttributes().setEnabled(true);
+        properties.getExternalizedAttributes().setThreshold(100);
+        CouchbaseSessionRepository repository = createRepository();
+        CouchbaseSession session = repository.createSession();
+        String text = String.join("", nCopies(200, "x"));
+        session.setAttribute("text", text);
+
+        repository.save(session);
+
+        String key = session.getExternalizedAttributeKeys().get("text");
+        assertThat(emulator.getDocument(key)).isNotNull();
+        assertThat(emulator.getExpiration(key)).isCloseTo(emulator.getExpiration(session.getId()), within(1L));
+        assertThat(repository.findById(session.getId()).<String>getAttribute("text")).isEqualTo(text);
+    }
+
+    @Test
+    public void writesNewSessionDocumentTogetherWithItsExpiration() {
+        properties.setDeferredCreation(true);
+        CouchbaseSessionRepository repository = createRepository();
+        CouchbaseSession session = repository.createSession();
+        session.setAttribute("color", "red");
+        emulator.beforeNext("upsert", () -> emulator.failNext(new IllegalStateException("Emulated failure")));
+
+        assertThatThrownBy(() -> repository.save(session)).isInstanceOf(RuntimeException.class);
+
+        assertThat(emulator.getDocument(session.getId())).isNotNull();
+        long expiration = Instant.now().getEpochSecond() + repository.getSessionDocumentExpiration(session);
+        assertThat(emulator.getExpiration(session.getId())).isCloseTo(expiration, within(1L));
+    }
+
+    @Test
+    public void writesDocumentUnderChangedIdTogetherWithItsExpiration() {
+        CouchbaseSessionRepository repository = createRepository();
+        String oldId = saveSession(repository, null);
+        CouchbaseSession session = repository.findById(oldId);
+        session.changeSessionId();
+        emulator.beforeNext("upsert", () -> emulator.failNext(new IllegalStateException("Emulated failure")));
+
+        assertThatThrownBy(() -> repository.save(session)).isInstanceOf(RuntimeException.class);
+
+        assertThat(emulator.getDocument(oldId)).isNull();
+        assertThat(emulator.getDocument(session.getId())).isNotNull();
+        long expiration = Instant.now().getEpochSecond() + repository.getSessionDocumentExpiration(session);
+        assertThat(emulator.getExpiration(session.getId())).isCloseTo(expiration, within(1L));
+    }
+
+    @Test
+    public void chargesOnlyRepositoryCallsAgainstDeadline() throws Exception {
+        properties.getPersistent().getRetry().setDeadline(ofMillis(200));
+        CouchbaseSessionRepository repository = createRepository();
+        String id = saveSession(repository, null);
+        CouchbaseDeadline[] deadlines = new CouchbaseDeadline[1];
+        emulator.beforeNext("get", () -> deadlines[0] = CouchbaseDeadline.current());
+
+        CouchbaseSession session = repository.findById(id);
+        Thread.sleep(300);
+        session.setAttribute("color", "blue");
+        repository.save(session);
+
+        assertThat(deadlines[0]).isNotNull();
+        assertThat(CouchbaseDeadline.current()).isNull();
+        assertThat(repository.findById(id).<String>getAttribute("color")).isEqualTo("blue");
+    }
+
+    @Test
+    public void recordsPrincipalWritesIssuedOnContinuationThreadInAccountOfRequest() {
+        properties.getPrincipalSessions().setEnabled(true);
+        AccountingSessionDao dao = new AccountingSessionDao(createDao());
+        CouchbaseSessionRepository repository = new CouchbaseSessionRepository(properties, dao, new ObjectMapper(), createSerializer(), events::add);
+        SessionOperationAccount account = SessionOperationAccount.open();
+        try {
+            saveSession(repository, "user");
+        } finally {
+            SessionOperationAccount.close();
+        }
+
+        assertThat(dao.async()).isSameAs(dao.async());
+        assertThat(account.getCounts()).containsKeys("exists", "savePrincipalSessions");
+        assertThat(emulator.getDocument("user").getArray("sessionIds").size()).isEqualTo(1);
+    }
+
+    @Test
+    public void removesSessionsDeletedByCouchbaseExpiryFromTheirPrincipalIndex() {
+        properties.getPrincipalSessions().setEnabled(true);
+        CouchbaseSessionRepository repository = createRepository();
+        SessionExpirationIndex index = new SessionExpirationIndex(1);
+        repository.setExpirationIndex(index);
+        String id = saveSession(repository, "user");
+        index.track(id, "user", Instant.now().getEpochSecond() - 3600, 60);
+        createDao().delete(id);
+
+        repository.cleanUpExpiredSessions();
+
+        assertThat(emulator.getDocument("user").getArray("sessionIds").toList()).isEmpty();
+        assertThat(events).noneMatch(event -> event instanceof SessionExpiredEvent);
+        assertThat(index.size()).isZero();
+    }
+
+    @Test
+    public void tracksSessionsAccessedOnOtherNodeAgainWithTheirStoredLastAccessedTime() {
+        CouchbaseSessionRepository repository = createRepository();
+        SessionExpirationIndex index = new SessionExpirationIndex(1);
+        repository.setExpirationIndex(index);
+        String id = saveSession(repository, null);
+        long lastAccessedTime = emulator.getDocument(id).getObject("data").getObject(GLOBAL_NAMESPACE).getLong(LAST_ACCESSED_TIME_ATTRIBUTE);
+        index.track(id, null, Instant.now().getEpochSecond() - 3600, 60);
+
+        repository.cleanUpExpiredSessions();
+
+        assertThat(events).noneMatch(event -> event instanceof SessionExpiredEvent);
+        assertThat(emulator.getDocument(id)).isNotNull();
+        List<SessionExpirationIndex.Entry> entries = index.pollExpired(Long.MAX_VALUE / 2, 10);
+        assertThat(entries).hasSize(1);
+        assertThat(entries.get(0).getLastAccessedTime()).isEqualTo(lastAccessedTime);
+    }
+
+    @Test
+    public void deletesSessionsOfPrincipal() {
+        properties.getPrincipalSessions().setEnabled(true);
+        CouchbaseSessionRepository repository = createRepository();
+        String firstId = saveSession(repository, "user");
+        String secondId = saveSession(repository, "user");
+        String otherId = saveSession(repository, "other");
+
+        assertThat(repository.deleteByPrincipal("user")).containsOnly(firstId, secondId);
+
+        assertThat(emulator.getDocument(firstId)).isNull();
+        assertThat(emulator.getDocument(secondId)).isNull();
+        assertThat(emulator.getDocument(otherId)).isNotNull();
+        assertThat(emulator.getDocument("user").getArray("sessionIds").toList()).isEmpty();
+        assertThat(repository.findByIndexNameAndIndexValue(PRINCIPAL_NAME_INDEX_NAME, "other")).containsOnlyKeys(otherId);
+        assertThat(events.stream()
+                .filter(event -> event instanceof SessionDeletedEvent)
+                .map(event -> ((SessionDeletedEvent) event).getSessionId())
+                .collect(toList())).containsOnly(firstId, secondId);
+    }
+
+    @Test
+    public void skipsMissingExpiredAndBrokenSessionsWhenFindingByIds() {
+        CouchbaseSessionRepository repository = createRepository();
+        String activeId = saveSession(repository, null);
+        String expiredId = saveSession(repository, null);
+        String brokenId = saveSession(repository, null);
+        setStoredInactivity(expiredId, 60);
+        JsonObject broken = emulator.getDocument(brokenId);
+        broken.getObject("data").removeKey(GLOBAL_NAMESPACE);
+        emulator.putDocument(brokenId, broken);
+
+        Map<String, CouchbaseSession> sessions = repository.findByIds(asList("missing", expiredId, activeId, brokenId));
+
+        assertThat(sessions).containsOnlyKeys(activeId);
+        assertThat(sessions.get(activeId).<String>getAttribute("color")).isEqualTo("red");
+        assertThat(emulator.getDocument(expiredId)).isNull();
+    }
+
+    @Test
+    public void deletesExternalizedAttributesOfPrincipalSessions() {
+        properties.getPrincipalSessions().setEnabled(true);
+        properties.getExternalizedAttributes().setEnabled(true);
+        properties.getExternalizedAttributes().setThreshold(100);
+        CouchbaseSessionRepository repository = createRepository();
+        CouchbaseSession session = repository.createSession();
+        session.setAttribute(PRINCIPAL_NAME_INDEX_NAME, "user");
+        session.setAttribute("text", String.join("", nCopies(200, "x")));
+        repository.save(session);
+        String key = session.getExternalizedAttributeKeys().get("text");
+
+        assertThat(repository.deleteByPrincipal("user")).containsOnly(session.getId());
+
+        assertThat(emulator.getDocument(session.getId())).isNull();
+        assertThat(emulator.getDocument(key)).isNull();
+    }
+
+    protected CouchbaseSessionRepository createRepository() {
+        return new CouchbaseSessionRepository(properties, createDao(), new ObjectMapper(), createSerializer(), events::add);
+    }
+
+    protected CouchbaseSessionRepository createHedgingRepository() {
+        properties.getPersistent().getHedgedReads().setEnabled(true);
+        properties.getPersistent().getHedgedReads().setMinDelay(ofMillis(10));
+        properties.getPersistent().getHedgedReads().setMaxDelay(ofMillis(10));
+        return createRepository();
+    }
+
+    protected SessionDao createDao() {
+        RetryTemplate retryTemplate = new CouchbaseRetryTemplate();
+        retryTemplate.setRetryPolicy(new SimpleRetryPolicy(3, TransientErrorClassifier.RETRYABLE_EXCEPTIONS, true));
+        retryTemplate.setBackOffPolicy(new NoBackOffPolicy());
+        return new PersistentDao(properties, emulator.createTemplate(), retryTemplate);
+    }
+
+    protected JsonSerializer createSerializer() {
+        JsonSerializer serializer = new JsonSerializer();
+        serializer.rustamSerializer = new GenericJackson2JsonRedisSerializer(new SessionJsonConfig().objectMapper());
+        return serializer;
+    }
+
+    /**
+     * Moves the stored last accessed time of the session the given number of seconds past its max inactive interval.
+     */
+    protected void setStoredInactivity(String id, long secondsPastInterval) {
+        JsonObject document = emulator.getDocument(id);
+        JsonObject global = document.getObject("data").getObject(GLOBAL_NAMESPACE);
+        long interval = global.getLong(MAX_INACTIVE_INTERVAL_ATTRIBUTE);
+        global.put(LAST_ACCESSED_TIME_ATTRIBUTE, Instant.now().getEpochSecond() - interval - secondsPastInterval);
+        emulator.putDocument(id, document);
+    }
+
+    protected String saveSession(CouchbaseSessionRepository repository, String principal) {
+        CouchbaseSession session = repository.createSession();
+        session.setAttribute("color", "red");
+        if (principal != null) {
+            session.setAttribute(PRINCIPAL_NAME_INDEX_NAME, principal);
+        }
+        repository.save(session);
+        return session.getId();
+    }
+}
@@ -0,0 +1,99 @@
+package io.github.rusyasoft.session.data.couchbase.core;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static io.github.rusyasoft.session.data.couchbase.core.CouchbaseSession.LAST_ACCESSED_TIME_ATTRIBUTE;
+import static io.github.rusyasoft.session.data.couchbase.core.CouchbaseSession.MAX_INACTIVE_INTERVAL_ATTRIBUTE;
+import static io.github.rusyasoft.session.data.couchbase.core.CouchbaseSession.globalAttributeName;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CouchbaseSessionTests {
+
+    @Test
+    public void createsChangeTrackingOfLoadedSessionOnFirstChange() {
+        CouchbaseSession session = loadSession();
+
+        assertThat(session.globalAttributesToUpdate).isNull();
+        assertThat(session.globalAttributesToRemove).isNull();
+        assertThat(session.namespaceAttributesToUpdate).isNull();
+        assertThat(session.namespaceAttributesToRemove).isNull();
+        assertThat(session.getNamespaceAttributesToUpdate()).isEmpty();
+        assertThat(session.getNamespaceAttributesToRemove()).isEmpty();
+
+        session.setAttribute("color", "blue");
+        session.removeAttribute(globalAttributeName("user"));
+
+        assertThat(session.getNamespaceAttributesToUpdate()).containsOnlyKeys("color");
+        assertThat(session.getGlobalAttributesToRemove()).containsOnly("user");
+        assertThat(session.namespaceAttributesToRemove).isNull();
+    }
+
+    @Test
+    public void dropsChangeTrackingOnceChangesAreCleared() {
+        CouchbaseSession session = loadSession();
+        session.setAttribute("color", "blue");
+        session.setAttribute(globalAttributeName("user"), "other");
+
+        session.clearChangedNamespaceAttributes();
+        session.clearChangedGlobalAttributes();
+
+        assertThat(session.namespaceAttributesToUpdate).isNull();
+        assertThat(session.globalAttributesToUpdate).isNull();
+        assertThat(session.getNamespaceAttributesToUpdate()).isEmpty();
+        assertThat(session.getGlobalAttributesToUpdate()).isEmpty();
+        assertThat(session.<String>getAttribute("color")).isEqualTo("blue");
+    }
+
+    @Test
+    public void cancelsPendingRemovalWhenAttributeIsSetAgain() {
+        CouchbaseSession session = loadSession();
+
+        session.removeAttribute("color");
+        session.setAttribute("color", "blue");
+
+        assertThat(session.getNamespaceAttributesToRemove()).isEmpty();
+        assertThat(session.getNamespaceAttributesToUpdate()).containsEntry("color", "blue");
+
+        session.removeAttribute("color");
+
+        assertThat(session.getNamespaceAttributesToUpdate()).isEmpty();
+        assertThat(session.getNamespaceAttributesToRemove()).containsOnly("color");
+    }
+
+    @Test
+    public void reusesAttributeNamesUntilAttributeIsAddedOrRemoved() {
+        CouchbaseSession session = loadSession();
+        Set<String> names = session.getAttributeNames();
+
+        assertThat(session.getAttributeNames()).isSameAs(names);
+        assertThat(names).contains("color", globalAttributeName("user"));
+
+        session.setAttribute("color", "blue");
+        assertThat(session.getAttributeNames()).isSameAs(names);
+
+        session.setAttribute("size", "large");
+        Set<String> namesAfterSet = session.getAttributeNames();
+        assertThat(namesAfterSet).isNotSameAs(names).contains("size");
+
+        session.setAttribute(globalAttributeName("locale"), "en");
+        Set<String> namesAfterGlobalSet = session.getAttributeNames();
+        assertThat(namesAfterGlobalSet).isNotSameAs(namesAfterSet).contains(globalAttributeName("locale"));
+
+        session.removeAttribute("color");
+        assertThat(session.getAttributeNames()).isNotSameAs(namesAfterGlobalSet).doesNotContain("color");
+    }
+
+    protected CouchbaseSession loadSession() {
+        Map<String, Object> globalAttributes = new HashMap<>();
+        globalAttributes.put(LAST_ACCESSED_TIME_ATTRIBUTE, 1L);
+        globalAttributes.put(MAX_INACTIVE_INTERVAL_ATTRIBUTE, 1800L);
+        globalAttributes.put("user", "user");
+        Map<String, Object> namespaceAttributes = new HashMap<>();
+        namespaceAttributes.put("color", "red");
+        return new CouchbaseSession("id", globalAttributes, namespaceAttributes);
+    }
+}
@@ -0,0 +1,62 @@
+package io.github.rusyasoft.session.data.couchbase.core;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.rusyasoft.session.data.couchbase.config.SessionJsonConfig;
+import org.junit.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextImpl;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DeserializedValueCacheTests {
+
+    protected final ObjectMapper mapper = new SessionJsonConfig().objectMapper();
+    protected final DeserializedValueCache cache = new DeserializedValueCache(2, singletonList("SPRING_SECURITY_CONTEXT"), emptyList());
+
+    @Test
+    public void parsesRepeatedlyReadValueOnce() throws Exception {
+        String json = mapper.writeValueAsString(createSecurityContext("user"));
+
+        cache.deserialize(json, mapper);
+        cache.deserialize(json, mapper);
+
+        assertThat(cache.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void bindsNewInstancesOnEveryRead() throws Exception {
+        String json = mapper.writeValueAsString(createSecurityContext("user"));
+
+        SecurityContext first = (SecurityContext) cache.deserialize(json, mapper);
+        SecurityContext second = (SecurityContext) cache.deserialize(json, mapper);
+        ((UsernamePasswordAuthenticationToken) first.getAuthentication()).setDetails("changed");
+
+        assertThat(first).isNotSameAs(second);
+        assertThat(first.getAuthentication()).isNotSameAs(second.getAuthentication());
+        assertThat(second.getAuthentication().getDetails()).isNull();
+        assertThat(second.getAuthentication().getName()).isEqualTo("user");
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedValue() throws Exception {
+        String first = mapper.writeValueAsString(createSecurityContext("first"));
+        String second = mapper.writeValueAsString(createSecurityContext("second"));
+        String third = mapper.writeValueAsString(createSecurityContext("third"));
+
+        cache.deserialize(first, mapper);
+        cache.deserialize(second, mapper);
+        cache.deserialize(first, mapper);
+        cache.deserialize(third, mapper);
+
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.trees).containsOnlyKeys(DeserializedValueCache.hash(first), DeserializedValueCache.hash(third));
+    }
+
+    protected SecurityContext createSecurityContext(String principal) {
+        return new SecurityContextImpl(new UsernamePasswordAuthenticationToken(principal, null, singletonList(new SimpleGrantedAuthority("ROLE_USER"))));
+    }
+}
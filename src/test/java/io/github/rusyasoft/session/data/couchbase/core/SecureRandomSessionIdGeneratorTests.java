@@ -0,0 +1,44 @@
+package io.github.rusyasoft.session.data.couchbase.core;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SecureRandomSessionIdGeneratorTests {
+
+    @Test
+    public void generatesBase64UrlEncodedIdsOfConfiguredEntropy() {
+        assertThat(new SecureRandomSessionIdGenerator().generateId()).hasSize(22).matches("[A-Za-z0-9_-]+");
+        assertThat(new SecureRandomSessionIdGenerator(32, null).generateId()).hasSize(43).matches("[A-Za-z0-9_-]+");
+    }
+
+    @Test
+    public void generatesUniqueIds() {
+        SecureRandomSessionIdGenerator generator = new SecureRandomSessionIdGenerator();
+        Set<String> ids = new HashSet<>();
+
+        for (int i = 0; i < 10000; i++) {
+            ids.add(generator.generateId());
+        }
+
+        assertThat(ids).hasSize(10000);
+    }
+
+    @Test
+    public void usesOptedInAlgorithm() {
+        SecureRandomSessionIdGenerator generator = new SecureRandomSessionIdGenerator(16, "SHA1PRNG");
+
+        assertThat(generator.generateId()).hasSize(22);
+        assertThat(generator.random.get().getAlgorithm()).isEqualTo("SHA1PRNG");
+    }
+
+    @Test
+    public void rejectsUnknownAlgorithmAndTooLowEntropy() {
+        assertThatThrownBy(() -> new SecureRandomSessionIdGenerator(16, "unknown").generateId()).isInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> new SecureRandomSessionIdGenerator(8, null)).isInstanceOf(IllegalArgumentException.class);
+    }
+}
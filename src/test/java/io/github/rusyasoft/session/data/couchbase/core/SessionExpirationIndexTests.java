@@ -0,0 +1,95 @@
+package io.github.rusyasoft.session.data.couchbase.core;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SessionExpirationIndexTests {
+
+    protected final SessionExpirationIndex index = new SessionExpirationIndex(10);
+
+    @Test
+    public void pollsSessionsOnceTheirBucketHasEnded() {
+        index.track("a", "user", 100, 5);
+        index.track("b", null, 100, 25);
+
+        assertThat(index.pollExpired(109, 10)).isEmpty();
+        List<SessionExpirationIndex.Entry> expired = index.pollExpired(110, 10);
+
+        assertThat(ids(expired)).containsExactly("a");
+        assertThat(expired.get(0).getPrincipal()).isEqualTo("user");
+        assertThat(expired.get(0).getDeadline()).isEqualTo(105);
+        assertThat(index.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void pollsEachSessionOnce() {
+        index.track("a", null, 100, 5);
+
+        assertThat(index.pollExpired(200, 10)).hasSize(1);
+        assertThat(index.pollExpired(200, 10)).isEmpty();
+        assertThat(index.size()).isZero();
+    }
+
+    @Test
+    public void movesRetrackedSessionsToTheBucketOfTheirNewDeadline() {
+        index.track("a", null, 100, 5);
+        index.track("a", null, 130, 5);
+
+        assertThat(index.pollExpired(120, 10)).isEmpty();
+        List<SessionExpirationIndex.Entry> expired = index.pollExpired(140, 10);
+
+        assertThat(ids(expired)).containsExactly("a");
+        assertThat(expired.get(0).getLastAccessedTime()).isEqualTo(130);
+    }
+
+    @Test
+    public void keepsLatestEntryOfSessionsRetrackedWithinTheirBucket() {
+        index.track("a", null, 100, 1);
+        index.track("a", null, 102, 1);
+
+        List<SessionExpirationIndex.Entry> expired = index.pollExpired(110, 10);
+
+        assertThat(expired).hasSize(1);
+        assertThat(expired.get(0).getLastAccessedTime()).isEqualTo(102);
+    }
+
+    @Test
+    public void forgetsUntrackedSessions() {
+        index.track("a", null, 100, 5);
+
+        index.untrack("a");
+        index.untrack("missing");
+
+        assertThat(index.pollExpired(200, 10)).isEmpty();
+        assertThat(index.size()).isZero();
+    }
+
+    @Test
+    public void limitsNumberOfPolledSessions() {
+        for (int i = 0; i < 5; i++) {
+            index.track("session-" + i, null, 100 + i * 10, 1);
+        }
+
+        List<SessionExpirationIndex.Entry> firstBatch = index.pollExpired(200, 2);
+        List<SessionExpirationIndex.Entry> secondBatch = index.pollExpired(200, 10);
+
+        assertThat(ids(firstBatch)).containsExactly("session-0", "session-1");
+        assertThat(ids(secondBatch)).containsExactly("session-2", "session-3", "session-4");
+    }
+
+    @Test
+    public void rejectsNonPositiveBucketWidth() {
+        assertThatThrownBy(() -> new SessionExpirationIndex(0)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    protected List<String> ids(List<SessionExpirationIndex.Entry> entries) {
+        return entries.stream()
+                .map(SessionExpirationIndex.Entry::getId)
+                .collect(toList());
+    }
+}
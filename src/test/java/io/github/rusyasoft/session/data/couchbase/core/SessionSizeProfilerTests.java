@@ -0,0 +1,72 @@
+package io.github.rusyasoft.session.data.couchbase.core;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+@SuppressWarnings("unchecked")
+public class SessionSizeProfilerTests {
+
+    protected final SessionSizeProfiler profiler = new SessionSizeProfiler(1, 100, 10000, 2);
+
+    @Test
+    public void acceptsAttributeExceedingOnlyWarningLimit() {
+        profiler.record("app", "cart", 500);
+
+        Map<String, Object> stats = getAttributeReport("app", "cart");
+        assertThat(stats).containsEntry("writes", 1L).containsEntry("rejections", 0L).containsEntry("maxSize", 500L);
+    }
+
+    @Test
+    public void rejectsAttributeExceedingMaximumSize() {
+        assertThatThrownBy(() -> profiler.record("app", "cart", 10001))
+                .isInstanceOf(SessionAttributeTooLargeException.class)
+                .hasMessageContaining("'cart'")
+                .hasMessageContaining("10000");
+
+        Map<String, Object> stats = getAttributeReport("app", "cart");
+        assertThat(stats).containsEntry("writes", 1L).containsEntry("rejections", 1L);
+    }
+
+    @Test
+    public void reportsDistributionAndTopOffendersPerNamespace() {
+        profiler.record("app", "small", 10);
+        profiler.record("app", "medium", 2000);
+        profiler.record("app", "large", 5000);
+        profiler.record(null, "other", 10);
+
+        assertThat(getNamespaces()).containsOnlyKeys("app", SessionSizeProfiler.UNKNOWN_NAMESPACE);
+        assertThat((Map<String, Long>) getAttributeReport("app", "medium").get("distribution"))
+                .containsEntry("<=1K", 0L)
+                .containsEntry("<=4K", 1L);
+        List<Map<String, Object>> offenders = (List<Map<String, Object>>) getNamespace("app").get("topOffenders");
+        assertThat(offenders).extracting(offender -> offender.get("name")).containsExactly("large", "medium");
+    }
+
+    @Test
+    public void keepsLimitsInReportAfterReset() {
+        profiler.record("app", "cart", 10);
+
+        profiler.reset();
+
+        assertThat(profiler.getReport()).containsEntry("warnSize", 100L).containsEntry("maxSize", 10000L);
+        assertThat(getNamespaces()).isEmpty();
+    }
+
+    protected Map<String, Object> getNamespaces() {
+        return (Map<String, Object>) profiler.getReport().get("namespaces");
+    }
+
+    protected Map<String, Object> getNamespace(String namespace) {
+        return (Map<String, Object>) getNamespaces().get(namespace);
+    }
+
+    protected Map<String, Object> getAttributeReport(String namespace, String attributeName) {
+        Map<String, Object> attributes = (Map<String, Object>) getNamespace(namespace).get("attributes");
+        return (Map<String, Object>) attributes.get(attributeName);
+    }
+}
@@ -0,0 +1,74 @@
+package io.github.rusyasoft.session.data.couchbase.core;
+
+import io.github.rusyasoft.session.data.couchbase.data.CouchbaseDeadline;
+import io.github.rusyasoft.session.data.couchbase.data.DeadlineExceededException;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import static java.time.Duration.ofMillis;
+import static java.time.Duration.ofSeconds;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SingleFlightTests {
+
+    protected final SingleFlight<String, String> singleFlight = new SingleFlight<>();
+    protected final CountDownLatch loading = new CountDownLatch(1);
+    protected final CountDownLatch release = new CountDownLatch(1);
+
+    @Test
+    public void boundsWaitForConcurrentLoadByDeadlineOfWaitingCaller() throws Exception {
+        CompletableFuture<String> load = startSlowLoad();
+
+        CouchbaseDeadline.open(ofMillis(50));
+        try {
+            assertThatThrownBy(() -> singleFlight.execute("key", () -> "other")).isInstanceOf(DeadlineExceededException.class);
+        } finally {
+            CouchbaseDeadline.close();
+        }
+        release.countDown();
+
+        assertThat(load.get()).isEqualTo("value");
+    }
+
+    @Test
+    public void waitsWithinDeadlineForConcurrentLoadToComplete() throws Exception {
+        CompletableFuture<String> load = startSlowLoad();
+        new Thread(() -> {
+            sleep(100);
+            release.countDown();
+        }).start();
+
+        CouchbaseDeadline.open(ofSeconds(5));
+        try {
+            assertThat(singleFlight.execute("key", () -> "other")).isEqualTo("value");
+        } finally {
+            CouchbaseDeadline.close();
+        }
+        assertThat(load.get()).isEqualTo("value");
+    }
+
+    protected CompletableFuture<String> startSlowLoad() throws InterruptedException {
+        CompletableFuture<String> load = CompletableFuture.supplyAsync(() -> singleFlight.execute("key", () -> {
+            loading.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "value";
+        }));
+        loading.await();
+        return load;
+    }
+
+    protected void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,666 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+import com.couchbase.client.core.CouchbaseException;
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.ReplicaMode;
+import com.couchbase.client.java.cluster.ClusterInfo;
+import com.couchbase.client.java.document.Document;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.env.CouchbaseEnvironment;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import com.couchbase.client.java.error.TemporaryFailureException;
+import com.couchbase.client.java.query.AsyncN1qlQueryResult;
+import com.couchbase.client.java.query.AsyncN1qlQueryRow;
+import com.couchbase.client.java.query.N1qlQuery;
+import com.couchbase.client.java.query.N1qlQueryResult;
+import com.couchbase.client.java.query.N1qlQueryRow;
+import com.couchbase.client.java.subdoc.DocumentFragment;
+import com.couchbase.client.java.subdoc.LookupInBuilder;
+import com.couchbase.client.java.subdoc.MutateInBuilder;
+import com.couchbase.client.java.subdoc.SubdocOptionsBuilder;
+import org.springframework.data.couchbase.core.CouchbaseTemplate;
+import rx.Observable;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.stream.Collectors.toList;
+import static org.mockito.Mockito.mock;
+
+/**
+ * In-process emulator of the Couchbase bucket operations used by {@link PersistentDao}: key-value gets, upserts,
+ * touches and removals, sub-document lookups of paths and of the document expiration, CAS guarded mutations, document
+ * expiration and the N1QL statements the data access object issues. Latency and faults can be injected into every
+ * operation, so performance and resilience features can be exercised without a cluster. Replica reads return copies
+ * put with {@link #putReplica(String, JsonObject)}, which are never updated by writes to the active copies.
+ * <p>
+ * Like Couchbase Server before 7.0, every mutation which does not set an expiry, N1QL updates included, makes the
+ * document persistent again.
+ */
+public class BucketEmulator {
+
+    protected static final long RELATIVE_EXPIRY_LIMIT_IN_SECONDS = 30 * 24 * 60 * 60;
+    protected static final long KV_TIMEOUT_IN_MILLIS = 2500;
+    protected static final long QUERY_TIMEOUT_IN_MILLIS = 75000;
+    protected static final String EXPIRATION_XATTR = "$document.exptime";
+
+    protected final String name;
+    protected final ConcurrentMap<String, StoredDocument> documents = new ConcurrentHashMap<>();
+    protected final ConcurrentMap<String, JsonObject> replicas = new ConcurrentHashMap<>();
+    protected final ConcurrentMap<String, Duration> operationLatencies = new ConcurrentHashMap<>();
+    protected final AtomicLong casSequence = new AtomicLong();
+    protected final ConcurrentMap<String, LongAdder> operationCounts = new ConcurrentHashMap<>();
+    protected final Queue<RuntimeException> scheduledFaults = new ConcurrentLinkedQueue<>();
+    protected final ConcurrentMap<String, Queue<Runnable>> interceptors = new ConcurrentHashMap<>();
+    protected final N1qlEmulator n1ql = new N1qlEmulator(this);
+    protected final Bucket bucket;
+    protected final AsyncBucket asyncBucket;
+    protected final CouchbaseEnvironment environment;
+    protected volatile Clock clock = Clock.systemUTC();
+    protected volatile Duration latency = Duration.ZERO;
+    protected volatile double faultRate = 0;
+    protected volatile Supplier<? extends RuntimeException> faultSupplier = TemporaryFailureException::new;
+
+    public BucketEmulator(String name) {
+        this.name = name;
+        bucket = proxy(Bucket.class, this::invokeBucket);
+        asyncBucket = proxy(AsyncBucket.class, this::invokeAsyncBucket);
+        environment = proxy(CouchbaseEnvironment.class, (method, args) -> {
+            switch (method.getName()) {
+                case "kvTimeout":
+                    return KV_TIMEOUT_IN_MILLIS;
+                case "queryTimeout":
+                    return QUERY_TIMEOUT_IN_MILLIS;
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Bucket getBucket() {
+        return bucket;
+    }
+
+    public AsyncBucket getAsyncBucket() {
+        return asyncBucket;
+    }
+
+    /**
+     * Creates a Couchbase template on top of the emulated bucket, reporting every cluster feature as available.
+     */
+    public CouchbaseTemplate createTemplate() {
+        ClusterInfo clusterInfo = proxy(ClusterInfo.class,
+                (method, args) -> method.getReturnType() == boolean.class ? true : defaultValue(method.getReturnType()));
+        return new CouchbaseTemplate(clusterInfo, bucket);
+    }
+
+    /**
+     * Sets the clock deciding about document expiration, for example {@code Clock.offset(Clock.systemUTC(), ofMinutes(31))}
+     * to move past the session timeout.
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Sets the latency added to every operation. Blocking operations sleep, asynchronous ones delay their subscription.
+     */
+    public void setLatency(Duration latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * Sets the latency added to operations with the given name, in place of the one added to every operation.
+     */
+    public void setLatency(String operation, Duration latency) {
+        operationLatencies.put(operation, latency);
+    }
+
+    /**
+     * Makes the given share of operations, from 0 to 1, fail with exceptions created by the supplier.
+     */
+    public void setFaults(double faultRate, Supplier<? extends RuntimeException> faultSupplier) {
+        this.faultRate = faultRate;
+        this.faultSupplier = faultSupplier;
+    }
+
+    /**
+     * Makes the next operations fail with the given exceptions, one exception per operation.
+     */
+    public void failNext(RuntimeException... faults) {
+        scheduledFaults.addAll(Arrays.asList(faults));
+    }
+
+    /**
+     * Runs the action right before the next operation with the given name is applied, for example to write a document
+     * concurrently between its lookup and its CAS guarded mutation.
+     */
+    public void beforeNext(String operation, Runnable action) {
+        interceptors.computeIfAbsent(operation, name -> new ConcurrentLinkedQueue<>()).add(action);
+    }
+
+    /**
+     * Returns the number of operations with the given name issued so far, for example {@code get}, {@code touch},
+     * {@code mutateIn} or {@code query}.
+     */
+    public long getOperationCount(String operation) {
+        LongAdder count = operationCounts.get(operation);
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * Returns the content of a live document or {@code null}, without counting an operation or injecting faults.
+     */
+    public JsonObject getDocument(String id) {
+        StoredDocument document = live(id);
+        return document == null ? null : document.content();
+    }
+
+    /**
+     * Stores a persistent document, without counting an operation or injecting faults.
+     */
+    public void putDocument(String id, JsonObject content) {
+        store(id, content, 0);
+    }
+
+    /**
+     * Stores the replica copy of a document, which may differ from the active copy like a replica lagging behind.
+     */
+    public void putReplica(String id, JsonObject content) {
+        replicas.put(id, JsonObject.fromJson(content.toString()));
+    }
+
+    /**
+     * Returns the expiration of a live document in epoch seconds, 0 for persistent documents, or {@code null}.
+     */
+    public Long getExpiration(String id) {
+        StoredDocument document = live(id);
+        return document == null ? null : document.expiresAt;
+    }
+
+    public void clear() {
+        documents.clear();
+        replicas.clear();
+        operationCounts.clear();
+        scheduledFaults.clear();
+        interceptors.clear();
+    }
+
+    protected Object invokeBucket(Method method, Object[] args) {
+        if (is(method, "name")) {
+            return name;
+        } else if (is(method, "async")) {
+            return asyncBucket;
+        } else if (is(method, "environment")) {
+            return environment;
+        } else if (is(method, "get", String.class) || is(method, "get", String.class, long.class, TimeUnit.class)) {
+            return call("get", () -> get((String) args[0]));
+        } else if (is(method, "getAndTouch", String.class, int.class) || is(method, "getAndTouch", String.class, int.class, long.class, TimeUnit.class)) {
+            return call("getAndTouch", () -> getAndTouch((String) args[0], (Integer) args[1]));
+        } else if (is(method, "touch", String.class, int.class)) {
+            return call("touch", () -> touch((String) args[0], (Integer) args[1]));
+        } else if (is(method, "exists", String.class)) {
+            return call("exists", () -> live((String) args[0]) != null);
+        } else if (is(method, "upsert", Document.class)) {
+            return call("upsert", () -> upsert((Document<?>) args[0]));
+        } else if (is(method, "remove", String.class)) {
+            return call("remove", () -> remove((String) args[0]));
+        } else if (is(method, "lookupIn", String.class)) {
+            return lookupIn((String) args[0]);
+        } else if (is(method, "mutateIn", String.class)) {
+            return mutateIn((String) args[0]);
+        } else if (is(method, "query", N1qlQuery.class)) {
+            return call("query", () -> query((N1qlQuery) args[0], false));
+        } else if (is(method, "ping")) {
+            return call("ping", () -> null);
+        } else if (is(method, "close") || is(method, "isClosed")) {
+            return is(method, "close");
+        }
+        throw new UnsupportedOperationException("Bucket." + method.getName() + " is not emulated");
+    }
+
+    protected Object invokeAsyncBucket(Method method, Object[] args) {
+        if (is(method, "name")) {
+            return name;
+        } else if (is(method, "environment")) {
+            return Observable.just(environment);
+        } else if (is(method, "get", String.class)) {
+            return observe("get", () -> get((String) args[0]));
+        } else if (is(method, "getFromReplica", String.class, ReplicaMode.class)) {
+            return observe("getFromReplica", () -> getFromReplica((String) args[0]));
+        } else if (is(method, "getAndTouch", String.class, int.class)) {
+            return observe("getAndTouch", () -> getAndTouch((String) args[0], (Integer) args[1]));
+        } else if (is(method, "touch", String.class, int.class)) {
+            return observe("touch", () -> touch((String) args[0], (Integer) args[1]));
+        } else if (is(method, "exists", String.class)) {
+            return observe("exists", () -> live((String) args[0]) != null);
+        } else if (is(method, "upsert", Document.class)) {
+            return observe("upsert", () -> upsert((Document<?>) args[0]));
+        } else if (is(method, "remove", String.class)) {
+            return observe("remove", () -> remove((String) args[0]));
+        } else if (is(method, "query", N1qlQuery.class)) {
+            return observe("query", () -> query((N1qlQuery) args[0], true));
+        } else if (is(method, "close") || is(method, "isClosed")) {
+            return Observable.just(is(method, "close"));
+        }
+        throw new UnsupportedOperationException("AsyncBucket." + method.getName() + " is not emulated");
+    }
+
+    protected JsonDocument get(String id) {
+        StoredDocument document = live(id);
+        return document == null ? null : document.toJsonDocument(id);
+    }
+
+    protected JsonDocument getFromReplica(String id) {
+        JsonObject content = replicas.get(id);
+        return content == null ? null : JsonDocument.create(id, JsonObject.fromJson(content.toString()));
+    }
+
+    protected JsonDocument getAndTouch(String id, int expiry) {
+        if (live(id) == null) {
+            return null;
+        }
+        return touchDocument(id, expiry).toJsonDocument(id);
+    }
+
+    protected boolean touch(String id, int expiry) {
+        touchDocument(id, expiry);
+        return true;
+    }
+
+    protected StoredDocument touchDocument(String id, int expiry) {
+        return update(id, current -> new StoredDocument(current.json, nextCas(), expiresAt(expiry)));
+    }
+
+    protected Document<?> upsert(Document<?> document) {
+        JsonObject content = (JsonObject) document.content();
+        StoredDocument stored = store(document.id(), content, document.expiry());
+        return JsonDocument.create(document.id(), document.expiry(), content, stored.cas);
+    }
+
+    protected JsonDocument remove(String id) {
+        StoredDocument[] removed = new StoredDocument[1];
+        documents.compute(id, (key, current) -> {
+            if (current == null || current.isExpired(now())) {
+                throw new DocumentDoesNotExistException();
+            }
+            removed[0] = current;
+            return null;
+        });
+        return JsonDocument.create(id, 0, null, removed[0].cas);
+    }
+
+    protected LookupInBuilder lookupIn(String id) {
+        List<String> paths = new ArrayList<>();
+        return mock(LookupInBuilder.class, invocation -> {
+            switch (invocation.getMethod().getName()) {
+                case "get":
+                case "exists":
+                    for (Object argument : invocation.getArguments()) {
+                        if (argument instanceof String) {
+                            paths.add((String) argument);
+                        } else if (argument instanceof String[]) {
+                            paths.addAll(Arrays.asList((String[]) argument));
+                        }
+                    }
+                    return invocation.getMock();
+                case "execute":
+                    return call("lookupIn", () -> lookup(id, paths));
+                case "toString":
+                    return "LookupInBuilder emulator";
+                default:
+                    throw new UnsupportedOperationException("LookupInBuilder." + invocation.getMethod().getName() + " is not emulated");
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    protected DocumentFragment<?> lookup(String id, List<String> paths) {
+        StoredDocument document = live(id);
+        if (document == null) {
+            throw new DocumentDoesNotExistException();
+        }
+        JsonObject content = document.content();
+        return mock(DocumentFragment.class, invocation -> {
+            Object[] args = invocation.getArguments();
+            switch (invocation.getMethod().getName()) {
+                case "id":
+                    return id;
+                case "cas":
+                    return document.cas;
+                case "exists":
+                    return paths.contains(args[0]) && (EXPIRATION_XATTR.equals(args[0])
+                            || N1qlEmulator.resolve(content, N1qlEmulator.path((String) args[0])) != N1qlEmulator.MISSING);
+                case "content":
+                    if (EXPIRATION_XATTR.equals(args[0])) {
+                        return document.expiresAt;
+                    }
+                    Object value = N1qlEmulator.resolve(content, N1qlEmulator.path((String) args[0]));
+                    return value == N1qlEmulator.MISSING ? null : value;
+                case "toString":
+                    return "DocumentFragment emulator";
+                default:
+                    throw new UnsupportedOperationException("DocumentFragment." + invocation.getMethod().getName() + " is not emulated");
+            }
+        });
+    }
+
+    protected MutateInBuilder mutateIn(String id) {
+        long[] cas = {0};
+        int[] expiry = {0};
+        List<Consumer<JsonObject>> mutations = new ArrayList<>();
+        return mock(MutateInBuilder.class, invocation -> {
+            Object[] args = invocation.getArguments();
+            switch (invocation.getMethod().getName()) {
+                case "withCas":
+                    cas[0] = (Long) args[0];
+                    return invocation.getMock();
+                case "withExpiry":
+                    expiry[0] = (Integer) args[0];
+                    return invocation.getMock();
+                case "upsert":
+                    boolean createPath = args.length > 2 && (args[2] instanceof Boolean ? (Boolean) args[2] : ((SubdocOptionsBuilder) args[2]).createPath());
+                    mutations.add(content -> N1qlEmulator.assign(content, N1qlEmulator.path((String) args[0]), args[1], createPath, id));
+                    return invocation.getMock();
+                case "remove":
+                    mutations.add(content -> N1qlEmulator.unset(content, N1qlEmulator.path((String) args[0]), id));
+                    return invocation.getMock();
+                case "execute":
+                    return call("mutateIn", () -> mutate(id, cas[0], expiry[0], mutations));
+                case "toString":
+                    return "MutateInBuilder emulator";
+                default:
+                    throw new UnsupportedOperationException("MutateInBuilder." + invocation.getMethod().getName() + " is not emulated");
+            }
+        });
+    }
+
+    protected DocumentFragment<?> mutate(String id, long cas, int expiry, List<Consumer<JsonObject>> mutations) {
+        StoredDocument stored = update(id, current -> {
+            if (cas != 0 && cas != current.cas) {
+                throw new CASMismatchException();
+            }
+            JsonObject content = current.content();
+            mutations.forEach(mutation -> mutation.accept(content));
+            return new StoredDocument(content.toString(), nextCas(), expiresAt(expiry));
+        });
+        return mock(DocumentFragment.class, invocation -> {
+            switch (invocation.getMethod().getName()) {
+                case "id":
+                    return id;
+                case "cas":
+                    return stored.cas;
+                case "toString":
+                    return "DocumentFragment emulator";
+                default:
+                    throw new UnsupportedOperationException("DocumentFragment." + invocation.getMethod().getName() + " is not emulated");
+            }
+        });
+    }
+
+    protected Object query(N1qlQuery query, boolean async) {
+        JsonObject request = query.n1ql();
+        JsonArray args = request.getArray("args");
+        List<JsonObject> rows;
+        List<JsonObject> errors;
+        try {
+            rows = n1ql.execute(request.getString("statement"), args == null ? JsonArray.empty() : args);
+            errors = emptyList();
+        } catch (N1qlEmulator.N1qlException e) {
+            rows = emptyList();
+            errors = singletonList(JsonObject.create().put("code", e.getCode()).put("msg", e.getMessage()));
+        }
+        return async ? asyncQueryResult(rows, errors) : queryResult(rows, errors);
+    }
+
+    protected N1qlQueryResult queryResult(List<JsonObject> rows, List<JsonObject> errors) {
+        List<N1qlQueryRow> queryRows = rows.stream()
+                .map(row -> proxy(N1qlQueryRow.class, (method, args) -> rowValue(method, row)))
+                .collect(toList());
+        return proxy(N1qlQueryResult.class, (method, args) -> {
+            switch (method.getName()) {
+                case "allRows":
+                    return queryRows;
+                case "rows":
+                case "iterator":
+                    return queryRows.iterator();
+                case "errors":
+                    return errors;
+                case "finalSuccess":
+                    return errors.isEmpty();
+                case "parseSuccess":
+                    return true;
+                case "status":
+                    return errors.isEmpty() ? "success" : "errors";
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    protected AsyncN1qlQueryResult asyncQueryResult(List<JsonObject> rows, List<JsonObject> errors) {
+        List<AsyncN1qlQueryRow> queryRows = rows.stream()
+                .map(row -> proxy(AsyncN1qlQueryRow.class, (method, args) -> rowValue(method, row)))
+                .collect(toList());
+        return proxy(AsyncN1qlQueryResult.class, (method, args) -> {
+            switch (method.getName()) {
+                case "rows":
+                    return Observable.from(queryRows);
+                case "errors":
+                    return Observable.from(errors);
+                case "finalSuccess":
+                    return Observable.just(errors.isEmpty());
+                case "parseSuccess":
+                    return true;
+                case "status":
+                    return Observable.just(errors.isEmpty() ? "success" : "errors");
+                default:
+                    return Observable.class.isAssignableFrom(method.getReturnType()) ? Observable.empty() : defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    protected Object rowValue(Method method, JsonObject row) {
+        switch (method.getName()) {
+            case "value":
+                return row;
+            case "byteValue":
+                return row.toString().getBytes(UTF_8);
+            default:
+                return defaultValue(method.getReturnType());
+        }
+    }
+
+    protected StoredDocument live(String id) {
+        StoredDocument document = documents.get(id);
+        if (document != null && document.isExpired(now())) {
+            documents.remove(id, document);
+            return null;
+        }
+        return document;
+    }
+
+    protected StoredDocument store(String id, JsonObject content, int expiry) {
+        StoredDocument document = new StoredDocument(content.toString(), nextCas(), expiresAt(expiry));
+        documents.put(id, document);
+        return document;
+    }
+
+    /**
+     * Replaces a live document atomically, failing with {@link DocumentDoesNotExistException} when there is none.
+     */
+    protected StoredDocument update(String id, Function<StoredDocument, StoredDocument> mutation) {
+        return documents.compute(id, (key, current) -> {
+            if (current == null || current.isExpired(now())) {
+                throw new DocumentDoesNotExistException();
+            }
+            return mutation.apply(current);
+        });
+    }
+
+    protected long nextCas() {
+        return casSequence.incrementAndGet();
+    }
+
+    protected long now() {
+        return clock.instant().getEpochSecond();
+    }
+
+    protected long expiresAt(int expiry) {
+        if (expiry <= 0) {
+            return 0;
+        }
+        return expiry <= RELATIVE_EXPIRY_LIMIT_IN_SECONDS ? now() + expiry : expiry;
+    }
+
+    protected <T> T call(String operation, Supplier<T> call) {
+        long delay = latencyOf(operation);
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CouchbaseException("Interrupted while emulating latency", e);
+            }
+        }
+        count(operation);
+        injectFault();
+        intercept(operation);
+        return call.get();
+    }
+
+    protected <T> Observable<T> observe(String operation, Supplier<T> call) {
+        Observable<T> observable = Observable.defer(() -> {
+            count(operation);
+            injectFault();
+            intercept(operation);
+            T result = call.get();
+            return result == null ? Observable.<T>empty() : Observable.just(result);
+        });
+        long delay = latencyOf(operation);
+        return delay > 0 ? observable.delaySubscription(delay, MILLISECONDS) : observable;
+    }
+
+    protected long latencyOf(String operation) {
+        return operationLatencies.getOrDefault(operation, latency).toMillis();
+    }
+
+    protected void count(String operation) {
+        operationCounts.computeIfAbsent(operation, name -> new LongAdder()).increment();
+    }
+
+    protected void intercept(String operation) {
+        Queue<Runnable> actions = interceptors.get(operation);
+        Runnable action = actions == null ? null : actions.poll();
+        if (action != null) {
+            action.run();
+        }
+    }
+
+    protected void injectFault() {
+        RuntimeException fault = scheduledFaults.poll();
+        if (fault == null && faultRate > 0 && ThreadLocalRandom.current().nextDouble() < faultRate) {
+            fault = faultSupplier.get();
+        }
+        if (fault != null) {
+            throw fault;
+        }
+    }
+
+    protected static boolean is(Method method, String name, Class<?>... parameterTypes) {
+        return method.getName().equals(name) && Arrays.equals(method.getParameterTypes(), parameterTypes);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static <T> T proxy(Class<T> type, BiFunction<Method, Object[], Object> handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        return type.getSimpleName() + " emulator";
+                }
+            }
+            return handler.apply(method, args == null ? new Object[0] : args);
+        });
+    }
+
+    protected static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == double.class) {
+            return 0d;
+        } else if (type == List.class) {
+            return emptyList();
+        } else if (type == Map.class) {
+            return emptyMap();
+        }
+        return null;
+    }
+
+    /**
+     * Document kept as JSON text, so that callers never share mutable content with the emulator.
+     */
+    protected static class StoredDocument {
+
+        protected final String json;
+        protected final long cas;
+        protected final long expiresAt;
+
+        protected StoredDocument(String json, long cas, long expiresAt) {
+            this.json = json;
+            this.cas = cas;
+            this.expiresAt = expiresAt;
+        }
+
+        protected JsonObject content() {
+            return JsonObject.fromJson(json);
+        }
+
+        protected boolean isExpired(long now) {
+            return expiresAt != 0 && expiresAt <= now;
+        }
+
+        protected JsonDocument toJsonDocument(String id) {
+            return JsonDocument.create(id, (int) expiresAt, content(), cas);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+public class ConsistentHashRingTests {
+
+    protected static final int KEYS = 30000;
+
+    @Test
+    public void spreadsKeysEvenlyAcrossNodes() {
+        ConsistentHashRing<String> ring = createRing("a", "b", "c");
+
+        Map<String, Integer> counts = countKeys(ring);
+
+        assertThat(counts).containsOnlyKeys("a", "b", "c");
+        counts.values().forEach(count -> assertThat(count).isCloseTo(KEYS / 3, within(KEYS / 3 * 15 / 100)));
+    }
+
+    @Test
+    public void spreadsKeysByNodeWeight() {
+        ConsistentHashRing<String> ring = new ConsistentHashRing<>(160);
+        ring.add("a", "a", 1);
+        ring.add("b", "b", 3);
+
+        Map<String, Integer> counts = countKeys(ring);
+
+        assertThat((double) counts.get("b") / KEYS).isCloseTo(0.75, within(0.05));
+    }
+
+    @Test
+    public void movesOnlyKeysTakenOverByAddedNode() {
+        ConsistentHashRing<String> previousRing = createRing("a", "b", "c");
+        ConsistentHashRing<String> ring = createRing("a", "b", "c", "d");
+
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String key = key(i);
+            if (!ring.get(key).equals(previousRing.get(key))) {
+                assertThat(ring.get(key)).isEqualTo("d");
+                moved++;
+            }
+        }
+
+        assertThat((double) moved / KEYS).isCloseTo(0.25, within(0.1));
+    }
+
+    @Test
+    public void movesOnlyKeysOfRemovedNode() {
+        ConsistentHashRing<String> previousRing = createRing("a", "b", "c");
+        ConsistentHashRing<String> ring = createRing("a", "c");
+
+        for (int i = 0; i < KEYS; i++) {
+            String key = key(i);
+            if (!previousRing.get(key).equals("b")) {
+                assertThat(ring.get(key)).isEqualTo(previousRing.get(key));
+            }
+        }
+    }
+
+    @Test
+    public void mapsKeysRegardlessOfNodeOrder() {
+        ConsistentHashRing<String> ring = createRing("a", "b", "c");
+        ConsistentHashRing<String> reorderedRing = createRing("c", "a", "b");
+
+        for (int i = 0; i < KEYS; i++) {
+            assertThat(reorderedRing.get(key(i))).isEqualTo(ring.get(key(i)));
+        }
+    }
+
+    @Test
+    public void rejectsInvalidNodes() {
+        ConsistentHashRing<String> ring = createRing("a");
+
+        assertThatThrownBy(() -> ring.add("a", "a", 1)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> ring.add("b", "b", 0)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new ConsistentHashRing<String>(160).get("key")).isInstanceOf(IllegalStateException.class);
+    }
+
+    protected ConsistentHashRing<String> createRing(String... nodes) {
+        ConsistentHashRing<String> ring = new ConsistentHashRing<>(160);
+        for (String node : nodes) {
+            ring.add(node, node, 1);
+        }
+        return ring;
+    }
+
+    protected Map<String, Integer> countKeys(ConsistentHashRing<String> ring) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            counts.merge(ring.get(key(i)), 1, Integer::sum);
+        }
+        return counts;
+    }
+
+    protected String key(int index) {
+        return "session-" + index;
+    }
+}
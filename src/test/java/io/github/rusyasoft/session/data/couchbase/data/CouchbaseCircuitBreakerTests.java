@@ -0,0 +1,98 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import com.couchbase.client.java.error.TemporaryFailureException;
+import io.github.rusyasoft.session.data.couchbase.config.SessionCouchbaseProperties;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static java.time.Duration.ZERO;
+import static java.time.Duration.ofMinutes;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class CouchbaseCircuitBreakerTests {
+
+    protected SessionCouchbaseProperties properties;
+
+    @Before
+    public void setUp() {
+        properties = new SessionCouchbaseProperties();
+        properties.getPersistent().getCircuitBreaker().setEnabled(true);
+        properties.getPersistent().getCircuitBreaker().setFailureThreshold(3);
+    }
+
+    @Test
+    public void opensAfterConsecutiveTransientFailures() {
+        CouchbaseCircuitBreaker circuitBreaker = createCircuitBreaker(ofMinutes(1));
+
+        failTransiently(circuitBreaker, 2);
+        assertThat(circuitBreaker.getState()).isEqualTo(CouchbaseCircuitBreaker.State.CLOSED);
+        failTransiently(circuitBreaker, 1);
+
+        assertThat(circuitBreaker.getState()).isEqualTo(CouchbaseCircuitBreaker.State.OPEN);
+        assertThatThrownBy(circuitBreaker::acquirePermission).isInstanceOf(CircuitBreakerOpenException.class);
+    }
+
+    @Test
+    public void resetsFailuresOnSuccessAndNonTransientErrors() {
+        CouchbaseCircuitBreaker circuitBreaker = createCircuitBreaker(ofMinutes(1));
+
+        failTransiently(circuitBreaker, 2);
+        circuitBreaker.onSuccess();
+        failTransiently(circuitBreaker, 2);
+        circuitBreaker.onError(new DocumentDoesNotExistException());
+        failTransiently(circuitBreaker, 2);
+
+        assertThat(circuitBreaker.getState()).isEqualTo(CouchbaseCircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void letsSingleTrialCallThroughOnceOpenDurationElapses() {
+        CouchbaseCircuitBreaker circuitBreaker = createCircuitBreaker(ZERO);
+        failTransiently(circuitBreaker, 3);
+
+        circuitBreaker.acquirePermission();
+
+        assertThat(circuitBreaker.getState()).isEqualTo(CouchbaseCircuitBreaker.State.HALF_OPEN);
+        assertThatThrownBy(circuitBreaker::acquirePermission).isInstanceOf(CircuitBreakerOpenException.class);
+        circuitBreaker.onSuccess();
+        assertThat(circuitBreaker.getState()).isEqualTo(CouchbaseCircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void opensAgainWhenTrialCallFails() {
+        CouchbaseCircuitBreaker circuitBreaker = createCircuitBreaker(ZERO);
+        failTransiently(circuitBreaker, 3);
+        circuitBreaker.acquirePermission();
+
+        circuitBreaker.onError(new TemporaryFailureException());
+
+        assertThat(circuitBreaker.getState()).isEqualTo(CouchbaseCircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    public void letsEveryCallThroughWhenDisabled() {
+        properties.getPersistent().getCircuitBreaker().setEnabled(false);
+        CouchbaseCircuitBreaker circuitBreaker = createCircuitBreaker(ofMinutes(1));
+
+        failTransiently(circuitBreaker, 10);
+
+        circuitBreaker.acquirePermission();
+        assertThat(circuitBreaker.getState()).isEqualTo(CouchbaseCircuitBreaker.State.CLOSED);
+    }
+
+    protected CouchbaseCircuitBreaker createCircuitBreaker(Duration openDuration) {
+        properties.getPersistent().getCircuitBreaker().setOpenDuration(openDuration);
+        return new CouchbaseCircuitBreaker(properties, new TransientErrorClassifier());
+    }
+
+    protected void failTransiently(CouchbaseCircuitBreaker circuitBreaker, int times) {
+        for (int i = 0; i < times; i++) {
+            circuitBreaker.acquirePermission();
+            circuitBreaker.onError(new TemporaryFailureException());
+        }
+    }
+}
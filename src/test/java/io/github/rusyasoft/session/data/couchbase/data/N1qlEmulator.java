@@ -0,0 +1,460 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+import com.couchbase.client.core.CouchbaseException;
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static java.util.regex.Pattern.DOTALL;
+import static java.util.regex.Pattern.compile;
+
+/**
+ * Executes the subset of N1QL issued by {@link PersistentDao} against a {@link BucketEmulator}: key lookups with
+ * {@code SELECT ... USE KEYS}, {@code UPSERT INTO ... VALUES}, {@code DELETE ... USE KEYS} and {@code UPDATE ... USE KEYS}
+ * with {@code SET} and {@code UNSET} clauses. Assigned expressions can be parameters, paths, JSON literals and the
+ * {@code ARRAY_PUT}, {@code ARRAY_REMOVE}, {@code IFMISSINGORNULL} and {@code ARRAY ... FOR ... WHEN ... NOT IN ... END}
+ * forms. Key scans with {@code SELECT ... WHERE META().id > ... ORDER BY META().id LIMIT ...} are filtered by
+ * {@code IS NOT MISSING} and document key {@code LIKE} predicates.
+ */
+public class N1qlEmulator {
+
+    protected static final Object MISSING = new Object();
+    protected static final Pattern SELECT = compile("SELECT (.+) FROM `([^`]+)` USE KEYS (\\$\\d+)", DOTALL);
+    protected static final Pattern UPSERT = compile("UPSERT INTO `([^`]+)` \\(KEY, VALUE\\) VALUES \\((\\$\\d+), (\\$\\d+)\\)");
+    protected static final Pattern DELETE = compile("DELETE FROM `([^`]+)` USE KEYS (\\$\\d+)");
+    protected static final Pattern UPDATE = compile("UPDATE `([^`]+)` USE KEYS (\\$\\d+) (.+)", DOTALL);
+    protected static final Pattern SCAN =
+            compile("SELECT (.+) FROM `([^`]+)` WHERE META\\(\\)\\.id > (\\$\\d+) AND (.+) ORDER BY META\\(\\)\\.id LIMIT (\\$\\d+)", DOTALL);
+    protected static final Pattern LIKE = compile("META\\(\\)\\.id (NOT )?LIKE \"([^\"]*)\"");
+    protected static final String DOCUMENT_KEY = "META().id";
+    protected static final Pattern ARRAY_FILTER = compile("ARRAY (\\w+) FOR \\1 IN (.+) WHEN \\1 NOT IN (.+) END", DOTALL);
+
+    protected final BucketEmulator bucket;
+
+    public N1qlEmulator(BucketEmulator bucket) {
+        this.bucket = bucket;
+    }
+
+    public List<JsonObject> execute(String statement, JsonArray args) {
+        String text = statement.trim();
+        Matcher matcher;
+        if ((matcher = SELECT.matcher(text)).matches()) {
+            checkKeyspace(matcher.group(2));
+            return select(matcher.group(1).trim(), keys(evaluate(matcher.group(3), null, args)));
+        } else if ((matcher = SCAN.matcher(text)).matches()) {
+            checkKeyspace(matcher.group(2));
+            int limit = ((Number) evaluate(matcher.group(5), null, args)).intValue();
+            return scan(matcher.group(1), (String) evaluate(matcher.group(3), null, args), matcher.group(4), limit);
+        } else if ((matcher = UPSERT.matcher(text)).matches()) {
+            checkKeyspace(matcher.group(1));
+            Object value = evaluate(matcher.group(3), null, args);
+            if (!(value instanceof JsonObject)) {
+                throw new N1qlException(5070, "Cannot UPSERT non-object value " + value);
+            }
+            bucket.store((String) evaluate(matcher.group(2), null, args), (JsonObject) value, 0);
+            return emptyList();
+        } else if ((matcher = DELETE.matcher(text)).matches()) {
+            checkKeyspace(matcher.group(1));
+            keys(evaluate(matcher.group(2), null, args)).forEach(key -> {
+                if (bucket.live(key) != null) {
+                    bucket.documents.remove(key);
+                }
+            });
+            return emptyList();
+        } else if ((matcher = UPDATE.matcher(text)).matches()) {
+            checkKeyspace(matcher.group(1));
+            update(matcher.group(3), keys(evaluate(matcher.group(2), null, args)), args);
+            return emptyList();
+        }
+        throw new N1qlException(3000, "Statement is not emulated: " + statement);
+    }
+
+    protected List<JsonObject> select(String projection, List<String> keys) {
+        List<JsonObject> rows = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            BucketEmulator.StoredDocument document = bucket.live(key);
+            if (document == null) {
+                continue;
+            }
+            JsonObject content = document.content();
+            if ("*".equals(projection)) {
+                rows.add(JsonObject.create().put(bucket.getName(), content));
+                continue;
+            }
+            List<String> path = path(projection);
+            Object value = resolve(content, path);
+            JsonObject row = JsonObject.create();
+            if (value != MISSING) {
+                put(row, path.get(path.size() - 1), value);
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    protected List<JsonObject> scan(String projection, String afterKey, String condition, int limit) {
+        List<String> keys = new ArrayList<>(bucket.documents.keySet());
+        Collections.sort(keys);
+        List<JsonObject> rows = new ArrayList<>();
+        for (String key : keys) {
+            if (rows.size() == limit) {
+                break;
+            }
+            BucketEmulator.StoredDocument document = key.compareTo(afterKey) > 0 ? bucket.live(key) : null;
+            if (document == null || !matches(condition, key, document.content())) {
+                continue;
+            }
+            JsonObject row = JsonObject.create();
+            for (String term : splitTopLevel(projection, ",")) {
+                List<String> alias = splitTopLevel(term.trim(), " AS ");
+                if (alias.size() != 2) {
+                    throw new N1qlException(3000, "Projection is not emulated: " + term);
+                }
+                String expression = alias.get(0).trim();
+                put(row, alias.get(1).trim(), DOCUMENT_KEY.equals(expression) ? key : matches(expression, key, document.content()));
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    /**
+     * Evaluates a condition built of {@code IS NOT MISSING} and document key {@code LIKE} predicates connected by
+     * {@code OR} and {@code AND}.
+     */
+    protected boolean matches(String condition, String key, JsonObject document) {
+        String text = unwrap(condition.trim());
+        List<String> alternatives = splitTopLevel(text, " OR ");
+        if (alternatives.size() > 1) {
+            return alternatives.stream().anyMatch(alternative -> matches(alternative, key, document));
+        }
+        List<String> conjuncts = splitTopLevel(text, " AND ");
+        if (conjuncts.size() > 1) {
+            return conjuncts.stream().allMatch(conjunct -> matches(conjunct, key, document));
+        }
+        Matcher like = LIKE.matcher(text);
+        if (like.matches()) {
+            return key.matches(likeToRegex(like.group(2))) != (like.group(1) != null);
+        }
+        if (text.endsWith(" IS NOT MISSING")) {
+            return resolve(document, path(text.substring(0, text.length() - " IS NOT MISSING".length()))) != MISSING;
+        }
+        throw new N1qlException(3000, "Condition is not emulated: " + condition);
+    }
+
+    /**
+     * Removes parentheses enclosing the whole condition.
+     */
+    protected static String unwrap(String condition) {
+        if (!condition.startsWith("(") || !condition.endsWith(")")) {
+            return condition;
+        }
+        int depth = 0;
+        for (int i = 0; i < condition.length() - 1; i++) {
+            char c = condition.charAt(i);
+            if (c == '(') {
+                depth++;
+            } else if (c == ')' && --depth == 0) {
+                return condition;
+            }
+        }
+        return unwrap(condition.substring(1, condition.length() - 1).trim());
+    }
+
+    protected static String likeToRegex(String pattern) {
+        StringBuilder regex = new StringBuilder();
+        for (char c : pattern.toCharArray()) {
+            if (c == '%') {
+                regex.append(".*");
+            } else if (c == '_') {
+                regex.append('.');
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return regex.toString();
+    }
+
+    protected void update(String clauses, List<String> keys, JsonArray args) {
+        List<String> parts = splitTopLevel(clauses, " UNSET ");
+        String setClause = parts.get(0).trim();
+        List<String> assignments = emptyList();
+        if (setClause.startsWith("SET ")) {
+            assignments = splitTopLevel(setClause.substring(4), ",");
+        } else if (!setClause.startsWith("UNSET ")) {
+            throw new N1qlException(3000, "Invalid UPDATE clauses: " + clauses);
+        }
+        List<String> unsets = new ArrayList<>();
+        if (setClause.startsWith("UNSET ")) {
+            unsets.addAll(splitTopLevel(setClause.substring(6), ","));
+        }
+        for (int i = 1; i < parts.size(); i++) {
+            unsets.addAll(splitTopLevel(parts.get(i), ","));
+        }
+        List<String> finalAssignments = assignments;
+        for (String key : keys) {
+            try {
+                bucket.update(key, current -> {
+                    JsonObject content = current.content();
+                    for (String assignment : finalAssignments) {
+                        List<String> sides = splitTopLevel(assignment, " = ");
+                        if (sides.size() != 2) {
+                            throw new N1qlException(3000, "Invalid assignment: " + assignment);
+                        }
+                        Object value = evaluate(sides.get(1), content, args);
+                        List<String> path = path(sides.get(0));
+                        if (value == MISSING) {
+                            unset(content, path, key);
+                        } else {
+                            assign(content, path, value, false, key);
+                        }
+                    }
+                    unsets.forEach(unset -> unset(content, path(unset), key));
+                    // N1QL rewrites the whole document without an expiry.
+                    return new BucketEmulator.StoredDocument(content.toString(), bucket.nextCas(), 0);
+                });
+            } catch (DocumentDoesNotExistException e) {
+                // Keys without documents are skipped by N1QL.
+            }
+        }
+    }
+
+    protected Object evaluate(String expression, JsonObject document, JsonArray args) {
+        String text = expression.trim();
+        if (text.startsWith("$")) {
+            int index = Integer.parseInt(text.substring(1)) - 1;
+            if (index < 0 || index >= args.size()) {
+                throw new N1qlException(5010, "No value for parameter " + text);
+            }
+            return args.get(index);
+        }
+        Matcher filter = ARRAY_FILTER.matcher(text);
+        if (filter.matches()) {
+            Object source = evaluate(filter.group(2), document, args);
+            Object excluded = evaluate(filter.group(3), document, args);
+            if (!(source instanceof JsonArray)) {
+                return source == MISSING ? MISSING : null;
+            }
+            JsonArray result = JsonArray.create();
+            for (Object item : (JsonArray) source) {
+                if (!(excluded instanceof JsonArray) || !contains((JsonArray) excluded, item)) {
+                    result.add(item);
+                }
+            }
+            return result;
+        }
+        if (text.startsWith("ARRAY_PUT(") || text.startsWith("ARRAY_REMOVE(")) {
+            boolean put = text.startsWith("ARRAY_PUT(");
+            List<String> arguments = arguments(text);
+            Object source = evaluate(arguments.get(0), document, args);
+            if (!(source instanceof JsonArray)) {
+                return source == MISSING ? MISSING : null;
+            }
+            JsonArray result = JsonArray.create();
+            List<Object> values = new ArrayList<>(arguments.size() - 1);
+            for (int i = 1; i < arguments.size(); i++) {
+                values.add(evaluate(arguments.get(i), document, args));
+            }
+            for (Object item : (JsonArray) source) {
+                if (put || !values.contains(item)) {
+                    result.add(item);
+                }
+            }
+            if (put) {
+                values.stream().filter(value -> !contains(result, value)).forEach(result::add);
+            }
+            return result;
+        }
+        if (text.startsWith("IFMISSINGORNULL(")) {
+            for (String argument : arguments(text)) {
+                Object value = evaluate(argument, document, args);
+                if (value != MISSING && value != null) {
+                    return value;
+                }
+            }
+            return null;
+        }
+        if (isPath(text)) {
+            return document == null ? MISSING : resolve(document, path(text));
+        }
+        try {
+            return JsonObject.fromJson("{\"value\":" + text + "}").get("value");
+        } catch (RuntimeException e) {
+            throw new N1qlException(3000, "Expression is not emulated: " + expression);
+        }
+    }
+
+    protected boolean isPath(String text) {
+        if (text.equals("true") || text.equals("false") || text.equals("null")) {
+            return false;
+        }
+        char first = text.charAt(0);
+        return first == '`' || Character.isLetter(first) || first == '_';
+    }
+
+    protected List<String> arguments(String call) {
+        int open = call.indexOf('(');
+        if (!call.endsWith(")")) {
+            throw new N1qlException(3000, "Invalid function call: " + call);
+        }
+        return splitTopLevel(call.substring(open + 1, call.length() - 1), ",");
+    }
+
+    protected List<String> keys(Object value) {
+        if (value instanceof String) {
+            return singletonList((String) value);
+        }
+        if (value instanceof JsonArray) {
+            List<String> keys = new ArrayList<>();
+            for (Object key : (JsonArray) value) {
+                keys.add((String) key);
+            }
+            return keys;
+        }
+        throw new N1qlException(5030, "Invalid USE KEYS value " + value);
+    }
+
+    protected void checkKeyspace(String keyspace) {
+        if (!bucket.getName().equals(keyspace)) {
+            throw new N1qlException(12003, "Keyspace not found: " + keyspace);
+        }
+    }
+
+    protected static boolean contains(JsonArray array, Object value) {
+        for (Object item : array) {
+            if (item == null ? value == null : item.equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Splits a N1QL or sub-document path like {@code data.`namespace`.`attribute`} into its field names.
+     */
+    protected static List<String> path(String expression) {
+        List<String> names = new ArrayList<>();
+        for (String part : splitTopLevel(expression.trim(), ".")) {
+            String name = part.trim();
+            if (name.startsWith("`") && name.endsWith("`") && name.length() > 1) {
+                name = name.substring(1, name.length() - 1);
+            }
+            names.add(name);
+        }
+        return names;
+    }
+
+    protected static Object resolve(JsonObject document, List<String> path) {
+        Object current = document;
+        for (String name : path) {
+            if (!(current instanceof JsonObject) || !((JsonObject) current).containsKey(name)) {
+                return MISSING;
+            }
+            current = ((JsonObject) current).get(name);
+        }
+        return current;
+    }
+
+    /**
+     * Sets the value at the path. Without {@code createPath} missing parents leave the document unchanged, like N1QL does.
+     */
+    protected static void assign(JsonObject document, List<String> path, Object value, boolean createPath, String id) {
+        JsonObject parent = parent(document, path, createPath, id);
+        if (parent != null) {
+            put(parent, path.get(path.size() - 1), value);
+        }
+    }
+
+    protected static void unset(JsonObject document, List<String> path, String id) {
+        JsonObject parent = parent(document, path, false, id);
+        if (parent != null) {
+            parent.removeKey(path.get(path.size() - 1));
+        }
+    }
+
+    protected static JsonObject parent(JsonObject document, List<String> path, boolean createPath, String id) {
+        JsonObject current = document;
+        for (String name : path.subList(0, path.size() - 1)) {
+            Object child = current.get(name);
+            if (child == null && createPath) {
+                child = JsonObject.create();
+                current.put(name, child);
+            }
+            if (!(child instanceof JsonObject)) {
+                return null;
+            }
+            current = (JsonObject) child;
+        }
+        return current;
+    }
+
+    protected static void put(JsonObject object, String name, Object value) {
+        if (value == null) {
+            object.putNull(name);
+        } else {
+            object.put(name, value);
+        }
+    }
+
+    /**
+     * Splits the text at separators outside of strings, backtick quoted names and brackets.
+     */
+    protected static List<String> splitTopLevel(String text, String separator) {
+        List<String> parts = new ArrayList<>();
+        int depth = 0;
+        boolean inString = false;
+        boolean inName = false;
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (inString) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == '"') {
+                    inString = false;
+                }
+            } else if (inName) {
+                inName = c != '`';
+            } else if (c == '"') {
+                inString = true;
+            } else if (c == '`') {
+                inName = true;
+            } else if (c == '(' || c == '[' || c == '{') {
+                depth++;
+            } else if (c == ')' || c == ']' || c == '}') {
+                depth--;
+            } else if (depth == 0 && text.startsWith(separator, i)) {
+                parts.add(text.substring(start, i));
+                start = i + separator.length();
+                i = start - 1;
+            }
+        }
+        parts.add(text.substring(start));
+        return parts;
+    }
+
+    /**
+     * N1QL error reported in the query result instead of being thrown, like the query service does.
+     */
+    public static class N1qlException extends CouchbaseException {
+
+        protected final int code;
+
+        public N1qlException(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+
+        public int getCode() {
+            return code;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class OffHeapStoreTests {
+
+    @Test
+    public void shiftsCollidingEntriesBackOnRemoval() {
+        OffHeapStore.Segment segment = new OffHeapStore.Segment(4, 4096, 0.5);
+        int lastSlot = segment.addresses.length - 1;
+        segment.put(key("a"), lastSlot, value(1, 1), 0, 0);
+        segment.put(key("b"), lastSlot, value(1, 2), 0, 0);
+        segment.put(key("c"), lastSlot, value(1, 3), 0, 0);
+        segment.put(key("d"), 0, value(1, 4), 0, 0);
+        assertThat(segment.find(key("c"), lastSlot)).isEqualTo(1);
+        assertThat(segment.find(key("d"), 0)).isEqualTo(2);
+
+        assertThat(segment.remove(key("a"), lastSlot, 0)).isTrue();
+
+        assertThat(segment.find(key("b"), lastSlot)).isEqualTo(lastSlot);
+        assertThat(segment.find(key("c"), lastSlot)).isZero();
+        assertThat(segment.find(key("d"), 0)).isEqualTo(1);
+        assertThat(segment.get(key("a"), lastSlot, 0)).isNull();
+        assertThat(segment.get(key("d"), 0, 0)).isEqualTo(value(1, 4));
+        assertThat(segment.size()).isEqualTo(3);
+    }
+
+    @Test
+    public void growsIndexKeepingEveryEntry() {
+        OffHeapStore store = new OffHeapStore(1 << 20, 64 * 1024, 1, 0.5);
+
+        for (int i = 0; i < 2000; i++) {
+            store.put("key-" + i, ("value-" + i).getBytes(UTF_8), 0);
+        }
+        for (int i = 0; i < 2000; i += 2) {
+            store.remove("key-" + i);
+        }
+
+        assertThat(store.segments[0].addresses.length).isEqualTo(4096);
+        assertThat(store.size()).isEqualTo(1000);
+        for (int i = 0; i < 2000; i++) {
+            assertThat(store.get("key-" + i)).isEqualTo(i % 2 == 0 ? null : ("value-" + i).getBytes(UTF_8));
+        }
+    }
+
+    @Test
+    public void expiresValuesAfterTheirTimeToLive() {
+        MutableClock clock = new MutableClock();
+        OffHeapStore store = new OffHeapStore(1 << 20, 4096, 1, 0.5, clock);
+        store.put("session", value(10, 1), 1000);
+        store.put("persistent", value(10, 2), 0);
+
+        clock.millis = 999;
+        assertThat(store.getAndTouch("session", 1000)).isEqualTo(value(10, 1));
+        clock.millis = 1500;
+        assertThat(store.get("session")).isNotNull();
+        clock.millis = 1999;
+
+        assertThat(store.get("session")).isNull();
+        assertThat(store.get("persistent")).isEqualTo(value(10, 2));
+        assertThat(store.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void evictsExpiredValues() {
+        MutableClock clock = new MutableClock();
+        OffHeapStore store = new OffHeapStore(1 << 20, 4096, 1, 0.5, clock);
+        for (int i = 0; i < 10; i++) {
+            store.put("key-" + i, value(10, i), i < 6 ? 100 : 0);
+        }
+        long liveMemory = store.getLiveMemory();
+        clock.millis = 100;
+
+        assertThat(store.evictExpired()).isEqualTo(6);
+
+        assertThat(store.size()).isEqualTo(4);
+        assertThat(store.getLiveMemory()).isEqualTo(liveMemory * 4 / 10);
+        for (int i = 6; i < 10; i++) {
+            assertThat(store.get("key-" + i)).isEqualTo(value(10, i));
+        }
+    }
+
+    @Test
+    public void reclaimsMemoryOfOverwrittenValues() {
+        OffHeapStore store = new OffHeapStore(400, 100, 1, 0.5);
+
+        for (int i = 0; i < 50; i++) {
+            store.put("k" + i % 2, value(29, i), 0);
+        }
+
+        assertThat(store.get("k0")).isEqualTo(value(29, 48));
+        assertThat(store.get("k1")).isEqualTo(value(29, 49));
+        assertThat(store.getLiveMemory()).isEqualTo(2 * 51);
+        assertThat(store.getAllocatedMemory()).isLessThanOrEqualTo(400);
+    }
+
+    @Test
+    public void keepsRoomForAllocatedRecordWhileCompacting() {
+        OffHeapStore store = new OffHeapStore(300, 100, 1, 0.9);
+        store.put("a", value(39, 1), 0);
+        store.put("b", value(19, 2), 0);
+        store.remove("b");
+
+        store.put("c", value(29, 3), 0);
+
+        assertThat(store.get("a")).isEqualTo(value(39, 1));
+        assertThat(store.get("c")).isEqualTo(value(29, 3));
+    }
+
+    @Test
+    public void rejectsValuesWhenSegmentIsFull() {
+        OffHeapStore store = new OffHeapStore(200, 100, 1, 0.5);
+        store.put("a", value(39, 1), 0);
+        store.put("b", value(19, 2), 0);
+        store.put("c", value(29, 3), 0);
+        store.put("d", value(29, 4), 0);
+
+        assertThatThrownBy(() -> store.put("e", value(29, 5), 0)).isInstanceOf(OffHeapStoreFullException.class);
+        assertThatThrownBy(() -> store.put("large", value(200, 1), 0)).isInstanceOf(OffHeapStoreFullException.class);
+        store.remove("a");
+        store.remove("b");
+        store.put("e", value(29, 5), 0);
+
+        assertThat(store.get("e")).isEqualTo(value(29, 5));
+        assertThat(store.size()).isEqualTo(3);
+    }
+
+    protected byte[] key(String key) {
+        return key.getBytes(UTF_8);
+    }
+
+    protected byte[] value(int length, int content) {
+        byte[] value = new byte[length];
+        Arrays.fill(value, (byte) content);
+        return value;
+    }
+
+    protected static class MutableClock extends Clock {
+
+        protected volatile long millis;
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public long millis() {
+            return millis;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.TemporaryFailureException;
+import io.github.rusyasoft.session.data.couchbase.config.BulkheadMetrics;
+import io.github.rusyasoft.session.data.couchbase.config.SessionCouchbaseProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.retry.RetryCallback;
+import org.springframework.retry.RetryContext;
+import org.springframework.retry.backoff.NoBackOffPolicy;
+import org.springframework.retry.listener.RetryListenerSupport;
+import org.springframework.retry.policy.SimpleRetryPolicy;
+import org.springframework.retry.support.RetryTemplate;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static io.github.rusyasoft.session.data.couchbase.core.CouchbaseSession.CREATION_TIME_ATTRIBUTE;
+import static io.github.rusyasoft.session.data.couchbase.data.SessionDocument.GLOBAL_NAMESPACE;
+import static java.time.Duration.ofMillis;
+import static java.time.Duration.ofMinutes;
+import static java.time.Duration.ofSeconds;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonMap;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class PersistentDaoEmulatorTests {
+
+    protected static final String NAMESPACE = "default";
+    protected static final String SESSION_ID = "session-1";
+
+    protected BucketEmulator emulator;
+    protected SessionCouchbaseProperties properties;
+
+    @Before
+    public void setUp() {
+        emulator = new BucketEmulator("sessions");
+        properties = new SessionCouchbaseProperties();
+    }
+
+    @Test
+    public void savesAndLoadsSessionNamespaces() {
+        PersistentDao dao = createDao();
+
+        dao.save(sessionDocument());
+
+        SessionNamespacesDocument document = dao.findNamespaces(SESSION_ID, GLOBAL_NAMESPACE, NAMESPACE);
+        assertThat(document.getNamespace(GLOBAL_NAMESPACE).getLong(CREATION_TIME_ATTRIBUTE)).isEqualTo(100L);
+        assertThat(document.getNamespace(NAMESPACE).getString("color")).isEqualTo("red");
+        assertThat(dao.findNamespaces(asList(SESSION_ID, "missing"), GLOBAL_NAMESPACE, NAMESPACE)).containsOnlyKeys(SESSION_ID);
+    }
+
+    @Test
+    public void updatesAttributesWithQuery() {
+        PersistentDao dao = createDao();
+        dao.save(sessionDocument());
+
+        dao.updateSession(singletonMap("size", "{\"width\":2}"), singleton("color"), NAMESPACE, SESSION_ID);
+
+        JsonObject namespace = emulator.getDocument(SESSION_ID).getObject("data").getObject(NAMESPACE);
+        assertThat(namespace.getObject("size").getInt("width")).isEqualTo(2);
+        assertThat(namespace.containsKey("color")).isFalse();
+    }
+
+    @Test
+    public void updatesAttributesWithCas() {
+        properties.getPersistent().setSaveMode(SaveMode.CAS);
+        PersistentDao dao = createDao();
+        dao.save(sessionDocument());
+
+        dao.updateSession(singletonMap("size", "\"large\""), singleton("color"), NAMESPACE, SESSION_ID);
+
+        JsonObject namespace = emulator.getDocument(SESSION_ID).getObject("data").getObject(NAMESPACE);
+        assertThat(namespace.getString("size")).isEqualTo("large");
+        assertThat(namespace.containsKey("color")).isFalse();
+        assertThat(emulator.getOperationCount("lookupIn")).isEqualTo(1);
+        assertThat(emulator.getOperationCount("mutateIn")).isEqualTo(1);
+    }
+
+    @Test
+    public void updatesAttributesWithoutLookupWhenNothingIsRemoved() {
+        properties.getPersistent().setSaveMode(SaveMode.CAS);
+        PersistentDao dao = createDao();
+        dao.save(sessionDocument());
+
+        dao.updateSession(singletonMap("size", "\"large\""), emptySet(), NAMESPACE, SESSION_ID);
+
+        assertThat(emulator.getDocument(SESSION_ID).getObject("data").getObject(NAMESPACE).getString("size")).isEqualTo("large");
+        assertThat(emulator.getOperationCount("lookupIn")).isZero();
+        assertThat(emulator.getOperationCount("mutateIn")).isEqualTo(1);
+    }
+
+    @Test
+    public void mergesChangesAgainAfterCasConflict() {
+        properties.getPersistent().setSaveMode(SaveMode.CAS);
+        PersistentDao dao = createDao();
+        dao.save(sessionDocument());
+        emulator.beforeNext("mutateIn", () -> emulator.putDocument(SESSION_ID, concurrentlyModifiedDocument()));
+
+        dao.updateSession(singletonMap("size", "\"large\""), singleton("color"), NAMESPACE, SESSION_ID);
+
+        JsonObject namespace = emulator.getDocument(SESSION_ID).getObject("data").getObject(NAMESPACE);
+        assertThat(namespace.getString("size")).isEqualTo("large");
+        assertThat(namespace.getString("shape")).isEqualTo("round");
+        assertThat(namespace.containsKey("color")).isFalse();
+        assertThat(emulator.getOperationCount("lookupIn")).isEqualTo(2);
+        assertThat(emulator.getOperationCount("mutateIn")).isEqualTo(2);
+    }
+
+    @Test
+    public void failsWhenCasConflictsExhaustAttempts() {
+        properties.getPersistent().setSaveMode(SaveMode.CAS);
+        properties.getPersistent().getCas().setMaxAttempts(2);
+        PersistentDao dao = createDao();
+        dao.save(sessionDocument());
+        emulator.beforeNext("mutateIn", () -> emulator.putDocument(SESSION_ID, concurrentlyModifiedDocument()));
+        emulator.beforeNext("mutateIn", () -> emulator.putDocument(SESSION_ID, concurrentlyModifiedDocument()));
+
+        assertThatThrownBy(() -> dao.updateSession(singletonMap("size", "\"large\""), singleton("color"), NAMESPACE, SESSION_ID))
+                .isInstanceOf(CASMismatchException.class);
+        assertThat(emulator.getOperationCount("mutateIn")).isEqualTo(2);
+    }
+
+    @Test
+    public void managesPrincipalSessions() {
+        PersistentDao dao = createDao();
+        List<String> sessionIds = new ArrayList<>(asList("a", "b"));
+        dao.save(new PrincipalSessionsDocument("user", sessionIds));
+
+        dao.updatePutPrincipalSession("user", "c");
+        dao.updateRemovePrincipalSession("user", "a");
+        dao.updateRemovePrincipalSessions("user", singleton("b"));
+
+        assertThat(dao.findByPrincipal("user").getSessionIds()).containsExactly("c");
+        assertThat(dao.exists("user")).isTrue();
+    }
+
+    @Test
+    public void preparesStatementsWithoutChangingDocuments() {
+        PersistentDao dao = createDao();
+        dao.save(sessionDocument());
+        dao.save(new PrincipalSessionsDocument("admin", new ArrayList<>(asList("a", "b"))));
+
+        dao.prepareStatements();
+
+        assertThat(emulator.getOperationCount("query")).isEqualTo(7);
+        assertThat(dao.findByPrincipal("admin").getSessionIds()).containsExactly("a", "b");
+        assertThat(emulator.getDocument(SESSION_ID)).isNotNull();
+    }
+
+    @Test
+    public void expiresDocuments() {
+        PersistentDao dao = createDao();
+        dao.save(sessionDocument());
+
+        dao.updateExpirationTime(SESSION_ID, 60);
+        emulator.setClock(Clock.offset(Clock.systemUTC(), ofSeconds(61)));
+
+        assertThat(dao.findNamespaces(SESSION_ID, GLOBAL_NAMESPACE, NAMESPACE)).isNull();
+    }
+
+    @Test
+    public void retriesInjectedTransientFaults() {
+        PersistentDao dao = createDao();
+        dao.save(sessionDocument());
+
+        emulator.failNext(new TemporaryFailureException());
+
+        assertThat(dao.findNamespaces(SESSION_ID, GLOBAL_NAMESPACE, NAMESPACE)).isNotNull();
+        assertThat(emulator.getOperationCount("get")).isEqualTo(2);
+    }
+
+    @Test
+    public void retriesAsynchronousOperationsFollowingRetryTemplate() {
+        List<Throwable> errors = new ArrayList<>();
+        RetryTemplate retryTemplate = new CouchbaseRetryTemplate();
+        retryTemplate.setRetryPolicy(new SimpleRetryPolicy(2, TransientErrorClassifier.RETRYABLE_EXCEPTIONS, true));
+        retryTemplate.registerListener(new RetryListenerSupport() {
+
+            @Override
+            public <T, E extends Throwable> void onError(RetryContext context, RetryCallback<T, E> callback, Throwable throwable) {
+                errors.add(throwable);
+            }
+        });
+        PersistentDao dao = new PersistentDao(properties, emulator.createTemplate(), retryTemplate);
+        dao.save(sessionDocument());
+
+        emulator.failNext(new TemporaryFailureException());
+        dao.updateExpirationTime(SESSION_ID, 60);
+        emulator.failNext(new TemporaryFailureException(), new TemporaryFailureException());
+
+        assertThatThrownBy(() -> dao.updateExpirationTime(SESSION_ID, 60)).isInstanceOf(TemporaryFailureException.class);
+        assertThat(emulator.getOperationCount("touch")).isEqualTo(4);
+        assertThat(errors).hasSize(3);
+    }
+
+    @Test
+    public void rejectsOperationsOnceRequestDeadlineIsExhausted() {
+        PersistentDao dao = createDao();
+        dao.save(sessionDocument());
+
+        CouchbaseDeadline.open(Duration.ZERO);
+        try {
+            assertThatThrownBy(() -> dao.findNamespaces(SESSION_ID, GLOBAL_NAMESPACE, NAMESPACE)).isInstanceOf(DeadlineExceededException.class);
+            assertThat(dao.async().delete(SESSION_ID)).isCompletedExceptionally();
+        } finally {
+            CouchbaseDeadline.close();
+        }
+        assertThat(emulator.getOperationCount("get")).isZero();
+        assertThat(emulator.getDocument(SESSION_ID)).isNotNull();
+    }
+
+    @Test
+    public void rejectsOperationsWhileCircuitBreakerIsOpen() {
+        properties.getPersistent().getCircuitBreaker().setEnabled(true);
+        properties.getPersistent().getCircuitBreaker().setFailureThreshold(2);
+        properties.getPersistent().getCircuitBreaker().setOpenDuration(ofMinutes(1));
+        CouchbaseCircuitBreaker circuitBreaker = new CouchbaseCircuitBreaker(properties, new TransientErrorClassifier());
+        PersistentDao dao = new PersistentDao(properties, emulator.createTemplate(), createRetryTemplate(), circuitBreaker);
+        dao.save(sessionDocument());
+        emulator.setFaults(1, TemporaryFailureException::new);
+
+        assertThatThrownBy(() -> dao.findNamespaces(SESSION_ID, GLOBAL_NAMESPACE, NAMESPACE)).isInstanceOf(TemporaryFailureException.class);
+        assertThatThrownBy(() -> dao.async().updateExpirationTime(SESSION_ID, 60).join()).hasCauseInstanceOf(TemporaryFailureException.class);
+        long issuedOperations = emulator.getOperationCount("get") + emulator.getOperationCount("touch");
+
+        assertThatThrownBy(() -> dao.findNamespaces(SESSION_ID, GLOBAL_NAMESPACE, NAMESPACE)).isInstanceOf(CircuitBreakerOpenException.class);
+        assertThatThrownBy(() -> dao.async().updateExpirationTime(SESSION_ID, 60).join()).hasCauseInstanceOf(CircuitBreakerOpenException.class);
+        assertThat(circuitBreaker.getState()).isEqualTo(CouchbaseCircuitBreaker.State.OPEN);
+        assertThat(emulator.getOperationCount("get") + emulator.getOperationCount("touch")).isEqualTo(issuedOperations);
+    }
+
+    @Test
+    public void rejectsCallsExceedingBulkhead() throws Exception {
+        properties.getPersistent().getBulkhead().setMaxConcurrentCalls(1);
+        properties.getPersistent().getBulkhead().setMaxQueueSize(0);
+        BulkheadSessionDao dao = new BulkheadSessionDao(createDao(), properties);
+        dao.save(sessionDocument());
+        emulator.setLatency(ofMillis(500));
+
+        CompletableFuture<SessionNamespacesDocument> slowCall =
+                CompletableFuture.supplyAsync(() -> dao.findNamespaces(SESSION_ID, GLOBAL_NAMESPACE, NAMESPACE));
+        long start = System.nanoTime();
+        while (dao.getInFlightCalls() == 0 && System.nanoTime() - start < ofSeconds(5).toNanos()) {
+            Thread.sleep(5);
+        }
+
+        assertThatThrownBy(() -> dao.findNamespaces(SESSION_ID, GLOBAL_NAMESPACE, NAMESPACE)).isInstanceOf(BulkheadFullException.class);
+        assertThat(slowCall.get()).isNotNull();
+        assertThat(dao.getRejectedCalls()).isEqualTo(1);
+        assertThat(emulator.getOperationCount("get")).isEqualTo(1);
+    }
+
+    @Test
+    public void rejectsAsynchronousCallsWaitingTooLongForBulkhead() {
+        properties.getPersistent().getBulkhead().setMaxConcurrentCalls(1);
+        properties.getPersistent().getBulkhead().setMaxQueueSize(1);
+        properties.getPersistent().getBulkhead().setMaxWaitTime(ofMillis(100));
+        BulkheadSessionDao dao = new BulkheadSessionDao(createDao(), properties);
+        MeterRegistry registry = new SimpleMeterRegistry();
+        new BulkheadMetrics(dao).bindTo(registry);
+        dao.save(sessionDocument());
+        emulator.setLatency(ofMillis(500));
+
+        CompletableFuture<Void> slowCall = dao.async().updateExpirationTime(SESSION_ID, 60);
+        assertThat(registry.get("session.couchbase.bulkhead.in-flight").gauge().value()).isEqualTo(1);
+        CompletableFuture<Void> rejectedCall = dao.async().delete(SESSION_ID);
+
+        assertThatThrownBy(rejectedCall::join).hasCauseInstanceOf(BulkheadFullException.class);
+        slowCall.join();
+        assertThat(registry.get("session.couchbase.bulkhead.in-flight").gauge().value()).isZero();
+        assertThat(registry.get("session.couchbase.bulkhead.rejected").functionCounter().count()).isEqualTo(1);
+        assertThat(registry.get("session.couchbase.bulkhead.queue-time").functionTimer().count()).isEqualTo(1);
+        assertThat(registry.get("session.couchbase.bulkhead.queue-time.max").gauge().value()).isGreaterThanOrEqualTo(100);
+        assertThat(emulator.getDocument(SESSION_ID)).isNotNull();
+        assertThat(emulator.getExpiration(SESSION_ID)).isGreaterThan(0);
+    }
+
+    @Test
+    public void touchesDocumentWhileReadingIt() {
+        PersistentDao dao = createDao();
+        dao.save(sessionDocument());
+
+        SessionNamespacesDocument document = dao.findNamespacesAndTouch(SESSION_ID, 60, GLOBAL_NAMESPACE, NAMESPACE);
+
+        assertThat(document.getNamespace(NAMESPACE).getString("color")).isEqualTo("red");
+        assertThat(emulator.getExpiration(SESSION_ID)).isGreaterThan(0);
+        assertThat(emulator.getOperationCount("getAndTouch")).isEqualTo(1);
+        assertThat(emulator.getOperationCount("get")).isZero();
+        assertThat(emulator.getOperationCount("touch")).isZero();
+    }
+
+    @Test
+    public void storesNamespacesInSeparateDocumentsWithSplitLayout() {
+        properties.getPersistent().setDocumentLayout(DocumentLayout.SPLIT);
+        PersistentDao dao = createDao();
+        dao.save(sessionDocument());
+
+        dao.updateSession(singletonMap("size", "\"large\""), singleton("color"), NAMESPACE, SESSION_ID);
+        dao.updateExpirationTime(SESSION_ID, 60);
+
+        assertThat(emulator.getDocument(SESSION_ID).getObject("data").containsKey(NAMESPACE)).isFalse();
+        assertThat(emulator.getDocument(SESSION_ID).getArray("namespaces").toList()).containsExactly(NAMESPACE);
+        assertThat(emulator.getExpiration(SESSION_ID + "::" + NAMESPACE)).isEqualTo(emulator.getExpiration(SESSION_ID)).isGreaterThan(0);
+        SessionNamespacesDocument document = dao.findNamespaces(SESSION_ID, GLOBAL_NAMESPACE, NAMESPACE);
+        assertThat(document.getNamespace(GLOBAL_NAMESPACE).getLong(CREATION_TIME_ATTRIBUTE)).isEqualTo(100L);
+        assertThat(document.getNamespace(NAMESPACE).getString("size")).isEqualTo("large");
+        assertThat(document.getNamespace(NAMESPACE).containsKey("color")).isFalse();
+        assertThat(dao.findById(SESSION_ID).getData()).containsOnlyKeys(GLOBAL_NAMESPACE, NAMESPACE);
+    }
+
+    @Test
+    public void deletesAllDocumentsOfSessionWithSplitLayout() {
+        properties.getPersistent().setDocumentLayout(DocumentLayout.SPLIT);
+        PersistentDao dao = createDao();
+        dao.save(sessionDocument());
+        dao.insertNamespace("other", SESSION_ID);
+
+        dao.delete(SESSION_ID);
+
+        assertThat(emulator.getDocument(SESSION_ID)).isNull();
+        assertThat(emulator.getDocument(SESSION_ID + "::" + NAMESPACE)).isNull();
+        assertThat(emulator.getDocument(SESSION_ID + "::other")).isNull();
+    }
+
+    @Test
+    public void deletesSessions() {
+        PersistentDao dao = createDao();
+        dao.save(sessionDocument());
+
+        dao.deleteSessions(asList(SESSION_ID, "missing"));
+
+        assertThat(emulator.getDocument(SESSION_ID)).isNull();
+        assertThat(emulator.getOperationCount("remove")).isEqualTo(2);
+    }
+
+    protected PersistentDao createDao() {
+        return new PersistentDao(properties, emulator.createTemplate(), createRetryTemplate());
+    }
+
+    protected RetryTemplate createRetryTemplate() {
+        RetryTemplate retryTemplate = new CouchbaseRetryTemplate();
+        retryTemplate.setRetryPolicy(new SimpleRetryPolicy(3, TransientErrorClassifier.RETRYABLE_EXCEPTIONS, true));
+        retryTemplate.setBackOffPolicy(new NoBackOffPolicy());
+        return retryTemplate;
+    }
+
+    protected JsonObject concurrentlyModifiedDocument() {
+        JsonObject document = emulator.getDocument(SESSION_ID);
+        document.getObject("data").getObject(NAMESPACE).put("shape", "round");
+        return document;
+    }
+
+    protected SessionDocument sessionDocument() {
+        Map<String, Object> global = new HashMap<>();
+        global.put(CREATION_TIME_ATTRIBUTE, 100L);
+        Map<String, Object> namespace = new HashMap<>();
+        namespace.put("color", "red");
+        Map<String, Map<String, Object>> data = new HashMap<>();
+        data.put(GLOBAL_NAMESPACE, global);
+        data.put(NAMESPACE, namespace);
+        return new SessionDocument(SESSION_ID, data);
+    }
+}
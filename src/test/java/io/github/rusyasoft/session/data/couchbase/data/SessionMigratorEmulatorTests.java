@@ -0,0 +1,159 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+import com.couchbase.client.java.document.json.JsonObject;
+import io.github.rusyasoft.session.data.couchbase.config.SessionCouchbaseProperties;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.retry.backoff.NoBackOffPolicy;
+import org.springframework.retry.policy.SimpleRetryPolicy;
+import org.springframework.retry.support.RetryTemplate;
+
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+import static io.github.rusyasoft.session.data.couchbase.core.CouchbaseSession.CREATION_TIME_ATTRIBUTE;
+import static io.github.rusyasoft.session.data.couchbase.data.SessionDocument.EXTERNALIZED_ATTRIBUTE_KEY_PREFIX;
+import static io.github.rusyasoft.session.data.couchbase.data.SessionDocument.GLOBAL_NAMESPACE;
+import static java.time.Duration.ofMinutes;
+import static java.time.ZoneOffset.UTC;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SessionMigratorEmulatorTests {
+
+    protected static final String NAMESPACE = "default";
+    protected static final Clock CLOCK = Clock.fixed(Instant.ofEpochSecond(1500000000), UTC);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    protected SessionCouchbaseProperties properties;
+    protected BucketEmulator sourceEmulator;
+    protected BucketEmulator targetEmulator;
+    protected PersistentDao source;
+    protected PersistentDao target;
+
+    @Before
+    public void setUp() {
+        properties = new SessionCouchbaseProperties();
+        sourceEmulator = new BucketEmulator("sessions");
+        targetEmulator = new BucketEmulator("sessions");
+        sourceEmulator.setClock(CLOCK);
+        targetEmulator.setClock(CLOCK);
+        source = createDao(sourceEmulator);
+        target = createDao(targetEmulator);
+    }
+
+    @Test
+    public void copiesDocumentsTogetherWithTheirExpiration() {
+        String attributeKey = EXTERNALIZED_ATTRIBUTE_KEY_PREFIX + "1";
+        source.save(sessionDocument("session-1"), 1800);
+        source.save(new SessionDocument(attributeKey, singletonMap(NAMESPACE, singletonMap("value", "\"red\""))), 600);
+        source.save(new PrincipalSessionsDocument("user", singletonList("session-1")));
+        sourceEmulator.putDocument("other", JsonObject.create().put("count", 1));
+
+        SessionMigrator.Progress progress = createMigrator().migrate();
+
+        assertThat(progress.getCopied()).isEqualTo(3);
+        assertThat(progress.getLastKey()).isEqualTo("user");
+        for (String key : asList("session-1", attributeKey, "user")) {
+            assertThat(targetEmulator.getDocument(key)).isEqualTo(sourceEmulator.getDocument(key));
+            assertThat(targetEmulator.getExpiration(key)).isEqualTo(sourceEmulator.getExpiration(key));
+        }
+        assertThat(targetEmulator.getExpiration("session-1")).isEqualTo(CLOCK.instant().getEpochSecond() + 1800);
+        assertThat(targetEmulator.getExpiration("user")).isZero();
+        assertThat(targetEmulator.getOperationCount("touch")).isZero();
+        assertThat(targetEmulator.getDocument("other")).isNull();
+    }
+
+    @Test
+    public void copiesExternalizedAttributesOfSplitLayoutOnce() {
+        properties.getPersistent().setDocumentLayout(DocumentLayout.SPLIT);
+        source = createDao(sourceEmulator);
+        target = createDao(targetEmulator);
+        String attributeKey = EXTERNALIZED_ATTRIBUTE_KEY_PREFIX + "1";
+        String namespaceKey = attributeKey + "::" + NAMESPACE;
+        source.save(new SessionDocument(attributeKey, singletonMap(NAMESPACE, singletonMap("value", "\"red\""))), 600);
+
+        SessionMigrator.Progress progress = createMigrator().migrate();
+
+        assertThat(progress.getCopied()).isEqualTo(1);
+        assertThat(targetEmulator.getDocument(namespaceKey)).isEqualTo(sourceEmulator.getDocument(namespaceKey));
+        assertThat(targetEmulator.getExpiration(namespaceKey)).isEqualTo(sourceEmulator.getExpiration(namespaceKey));
+        assertThat(targetEmulator.getDocument(namespaceKey + "::" + NAMESPACE)).isNull();
+    }
+
+    @Test
+    public void skipsExpiredAndRemovedDocuments() {
+        source.save(sessionDocument("session-1"), 10);
+        source.save(sessionDocument("session-2"), 1800);
+        source.save(sessionDocument("session-3"), 1800);
+        SessionMigrator migrator = createMigrator();
+        migrator.setParallelism(1);
+        migrator.setClock(Clock.offset(CLOCK, ofMinutes(1)));
+        sourceEmulator.beforeNext("lookupIn", () -> sourceEmulator.documents.remove("session-3"));
+
+        SessionMigrator.Progress progress = migrator.migrate();
+
+        assertThat(progress.getExpired()).isEqualTo(1);
+        assertThat(progress.getMissing()).isEqualTo(1);
+        assertThat(progress.getCopied()).isEqualTo(1);
+        assertThat(targetEmulator.getDocument("session-1")).isNull();
+        assertThat(targetEmulator.getDocument("session-2")).isNotNull();
+        assertThat(targetEmulator.getDocument("session-3")).isNull();
+    }
+
+    @Test
+    public void resumesAfterCheckpoint() throws Exception {
+        Path checkpointFile = folder.getRoot().toPath().resolve("migration.properties");
+        source.save(sessionDocument("session-1"), 1800);
+        source.save(sessionDocument("session-2"), 1800);
+        SessionMigrator migrator = createMigrator();
+        migrator.setPageSize(2);
+        migrator.setCheckpointFile(checkpointFile);
+        migrator.migrate();
+        target.delete("session-1");
+        source.save(sessionDocument("session-3"), 1800);
+
+        SessionMigrator resumedMigrator = createMigrator();
+        resumedMigrator.setPageSize(2);
+        resumedMigrator.setCheckpointFile(checkpointFile);
+        SessionMigrator.Progress progress = resumedMigrator.migrate();
+
+        assertThat(progress.getCopied()).isEqualTo(3);
+        assertThat(progress.getLastKey()).isEqualTo("session-3");
+        assertThat(targetEmulator.getDocument("session-1")).isNull();
+        assertThat(targetEmulator.getDocument("session-3")).isNotNull();
+    }
+
+    protected SessionMigrator createMigrator() {
+        SessionMigrator migrator = new SessionMigrator(source, target);
+        migrator.setClock(CLOCK);
+        return migrator;
+    }
+
+    protected PersistentDao createDao(BucketEmulator emulator) {
+        RetryTemplate retryTemplate = new CouchbaseRetryTemplate();
+        retryTemplate.setRetryPolicy(new SimpleRetryPolicy(3, TransientErrorClassifier.RETRYABLE_EXCEPTIONS, true));
+        retryTemplate.setBackOffPolicy(new NoBackOffPolicy());
+        return new PersistentDao(properties, emulator.createTemplate(), retryTemplate);
+    }
+
+    protected SessionDocument sessionDocument(String id) {
+        Map<String, Object> global = new HashMap<>();
+        global.put(CREATION_TIME_ATTRIBUTE, 100L);
+        Map<String, Object> namespace = new HashMap<>();
+        namespace.put("color", "red");
+        Map<String, Map<String, Object>> data = new HashMap<>();
+        data.put(GLOBAL_NAMESPACE, global);
+        data.put(NAMESPACE, namespace);
+        return new SessionDocument(id, data);
+    }
+}
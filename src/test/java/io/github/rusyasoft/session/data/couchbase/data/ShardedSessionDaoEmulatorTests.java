@@ -0,0 +1,133 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+import io.github.rusyasoft.session.data.couchbase.config.SessionCouchbaseProperties;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.retry.backoff.NoBackOffPolicy;
+import org.springframework.retry.policy.SimpleRetryPolicy;
+import org.springframework.retry.support.RetryTemplate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import static io.github.rusyasoft.session.data.couchbase.core.CouchbaseSession.CREATION_TIME_ATTRIBUTE;
+import static io.github.rusyasoft.session.data.couchbase.data.SessionDocument.GLOBAL_NAMESPACE;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ShardedSessionDaoEmulatorTests {
+
+    protected static final String NAMESPACE = "default";
+
+    protected BucketEmulator firstEmulator;
+    protected BucketEmulator secondEmulator;
+    protected PersistentDao firstShard;
+    protected PersistentDao secondShard;
+    protected ShardedSessionDao dao;
+
+    @Before
+    public void setUp() {
+        SessionCouchbaseProperties properties = new SessionCouchbaseProperties();
+        firstEmulator = new BucketEmulator("sessions-1");
+        secondEmulator = new BucketEmulator("sessions-2");
+        firstShard = createShard(properties, firstEmulator);
+        secondShard = createShard(properties, secondEmulator);
+        ConsistentHashRing<PersistentDao> previousRing = new ConsistentHashRing<>(160);
+        previousRing.add("first", firstShard, 1);
+        ConsistentHashRing<PersistentDao> ring = new ConsistentHashRing<>(160);
+        ring.add("first", firstShard, 1);
+        ring.add("second", secondShard, 1);
+        dao = new ShardedSessionDao(ring, previousRing);
+    }
+
+    @Test
+    public void movesSessionsFoundInTheirPreviousShard() {
+        String id = keyOwnedBy(secondShard);
+        firstShard.save(sessionDocument(id));
+        firstShard.updateExpirationTime(id, 1800);
+        Long expiration = firstEmulator.getExpiration(id);
+
+        SessionNamespacesDocument document = dao.findNamespaces(id, GLOBAL_NAMESPACE, NAMESPACE);
+
+        assertThat(document.getNamespace(NAMESPACE).getString("color")).isEqualTo("red");
+        assertThat(firstEmulator.getDocument(id)).isNull();
+        assertThat(secondEmulator.getDocument(id)).isNotNull();
+        assertThat(secondEmulator.getExpiration(id)).isEqualTo(expiration);
+    }
+
+    @Test
+    public void movesSessionsFoundInTheirPreviousShardWhileLoadingManySessions() {
+        String movedId = keyOwnedBy(secondShard);
+        String keptId = keyOwnedBy(firstShard);
+        firstShard.save(sessionDocument(movedId));
+        firstShard.save(sessionDocument(keptId));
+
+        Map<String, SessionNamespacesDocument> documents = dao.findNamespaces(asList(movedId, keptId, "missing"), GLOBAL_NAMESPACE, NAMESPACE);
+
+        assertThat(documents).containsOnlyKeys(movedId, keptId);
+        assertThat(secondEmulator.getDocument(movedId)).isNotNull();
+        assertThat(firstEmulator.getDocument(keptId)).isNotNull();
+    }
+
+    @Test
+    public void readsSessionsOfUnchangedShardsOnce() {
+        String id = keyOwnedBy(firstShard);
+
+        assertThat(dao.findById(id)).isNull();
+
+        assertThat(firstEmulator.getOperationCount("query")).isEqualTo(1);
+        assertThat(secondEmulator.getOperationCount("query")).isZero();
+    }
+
+    @Test
+    public void movesPrincipalSessionsBeforeUpdatingThem() {
+        String principal = keyOwnedBy(secondShard);
+        firstShard.save(new PrincipalSessionsDocument(principal, new ArrayList<>(asList("a", "b"))));
+
+        assertThat(dao.exists(principal)).isTrue();
+        dao.updatePutPrincipalSession(principal, "c");
+
+        assertThat(dao.findByPrincipal(principal).getSessionIds()).containsExactly("a", "b", "c");
+        assertThat(firstEmulator.getDocument(principal)).isNull();
+    }
+
+    @Test
+    public void deletesSessionsFromBothShards() {
+        String id = keyOwnedBy(secondShard);
+        firstShard.save(sessionDocument(id));
+
+        dao.deleteSessions(singletonList(id));
+
+        assertThat(firstEmulator.getDocument(id)).isNull();
+        assertThat(dao.findById(id)).isNull();
+    }
+
+    protected PersistentDao createShard(SessionCouchbaseProperties properties, BucketEmulator emulator) {
+        RetryTemplate retryTemplate = new CouchbaseRetryTemplate();
+        retryTemplate.setRetryPolicy(new SimpleRetryPolicy(3, TransientErrorClassifier.RETRYABLE_EXCEPTIONS, true));
+        retryTemplate.setBackOffPolicy(new NoBackOffPolicy());
+        return new PersistentDao(properties, emulator.createTemplate(), retryTemplate);
+    }
+
+    protected String keyOwnedBy(PersistentDao shard) {
+        for (int i = 0; ; i++) {
+            String key = "session-" + i;
+            if (dao.shardOf(key) == shard) {
+                return key;
+            }
+        }
+    }
+
+    protected SessionDocument sessionDocument(String id) {
+        Map<String, Object> global = new HashMap<>();
+        global.put(CREATION_TIME_ATTRIBUTE, 100L);
+        Map<String, Object> namespace = new HashMap<>();
+        namespace.put("color", "red");
+        Map<String, Map<String, Object>> data = new HashMap<>();
+        data.put(GLOBAL_NAMESPACE, global);
+        data.put(NAMESPACE, namespace);
+        return new SessionDocument(id, data);
+    }
+}
@@ -0,0 +1,62 @@
+package io.github.rusyasoft.session.data.couchbase.data;
+
+import com.couchbase.client.core.BackpressureException;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import com.couchbase.client.java.error.TemporaryFailureException;
+import org.junit.Test;
+import org.springframework.retry.RetryContext;
+
+import java.util.concurrent.TimeoutException;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TransientErrorClassifierTests {
+
+    protected final TransientErrorClassifier classifier = new TransientErrorClassifier();
+
+    @Test
+    public void classifiesClusterErrorsAsTransient() {
+        assertThat(classifier.isTransient(new TemporaryFailureException())).isTrue();
+        assertThat(classifier.isTransient(new BackpressureException())).isTrue();
+        assertThat(classifier.isTransient(new RuntimeException(new TimeoutException()))).isTrue();
+    }
+
+    @Test
+    public void classifiesDocumentStateErrorsAsPermanent() {
+        assertThat(classifier.isTransient(new DocumentDoesNotExistException())).isFalse();
+        assertThat(classifier.isTransient(new CASMismatchException())).isFalse();
+        assertThat(classifier.isTransient(new IllegalStateException())).isFalse();
+    }
+
+    @Test
+    public void classifiesQueryErrorsByTheirCodes() {
+        assertThat(classifier.isTransient(queryException(1080))).isTrue();
+        assertThat(classifier.isTransient(queryException(5000))).isTrue();
+        assertThat(classifier.isTransient(new RuntimeException(queryException(12008)))).isTrue();
+        assertThat(classifier.isTransient(queryException(3000))).isFalse();
+        assertThat(classifier.isTransient(queryException(1080, 3000))).isFalse();
+        assertThat(classifier.isTransient(new CouchbaseQueryException("SELECT 1", singletonList(JsonObject.create())))).isFalse();
+    }
+
+    @Test
+    public void retriesOnlyTransientErrors() {
+        TransientErrorRetryPolicy retryPolicy = new TransientErrorRetryPolicy(3, classifier);
+        RetryContext context = retryPolicy.open(null);
+
+        retryPolicy.registerThrowable(context, queryException(1080));
+        assertThat(retryPolicy.canRetry(context)).isTrue();
+        retryPolicy.registerThrowable(context, new DocumentDoesNotExistException());
+        assertThat(retryPolicy.canRetry(context)).isFalse();
+    }
+
+    protected CouchbaseQueryException queryException(Integer... codes) {
+        return new CouchbaseQueryException("SELECT 1", asList(codes).stream()
+                .map(code -> JsonObject.create().put("code", code).put("msg", "error " + code))
+                .collect(toList()));
+    }
+}